@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks;
+
+import org.jboss.errai.bus.server.io.MethodInvoker;
+import org.jboss.errai.bus.server.io.MethodInvokers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the generated {@link MethodInvoker} for an RPC endpoint with the reflective invoker used when code
+ * generation is turned off. The arguments are those of a decoded message: numbers arrive as longs, and must be
+ * narrowed on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EndpointInvocationBenchmark {
+  private final Service service = new Service();
+  private final Object[] args = {"Foo", 42l, true};
+
+  private MethodInvoker generated;
+  private MethodInvoker reflective;
+
+  @Setup
+  public void setup() throws Exception {
+    final Method method = Service.class.getMethod("call", String.class, int.class, boolean.class);
+
+    MethodInvokers.setGenerationEnabled(getClass().getClassLoader(), false);
+    reflective = MethodInvokers.get(method);
+
+    MethodInvokers.setGenerationEnabled(getClass().getClassLoader(), true);
+    generated = MethodInvokers.get(method);
+
+    if (!generated.isGenerated()) {
+      throw new IllegalStateException("could not generate an invoker for " + method);
+    }
+  }
+
+  @Benchmark
+  public Object generatedInvoker() throws InvocationTargetException {
+    return generated.invoke(service, args.clone());
+  }
+
+  @Benchmark
+  public Object reflectiveInvoker() throws InvocationTargetException {
+    return reflective.invoke(service, args.clone());
+  }
+
+  public static class Service {
+    public int call(String name, int count, boolean active) {
+      return active ? name.length() + count : count;
+    }
+  }
+}
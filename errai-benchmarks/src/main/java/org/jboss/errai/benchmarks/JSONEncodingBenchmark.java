@@ -0,0 +1,63 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks;
+
+import org.jboss.errai.bus.server.io.JSONEncoder;
+import org.jboss.errai.bus.server.io.JSONStreamEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the string-building {@link JSONEncoder} with the {@link JSONStreamEncoder} which the message queues use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JSONEncodingBenchmark {
+  @Param({MessageShapes.SMALL, MessageShapes.BATCH, MessageShapes.LIST, MessageShapes.GRAPH})
+  private String shape;
+
+  private Object payload;
+  private final ByteArrayOutputStream outstream = new ByteArrayOutputStream(64 * 1024);
+
+  @Setup
+  public void setup() {
+    payload = MessageShapes.create(shape);
+  }
+
+  @Benchmark
+  public String jsonEncoder() {
+    return JSONEncoder.encode(payload);
+  }
+
+  @Benchmark
+  public int jsonStreamEncoder() throws IOException {
+    outstream.reset();
+    JSONStreamEncoder.encode(payload, outstream);
+    return outstream.size();
+  }
+}
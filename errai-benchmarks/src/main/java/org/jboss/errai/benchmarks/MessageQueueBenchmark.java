@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks;
+
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.server.HttpSessionProvider;
+import org.jboss.errai.bus.server.MessageQueueImpl;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.api.QueueOverflowPolicy;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MessageQueueImpl} with several threads offering messages while a single client polls them, as
+ * happens when many services push to one client.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MessageQueueBenchmark {
+  @Param({"1000"})
+  private int queueSize;
+
+  private ServerMessageBusImpl bus;
+  private MessageQueueImpl queue;
+  private Message message;
+
+  private final OutputStream discard = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+
+  @Setup
+  public void setup() {
+    bus = new ServerMessageBusImpl();
+
+    QueueSession session = new HttpSessionProvider.SessionsContainer().createSession("benchmark", "queue");
+    queue = new MessageQueueImpl(queueSize, QueueOverflowPolicy.DropOldest, bus, session);
+    queue.setWindowPolling(true);
+
+    message = CommandMessage.createWithParts(MessageShapes.message("BenchmarkService"));
+  }
+
+  @TearDown
+  public void tearDown() {
+    bus.stop();
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(3)
+  public boolean offer() {
+    return queue.offer(message);
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public void poll() throws IOException {
+    queue.poll(false, discard);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks;
+
+import org.jboss.errai.benchmarks.model.Address;
+import org.jboss.errai.benchmarks.model.Customer;
+import org.jboss.errai.benchmarks.model.LineItem;
+import org.jboss.errai.benchmarks.model.Order;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The message payloads the serialization benchmarks are run against. Each shape is the raw parts of a message, as
+ * the encoders see them:
+ * <ul>
+ * <li><tt>small</tt> - a single command message with a handful of string parts.</li>
+ * <li><tt>batch</tt> - 100 small messages, as they are written by a queue in one transmission window.</li>
+ * <li><tt>list</tt> - a message carrying a list of 1000 strings.</li>
+ * <li><tt>graph</tt> - a message carrying a customer with 10 orders of 10 line items each.</li>
+ * </ul>
+ */
+public final class MessageShapes {
+  public static final String SMALL = "small";
+  public static final String BATCH = "batch";
+  public static final String LIST = "list";
+  public static final String GRAPH = "graph";
+
+  private MessageShapes() {
+  }
+
+  public static Object create(String shape) {
+    if (SMALL.equals(shape)) {
+      return smallMessage(0);
+    }
+    else if (BATCH.equals(shape)) {
+      List<Object> batch = new ArrayList<Object>(100);
+      for (int i = 0; i < 100; i++) {
+        batch.add(smallMessage(i));
+      }
+      return batch;
+    }
+    else if (LIST.equals(shape)) {
+      List<String> values = new ArrayList<String>(1000);
+      for (int i = 0; i < 1000; i++) {
+        values.add("value-" + i);
+      }
+
+      Map<String, Object> parts = message("ListService");
+      parts.put("Values", values);
+      return parts;
+    }
+    else if (GRAPH.equals(shape)) {
+      Map<String, Object> parts = message("CustomerService");
+      parts.put("Customer", customer());
+      return parts;
+    }
+    else {
+      throw new IllegalArgumentException("unknown message shape: " + shape);
+    }
+  }
+
+  /**
+   * Returns the parts of a small message to the specified subject.
+   */
+  public static Map<String, Object> message(String subject) {
+    Map<String, Object> parts = new HashMap<String, Object>();
+    parts.put("ToSubject", subject);
+    parts.put("ReplyTo", "ClientReceiver");
+    parts.put("CommandType", "Update");
+    return parts;
+  }
+
+  private static Map<String, Object> smallMessage(int i) {
+    Map<String, Object> parts = message("StockTicker");
+    parts.put("Symbol", "SYM" + i);
+    parts.put("Price", "12.34");
+    parts.put("Text", "Price changed: \"SYM" + i + "\"");
+    return parts;
+  }
+
+  private static Customer customer() {
+    Address address = new Address("1 Main Street", "Springfield", "12345");
+    Customer customer = new Customer(1, "John Doe", "john.doe@example.com", address);
+
+    long time = System.currentTimeMillis();
+    for (int o = 0; o < 10; o++) {
+      Order order = new Order(o, new Date(time - o * 86400000l), address);
+      order.setShipped(o % 2 == 0);
+
+      for (int i = 0; i < 10; i++) {
+        order.getItems().add(new LineItem("SKU-" + o + "-" + i, "Item #" + i + " of order #" + o, i + 1, 9.99 * i));
+      }
+      customer.getOrders().add(order);
+    }
+
+    return customer;
+  }
+}
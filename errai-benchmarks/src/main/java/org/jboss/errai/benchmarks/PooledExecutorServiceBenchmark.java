@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks;
+
+import org.jboss.errai.bus.client.api.AsyncTask;
+import org.jboss.errai.bus.server.async.scheduling.PooledExecutorService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of handing tasks to the {@link PooledExecutorService}, both for immediate execution and for
+ * scheduling with a delay.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PooledExecutorServiceBenchmark {
+  private PooledExecutorService service;
+
+  private final AtomicLong executed = new AtomicLong();
+  private final Runnable task = new Runnable() {
+    public void run() {
+      executed.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+      return "Benchmark Task";
+    }
+  };
+
+  @Setup
+  public void setup() {
+    service = new PooledExecutorService(10000);
+    service.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    service.shutdown();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void execute() throws InterruptedException {
+    service.execute(task);
+  }
+
+  /**
+   * Schedules a task far enough in the future that it never runs, and cancels it again.
+   */
+  @Benchmark
+  @Threads(4)
+  public boolean scheduleAndCancel() {
+    AsyncTask scheduled = service.schedule(task, org.jboss.errai.bus.client.api.base.TimeUnit.SECONDS, 60);
+    return scheduled.cancel(false);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks;
+
+import org.jboss.errai.bus.client.api.AsyncTask;
+import org.jboss.errai.bus.server.async.SchedulerService;
+import org.jboss.errai.bus.server.async.SimpleSchedulerService;
+import org.jboss.errai.bus.server.async.TimedTask;
+import org.jboss.errai.bus.server.async.TimerWheelSchedulerService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the {@link SimpleSchedulerService} with the {@link TimerWheelSchedulerService}, with several threads
+ * scheduling one-off tasks. With a horizon of 40ms, every task is due at the end of a 40ms window, as every message
+ * queue does for window-based activation. With a longer horizon, the tasks are spread over that time, so that many
+ * more of them are scheduled at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SchedulerServiceBenchmark {
+  @Param({"simple", "timerwheel"})
+  private String scheduler;
+
+  @Param({"40", "5000"})
+  private int horizon;
+
+  private SchedulerService service;
+  private final AtomicLong executed = new AtomicLong();
+
+  @Setup
+  public void setup() {
+    service = "simple".equals(scheduler) ? new SimpleSchedulerService() : new TimerWheelSchedulerService();
+    service.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    service.requestStop();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public AsyncTask addTask() {
+    return service.addTask(new ActivationTask());
+  }
+
+  /**
+   * Schedules a task and cancels it again, as happens when a queue is activated before its window ends.
+   */
+  @Benchmark
+  @Threads(4)
+  public boolean addAndCancelTask() {
+    return service.addTask(new ActivationTask()).cancel(false);
+  }
+
+  private final class ActivationTask extends TimedTask {
+    private ActivationTask() {
+      period = -1;
+      nextRuntime = System.currentTimeMillis() + (horizon <= 40 ? horizon : ThreadLocalRandom.current().nextInt(horizon));
+    }
+
+    public void run() {
+      executed.incrementAndGet();
+    }
+  }
+}
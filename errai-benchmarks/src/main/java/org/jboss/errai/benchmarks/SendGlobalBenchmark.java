@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks;
+
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link ServerMessageBusImpl#sendGlobal(Message)} to a subject with a varying number of local subscribers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SendGlobalBenchmark {
+  private static final String SUBJECT = "BenchmarkService";
+
+  @Param({"1", "10", "1000"})
+  private int subscribers;
+
+  private ServerMessageBusImpl bus;
+  private Map<String, Object> parts;
+
+  private final AtomicLong delivered = new AtomicLong();
+
+  @Setup
+  public void setup() {
+    bus = new ServerMessageBusImpl();
+    for (int i = 0; i < subscribers; i++) {
+      bus.subscribe(SUBJECT, new MessageCallback() {
+        public void callback(Message message) {
+          delivered.lazySet(delivered.get() + 1);
+        }
+      });
+    }
+
+    parts = MessageShapes.message(SUBJECT);
+  }
+
+  @TearDown
+  public void tearDown() {
+    bus.stop();
+  }
+
+  @Benchmark
+  public Message sendGlobal() {
+    Message message = CommandMessage.createWithParts(new HashMap<String, Object>(parts));
+    bus.sendGlobal(message);
+    return message;
+  }
+}
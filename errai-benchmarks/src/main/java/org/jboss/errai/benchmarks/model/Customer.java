@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The root of the entity graph sent in the <tt>graph</tt> message shape. See {@link org.jboss.errai.benchmarks.MessageShapes}.
+ */
+public class Customer {
+  private long id;
+  private String name;
+  private String email;
+  private Address address;
+  private List<Order> orders = new ArrayList<Order>();
+
+  public Customer() {
+  }
+
+  public Customer(long id, String name, String email, Address address) {
+    this.id = id;
+    this.name = name;
+    this.email = email;
+    this.address = address;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public void setId(long id) {
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public String getEmail() {
+    return email;
+  }
+
+  public void setEmail(String email) {
+    this.email = email;
+  }
+
+  public Address getAddress() {
+    return address;
+  }
+
+  public void setAddress(Address address) {
+    this.address = address;
+  }
+
+  public List<Order> getOrders() {
+    return orders;
+  }
+
+  public void setOrders(List<Order> orders) {
+    this.orders = orders;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.benchmarks.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class Order {
+  private long id;
+  private Date placed;
+  private boolean shipped;
+  private Address shippingAddress;
+  private List<LineItem> items = new ArrayList<LineItem>();
+
+  public Order() {
+  }
+
+  public Order(long id, Date placed, Address shippingAddress) {
+    this.id = id;
+    this.placed = placed;
+    this.shippingAddress = shippingAddress;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public void setId(long id) {
+    this.id = id;
+  }
+
+  public Date getPlaced() {
+    return placed;
+  }
+
+  public void setPlaced(Date placed) {
+    this.placed = placed;
+  }
+
+  public boolean isShipped() {
+    return shipped;
+  }
+
+  public void setShipped(boolean shipped) {
+    this.shipped = shipped;
+  }
+
+  public Address getShippingAddress() {
+    return shippingAddress;
+  }
+
+  public void setShippingAddress(Address shippingAddress) {
+    this.shippingAddress = shippingAddress;
+  }
+
+  public List<LineItem> getItems() {
+    return items;
+  }
+
+  public void setItems(List<LineItem> items) {
+    this.items = items;
+  }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.client.api;
+
+import org.jboss.errai.bus.client.api.base.ReplyRouter;
+
+/**
+ * Implemented by buses which route the replies to their messages by correlation ID, through a single reserved
+ * subject.
+ */
+public interface HasReplyRouter {
+  public ReplyRouter getReplyRouter();
+}
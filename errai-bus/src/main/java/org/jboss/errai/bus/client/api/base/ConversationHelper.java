@@ -16,6 +16,7 @@
 
 package org.jboss.errai.bus.client.api.base;
 
+import org.jboss.errai.bus.client.api.HasReplyRouter;
 import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.client.api.MessageCallback;
 import org.jboss.errai.bus.client.framework.MessageBus;
@@ -32,6 +33,12 @@ public class ConversationHelper {
 
   public static void createConversationService(MessageBus bus, Message m) {
     if (m.isFlagSet(RoutingFlags.Conversational)) {
+      if (bus instanceof HasReplyRouter) {
+        ((HasReplyRouter) bus).getReplyRouter()
+                .expectReply(m, m.getResource(MessageCallback.class, RES_NAME), null);
+        return;
+      }
+
       final String replyService = m.getSubject() + ":RespondTo:" + count();
       bus.subscribe(replyService, m.getResource(MessageCallback.class, RES_NAME));
       bus.subscribe(replyService, new ServiceCanceller(replyService, bus));
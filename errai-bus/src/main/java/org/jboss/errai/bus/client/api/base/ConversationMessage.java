@@ -82,6 +82,9 @@ public class ConversationMessage extends CommandMessage {
     if (inReplyTo.hasPart(MessageParts.ReplyTo)) {
       set(MessageParts.ToSubject, inReplyTo.get(String.class, MessageParts.ReplyTo));
     }
+    if (inReplyTo.hasPart(MessageParts.CorrelationId)) {
+      set(MessageParts.CorrelationId, inReplyTo.get(String.class, MessageParts.CorrelationId));
+    }
 
     if (!inReplyTo.hasResource("Session") && !inReplyTo.hasPart(MessageParts.ReplyTo)) {
       if (!inReplyTo.hasResource("Session") && !inReplyTo.hasPart(MessageParts.ReplyTo)) {
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.client.api.base;
+
+import org.jboss.errai.bus.client.api.ErrorCallback;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.framework.LogAdapter;
+import org.jboss.errai.bus.client.protocols.MessageParts;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Routes the replies to conversations and remote calls to their callbacks. Every message which expects a reply is
+ * tagged with a {@link MessageParts#CorrelationId} unique to this bus, and is told to reply to the bus' reserved
+ * reply subject, rather than to a subject created for that one message. The reply subject is subscribed once, so
+ * request/response traffic never changes the bus' subscriptions.
+ * <p/>
+ * As anyone can send to the reply subject, correlation IDs carry a random part, so that they cannot be guessed, and a
+ * reply is only accepted from the session the request was sent to (see {@link #sessionOf(Message)}).
+ * <p/>
+ * Every request with a pending reply asks for one, even if it only has an error callback, so that its entry is
+ * removed as soon as the reply arrives. A reply which has not arrived within the reply timeout is given up on, and the
+ * error callback of the request, if there is one, is called with a {@link MessageDeliveryFailure}.
+ */
+public class ReplyRouter implements MessageCallback {
+  /**
+   * The reserved subject the client bus receives replies on.
+   */
+  public static final String CLIENT_SUBJECT = "ClientBusReplies";
+
+  /**
+   * The reserved subject the server bus receives replies on.
+   */
+  public static final String SERVER_SUBJECT = "ServerBusReplies";
+
+  private static final long DEFAULT_REPLY_TIMEOUT = 1000 * 60 * 5;
+
+  private final String subject;
+  private final String idPrefix;
+  private final Random random;
+  private final Map<String, PendingReply> pending;
+  private final LogAdapter log;
+
+  private long replyTimeout = DEFAULT_REPLY_TIMEOUT;
+  private int counter = 0;
+
+  /**
+   * Creates a new router.
+   *
+   * @param subject  - the subject replies are sent to, which the router must be subscribed to
+   * @param idPrefix - a prefix for the correlation IDs, which distinguishes them from those of other buses
+   * @param random   - the source of the random part of the correlation IDs. This should be a
+   *                 <tt>java.security.SecureRandom</tt> on the server.
+   * @param pending  - the map in which pending replies are held. This must be thread-safe on the server.
+   * @param log      - the log of the bus, to report failing error callbacks and rejected replies to
+   */
+  public ReplyRouter(String subject, String idPrefix, Random random, Map<String, PendingReply> pending,
+                     LogAdapter log) {
+    this.subject = subject;
+    this.idPrefix = idPrefix;
+    this.random = random;
+    this.pending = pending;
+    this.log = log;
+  }
+
+  public String getSubject() {
+    return subject;
+  }
+
+  /**
+   * Prepares the specified message for sending, so that its reply is routed to the specified callback, and any
+   * error the recipient reports is routed to the specified error callback.
+   *
+   * @param message       - the message which expects a reply
+   * @param replyCallback - the callback to be called with the reply, or <tt>null</tt>
+   * @param errorCallback - the callback to be called if the recipient reports an error, or the reply times out.
+   *                      May be <tt>null</tt>.
+   * @return the correlation ID of the message
+   */
+  public String expectReply(Message message, MessageCallback replyCallback, ErrorCallback errorCallback) {
+    final String id = nextCorrelationId();
+    pending.put(id, new PendingReply(message, replyCallback, errorCallback, sessionOf(message),
+            System.currentTimeMillis() + replyTimeout));
+
+    message.set(MessageParts.CorrelationId, id);
+    message.set(MessageParts.ReplyTo, subject);
+    if (errorCallback != null) {
+      message.set(MessageParts.ErrorTo, subject);
+    }
+
+    return id;
+  }
+
+  /**
+   * Forgets the pending reply with the specified correlation ID. Its callbacks will not be called.
+   *
+   * @param correlationId - the correlation ID returned by {@link #expectReply(Message, MessageCallback, ErrorCallback)}
+   */
+  public void cancel(String correlationId) {
+    pending.remove(correlationId);
+  }
+
+  public void callback(Message message) {
+    final String id = message.get(String.class, MessageParts.CorrelationId);
+    if (id == null) {
+      log.warn("discarded message sent to " + subject + " without a correlation ID");
+      return;
+    }
+
+    final PendingReply reply = pending.get(id);
+    if (reply == null) {
+      // the reply has already been received, or has timed out.
+      return;
+    }
+
+    final String session = sessionOf(message);
+    if (reply.getSession() == null ? session != null : !reply.getSession().equals(session)) {
+      log.warn("discarded reply to message sent to " + reply.getMessage().getSubject()
+              + ", as it did not come from the session the message was sent to");
+      return;
+    }
+
+    if (pending.remove(id) == null) {
+      // another reply got there first.
+      return;
+    }
+
+    if (message.hasPart(MessageParts.ErrorTo)) {
+      if (reply.getErrorCallback() != null) {
+        reply.getErrorCallback().error(reply.getMessage(), message.get(Throwable.class, MessageParts.Throwable));
+      }
+    }
+    else if (reply.getReplyCallback() != null) {
+      reply.getReplyCallback().callback(message);
+    }
+  }
+
+  /**
+   * Gives up on all replies whose timeout has passed.
+   *
+   * @param now - the current time, in milliseconds
+   * @return the number of replies which were given up on
+   */
+  public int expire(long now) {
+    final List<PendingReply> expired = new ArrayList<PendingReply>();
+
+    final Iterator<PendingReply> iter = pending.values().iterator();
+    while (iter.hasNext()) {
+      final PendingReply reply = iter.next();
+      if (reply.getDeadline() <= now) {
+        iter.remove();
+        expired.add(reply);
+      }
+    }
+
+    for (PendingReply reply : expired) {
+      if (reply.getErrorCallback() != null) {
+        try {
+          reply.getErrorCallback().error(reply.getMessage(),
+                  new MessageDeliveryFailure("no reply received to message sent to: " + reply.getMessage().getSubject()));
+        }
+        catch (Throwable t) {
+          log.error("error callback failed for message sent to: " + reply.getMessage().getSubject(), t);
+        }
+      }
+    }
+
+    return expired.size();
+  }
+
+  /**
+   * Returns the number of replies which are still expected.
+   *
+   * @return the number of pending replies
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  public long getReplyTimeout() {
+    return replyTimeout;
+  }
+
+  /**
+   * Sets how long to wait for a reply before giving up on it. This only applies to messages sent afterwards.
+   *
+   * @param replyTimeout - the timeout, in milliseconds
+   */
+  public void setReplyTimeout(long replyTimeout) {
+    this.replyTimeout = replyTimeout;
+  }
+
+  /**
+   * Returns the ID of the session the specified message is sent to, or was received from. Replies are only accepted
+   * from the session their request was sent to. This implementation returns <tt>null</tt>, for a bus which only
+   * talks to one remote peer.
+   *
+   * @param message - a request or a reply
+   * @return the session ID, or <tt>null</tt> if the message is local to the bus
+   */
+  protected String sessionOf(Message message) {
+    return null;
+  }
+
+  private synchronized String nextCorrelationId() {
+    return idPrefix + (++counter) + "." + Long.toString(random.nextLong() & Long.MAX_VALUE, 36)
+            + Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+  }
+
+  /**
+   * A reply which has been asked for, but not yet received.
+   */
+  public static class PendingReply {
+    private final Message message;
+    private final MessageCallback replyCallback;
+    private final ErrorCallback errorCallback;
+    private final String session;
+    private final long deadline;
+
+    public PendingReply(Message message, MessageCallback replyCallback, ErrorCallback errorCallback, String session,
+                        long deadline) {
+      this.message = message;
+      this.replyCallback = replyCallback;
+      this.errorCallback = errorCallback;
+      this.session = session;
+      this.deadline = deadline;
+    }
+
+    public Message getMessage() {
+      return message;
+    }
+
+    public MessageCallback getReplyCallback() {
+      return replyCallback;
+    }
+
+    public ErrorCallback getErrorCallback() {
+      return errorCallback;
+    }
+
+    /**
+     * Returns the ID of the session the reply must come from, or <tt>null</tt> if it must be local.
+     */
+    public String getSession() {
+      return session;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+  }
+}
@@ -151,6 +151,7 @@ public class AbstractMessageBuilder<R extends Sendable> {
                     try {
                       MessageBuilder.getMessageProvider().get()
                               .toSubject(replyTo)
+                              .copy(MessageParts.CorrelationId, incomingMsg)
                               .copyResource("Session", incomingMsg)
                               .addAllParts(message.getParts())
                               .addAllProvidedParts(message.getProvidedParts())
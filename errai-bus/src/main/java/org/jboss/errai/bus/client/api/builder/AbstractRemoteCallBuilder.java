@@ -18,6 +18,7 @@ package org.jboss.errai.bus.client.api.builder;
 
 import com.google.gwt.core.client.GWT;
 import org.jboss.errai.bus.client.api.ErrorCallback;
+import org.jboss.errai.bus.client.api.HasReplyRouter;
 import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.client.api.MessageCallback;
 import org.jboss.errai.bus.client.api.RemoteCallback;
@@ -85,6 +86,22 @@ public class AbstractRemoteCallBuilder {
     final RemoteCallSendable sendable = new RemoteCallSendable() {
       
       public void sendNowWith(final MessageBus bus) {
+        if (bus instanceof HasReplyRouter) {
+          final MessageCallback replyCallback = remoteCallback == null ? null : new MessageCallback() {
+            @SuppressWarnings({"unchecked"})
+            public void callback(Message message) {
+              remoteCallback.callback(message.get(responseType, "MethodReply"));
+            }
+          };
+
+          if (replyCallback != null || message.getErrorCallback() != null) {
+            ((HasReplyRouter) bus).getReplyRouter().expectReply(message, replyCallback, message.getErrorCallback());
+          }
+
+          message.sendNowWith(bus);
+          return;
+        }
+
         Integer id = null;
         if (remoteCallback != null) {
           final String replyTo = message.getSubject() + "." + message.getCommandType() + 
@@ -208,6 +208,10 @@ public class ConversationMessageWrapper implements Message {
       }
     }
 
+    if (message.hasPart(MessageParts.CorrelationId) && !newMessage.hasPart(MessageParts.CorrelationId)) {
+      newMessage.copy(MessageParts.CorrelationId, message);
+    }
+
     if (message.hasResource("Session")) {
       newMessage.copyResource("Session", message);
     }
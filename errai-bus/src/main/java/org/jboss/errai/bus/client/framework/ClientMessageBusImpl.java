@@ -17,6 +17,8 @@
 package org.jboss.errai.bus.client.framework;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.Scheduler;
 import com.google.gwt.dom.client.Style;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
@@ -28,6 +30,7 @@ import org.jboss.errai.bus.client.api.*;
 import org.jboss.errai.bus.client.api.base.Capabilities;
 import org.jboss.errai.bus.client.api.base.MessageBuilder;
 import org.jboss.errai.bus.client.api.base.NoSubscribersToDeliverTo;
+import org.jboss.errai.bus.client.api.base.ReplyRouter;
 import org.jboss.errai.bus.client.api.base.TransportIOException;
 import org.jboss.errai.bus.client.ext.ExtensionsLoader;
 import org.jboss.errai.bus.client.protocols.BusCommands;
@@ -46,7 +49,7 @@ import static org.jboss.errai.bus.client.protocols.MessageParts.*;
  *
  * @author Mike Brock
  */
-public class ClientMessageBusImpl implements ClientMessageBus {
+public class ClientMessageBusImpl implements ClientMessageBus, HasReplyRouter {
   private static final int HEARTBEAT_DELAY = 20000;
 
   private String clientId;
@@ -77,6 +80,17 @@ public class ClientMessageBusImpl implements ClientMessageBus {
 
   private Map<String, MessageCallback> remotes;
 
+  /**
+   * The remote subscriptions which are patterns, such as <tt>Stocks.*</tt>, and so match subjects other than their
+   * own.
+   */
+  private List<String> remotePatterns;
+
+  /* The subjects subscribed to on the server, as of the subscription version last received. These are kept when the
+   * bus reconnects, so that the server only needs to send what has changed since. */
+  private Set<String> knownRemoteSubjects = new HashSet<String>();
+  private String subscriptionVersion;
+
   /* Outgoing queue of messages to be transmitted */
   // private final Queue<Message> outgoingQueue = new LinkedList<Message>();
 
@@ -94,6 +108,26 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   private List<Runnable> postInitTasks = new ArrayList<Runnable>();
   private List<Message> deferredMessages = new ArrayList<Message>();
 
+  /* Routes the replies to conversations and remote calls started by this client to their callbacks */
+  private final ReplyRouter replyRouter = new ReplyRouter(ReplyRouter.CLIENT_SUBJECT, "C", new Random(),
+          new HashMap<String, ReplyRouter.PendingReply>(), new LogAdapter() {
+    public void warn(String message) {
+      logAdapter.warn(message);
+    }
+
+    public void info(String message) {
+      logAdapter.info(message);
+    }
+
+    public void debug(String message) {
+      logAdapter.debug(message);
+    }
+
+    public void error(String message, Throwable t) {
+      logAdapter.error(message, t);
+    }
+  });
+
   /* The timer constantly ensures the client's polling with the server is active */
   private Timer heartBeatTimer;
 
@@ -104,6 +138,17 @@ public class ClientMessageBusImpl implements ClientMessageBus {
 
   private long lastTransmit = 0;
 
+  /* True if the server accepts several messages in one request */
+  private boolean batchedTransmission = false;
+
+  /* The time, in milliseconds, to collect outgoing messages for before sending them. If zero, messages are collected
+   * until the end of the current event loop turn. */
+  private int transmissionWindow = 0;
+
+  /* Messages waiting to be sent in the next batch */
+  private List<Message> transmissionBuffer = new ArrayList<Message>();
+  private boolean transmissionScheduled = false;
+
   /**
    * The unique ID that will sent with the next request.
    * <p>
@@ -113,6 +158,13 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   
   private boolean disconnected = false;
 
+  /**
+   * The open web socket, if the server offered one. While it is open, messages are sent and received through it
+   * instead of by polling.
+   */
+  private JavaScriptObject webSocketChannel;
+  private boolean pollingSuspended = false;
+
   ProxySettings proxySettings;
 
   static class ProxySettings {
@@ -197,6 +249,7 @@ public class ClientMessageBusImpl implements ClientMessageBus {
       fireAllUnSubscribeListeners(subject);
 
       subscriptions.remove(subject);
+      remotePatterns.remove(subject);
       remoteShadowSubscription(subject);
     }
   }
@@ -388,6 +441,9 @@ public class ClientMessageBusImpl implements ClientMessageBus {
     if (remotes.containsKey(subject)) {
       remotes.get(subject).callback(message);
     }
+    else if (matchesRemotePattern(subject)) {
+      remoteCallback.callback(message);
+    }
     else if (shadowSubscriptions.containsKey(subject)) {
       deliverToShadowSubscriptions(subject, message);
     }
@@ -397,6 +453,13 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   }
 
 
+  private boolean matchesRemotePattern(String subject) {
+    for (String pattern : remotePatterns) {
+      if (SubjectPattern.matches(pattern, subject)) return true;
+    }
+    return false;
+  }
+
   /**
    * Add message to the queue that remotely transmits messages to the server.
    * All messages in the queue are then sent.
@@ -404,11 +467,54 @@ public class ClientMessageBusImpl implements ClientMessageBus {
    * @param message -
    */
   private void encodeAndTransmit(Message message) {
-    //outgoingQueue.add(message);
-//    transmitRemote(message instanceof HasEncoded ?
-//            ((HasEncoded) message).getEncoded() : encodeMap(message.getParts()), message);
+    if (!batchedTransmission) {
+      transmitRemote(encodeMap(message.getParts()), Collections.singletonList(message));
+      return;
+    }
+
+    transmissionBuffer.add(message);
+    if (transmissionScheduled) return;
+    transmissionScheduled = true;
 
-    transmitRemote(encodeMap(message.getParts()), message);
+    if (transmissionWindow > 0) {
+      new Timer() {
+        @Override
+        public void run() {
+          flushTransmissionBuffer();
+        }
+      }.schedule(transmissionWindow);
+    }
+    else {
+      Scheduler.get().scheduleFinally(new Scheduler.ScheduledCommand() {
+        public void execute() {
+          flushTransmissionBuffer();
+        }
+      });
+    }
+  }
+
+  /**
+   * Sends all the messages in the <tt>transmissionBuffer</tt> in a single request. More than one message is sent as
+   * a JSON array. If the bus is not connected, the messages are kept until it is.
+   */
+  private void flushTransmissionBuffer() {
+    transmissionScheduled = false;
+    if (transmissionBuffer.isEmpty() || sendBuilder == null) return;
+
+    final List<Message> txMessages = transmissionBuffer;
+    transmissionBuffer = new ArrayList<Message>();
+
+    if (txMessages.size() == 1) {
+      transmitRemote(encodeMap(txMessages.get(0).getParts()), txMessages);
+      return;
+    }
+
+    StringBuilder payload = new StringBuilder("[");
+    for (Message txMessage : txMessages) {
+      if (payload.length() != 1) payload.append(',');
+      payload.append(encodeMap(txMessage.getParts()));
+    }
+    transmitRemote(payload.append(']').toString(), txMessages);
   }
 
   private void addSubscription(String subject, Object reference) {
@@ -513,14 +619,20 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   }
 
   /**
-   * Transmits JSON string containing message, using the <tt>sendBuilder</tt>
+   * Transmits JSON string containing one or more messages, using the <tt>sendBuilder</tt>
    *
-   * @param message   - JSON string representation of message
-   * @param txMessage - Message reference.
+   * @param message    - JSON string representation of the messages
+   * @param txMessages - references to the messages being sent, whose error callbacks are notified if sending fails.
    */
-  private void transmitRemote(final String message, final Message txMessage) {
+  private void transmitRemote(final String message, final List<Message> txMessages) {
     if (message == null) return;
 
+    if (webSocketChannel != null) {
+      sendOverWebSocket(webSocketChannel, message);
+      lastTransmit = System.currentTimeMillis();
+      return;
+    }
+
    // System.out.println("TX:" + message);
 
     try {
@@ -542,7 +654,9 @@ public class ClientMessageBusImpl implements ClientMessageBus {
               TransportIOException tioe = new TransportIOException(response.getText(), response.getStatusCode(),
                       "Failure communicating with server");
 
-              callErrorHandler(txMessage, tioe);
+              for (Message txMessage : txMessages) {
+                callErrorHandler(txMessage, tioe);
+              }
               return;
             }
           }
@@ -556,13 +670,23 @@ public class ClientMessageBusImpl implements ClientMessageBus {
             procIncomingPayload(response);
           }
           catch (Throwable e) {
-            callErrorHandler(txMessage, e);
+            for (Message txMessage : txMessages) {
+              callErrorHandler(txMessage, e);
+            }
           }
         }
 
         public void onError(Request request, Throwable exception) {
           exception.printStackTrace();
-          if (txMessage.getErrorCallback() == null || txMessage.getErrorCallback().error(txMessage, exception)) {
+
+          boolean logError = false;
+          for (Message txMessage : txMessages) {
+            if (txMessage.getErrorCallback() == null || txMessage.getErrorCallback().error(txMessage, exception)) {
+              logError = true;
+            }
+          }
+
+          if (logError) {
             logError("Failed to communicate with remote bus", "", exception);
           }
         }
@@ -576,6 +700,12 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   }
 
   private void performPoll() {
+    if (webSocketChannel != null) {
+      // messages are pushed through the web socket instead.
+      pollingSuspended = true;
+      return;
+    }
+
     try {
       getRecvBuilder().sendRequest(null, receiveCommCallback);
     }
@@ -599,6 +729,14 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   }
 
   public void stop(boolean sendDisconnect) {
+    flushTransmissionBuffer();
+
+    if (webSocketChannel != null) {
+      final JavaScriptObject socket = webSocketChannel;
+      webSocketChannel = null;
+      closeWebSocket(socket);
+    }
+
     if (sendDisconnect) {
       sendBuilder.setHeader("phase", "disconnect");
 
@@ -606,7 +744,7 @@ public class ClientMessageBusImpl implements ClientMessageBus {
               .toSubject("ServerBus")
               .command(BusCommands.Disconnect).getMessage();
 
-      encodeAndTransmit(m);
+      transmitRemote(encodeMap(m.getParts()), Collections.singletonList(m));
     }
 
     unsubscribeAll("ClientBus");
@@ -621,10 +759,12 @@ public class ClientMessageBusImpl implements ClientMessageBus {
     }
 
     this.remotes.clear();
+    this.remotePatterns.clear();
 
     this.heartBeatTimer.cancel();
     this.disconnected = true;
     this.initialized = false;
+    this.batchedTransmission = false;
     this.sendBuilder = null;
     this.postInitTasks.clear();
   }
@@ -649,6 +789,7 @@ public class ClientMessageBusImpl implements ClientMessageBus {
     onUnsubscribeHooks = new ArrayList<UnsubscribeListener>();
     subscriptions = new HashMap<String, List<Object>>();
     remotes = new HashMap<String, MessageCallback>();
+    remotePatterns = new ArrayList<String>();
   }
 
   public void setInitialized(boolean initialized) {
@@ -730,9 +871,15 @@ public class ClientMessageBusImpl implements ClientMessageBus {
         switch (BusCommands.valueOf(message.getCommandType())) {
           case RemoteSubscribe:
             if (message.hasPart("SubjectsList")) {
-              for (String subject : (List<String>) message.get(List.class, "SubjectsList")) {
+              final List<String> subjects = (List<String>) message.get(List.class, "SubjectsList");
+              for (String subject : subjects) {
                 remoteSubscribe(subject);
               }
+
+              if (message.hasPart("SubscriptionVersion")) {
+                knownRemoteSubjects = new HashSet<String>(subjects);
+                subscriptionVersion = message.get(String.class, "SubscriptionVersion");
+              }
             }
             else {
               String subject = message.get(String.class, Subject);
@@ -744,6 +891,31 @@ public class ClientMessageBusImpl implements ClientMessageBus {
             unsubscribeAll(message.get(String.class, Subject));
             break;
 
+          case SubscriptionDelta:
+            final List<String> subscribed = (List<String>) message.get(List.class, "SubjectsList");
+            final List<String> unsubscribed = (List<String>) message.get(List.class, "UnsubscribedList");
+
+            knownRemoteSubjects.addAll(subscribed);
+            knownRemoteSubjects.removeAll(unsubscribed);
+            subscriptionVersion = message.get(String.class, "SubscriptionVersion");
+
+            if (isInitialized()) {
+              for (String subject : subscribed) {
+                remoteSubscribe(subject);
+              }
+            }
+            else {
+              // reconnecting: the remote subscriptions must all be restored, not just those which have changed.
+              for (String subject : knownRemoteSubjects) {
+                remoteSubscribe(subject);
+              }
+            }
+
+            for (String subject : unsubscribed) {
+              unsubscribeAll(subject);
+            }
+            break;
+
           case CapabilitiesNotice:
             String[] capabilites = message.get(String.class, "Flags").split(",");
 
@@ -761,6 +933,17 @@ public class ClientMessageBusImpl implements ClientMessageBus {
                     POLL_FREQUENCY = 500;
                   }
                   break;
+                case BatchedTransmission:
+                  batchedTransmission = true;
+                  if (message.hasPart("TransmissionWindow")) {
+                    transmissionWindow = message.get(Integer.class, "TransmissionWindow");
+                  }
+                  break;
+                case WebSockets:
+                  if (isWebSocketSupported() && message.hasPart("WebSocketPath")) {
+                    openWebSocket(getWebSocketUrl(message.get(String.class, "WebSocketPath")), clientId);
+                  }
+                  break;
               }
             }
 
@@ -840,6 +1023,8 @@ public class ClientMessageBusImpl implements ClientMessageBus {
               }
             });
 
+            subscribe(ReplyRouter.CLIENT_SUBJECT, replyRouter);
+
             postInit = true;
             logAdapter.debug("Executing " + postInitTasks.size() + " post init task(s)");
             for (Runnable postInitTask : postInitTasks) {
@@ -902,11 +1087,22 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   }
 
   private void remoteSubscribe(String subject) {
+    if (remotes.containsKey(subject) && subscriptions.containsKey(subject)
+            && subscriptions.get(subject).contains(remoteCallback)) {
+      return;
+    }
+
     remotes.put(subject, remoteCallback);
+    if (SubjectPattern.isPattern(subject) && !remotePatterns.contains(subject)) {
+      remotePatterns.add(subject);
+    }
     addSubscription(subject, remoteCallback);
   }
 
   private void sendAllDeferred() {
+    // messages which were batched while the bus was not connected go first, as they were sent first.
+    flushTransmissionBuffer();
+
     for (Iterator<Message> iter = deferredMessages.iterator(); iter.hasNext(); ) {
       Message m = iter.next();
       if (m.hasPart(MessageParts.PriorityProcessing)) {
@@ -931,7 +1127,8 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   private boolean sendInitialMessage(final HookCallback callback) {
     try {
       String initialMessage = "{\"CommandType\":\"ConnectToQueue\",\"ToSubject\":\"ServerBus\"," +
-              " \"PriorityProcessing\":\"1\"}";
+              " \"PriorityProcessing\":\"1\"" +
+              (subscriptionVersion == null ? "" : ", \"SubscriptionVersion\":\"" + subscriptionVersion + "\"") + "}";
 
       RequestBuilder initialRequest = getSendBuilder();
       initialRequest.setHeader("phase", "connection");
@@ -1116,6 +1313,8 @@ public class ClientMessageBusImpl implements ClientMessageBus {
             new Timer() {
               @Override
               public void run() {
+                replyRouter.expire(System.currentTimeMillis());
+
                 if (System.currentTimeMillis() - lastTransmit >= HEARTBEAT_DELAY) {
                   encodeAndTransmit(MessageBuilder.createMessage().toSubject("ServerBus")
                           .command(BusCommands.Heartbeat).noErrorHandling().getMessage());
@@ -1134,6 +1333,10 @@ public class ClientMessageBusImpl implements ClientMessageBus {
     heartBeatTimer.scheduleRepeating(HEARTBEAT_DELAY);
   }
 
+  public ReplyRouter getReplyRouter() {
+    return replyRouter;
+  }
+
   /**
    * Add runnable tasks to be run after the message bus is initialized
    *
@@ -1214,17 +1417,75 @@ public class ClientMessageBusImpl implements ClientMessageBus {
   private void procIncomingPayload(Response response) throws Exception {
   //  System.out.println("RX:" +response.getText());
 
+    procIncomingPayload(response.getText());
+  }
+
+  private void procIncomingPayload(String payload) {
     try {
-      for (MarshalledMessage m : decodePayload(response.getText())) {
+      for (MarshalledMessage m : decodePayload(payload)) {
         _store(m.getSubject(), m.getMessage());
       }
     }
     catch (RuntimeException e) {
       e.printStackTrace();
-      logError("Error delivering message into bus", response.getText(), e);
+      logError("Error delivering message into bus", payload, e);
     }
   }
 
+  /**
+   * Resolves the path of the web socket endpoint against the base URL of the host page.
+   */
+  private static String getWebSocketUrl(String path) {
+    return GWT.getHostPageBaseURL().replaceFirst("^http", "ws") + (path.startsWith("/") ? path.substring(1) : path);
+  }
+
+  private void webSocketOpened(JavaScriptObject socket) {
+    logAdapter.debug("web socket opened; polling will stop");
+    webSocketChannel = socket;
+  }
+
+  private void webSocketClosed(JavaScriptObject socket) {
+    if (webSocketChannel != socket) return;
+
+    logAdapter.warn("web socket closed; falling back to polling");
+    webSocketChannel = null;
+    if (pollingSuspended && !disconnected) {
+      pollingSuspended = false;
+      performPoll();
+    }
+  }
+
+  private native static boolean isWebSocketSupported() /*-{
+    return !!$wnd.WebSocket;
+  }-*/;
+
+  /**
+   * Opens a web socket, and sends the ID of the queue as its first frame. The socket is only used once it is open,
+   * so if it cannot be opened, the bus carries on polling.
+   */
+  private native void openWebSocket(String url, String queueId) /*-{
+    var bus = this;
+    var socket = new $wnd.WebSocket(url);
+    socket.onopen = function() {
+      socket.send(queueId);
+      bus.@org.jboss.errai.bus.client.framework.ClientMessageBusImpl::webSocketOpened(Lcom/google/gwt/core/client/JavaScriptObject;)(socket);
+    };
+    socket.onmessage = function(event) {
+      bus.@org.jboss.errai.bus.client.framework.ClientMessageBusImpl::procIncomingPayload(Ljava/lang/String;)(event.data);
+    };
+    socket.onclose = function() {
+      bus.@org.jboss.errai.bus.client.framework.ClientMessageBusImpl::webSocketClosed(Lcom/google/gwt/core/client/JavaScriptObject;)(socket);
+    };
+  }-*/;
+
+  private native static void sendOverWebSocket(JavaScriptObject socket, String data) /*-{
+    socket.send(data);
+  }-*/;
+
+  private native static void closeWebSocket(JavaScriptObject socket) /*-{
+    socket.close();
+  }-*/;
+
   public void attachMonitor(BusMonitor monitor) {
   }
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.client.framework;
+
+/**
+ * Matches hierarchical subjects against subscription patterns. Subjects are made up of tokens separated by dots,
+ * such as <tt>Stocks.NYSE.IBM</tt>. In a pattern, a <tt>*</tt> token matches any single token, and a <tt>**</tt>
+ * token, which must come last, matches one or more tokens. These are the same patterns which the client bus
+ * subscribes to through PageBus, so that <tt>Stocks.*.IBM</tt> and <tt>Stocks.**</tt> mean the same on both sides.
+ * Any subject which does not contain a wildcard token is matched exactly.
+ */
+public final class SubjectPattern {
+  public static final String ANY_TOKEN = "*";
+  public static final String ANY_TOKENS = "**";
+
+  private SubjectPattern() {
+  }
+
+  /**
+   * Returns true if the specified subject contains a wildcard token, and therefore matches other subjects.
+   *
+   * @param subject - the subject to check
+   * @return true if the subject is a pattern
+   * @throws IllegalArgumentException - if the subject has a <tt>**</tt> token which is not its last
+   */
+  public static boolean isPattern(String subject) {
+    if (subject == null || subject.indexOf('*') == -1) return false;
+
+    boolean pattern = false;
+    int start = 0;
+    while (start <= subject.length()) {
+      int end = subject.indexOf('.', start);
+      if (end == -1) end = subject.length();
+
+      final String token = subject.substring(start, end);
+      if (ANY_TOKENS.equals(token)) {
+        if (end != subject.length()) throw notLast(subject);
+        pattern = true;
+      }
+      else if (ANY_TOKEN.equals(token)) {
+        pattern = true;
+      }
+      start = end + 1;
+    }
+    return pattern;
+  }
+
+  /**
+   * Returns true if the specified subject matches the pattern.
+   *
+   * @param pattern - the pattern to match against
+   * @param subject - the concrete subject
+   * @return true if the subject matches
+   * @throws IllegalArgumentException - if the pattern has a <tt>**</tt> token which is not its last
+   */
+  public static boolean matches(String pattern, String subject) {
+    int p = 0;
+    int s = 0;
+
+    while (p <= pattern.length()) {
+      int pEnd = pattern.indexOf('.', p);
+      if (pEnd == -1) pEnd = pattern.length();
+
+      if (s > subject.length()) {
+        // the subject has run out of tokens.
+        return false;
+      }
+
+      final String token = pattern.substring(p, pEnd);
+      if (ANY_TOKENS.equals(token)) {
+        if (pEnd != pattern.length()) throw notLast(pattern);
+        return s < subject.length();
+      }
+
+      int sEnd = subject.indexOf('.', s);
+      if (sEnd == -1) sEnd = subject.length();
+
+      if (!ANY_TOKEN.equals(token) && !token.equals(subject.substring(s, sEnd))) {
+        return false;
+      }
+
+      p = pEnd + 1;
+      s = sEnd + 1;
+    }
+
+    return s > subject.length();
+  }
+
+  private static IllegalArgumentException notLast(String pattern) {
+    return new IllegalArgumentException("'" + ANY_TOKENS + "' may only be the last token of a pattern: " + pattern);
+  }
+}
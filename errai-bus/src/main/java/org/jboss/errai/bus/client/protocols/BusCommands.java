@@ -84,6 +84,42 @@ public enum BusCommands {
    */
   RemoteUnsubscribe,
 
+  /**
+   * Notifies the remote bus of a batch of changes to the subjects subscribed to locally, and of the version of the
+   * subscriptions after those changes. A bus which reconnects may send the last version it has seen with
+   * {@link #ConnectToQueue}, in which case it is only sent the changes since that version.
+   * <p/>
+   * Parameters Accepted:
+   * <p/>
+   * <table style="border: 1px solid gray" cellpadding="3">
+   * <thead style="font-weight: bold;">
+   * <tr>
+   * <td>Part</td>
+   * <td>Type</td>
+   * <td>Description</td>
+   * </tr>
+   * <thead>
+   * <tbody>
+   * <tr>
+   * <td>SubjectsList</td>
+   * <td>{@link java.util.List}</td>
+   * <td>The subjects which have been subscribed to</td>
+   * </tr>
+   * <tr>
+   * <td>UnsubscribedList</td>
+   * <td>{@link java.util.List}</td>
+   * <td>The subjects which are no longer subscribed to</td>
+   * </tr>
+   * <tr>
+   * <td>SubscriptionVersion</td>
+   * <td>{@link String}</td>
+   * <td>The version of the subscriptions after these changes</td>
+   * </tr>
+   * </tbody>
+   * </table>
+   */
+  SubscriptionDelta,
+
   Heartbeat,
 
   Disconnect,
@@ -58,6 +58,12 @@ public enum MessageParts {
    */
   ReplyTo,
 
+  /**
+   * Identifies the request a reply belongs to. Replies are all sent to the same reserved subject, and are routed to
+   * their callbacks by this identifier.
+   */
+  CorrelationId,
+
   /**
    * Specifies the intended recipient queue for the message.
    */
@@ -21,45 +21,49 @@ import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.client.api.base.QueueStopMessage;
 import org.jboss.errai.bus.server.api.*;
 import org.jboss.errai.bus.server.async.TimedTask;
+import org.jboss.errai.bus.server.io.EncodingBuffer;
 import org.jboss.errai.bus.server.io.JSONStreamEncoder;
+import org.jboss.errai.bus.server.io.SharedEncodedMessage;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+import org.jboss.errai.bus.server.util.MessageRingBuffer;
 import org.mvel2.util.StringAppender;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static java.lang.System.currentTimeMillis;
 import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * A message queue is keeps track of which messages need to be sent outbound. It keeps track of the amount of messages
  * that can be stored, transmitted and those which timeout. The <tt>MessageQueue</tt> is implemented using a
- * {@link java.util.concurrent.LinkedBlockingQueue} to store the messages, and a <tt>ServerMessageBus</tt> to send the
- * messages.
+ * {@link org.jboss.errai.bus.server.util.MessageRingBuffer} to store the messages, and a <tt>ServerMessageBus</tt> to
+ * send the messages. Offering a message never blocks: when the buffer is full, the queue's
+ * {@link QueueOverflowPolicy} decides what is dropped.
  */
 public class MessageQueueImpl implements MessageQueue {
   private static final long HEARTBEAT_PERIOD = secs(30);
   private static final long TIMEOUT = Boolean.getBoolean("org.jboss.errai.debugmode") ?
           secs(360) : secs(30);
 
-  /**
-   * We limit the number of messages in each transmission mostly as a
-   * convenience to the client: everything we send in one go normally has to be
-   * dealt with in the AJAX callback. This can make the UI choppy when work is
-   * done in such large chunks.
-   */
-  private static final int MAXIMUM_PAYLOAD_SIZE = 25;
-  
-//  private static final long DEFAULT_TRANSMISSION_WINDOW = millis(25);
-//  private static final long MAX_TRANSMISSION_WINDOW = millis(100);
-
   private final QueueSession session;
 
-  private long transmissionWindow = 40;
+  /**
+   * Decides how long to hold messages back after a transmission, so that they go out together, and how large a
+   * transmission may get. We limit the size of each transmission mostly as a convenience to the client: everything we
+   * send in one go normally has to be dealt with in the AJAX callback. This can make the UI choppy when work is done
+   * in such large chunks.
+   */
+  private final TransmissionWindow transmissionWindow;
   private volatile long lastTransmission = nanoTime();
-  private long endWindow;
+  private volatile long endWindow;
 
   private int lastQueueSize = 0;
   private boolean throttleIncoming = false;
@@ -69,11 +73,23 @@ public class MessageQueueImpl implements MessageQueue {
   private boolean windowPolling = false;
 
   private SessionControl sessionControl;
-  private QueueActivationCallback activationCallback;
-  private BlockingQueue<Message> queue;
+  private volatile QueueActivationCallback activationCallback;
+  private final MessageRingBuffer queue;
+
+  private final QueueOverflowPolicy overflowPolicy;
+  private final AtomicLong droppedMessages = new AtomicLong();
+  private volatile int highWaterMark;
+
+  /**
+   * The buffer positions of the most recently queued messages for each conflation key. An entry is removed when its
+   * message is taken from the queue, so this never holds more entries than there are messages waiting.
+   */
+  private final ConcurrentMap<String, Long> conflatedPositions = new ConcurrentHashMap<String, Long>();
+  private final AtomicLong conflatedMessages = new AtomicLong();
 
 
   private final ServerMessageBus bus;
+  private final ServerBusMetrics metrics;
   private volatile TimedTask task;
 
   private final Semaphore lock = new Semaphore(1, false);
@@ -110,9 +126,40 @@ public class MessageQueueImpl implements MessageQueue {
    * @param session   - the session associated with the queue
    */
   public MessageQueueImpl(final int queueSize, final ServerMessageBus bus, final QueueSession session) {
-    this.queue = new LinkedBlockingQueue<Message>(queueSize);
+    this(queueSize, QueueOverflowPolicy.DisconnectClient, bus, session);
+  }
+
+  /**
+   * Initializes the message queue with an initial size, an overflow policy and a specified bus
+   *
+   * @param queueSize      - the size of the queue
+   * @param overflowPolicy - what to do when a message is offered to a full queue
+   * @param bus            - the bus that will send the messages
+   * @param session        - the session associated with the queue
+   */
+  public MessageQueueImpl(final int queueSize, final QueueOverflowPolicy overflowPolicy,
+                          final ServerMessageBus bus, final QueueSession session) {
+    this(queueSize, overflowPolicy, new TransmissionWindow(), bus, session);
+  }
+
+  /**
+   * Initializes the message queue with an initial size, an overflow policy, a transmission window and a specified bus
+   *
+   * @param queueSize          - the size of the queue
+   * @param overflowPolicy     - what to do when a message is offered to a full queue
+   * @param transmissionWindow - decides how messages are batched into transmissions
+   * @param bus                - the bus that will send the messages
+   * @param session            - the session associated with the queue
+   */
+  public MessageQueueImpl(final int queueSize, final QueueOverflowPolicy overflowPolicy,
+                          final TransmissionWindow transmissionWindow, final ServerMessageBus bus,
+                          final QueueSession session) {
+    this.queue = new MessageRingBuffer(queueSize);
+    this.overflowPolicy = overflowPolicy;
+    this.transmissionWindow = transmissionWindow;
     this.bus = bus;
     this.session = session;
+    this.metrics = ServerBusMetrics.forBus(bus);
   }
 
   /**
@@ -124,6 +171,16 @@ public class MessageQueueImpl implements MessageQueue {
    * @param outstream - output stream to write the polling results to.
    */
   public void poll(final boolean wait, final OutputStream outstream) throws IOException {
+    final EncodingBuffer buffer = EncodingBuffer.acquire(outstream);
+    try {
+      _poll(wait, buffer);
+    }
+    finally {
+      buffer.release();
+    }
+  }
+
+  private void _poll(final boolean wait, final EncodingBuffer outstream) throws IOException {
     if (!queueRunning) {
       JSONStreamEncoder.encode(new QueueStopMessage().getParts(), outstream);
       return;
@@ -134,29 +191,30 @@ public class MessageQueueImpl implements MessageQueue {
     checkSession();
 
     if (lock.tryAcquire()) {
+      final long polled = nanoTime();
+      transmissionWindow.recordPoll(polled);
       outstream.write('[');
 
+      final long start = outstream.getBytesWritten();
       int payLoadSize = 0;
       try {
 
         if (wait) {
-          m = queue.poll(45, TimeUnit.SECONDS);
+          m = drained(queue.poll(45, TimeUnit.SECONDS));
 
         }
         else {
-          m = queue.poll();
+          m = drained(queue.poll());
         }
 
-        if (m instanceof HasEncoded) {
-          outstream.write(((HasEncoded) m).getEncoded().getBytes());
-        }
-        else if (m instanceof QueueStopMessage) {
+        if (m instanceof QueueStopMessage) {
           JSONStreamEncoder.encode(m.getParts(), outstream);
           queueRunning = false;
           bus.closeQueue(this);
         }
         else if (m != null) {
-          JSONStreamEncoder.encode(m.getParts(), outstream);
+          writeMessage(m, outstream);
+          payLoadSize++;
         }
 
         if (_windowPolling) {
@@ -164,21 +222,21 @@ public class MessageQueueImpl implements MessageQueue {
           _windowPolling = false;
         }
         else if (windowPolling) {
-          while (!queue.isEmpty() && payLoadSize < MAXIMUM_PAYLOAD_SIZE
-                  && !isWindowExceeded()) {
-            outstream.write(',');
-            if ((m = queue.poll()) instanceof HasEncoded) {
-              outstream.write(((HasEncoded) m).getEncoded().getBytes());
-            }
-            else {
-              JSONStreamEncoder.encode(m.getParts(), outstream);
-            }
+          // a payload is bounded both in size and in time, so that a steady flow of offers cannot hold it open.
+          final long limit = start + transmissionWindow.getPayloadLimit();
+          final long deadline = polled + transmissionWindow.getMaxWindow();
+          Message next;
+          while (outstream.getBytesWritten() < limit && nanoTime() < deadline && (next = drained(queue.poll())) != null) {
+            if (m != null) outstream.write(',');
+            writeMessage(m = next, outstream);
             payLoadSize++;
           }
         }
 
         lastQueueSize = queue.size();
-        endWindow = (lastTransmission = nanoTime()) + transmissionWindow;
+        transmissionWindow.recordTransmission(lastTransmission = nanoTime(), payLoadSize,
+                outstream.getBytesWritten() - start);
+        endWindow = lastTransmission + transmissionWindow.getWindow();
 
         if (m == null && isHeartbeatNeeded()) {
           outstream.write(heartBeatBytes);
@@ -207,13 +265,38 @@ public class MessageQueueImpl implements MessageQueue {
     }
   }
 
+  /**
+   * Writes the encoded form of the message to the output stream. Messages which have already been encoded, either
+   * as a string or as bytes shared between queues, are written as they are.
+   *
+   * @param m         - the message to write
+   * @param outstream - the stream to write to
+   * @throws IOException - if the message cannot be written
+   */
+  private void writeMessage(final Message m, final EncodingBuffer outstream) throws IOException {
+    if (m instanceof SharedEncodedMessage) {
+      outstream.write(((SharedEncodedMessage) m).getEncodedBytes());
+    }
+    else if (m instanceof HasEncoded) {
+      outstream.writeUTF8(((HasEncoded) m).getEncoded());
+    }
+    else {
+      final long start = nanoTime();
+      JSONStreamEncoder.encode(m.getParts(), outstream);
+      metrics.getEncodeTime().record(nanoTime() - start);
+    }
+  }
+
   private static final byte[] heartBeatBytes = "{ToSubject:\"ClientBus\", CommandType:\"Heartbeat\"}".getBytes();
 
   /**
-   * Inserts the specified message into the queue, and returns true if it was successful
+   * Inserts the specified message into the queue, and returns true if it was successful. This method never blocks.
+   * If the message is to a conflated subject, it replaces the previous such message if that has not been sent yet.
+   * If the queue is full, the {@link QueueOverflowPolicy} of this queue decides which message is discarded.
    *
    * @param message - the message to insert into the queue
-   * @return true if insertion was successful
+   * @return true if insertion was successful, false if the message was discarded
+   * @throws QueueOverloadedException - if the queue was full and the client has been disconnected as a result.
    */
   public boolean offer(final Message message) {
 
@@ -221,21 +304,70 @@ public class MessageQueueImpl implements MessageQueue {
       throw new QueueUnavailableException("queue is not available");
     }
 
-    boolean b = false;
     activity();
-    try {
-      b = queue.offer(message, 1, TimeUnit.MINUTES);
-    }
-    catch (InterruptedException e) {
-      // fall-through.
+    transmissionWindow.recordOffer();
+
+    final String conflationKey = bus.getConflationKey(message);
+    boolean conflated = false;
+    if (conflationKey != null) {
+      final Long lastPosition = conflatedPositions.get(conflationKey);
+      if (lastPosition != null && queue.replace(lastPosition, message)) {
+        conflatedMessages.incrementAndGet();
+        conflated = true;
+      }
     }
 
+    // a conflated message takes the place of the one it replaced, and is otherwise handled like any other: the
+    // high-water mark is updated, and the queue is activated.
+    long pos = conflated ? -1 : queue.enqueue(message);
+    boolean b = conflated || pos != -1;
+
     if (!b) {
-      int oldSize = queue.size();
-      queue.clear();
-      throw new QueueOverloadedException(null, "queue was overloaded for too long. discarding " + oldSize + " undelievered messages.");
+      switch (overflowPolicy) {
+        case DropNewest:
+          droppedMessages.incrementAndGet();
+          return false;
+
+        case CoalesceBySubject:
+          if (message.getSubject() != null && queue.replaceLast(message.getSubject(), message)) {
+            droppedMessages.incrementAndGet();
+            b = true;
+            break;
+          }
+          // fall-through.
+
+        case DropOldest:
+          do {
+            if (drained(queue.poll()) != null) droppedMessages.incrementAndGet();
+          }
+          while ((pos = queue.enqueue(message)) == -1);
+          b = true;
+          break;
+
+        case DisconnectClient:
+          queueRunning = false;
+          int oldSize = queue.size();
+          queue.clear();
+          conflatedPositions.clear();
+          droppedMessages.addAndGet(oldSize + 1);
+          metrics.getQueueOverloadCounter().increment();
+          throw new QueueOverloadedException(message, "queue was overloaded. disconnecting client and discarding "
+                  + oldSize + " undelivered messages.");
+      }
     }
-    else if (activationCallback != null) {
+
+    if (conflationKey != null && pos != -1) {
+      conflatedPositions.put(conflationKey, pos);
+    }
+
+    final int size = queue.size();
+    if (size > highWaterMark) highWaterMark = size;
+
+    final QueueActivationCallback callback = activationCallback;
+    if (callback instanceof PushActivationCallback) {
+      callback.activate(this);
+    }
+    else if (callback != null) {
       synchronized (activationLock) {
         if (isWindowExceeded()) {
           descheduleTask();
@@ -260,7 +392,7 @@ public class MessageQueueImpl implements MessageQueue {
               task = new TimedTask() {
                 {
                   period = -1; // only fire once.
-                  nextRuntime = getEndOfWindow();
+                  nextRuntime = currentTimeMillis() + NANOSECONDS.toMillis(getEndOfWindow());
                 }
 
                 public void run() {
@@ -356,10 +488,65 @@ public class MessageQueueImpl implements MessageQueue {
    *
    * @return the queue containing the messages to be sent
    */
-  public BlockingQueue<Message> getQueue() {
+  public Queue<Message> getQueue() {
     return queue;
   }
 
+  /**
+   * Returns the policy applied when a message is offered to this queue while it is full
+   *
+   * @return the overflow policy of this queue
+   */
+  public QueueOverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Returns the total number of messages this queue has discarded because it was full
+   *
+   * @return the number of dropped messages
+   */
+  public long getDroppedMessageCount() {
+    return droppedMessages.get();
+  }
+
+  /**
+   * Returns the total number of undelivered messages which have been replaced by a newer message to the same
+   * conflated subject
+   *
+   * @return the number of conflated messages
+   */
+  public long getConflatedMessageCount() {
+    return conflatedMessages.get();
+  }
+
+  /**
+   * Returns the number of conflation keys which have a message waiting in this queue.
+   *
+   * @return the number of conflation keys held
+   */
+  public int getConflationKeyCount() {
+    return conflatedPositions.size();
+  }
+
+  /**
+   * Returns the greatest number of messages which have been waiting in this queue at once
+   *
+   * @return the high-water mark of this queue
+   */
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Returns the policy which decides how messages in this queue are batched into transmissions
+   *
+   * @return the transmission window of this queue
+   */
+  public TransmissionWindow getTransmissionWindow() {
+    return transmissionWindow;
+  }
+
   public QueueSession getSession() {
     return session;
   }
@@ -416,11 +603,34 @@ public class MessageQueueImpl implements MessageQueue {
     initLock = false;
   }
 
+  /**
+   * Forgets the buffer position of the specified message, which has just been taken from the queue, if it is the
+   * latest for its conflation key. A newer message for the same key keeps its position.
+   *
+   * @param m - the message taken from the queue, or null
+   * @return the message
+   */
+  private Message drained(Message m) {
+    if (m != null && !conflatedPositions.isEmpty()) {
+      final String conflationKey = bus.getConflationKey(m);
+      if (conflationKey != null) {
+        final Long pos = conflatedPositions.get(conflationKey);
+        if (pos != null && queue.isConsumed(pos)) {
+          conflatedPositions.remove(conflationKey, pos);
+        }
+      }
+    }
+    return m;
+  }
+
   /**
    * Stops the queue, closes it on the bus and clears it completely
    */
   public void stopQueue() {
-    queue.offer(new QueueStopMessage());
+    final QueueStopMessage stopMessage = new QueueStopMessage();
+    while (!queue.offer(stopMessage)) {
+      if (queue.poll() != null) droppedMessages.incrementAndGet();
+    }
   }
 
   private static long secs(long secs) {
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.framework.RequestDispatcher;
+import org.jboss.errai.bus.client.protocols.MessageParts;
+import org.jboss.errai.bus.server.service.ErraiService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <tt>PartitionedDispatcher</tt> delivers messages asynchronously, like the {@link AsyncDispatcher}, but from a
+ * {@link PartitionedWorkerPool} rather than from a single shared queue. Messages from the same session (or to the
+ * same subject, if so configured) are delivered in the order they were dispatched.
+ */
+@Singleton
+public class PartitionedDispatcher implements RequestDispatcher {
+  private PartitionedWorkerPool workerPool;
+  private ErraiService service;
+
+  private Logger log = LoggerFactory.getLogger(getClass());
+
+  @Inject
+  public PartitionedDispatcher(ErraiService service) {
+    this.service = service;
+    this.workerPool = new PartitionedWorkerPool(service);
+  }
+
+  /**
+   * Sends the message globally. If the <tt>PriorityProcessing</tt> routing flag is set, then the message is sent
+   * globally on the bus by the calling thread. If not, it is queued in its partition.
+   *
+   * @param message - a message to dispatch globally
+   */
+  public void dispatchGlobal(Message message) throws InterruptedException {
+    if (message.hasPart(MessageParts.PriorityProcessing)) {
+      try {
+        service.getBus().sendGlobal(message);
+      }
+      catch (Throwable t) {
+        if (message.getErrorCallback() != null) {
+          if (!message.getErrorCallback().error(message, t)) {
+            return;
+          }
+        }
+        else {
+          log.error("error dispatching message to " + message.getSubject(), t);
+        }
+      }
+    }
+    else {
+      workerPool.deliverGlobal(message);
+    }
+  }
+
+  /**
+   * @param message - a message to dispatch
+   */
+  public void dispatch(Message message) throws InterruptedException {
+    workerPool.deliver(message);
+  }
+
+  public PartitionedWorkerPool getWorkerPool() {
+    return workerPool;
+  }
+}
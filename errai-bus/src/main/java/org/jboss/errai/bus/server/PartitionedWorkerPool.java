@@ -0,0 +1,481 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.server;
+
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.base.MessageDeliveryFailure;
+import org.jboss.errai.bus.client.framework.MessageBus;
+import org.jboss.errai.bus.client.framework.RoutingFlags;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.async.TimedTask;
+import org.jboss.errai.bus.server.service.ErraiService;
+import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.currentTimeMillis;
+import static org.jboss.errai.bus.client.util.ErrorHelper.handleMessageDeliveryFailure;
+import static org.jboss.errai.bus.client.util.ErrorHelper.sendClientError;
+
+/**
+ * A pool of workers which deliver messages from a number of partitions, rather than from one shared queue. Every
+ * message is routed to a partition by the hash of its session ID, or of its subject, so that all messages with the
+ * same key are delivered in the order they were dispatched.
+ * <p/>
+ * Each partition has its own bounded queue, and belongs to one worker. A partition is only ever delivered from by one
+ * worker at a time, but a worker which has nothing to do will steal a waiting partition from a worker which is busy.
+ * There are usually several partitions for every worker, so that a slow service only holds up the messages which
+ * share its partition.
+ */
+public class PartitionedWorkerPool {
+  private static final int DEFAULT_THREAD_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+  private static final int DEFAULT_PARTITION_QUEUE_SIZE = 100;
+  private static final int MAX_BATCH_SIZE = 32;
+
+  private static final String CONFIG_ASYNC_THREAD_POOL_SIZE = "errai.async.thread_pool_size";
+  private static final String CONFIG_ASYNC_WORKER_TIMEOUT = "errai.async.worker.timeout";
+  private static final String CONFIG_PARTITIONS = "errai.partitioned.partitions";
+  private static final String CONFIG_PARTITION_QUEUE_SIZE = "errai.partitioned.queue_size";
+  private static final String CONFIG_AFFINITY = "errai.partitioned.affinity";
+
+  private final MessageBus bus;
+
+  private final Partition[] partitions;
+  private final PartitionWorker[] workers;
+
+  private Affinity affinity = Affinity.Session;
+  private long workerTimeout = Boolean.getBoolean("org.jboss.errai.debugmode") ? seconds(360) : seconds(30);
+
+  private Logger log = LoggerFactory.getLogger(this.getClass());
+
+  public PartitionedWorkerPool(ErraiService svc) {
+    this.bus = svc.getBus();
+
+    ErraiServiceConfigurator cfg = svc.getConfiguration();
+
+    int poolSize = DEFAULT_THREAD_POOL_SIZE;
+    if (cfg.hasProperty(CONFIG_ASYNC_THREAD_POOL_SIZE)) {
+      poolSize = Integer.parseInt(cfg.getProperty(CONFIG_ASYNC_THREAD_POOL_SIZE));
+    }
+
+    int partitionCount = poolSize * 4;
+    if (cfg.hasProperty(CONFIG_PARTITIONS)) {
+      partitionCount = Math.max(poolSize, Integer.parseInt(cfg.getProperty(CONFIG_PARTITIONS)));
+    }
+
+    int queueSize = DEFAULT_PARTITION_QUEUE_SIZE;
+    if (cfg.hasProperty(CONFIG_PARTITION_QUEUE_SIZE)) {
+      queueSize = Integer.parseInt(cfg.getProperty(CONFIG_PARTITION_QUEUE_SIZE));
+    }
+
+    if (cfg.hasProperty(CONFIG_AFFINITY)) {
+      String value = cfg.getProperty(CONFIG_AFFINITY).trim();
+      if ("subject".equalsIgnoreCase(value)) {
+        affinity = Affinity.Subject;
+      }
+      else if (!"session".equalsIgnoreCase(value)) {
+        throw new ErraiBootstrapFailure("unknown value for " + CONFIG_AFFINITY + ": " + value
+                + " (must be 'session' or 'subject')");
+      }
+    }
+
+    if (cfg.hasProperty(CONFIG_ASYNC_WORKER_TIMEOUT)) {
+      workerTimeout = seconds(Integer.parseInt(cfg.getProperty(CONFIG_ASYNC_WORKER_TIMEOUT)));
+    }
+
+    log.info("initializing partitioned worker pool (poolSize: " + poolSize + "; partitions: " + partitionCount
+            + "; queueSize: " + queueSize + "; affinity: " + affinity + "; workerTimeout: " + workerTimeout + ")");
+
+    this.partitions = new Partition[partitionCount];
+    for (int i = 0; i < partitionCount; i++) {
+      partitions[i] = new Partition(queueSize);
+    }
+
+    this.workers = new PartitionWorker[poolSize];
+    for (int i = 0; i < poolSize; i++) {
+      workers[i] = new PartitionWorker(i);
+    }
+
+    if (bus instanceof ServerMessageBusImpl) {
+      final ServerMessageBusImpl busImpl = (ServerMessageBusImpl) bus;
+      busImpl.getMetrics().setWorkerPool(this);
+
+      /**
+       * Add a housekeeper task to the bus housekeeper to timeout long-running tasks.
+       */
+      busImpl.getScheduler().addTask(new TimedTask() {
+        {
+          period = 1000;
+        }
+
+        public void run() {
+          for (PartitionWorker w : workers) {
+            if (!w.isValid()) {
+              log.warn("Terminating worker.  Process exceeds maximum time to live.");
+              busImpl.getMetrics().getWorkerTimeoutCounter().increment();
+              w.timeoutInterrupt();
+            }
+          }
+        }
+
+        public void setExitHandler(Runnable runnable) {
+        }
+
+        public boolean isFinished() {
+          return false;
+        }
+
+        @Override
+        public String toString() {
+          return "PartitionedWorkerTimeout";
+        }
+      });
+    }
+
+    startPool();
+  }
+
+  /**
+   * Queues the specified message for delivery to all of its subscribers.
+   *
+   * @param m - message to be delivered
+   */
+  public void deliverGlobal(Message m) throws InterruptedException {
+    enqueue(m);
+  }
+
+  /**
+   * Queues the specified message for delivery to a single subscriber.
+   *
+   * @param m - message to be delivered
+   */
+  public void deliver(Message m) throws InterruptedException {
+    m.setFlag(RoutingFlags.NonGlobalRouting);
+    enqueue(m);
+  }
+
+  private void enqueue(Message m) throws InterruptedException {
+    final int index = partitionOf(m);
+    final Partition partition = partitions[index];
+
+    if (!partition.queue.offer(m)) {
+      wake(index);
+
+      /**
+       * Only the senders to this partition wait for room, so that its messages stay in order. If there is still no
+       * room, delivery fails: the caller must not deliver the message itself, as it would overtake the messages
+       * waiting in the partition, and tie up a thread which may be needed to empty it.
+       */
+      if (!partition.queue.offer(m, 30, TimeUnit.SECONDS)) {
+        partition.overflowed.incrementAndGet();
+        handleMessageDeliveryFailure(bus, m, "Dispatch partition has become saturated/overloaded",
+                new MessageDeliveryFailure("could not deliver message because its partition is full"), false);
+        return;
+      }
+    }
+
+    wake(index);
+  }
+
+  /**
+   * Wakes the worker the specified partition belongs to if it is idle, or otherwise any idle worker, which will
+   * steal the partition if its owner is still busy.
+   */
+  private void wake(int index) {
+    final PartitionWorker owner = workers[index % workers.length];
+    if (owner.idle) {
+      LockSupport.unpark(owner);
+    }
+    else {
+      for (PartitionWorker w : workers) {
+        if (w.idle) {
+          LockSupport.unpark(w);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the partition the specified message is routed to. Messages which are not associated with
+   * a session are routed by their subject.
+   *
+   * @param m - the message
+   * @return the index of the partition
+   */
+  protected int partitionOf(Message m) {
+    String key = null;
+    if (affinity == Affinity.Session) {
+      QueueSession session = m.getResource(QueueSession.class, "Session");
+      if (session != null) key = session.getSessionId();
+    }
+    if (key == null) key = m.getSubject();
+
+    if (key == null) return 0;
+
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return (h & Integer.MAX_VALUE) % partitions.length;
+  }
+
+  /**
+   * Starts execution of all the threads in the pool of threads
+   */
+  public void startPool() {
+    log.info("starting partitioned worker pool.");
+    for (PartitionWorker w : workers) {
+      w.start();
+    }
+  }
+
+  public void stopPool() {
+    for (PartitionWorker w : workers) {
+      w.active = false;
+      w.interrupt();
+    }
+  }
+
+  public int getPoolSize() {
+    return workers.length;
+  }
+
+  public int getPartitionCount() {
+    return partitions.length;
+  }
+
+  /**
+   * Returns the number of messages waiting in the specified partition.
+   *
+   * @param partition - the index of the partition
+   * @return the number of messages waiting
+   */
+  public int getQueueDepth(int partition) {
+    return partitions[partition].queue.size();
+  }
+
+  /**
+   * Returns the number of messages waiting in each of the partitions.
+   *
+   * @return the number of messages waiting, by partition
+   */
+  public int[] getQueueDepths() {
+    int[] depths = new int[partitions.length];
+    for (int i = 0; i < depths.length; i++) {
+      depths[i] = partitions[i].queue.size();
+    }
+    return depths;
+  }
+
+  /**
+   * Returns the greatest number of messages which have been waiting in the specified partition at once.
+   *
+   * @param partition - the index of the partition
+   * @return the highest queue depth seen
+   */
+  public int getPeakQueueDepth(int partition) {
+    return partitions[partition].peakDepth;
+  }
+
+  /**
+   * Returns the number of messages which have been taken for delivery from the specified partition.
+   *
+   * @param partition - the index of the partition
+   * @return the number of messages delivered
+   */
+  public long getDeliveredCount(int partition) {
+    return partitions[partition].delivered.get();
+  }
+
+  /**
+   * Returns the number of messages from the specified partition which were delivered by a worker other than the one
+   * it belongs to.
+   *
+   * @param partition - the index of the partition
+   * @return the number of messages stolen
+   */
+  public long getStolenCount(int partition) {
+    return partitions[partition].stolen.get();
+  }
+
+  /**
+   * Returns the number of messages which failed to be delivered, because the specified partition stayed full.
+   *
+   * @param partition - the index of the partition
+   * @return the number of messages which overflowed
+   */
+  public long getOverflowCount(int partition) {
+    return partitions[partition].overflowed.get();
+  }
+
+  private static long seconds(int seconds) {
+    return seconds * 1000;
+  }
+
+  enum Affinity {
+    Session, Subject
+  }
+
+  private static class Partition {
+    private final BlockingQueue<Message> queue;
+
+    /**
+     * Held by the worker delivering from this partition, so that its messages are never delivered out of order.
+     */
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong stolen = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private volatile int peakDepth;
+
+    private Partition(int queueSize) {
+      this.queue = new ArrayBlockingQueue<Message>(queueSize);
+    }
+  }
+
+  private class PartitionWorker extends Thread {
+    private final int home;
+
+    private volatile boolean active = true;
+    private volatile boolean idle;
+    private volatile long workExpiry;
+    private volatile Message message;
+
+    private PartitionWorker(int home) {
+      super("Dispatch Worker Thread (" + home + ")");
+      this.home = home;
+      setPriority(Thread.MIN_PRIORITY);
+      setDaemon(true);
+    }
+
+    private boolean isValid() {
+      return workExpiry == 0 || currentTimeMillis() < workExpiry;
+    }
+
+    private void timeoutInterrupt() {
+      Message m = message;
+      interrupt();
+
+      if (!isInterrupted() && workExpiry != 0) {
+        log.info("failed to interrupt worker.");
+      }
+      else if (m != null) {
+        workExpiry = 0;
+        sendClientError(bus, m,
+                "Request for '" + m.getSubject() + "' timed out.",
+                "The process was terminated because it exceed the maximum timeout.");
+      }
+    }
+
+    @Override
+    public void run() {
+      while (active) {
+        // clear any interrupt left over from a timed out delivery.
+        Thread.interrupted();
+
+        if (deliverOwn() || steal()) {
+          continue;
+        }
+
+        idle = true;
+        // look again, in case a message arrived before the flag was visible to the sender.
+        if (!hasWork()) {
+          LockSupport.park(this);
+        }
+        idle = false;
+      }
+    }
+
+    private boolean deliverOwn() {
+      boolean delivered = false;
+      for (int i = home; i < partitions.length; i += workers.length) {
+        delivered |= drain(partitions[i], false);
+      }
+      return delivered;
+    }
+
+    private boolean steal() {
+      for (int i = 1; i < partitions.length; i++) {
+        int index = (home + i) % partitions.length;
+        if (index % workers.length != home && drain(partitions[index], true)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean hasWork() {
+      for (Partition p : partitions) {
+        if (!p.queue.isEmpty() && !p.claimed.get()) return true;
+      }
+      return false;
+    }
+
+    private boolean drain(Partition partition, boolean stealing) {
+      if (partition.queue.isEmpty() || !partition.claimed.compareAndSet(false, true)) {
+        return false;
+      }
+
+      int count = 0;
+      try {
+        int depth = partition.queue.size();
+        if (depth > partition.peakDepth) partition.peakDepth = depth;
+
+        while (count < MAX_BATCH_SIZE && (message = partition.queue.poll()) != null) {
+          count++;
+          partition.delivered.incrementAndGet();
+          if (stealing) partition.stolen.incrementAndGet();
+
+          deliver(message);
+        }
+      }
+      finally {
+        message = null;
+        partition.claimed.set(false);
+      }
+      return count != 0;
+    }
+
+    private void deliver(Message m) {
+      try {
+        workExpiry = currentTimeMillis() + workerTimeout;
+        Worker.deliverToBus(bus, m);
+      }
+      catch (QueueOverloadedException e) {
+        handleMessageDeliveryFailure(bus, m, "Queue has become saturated/overloaded", e, true);
+      }
+      catch (QueueUnavailableException e) {
+        log.debug("queue unavailable for message to " + m.getSubject(), e);
+      }
+      catch (Throwable e) {
+        m.setResource("Exception", e.getCause());
+        handleMessageDeliveryFailure(bus, m, "Error calling remote service: " + m.getSubject(), e, false);
+      }
+      finally {
+        workExpiry = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server;
+
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.framework.MessageBus;
+import org.jboss.errai.bus.client.framework.SubjectPattern;
+import org.jboss.errai.bus.server.io.JSONStreamEncoder;
+import org.jboss.errai.bus.server.io.SharedEncodedMessage;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.jboss.errai.bus.client.util.ErrorHelper.handleMessageDeliveryFailure;
+
+/**
+ * Holds the messages which could not be delivered because nothing was subscribed to their subject yet, until they
+ * are retried. Each message is retried after an exponentially increasing delay, up to {@link #MAX_ATTEMPTS} times,
+ * and all of the messages for a subject are retried at once as soon as it is subscribed to.
+ * <p/>
+ * The encoded size of the messages held is capped. Messages which arrive when they would not fit fail straight away,
+ * as do messages which have used up their attempts.
+ * <p/>
+ * The messages are kept in the order they are due in, so retrying the due messages only visits those.
+ */
+public class PendingDeliveryBuffer {
+  public static final int DEFAULT_LIMIT = 10 * 1024 * 1024;
+  public static final int MAX_ATTEMPTS = 4;
+  public static final long INITIAL_DELAY = 250;
+
+  /**
+   * The size counted for a message which cannot be encoded.
+   */
+  private static final int UNENCODABLE_SIZE = 1024;
+
+  private static final Comparator<PendingDelivery> DUE_ORDER = new Comparator<PendingDelivery>() {
+    public int compare(PendingDelivery a, PendingDelivery b) {
+      if (a.due != b.due) return a.due < b.due ? -1 : 1;
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  };
+
+  private final MessageBus bus;
+  private final ServerBusMetrics metrics;
+
+  /**
+   * Guarded by <tt>this</tt>. Retries are always run without holding the lock, as they may delay their message again.
+   */
+  private final Map<String, Set<PendingDelivery>> bySubject = new HashMap<String, Set<PendingDelivery>>();
+  private final TreeSet<PendingDelivery> byDue = new TreeSet<PendingDelivery>(DUE_ORDER);
+  private long sequence;
+  private long bytes;
+
+  private volatile int size;
+  private volatile int limit = DEFAULT_LIMIT;
+
+  private Logger log = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param bus     - the bus messages which finally fail to be delivered are reported to
+   * @param metrics - the metrics registry to count delayed, flushed and expired messages in
+   */
+  public PendingDeliveryBuffer(MessageBus bus, ServerBusMetrics metrics) {
+    this.bus = bus;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Holds a message until it is next to be retried.
+   *
+   * @param message - the message which could not be delivered
+   * @param attempt - the number of times delivery has been retried before, plus one
+   * @param retry   - retries the delivery of the message
+   * @return false if the message has used up its attempts or would not fit in the buffer, in which case delivery has
+   *         failed
+   */
+  public boolean delay(Message message, int attempt, Runnable retry) {
+    if (attempt > MAX_ATTEMPTS) {
+      metrics.getDeliveriesExpiredCounter().increment();
+      return false;
+    }
+
+    final int encodedSize = encodedSize(message);
+    final long due = System.currentTimeMillis() + (INITIAL_DELAY << (attempt - 1));
+
+    synchronized (this) {
+      if (bytes + encodedSize > limit) {
+        metrics.getDeliveriesExpiredCounter().increment();
+        return false;
+      }
+
+      final PendingDelivery delivery = new PendingDelivery(message, retry, encodedSize, due, sequence++);
+      Set<PendingDelivery> deliveries = bySubject.get(message.getSubject());
+      if (deliveries == null) {
+        bySubject.put(message.getSubject(), deliveries = new LinkedHashSet<PendingDelivery>());
+      }
+      deliveries.add(delivery);
+      byDue.add(delivery);
+      bytes += encodedSize;
+      size++;
+    }
+
+    if (attempt == 1) {
+      metrics.getDeliveriesDelayedCounter().increment();
+    }
+    return true;
+  }
+
+  /**
+   * Retries all of the messages held for the specified subject now.
+   *
+   * @param subject - the subject which has been subscribed to. If it is a pattern, the messages for every subject it
+   *                matches are retried.
+   * @return the number of messages retried
+   */
+  public int flush(String subject) {
+    if (size == 0) return 0;
+
+    final List<PendingDelivery> flushed = new ArrayList<PendingDelivery>();
+    synchronized (this) {
+      if (SubjectPattern.isPattern(subject)) {
+        final Iterator<Map.Entry<String, Set<PendingDelivery>>> iter = bySubject.entrySet().iterator();
+        while (iter.hasNext()) {
+          final Map.Entry<String, Set<PendingDelivery>> entry = iter.next();
+          if (SubjectPattern.matches(subject, entry.getKey())) {
+            iter.remove();
+            take(entry.getValue(), flushed);
+          }
+        }
+      }
+      else {
+        final Set<PendingDelivery> deliveries = bySubject.remove(subject);
+        if (deliveries != null) {
+          take(deliveries, flushed);
+        }
+      }
+    }
+
+    for (PendingDelivery delivery : flushed) {
+      metrics.getDeliveriesFlushedCounter().increment();
+      retry(delivery);
+    }
+    return flushed.size();
+  }
+
+  /**
+   * Removes the deliveries of a subject, which has already been removed itself, from the buffer.
+   */
+  private void take(Set<PendingDelivery> deliveries, List<PendingDelivery> taken) {
+    for (PendingDelivery delivery : deliveries) {
+      byDue.remove(delivery);
+      release(delivery);
+      taken.add(delivery);
+    }
+  }
+
+  /**
+   * Retries all of the messages which are due to be retried.
+   *
+   * @param now - the current time, in milliseconds
+   * @return the number of messages retried
+   */
+  public int retryDue(long now) {
+    if (size == 0) return 0;
+
+    final List<PendingDelivery> due = new ArrayList<PendingDelivery>();
+    synchronized (this) {
+      while (!byDue.isEmpty() && byDue.first().due <= now) {
+        final PendingDelivery delivery = byDue.pollFirst();
+
+        final String subject = delivery.message.getSubject();
+        final Set<PendingDelivery> deliveries = bySubject.get(subject);
+        deliveries.remove(delivery);
+        if (deliveries.isEmpty()) {
+          bySubject.remove(subject);
+        }
+
+        release(delivery);
+        due.add(delivery);
+      }
+    }
+
+    for (PendingDelivery delivery : due) {
+      retry(delivery);
+    }
+    return due.size();
+  }
+
+  private void release(PendingDelivery delivery) {
+    bytes -= delivery.encodedSize;
+    size--;
+  }
+
+  private void retry(PendingDelivery delivery) {
+    try {
+      delivery.retry.run();
+    }
+    catch (Throwable t) {
+      try {
+        handleMessageDeliveryFailure(bus, delivery.message, "No subscribers to deliver to", t, false);
+      }
+      catch (Throwable t2) {
+        log.warn("undeliverable message to " + delivery.message.getSubject() + " could not be reported", t2);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes the specified message takes up when it is encoded. Messages which are being broadcast
+   * have already been encoded, and the rest are encoded without keeping the result.
+   */
+  private int encodedSize(Message message) {
+    try {
+      if (message instanceof SharedEncodedMessage) {
+        return ((SharedEncodedMessage) message).getEncodedBytes().length;
+      }
+
+      final ByteCounter counter = new ByteCounter();
+      JSONStreamEncoder.encode(message.getParts(), counter);
+      return counter.count;
+    }
+    catch (Throwable t) {
+      log.debug("could not encode message to " + message.getSubject() + " to find its size", t);
+      return UNENCODABLE_SIZE;
+    }
+  }
+
+  /**
+   * Returns the number of messages currently held.
+   *
+   * @return the number of messages waiting to be retried
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the encoded size of the messages currently held.
+   *
+   * @return the number of bytes held
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Sets the maximum encoded size of the messages which may be held at once, for all subjects together.
+   *
+   * @param limit - the maximum number of bytes
+   */
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  private static class ByteCounter extends OutputStream {
+    private int count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  private static class PendingDelivery {
+    private final Message message;
+    private final Runnable retry;
+    private final int encodedSize;
+    private final long due;
+    private final long sequence;
+
+    private PendingDelivery(Message message, Runnable retry, int encodedSize, long due, long sequence) {
+      this.message = message;
+      this.retry = retry;
+      this.encodedSize = encodedSize;
+      this.due = due;
+      this.sequence = sequence;
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server;
+
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.framework.DeliveryPlan;
+import org.jboss.errai.bus.client.framework.SubjectPattern;
+import org.jboss.errai.bus.server.api.MessageQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable snapshot of the subjects subscribed to on the server bus. Each subject has a {@link Route}, holding
+ * the {@link DeliveryPlan} for the subject and the callback which delivers to remote subscribers, if there are any.
+ * <p/>
+ * The bus replaces the whole table whenever a subject is subscribed to or unsubscribed from, so that sending a
+ * message only takes a single read of the current table and a single lookup of its subject. Clients subscribing to
+ * subjects which already have a route do not change the table: the remote callback keeps its own {@link QueueSet},
+ * which is replaced in the same way.
+ * <p/>
+ * Subjects may also be patterns, such as <tt>Stocks.*</tt> (see {@link SubjectPattern}). While there are none,
+ * a message is routed by the exact match for its subject alone. Otherwise the patterns are compiled into a
+ * {@link SubjectTrie}, and the plan combining the exact match and every matching pattern is worked out the first time
+ * a subject is sent to, and then cached until the table is replaced.
+ */
+public final class RoutingTable {
+  public static final RoutingTable EMPTY = new RoutingTable(new HashMap<String, Route>(), null);
+
+  /**
+   * The most concrete subjects the resolved plans are cached for, per table.
+   */
+  static final int MAX_RESOLVED = 10000;
+
+  /**
+   * The message resource holding the queues a message has been sent to, while it is delivered to more than one
+   * remote callback. This keeps a client subscribed to more than one matching subject from receiving it twice.
+   */
+  static final String SENT_TO_QUEUES = "SentToQueues";
+
+  private static final DeliveryPlan NO_PLAN = new DeliveryPlan();
+
+  private final Map<String, Route> routes;
+  private final SubjectTrie patterns;
+  private final ConcurrentMap<String, DeliveryPlan> resolved;
+
+  private RoutingTable(Map<String, Route> routes, SubjectTrie patterns) {
+    this.routes = routes;
+    this.patterns = patterns;
+    this.resolved = patterns == null ? null : new ConcurrentHashMap<String, DeliveryPlan>();
+  }
+
+  /**
+   * Returns the route for exactly the specified subject or pattern.
+   */
+  public Route get(String subject) {
+    return routes.get(subject);
+  }
+
+  /**
+   * Returns the plan for delivering a message to the specified subject: the plan of the subject itself, combined
+   * with the plans of every pattern which matches it.
+   *
+   * @param subject - the subject of the message
+   * @return the plan, or <tt>null</tt> if nothing is subscribed to the subject
+   */
+  public DeliveryPlan resolve(String subject) {
+    if (patterns == null || SubjectPattern.isPattern(subject)) {
+      final Route route = routes.get(subject);
+      return route == null ? null : route.getPlan();
+    }
+
+    DeliveryPlan plan = resolved.get(subject);
+    if (plan == null) {
+      plan = combine(subject);
+      if (resolved.size() < MAX_RESOLVED) {
+        resolved.put(subject, plan);
+      }
+    }
+    return plan == NO_PLAN ? null : plan;
+  }
+
+  private DeliveryPlan combine(String subject) {
+    final List<Route> matched = new ArrayList<Route>(2);
+
+    final Route exact = routes.get(subject);
+    if (exact != null) matched.add(exact);
+
+    for (String pattern : patterns.match(subject)) {
+      matched.add(routes.get(pattern));
+    }
+
+    switch (matched.size()) {
+      case 0:
+        return NO_PLAN;
+      case 1:
+        return matched.get(0).getPlan();
+      default:
+        return new CombinedDeliveryPlan(matched);
+    }
+  }
+
+  public boolean hasPatterns() {
+    return patterns != null;
+  }
+
+  public boolean contains(String subject) {
+    return routes.containsKey(subject);
+  }
+
+  public Set<String> getSubjects() {
+    return Collections.unmodifiableSet(routes.keySet());
+  }
+
+  public Collection<Route> getRoutes() {
+    return Collections.unmodifiableCollection(routes.values());
+  }
+
+  public int size() {
+    return routes.size();
+  }
+
+  /**
+   * Returns a copy of this table, with the route for the specified subject replaced.
+   */
+  public RoutingTable with(String subject, Route route) {
+    final Map<String, Route> copy = new HashMap<String, Route>(routes);
+    copy.put(subject, route);
+    return new RoutingTable(copy, compile(copy, subject));
+  }
+
+  /**
+   * Returns a copy of this table, without a route for the specified subject.
+   */
+  public RoutingTable without(String subject) {
+    if (!routes.containsKey(subject)) return this;
+
+    final Map<String, Route> copy = new HashMap<String, Route>(routes);
+    copy.remove(subject);
+    return new RoutingTable(copy, compile(copy, subject));
+  }
+
+  /**
+   * Returns the trie for the routes, which is only compiled again if the changed subject is a pattern.
+   */
+  private SubjectTrie compile(Map<String, Route> routes, String changed) {
+    if (!SubjectPattern.isPattern(changed)) return patterns;
+
+    final SubjectTrie trie = new SubjectTrie(routes.keySet());
+    return trie.size() == 0 ? null : trie;
+  }
+
+  /**
+   * Delivers a message to the plans of several routes in turn.
+   */
+  private static final class CombinedDeliveryPlan extends DeliveryPlan {
+    private final DeliveryPlan[] plans;
+    private final boolean sharedRemote;
+
+    private CombinedDeliveryPlan(List<Route> routes) {
+      this.plans = new DeliveryPlan[routes.size()];
+
+      int remotes = 0;
+      for (int i = 0; i < plans.length; i++) {
+        plans[i] = routes.get(i).getPlan();
+        if (routes.get(i).hasRemote()) remotes++;
+      }
+      this.sharedRemote = remotes > 1;
+    }
+
+    @Override
+    public void deliver(Message m) {
+      if (sharedRemote) {
+        m.setResource(SENT_TO_QUEUES, new HashSet<MessageQueue>());
+      }
+
+      for (DeliveryPlan plan : plans) {
+        plan.deliver(m);
+      }
+    }
+
+    @Override
+    public MessageCallback[] getDeliverTo() {
+      final List<MessageCallback> deliverTo = new ArrayList<MessageCallback>();
+      for (DeliveryPlan plan : plans) {
+        deliverTo.addAll(Arrays.asList(plan.getDeliverTo()));
+      }
+      return deliverTo.toArray(new MessageCallback[deliverTo.size()]);
+    }
+
+    @Override
+    public int getTotalReceivers() {
+      int total = 0;
+      for (DeliveryPlan plan : plans) {
+        total += plan.getTotalReceivers();
+      }
+      return total;
+    }
+  }
+
+  /**
+   * The receivers of a single subject.
+   */
+  public static final class Route {
+    private final String subject;
+    private final DeliveryPlan plan;
+    private final ServerMessageBusImpl.RemoteMessageCallback remote;
+
+    public Route(String subject, DeliveryPlan plan, ServerMessageBusImpl.RemoteMessageCallback remote) {
+      this.subject = subject;
+      this.plan = plan;
+      this.remote = remote;
+    }
+
+    public String getSubject() {
+      return subject;
+    }
+
+    /**
+     * Returns the plan for delivering to the receivers of this subject, including the remote callback.
+     */
+    public DeliveryPlan getPlan() {
+      return plan;
+    }
+
+    /**
+     * Returns the callback which delivers to the remote subscribers of this subject, or <tt>null</tt> if it has
+     * never been subscribed to remotely.
+     */
+    public ServerMessageBusImpl.RemoteMessageCallback getRemote() {
+      return remote;
+    }
+
+    public boolean hasRemote() {
+      return remote != null;
+    }
+
+    public Route withPlan(DeliveryPlan plan) {
+      return new Route(subject, plan, remote);
+    }
+  }
+
+  /**
+   * An immutable set of message queues, which can be iterated in the order they were added, and checked for a given
+   * queue in constant time.
+   * <p/>
+   * Sets which were derived from each other by adding queues share their storage: each set is a prefix of it. Adding
+   * a queue to the newest set appends to the storage in place, so that subscribing n queues one after another takes
+   * O(n) time, rather than copying the whole set each time. Only adding to an older set, or removing a queue, copies.
+   */
+  public static final class QueueSet {
+    public static final QueueSet EMPTY = new QueueSet(new Storage(new MessageQueue[0], 0), 0);
+
+    private final Storage storage;
+    private final int size;
+
+    private QueueSet(Storage storage, int size) {
+      this.storage = storage;
+      this.size = size;
+    }
+
+    public boolean contains(MessageQueue queue) {
+      final Integer position = storage.positions.get(queue);
+      return position != null && position < size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public MessageQueue get(int i) {
+      if (i >= size) throw new IndexOutOfBoundsException(i + " >= " + size);
+      return storage.queues[i];
+    }
+
+    public List<MessageQueue> asList() {
+      return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(storage.queues, size)));
+    }
+
+    /**
+     * Returns a set with the specified queue added, or this set if it already contains it.
+     */
+    public QueueSet with(MessageQueue queue) {
+      if (contains(queue)) return this;
+
+      // the empty set is shared by every route, so it is never appended to.
+      if (size != 0) {
+        synchronized (storage) {
+          if (storage.size == size) {
+            storage.append(queue);
+            return new QueueSet(storage, size + 1);
+          }
+          else if (queue.equals(storage.queues[size])) {
+            // appended by an earlier attempt to add the same queue, which lost a race to update the routing table.
+            return new QueueSet(storage, size + 1);
+          }
+        }
+      }
+
+      final MessageQueue[] copy = new MessageQueue[Math.max(4, size * 2)];
+      System.arraycopy(storage.queues, 0, copy, 0, size);
+      copy[size] = queue;
+      return new QueueSet(new Storage(copy, size + 1), size + 1);
+    }
+
+    /**
+     * Returns a copy of this set without the specified queue, or this set if it does not contain it.
+     */
+    public QueueSet without(MessageQueue queue) {
+      if (!contains(queue)) return this;
+      if (size == 1) return EMPTY;
+
+      final MessageQueue[] copy = new MessageQueue[size - 1];
+      int i = 0;
+      for (int j = 0; j < size; j++) {
+        final MessageQueue q = storage.queues[j];
+        if (!q.equals(queue)) copy[i++] = q;
+      }
+      return new QueueSet(new Storage(copy, copy.length), copy.length);
+    }
+
+    /**
+     * The queues of a family of sets, in the order they were added. Slots below <tt>size</tt> are never changed once
+     * written, so they are read without locking.
+     */
+    private static final class Storage {
+      private final Map<MessageQueue, Integer> positions = new ConcurrentHashMap<MessageQueue, Integer>();
+      private volatile MessageQueue[] queues;
+      private int size;
+
+      private Storage(MessageQueue[] queues, int size) {
+        this.queues = queues;
+        this.size = size;
+        for (int i = 0; i < size; i++) {
+          positions.put(queues[i], i);
+        }
+      }
+
+      /**
+       * Must be called while holding the lock on this storage.
+       */
+      private void append(MessageQueue queue) {
+        MessageQueue[] array = queues;
+        if (size == array.length) {
+          array = Arrays.copyOf(array, size * 2);
+        }
+        array[size] = queue;
+        positions.put(queue, size);
+        queues = array;
+        size++;
+      }
+    }
+  }
+}
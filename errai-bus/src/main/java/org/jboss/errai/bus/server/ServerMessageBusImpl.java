@@ -24,15 +24,20 @@ import org.jboss.errai.bus.client.protocols.BusCommands;
 import org.jboss.errai.bus.client.protocols.MessageParts;
 import org.jboss.errai.bus.server.api.*;
 import org.jboss.errai.bus.server.async.SchedulerService;
-import org.jboss.errai.bus.server.async.SimpleSchedulerService;
 import org.jboss.errai.bus.server.async.TimedTask;
+import org.jboss.errai.bus.server.async.TimerWheelSchedulerService;
+import org.jboss.errai.bus.server.io.SharedEncodedMessage;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+import org.jboss.errai.bus.server.metrics.SubjectMetrics;
 import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
 import org.slf4j.Logger;
 
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.jboss.errai.bus.client.api.base.MessageBuilder.createConversation;
 import static org.jboss.errai.bus.client.protocols.MessageParts.ReplyTo;
 import static org.jboss.errai.bus.client.protocols.SecurityCommands.MessageNotDelivered;
@@ -46,27 +51,76 @@ import static org.slf4j.LoggerFactory.getLogger;
  * @author Mike Brock
  */
 @Singleton
-public class ServerMessageBusImpl implements ServerMessageBus {
+public class ServerMessageBusImpl implements ServerMessageBus, HasReplyRouter {
   private static final String ERRAI_BUS_QUEUESIZE = "errai.bus.queuesize";
+  private static final String ERRAI_BUS_QUEUE_OVERFLOW_POLICY = "errai.bus.queue_overflow_policy";
+  private static final String ERRAI_BUS_CLIENT_TRANSMISSION_WINDOW = "errai.bus.client_transmission_window";
+  private static final String ERRAI_BUS_SUBSCRIPTION_SYNC_INTERVAL = "errai.bus.subscription_sync_interval";
+  private static final String ERRAI_BUS_PENDING_DELIVERY_LIMIT = "errai.bus.pending_delivery_limit";
+  private static final String ERRAI_BUS_MAX_TRANSMISSION_WINDOW = "errai.bus.max_transmission_window";
+  private static final String ERRAI_BUS_MAX_PAYLOAD_SIZE = "errai.bus.max_payload_size";
 
   private final static int DEFAULT_QUEUE_SIZE = 250;
+  private final static int DEFAULT_SUBSCRIPTION_SYNC_INTERVAL = 50;
 
   private int queueSize = DEFAULT_QUEUE_SIZE;
+  private QueueOverflowPolicy overflowPolicy = QueueOverflowPolicy.DisconnectClient;
+  private int clientTransmissionWindow = 0;
+  private int subscriptionSyncInterval = DEFAULT_SUBSCRIPTION_SYNC_INTERVAL;
+  private long maxTransmissionWindow = TransmissionWindow.DEFAULT_MAX_WINDOW;
+  private int maxPayloadSize = TransmissionWindow.DEFAULT_MAX_PAYLOAD;
+  private String webSocketPath;
 
   private final List<MessageListener> listeners = new ArrayList<MessageListener>();
 
-  private final Map<String, DeliveryPlan> subscriptions = new ConcurrentHashMap<String, DeliveryPlan>();
-  private final Map<String, RemoteMessageCallback> remoteSubscriptions = new ConcurrentHashMap<String, RemoteMessageCallback>();
+  private final AtomicReference<RoutingTable> routingTable = new AtomicReference<RoutingTable>(RoutingTable.EMPTY);
 
   private final Map<QueueSession, MessageQueue> messageQueues = new ConcurrentHashMap<QueueSession, MessageQueue>();
   private final Map<MessageQueue, List<Message>> deferredQueue = new ConcurrentHashMap<MessageQueue, List<Message>>();
   private final Map<String, QueueSession> sessionLookup = new ConcurrentHashMap<String, QueueSession>();
+  private final Map<String, String> conflatedSubjects = new ConcurrentHashMap<String, String>();
+
+  private final ServerBusMetrics metrics = new ServerBusMetrics(messageQueues);
+  private final PendingDeliveryBuffer pendingDeliveries = new PendingDeliveryBuffer(this, metrics);
+
+  private final ReplyRouter replyRouter = new ReplyRouter(ReplyRouter.SERVER_SUBJECT, "S", new SecureRandom(),
+          new ConcurrentHashMap<String, ReplyRouter.PendingReply>(), new LogAdapter() {
+    public void warn(String message) {
+      log.warn(message);
+    }
+
+    public void info(String message) {
+      log.info(message);
+    }
+
+    public void debug(String message) {
+      log.debug(message);
+    }
+
+    public void error(String message, Throwable t) {
+      log.error(message, t);
+    }
+  }) {
+    @Override
+    protected String sessionOf(Message message) {
+      QueueSession session = getSession(message);
+      if (session != null) return session.getSessionId();
+
+      // a message from a client always carries its session, so only a local request can name one this way.
+      return message.isFlagSet(RoutingFlags.FromRemote) ? null : message.get(String.class, MessageParts.SessionID);
+    }
+  };
 
   private final List<SubscribeListener> subscribeListeners = new LinkedList<SubscribeListener>();
   private final List<UnsubscribeListener> unsubscribeListeners = new LinkedList<UnsubscribeListener>();
   private final List<QueueClosedListener> queueClosedListeners = new LinkedList<QueueClosedListener>();
 
-  private final SchedulerService houseKeeper = new SimpleSchedulerService(); // GAESchedulerService.INSTANCE;
+  private volatile SchedulerService houseKeeper = new TimerWheelSchedulerService(); // GAESchedulerService.INSTANCE;
+  private final TimedTask houseKeepingTask;
+
+  private final SubscriptionSync subscriptionSync = new SubscriptionSync();
+  private final TimedTask subscriptionSyncTask;
+  private final TimedTask pendingDeliveryTask;
 
   private Logger log = getLogger(getClass());
 
@@ -154,7 +208,10 @@ public class ServerMessageBusImpl implements ServerMessageBus {
                   messageQueues.get(session).stopQueue();
                 }
 
-                addQueue(session, queue = new MessageQueueImpl(queueSize, ServerMessageBusImpl.this, session));
+                final TransmissionWindow window = new TransmissionWindow(maxTransmissionWindow,
+                        Math.min(TransmissionWindow.DEFAULT_MIN_PAYLOAD, maxPayloadSize), maxPayloadSize);
+                addQueue(session, queue = new MessageQueueImpl(queueSize, overflowPolicy, window,
+                        ServerMessageBusImpl.this, session));
 
                 if (deferred != null) {
                   deferredQueue.put(queue, deferred);
@@ -167,33 +224,68 @@ public class ServerMessageBusImpl implements ServerMessageBus {
                 busMonitor.notifyQueueAttached(session.getSessionId(), queue);
               }
 
-              List<String> subjects = new LinkedList<String>();
-              for (String service : subscriptions.keySet()) {
-                if (service.startsWith("local:")) {
-                }
-                else if (!remoteSubscriptions.containsKey(service)) {
-                  subjects.add(service);
-                }
+              /**
+               * A client which has been connected before is only sent the changes since the subscriptions it last
+               * saw, if they are still known.
+               */
+              final SubscriptionSync.Delta delta
+                      = subscriptionSync.since(message.get(String.class, "SubscriptionVersion"));
+
+              if (delta != null) {
+                createConversation(message)
+                        .toSubject("ClientBus")
+                        .command(BusCommands.SubscriptionDelta)
+                        .with("SubjectsList", delta.getSubscribed())
+                        .with("UnsubscribedList", delta.getUnsubscribed())
+                        .with("SubscriptionVersion", delta.getVersion())
+                        .with(MessageParts.PriorityProcessing, "1")
+                        .noErrorHandling().sendNowWith(ServerMessageBusImpl.this, false);
               }
+              else {
+                final String version = subscriptionSync.getVersion();
 
-              createConversation(message)
-                      .toSubject("ClientBus")
-                      .command(BusCommands.RemoteSubscribe)
-                      .with("SubjectsList", subjects)
-                      .with(MessageParts.PriorityProcessing, "1")
-                      .noErrorHandling().sendNowWith(ServerMessageBusImpl.this, false);
+                List<String> subjects = new LinkedList<String>();
+                for (RoutingTable.Route route : routingTable.get().getRoutes()) {
+                  if (route.getSubject().startsWith("local:")) {
+                  }
+                  else if (!route.hasRemote()) {
+                    subjects.add(route.getSubject());
+                  }
+                }
+
+                createConversation(message)
+                        .toSubject("ClientBus")
+                        .command(BusCommands.RemoteSubscribe)
+                        .with("SubjectsList", subjects)
+                        .with("SubscriptionVersion", version)
+                        .with(MessageParts.PriorityProcessing, "1")
+                        .noErrorHandling().sendNowWith(ServerMessageBusImpl.this, false);
+              }
 
               CommandMessage msg = ConversationMessage.create(message);
               msg.toSubject("ClientBus")
                       .command(BusCommands.CapabilitiesNotice);
 
+              final StringBuilder flags = new StringBuilder();
               if (ErraiServiceConfigurator.LONG_POLLING) {
-                msg.set("Flags", Capabilities.LongPollAvailable.name());
+                flags.append(Capabilities.LongPollAvailable.name());
               }
               else {
-                msg.set("Flags", Capabilities.NoLongPollAvailable.name());
+                flags.append(Capabilities.NoLongPollAvailable.name());
                 msg.set("PollFrequency", ErraiServiceConfigurator.HOSTED_MODE_TESTING ? 50 : 250);
               }
+              flags.append(',').append(Capabilities.BatchedTransmission.name());
+
+              /**
+               * Polling remains the fallback for clients which cannot open a web socket.
+               */
+              if (webSocketPath != null) {
+                flags.append(',').append(Capabilities.WebSockets.name());
+                msg.set("WebSocketPath", webSocketPath);
+              }
+
+              msg.set("Flags", flags.toString());
+              msg.set("TransmissionWindow", clientTransmissionWindow);
 
               send(msg, false);
 
@@ -216,37 +308,46 @@ public class ServerMessageBusImpl implements ServerMessageBus {
       }
     });
 
+    /**
+     * Replies with a snapshot of the bus metrics to a subject on the server. The subject is not advertised to
+     * clients, and messages sent to it by clients are ignored, so the metrics are only available within the server.
+     */
+    subscribeLocal(ServerBusMetrics.SUBJECT, new MessageCallback() {
+      public void callback(Message message) {
+        if (message.isFlagSet(RoutingFlags.FromRemote) || !message.hasPart(ReplyTo)) return;
+
+        MessageBuilder.createMessage()
+                .toSubject(message.get(String.class, ReplyTo))
+                .with("Metrics", metrics.snapshot())
+                .noErrorHandling().sendGlobalWith(ServerMessageBusImpl.this);
+      }
+    });
+
+    /**
+     * Routes the replies to conversations started by the server to their callbacks.
+     */
+    subscribe(ReplyRouter.SERVER_SUBJECT, replyRouter);
+
+    /**
+     * Changes to the subscriptions are sent to the clients in batches, by the subscription sync task.
+     */
     addSubscribeListener(new SubscribeListener() {
       public void onSubscribe(SubscriptionEvent event) {
         if (event.isLocalOnly() || event.isRemote() || event.getSubject().startsWith("local:")) return;
-        synchronized (messageQueues) {
-          if (messageQueues.isEmpty()) return;
-
-          MessageBuilder.createMessage()
-                  .toSubject("ClientBus")
-                  .command(BusCommands.RemoteSubscribe)
-                  .with(MessageParts.Subject, event.getSubject())
-                  .noErrorHandling().sendGlobalWith(ServerMessageBusImpl.this);
-        }
+        subscriptionSync.subscribed(event.getSubject());
+        if (subscriptionSyncInterval == 0) flushSubscriptionChanges();
       }
     });
 
     addUnsubscribeListener(new UnsubscribeListener() {
       public void onUnsubscribe(SubscriptionEvent event) {
         if (event.isLocalOnly() || event.isRemote() || event.getSubject().startsWith("local:")) return;
-        synchronized (messageQueues) {
-          if (messageQueues.isEmpty()) return;
-
-          MessageBuilder.createMessage()
-                  .toSubject("ClientBus")
-                  .command(BusCommands.RemoteUnsubscribe)
-                  .with(MessageParts.Subject, event.getSubject())
-                  .noErrorHandling().sendGlobalWith(ServerMessageBusImpl.this);
-        }
+        subscriptionSync.unsubscribed(event.getSubject());
+        if (subscriptionSyncInterval == 0) flushSubscriptionChanges();
       }
     });
 
-    houseKeeper.addTask(new TimedTask() {
+    houseKeeper.addTask(houseKeepingTask = new TimedTask() {
       {
         this.period = (1000 * 10);
       }
@@ -279,14 +380,18 @@ public class ServerMessageBusImpl implements ServerMessageBus {
 
 
         for (MessageQueue ref : endSessions) {
-          for (String subject : new HashSet<String>(ServerMessageBusImpl.this.remoteSubscriptions.keySet())) {
-            ServerMessageBusImpl.this.remoteUnsubscribe(ref.getSession(), ref, subject);
+          for (RoutingTable.Route route : routingTable.get().getRoutes()) {
+            if (route.hasRemote() && route.getRemote().contains(ref)) {
+              ServerMessageBusImpl.this.remoteUnsubscribe(ref.getSession(), ref, route.getSubject());
+            }
           }
 
           ServerMessageBusImpl.this.closeQueue(ref);
           ref.getSession().endSession();
           deferredQueue.remove(ref);
         }
+
+        replyRouter.expire(System.currentTimeMillis());
       }
 
       public boolean isFinished() {
@@ -299,9 +404,73 @@ public class ServerMessageBusImpl implements ServerMessageBus {
       }
     });
 
+    houseKeeper.addTask(subscriptionSyncTask = new TimedTask() {
+      {
+        this.period = DEFAULT_SUBSCRIPTION_SYNC_INTERVAL;
+      }
+
+      @SuppressWarnings({"UnusedParameters"})
+      public void setExceptionHandler(AsyncExceptionHandler handler) {
+      }
+
+      public void run() {
+        flushSubscriptionChanges();
+      }
+
+      public boolean isFinished() {
+        return false;
+      }
+
+      @Override
+      public String toString() {
+        return "Subscription Sync";
+      }
+    });
+
+    houseKeeper.addTask(pendingDeliveryTask = new TimedTask() {
+      {
+        this.period = 50;
+      }
+
+      @SuppressWarnings({"UnusedParameters"})
+      public void setExceptionHandler(AsyncExceptionHandler handler) {
+      }
+
+      public void run() {
+        pendingDeliveries.retryDue(System.currentTimeMillis());
+      }
+
+      public boolean isFinished() {
+        return false;
+      }
+
+      @Override
+      public String toString() {
+        return "Pending Delivery Retry";
+      }
+    });
+
     houseKeeper.start();
   }
 
+  /**
+   * Sends the subscription changes made since the last batch to all of the clients, as one batch.
+   */
+  private void flushSubscriptionChanges() {
+    synchronized (messageQueues) {
+      final SubscriptionSync.Delta delta = subscriptionSync.flush();
+      if (delta == null || messageQueues.isEmpty()) return;
+
+      MessageBuilder.createMessage()
+              .toSubject("ClientBus")
+              .command(BusCommands.SubscriptionDelta)
+              .with("SubjectsList", delta.getSubscribed())
+              .with("UnsubscribedList", delta.getUnsubscribed())
+              .with("SubscriptionVersion", delta.getVersion())
+              .noErrorHandling().sendGlobalWith(ServerMessageBusImpl.this);
+    }
+  }
+
 
   private void addQueue(QueueSession session, MessageQueueImpl queue) {
     messageQueues.put(session, queue);
@@ -310,7 +479,8 @@ public class ServerMessageBusImpl implements ServerMessageBus {
 
   /**
    * Configures the server message bus with the specified <tt>ErraiServiceConfigurator</tt>. It only takes the queue
-   * size specified by the configuration
+   * size, the queue overflow policy, the client and server transmission windows, the maximum payload size and the web
+   * socket path specified by the configuration
    *
    * @param config -
    */
@@ -320,7 +490,48 @@ public class ServerMessageBusImpl implements ServerMessageBus {
       queueSize = Integer.parseInt(config.getProperty(ERRAI_BUS_QUEUESIZE));
     }
 
+    overflowPolicy = QueueOverflowPolicy.DisconnectClient;
+    if (config.hasProperty(ERRAI_BUS_QUEUE_OVERFLOW_POLICY)) {
+      overflowPolicy = QueueOverflowPolicy.forName(config.getProperty(ERRAI_BUS_QUEUE_OVERFLOW_POLICY));
+    }
+
+    clientTransmissionWindow = 0;
+    if (config.hasProperty(ERRAI_BUS_CLIENT_TRANSMISSION_WINDOW)) {
+      clientTransmissionWindow = Integer.parseInt(config.getProperty(ERRAI_BUS_CLIENT_TRANSMISSION_WINDOW));
+    }
+
+    subscriptionSyncInterval = DEFAULT_SUBSCRIPTION_SYNC_INTERVAL;
+    if (config.hasProperty(ERRAI_BUS_SUBSCRIPTION_SYNC_INTERVAL)) {
+      subscriptionSyncInterval = Integer.parseInt(config.getProperty(ERRAI_BUS_SUBSCRIPTION_SYNC_INTERVAL));
+    }
+    if (subscriptionSyncInterval > 0) {
+      subscriptionSyncTask.setPeriod(subscriptionSyncInterval);
+    }
+
+    pendingDeliveries.setLimit(PendingDeliveryBuffer.DEFAULT_LIMIT);
+    if (config.hasProperty(ERRAI_BUS_PENDING_DELIVERY_LIMIT)) {
+      pendingDeliveries.setLimit(Integer.parseInt(config.getProperty(ERRAI_BUS_PENDING_DELIVERY_LIMIT)));
+    }
+
+    maxTransmissionWindow = TransmissionWindow.DEFAULT_MAX_WINDOW;
+    if (config.hasProperty(ERRAI_BUS_MAX_TRANSMISSION_WINDOW)) {
+      maxTransmissionWindow
+              = MILLISECONDS.toNanos(Long.parseLong(config.getProperty(ERRAI_BUS_MAX_TRANSMISSION_WINDOW)));
+    }
+
+    maxPayloadSize = TransmissionWindow.DEFAULT_MAX_PAYLOAD;
+    if (config.hasProperty(ERRAI_BUS_MAX_PAYLOAD_SIZE)) {
+      maxPayloadSize = Integer.parseInt(config.getProperty(ERRAI_BUS_MAX_PAYLOAD_SIZE));
+    }
+
+    webSocketPath = null;
+    if (config.hasProperty(ErraiServiceConfigurator.ERRAI_WEB_SOCKET_PATH)) {
+      webSocketPath = config.getProperty(ErraiServiceConfigurator.ERRAI_WEB_SOCKET_PATH);
+    }
+
     //   this.modelAdapter = config.getResource(ModelAdapter.class);
+
+    metrics.registerMBean();
   }
 
 
@@ -334,8 +545,9 @@ public class ServerMessageBusImpl implements ServerMessageBus {
   public void sendGlobal(final Message message) {
     message.commit();
     final String subject = message.getSubject();
+    final DeliveryPlan plan = routingTable.get().resolve(subject);
 
-    if (!subscriptions.containsKey(subject) && !remoteSubscriptions.containsKey(subject)) {
+    if (plan == null) {
       delayOrFail(message, new Runnable() {
         @Override
         public void run() {
@@ -372,39 +584,38 @@ public class ServerMessageBusImpl implements ServerMessageBus {
                 message.getResource(QueueSession.class, "Session").getSessionId(), message);
       }
       else {
-        if (subscriptions.containsKey(subject)) {
-          busMonitor.notifyInBusMessage(message);
-        }
+        busMonitor.notifyInBusMessage(message);
       }
     }
 
-    if (subscriptions.containsKey(subject)) {
-      subscriptions.get(subject).deliver(message);
+    final SubjectMetrics subjectMetrics = metrics.forSubject(subject);
+    final long start = System.nanoTime();
+    try {
+      plan.deliver(message);
+    }
+    finally {
+      subjectMetrics.getMessagesIn().increment();
+      subjectMetrics.getDispatchLatency().record(System.nanoTime() - start);
     }
   }
 
+  /**
+   * Holds a message which has no one to be delivered to in the pending delivery buffer, to be retried later or when
+   * its subject is subscribed to, whichever comes first.
+   *
+   * @throws NoSubscribersToDeliverTo if the message has been retried too many times, or the buffer is full
+   */
   private void delayOrFail(Message message, final Runnable deliveryTaskRunnable) {
-    if (message.isFlagSet(RoutingFlags.RetryDelivery) && message.getResource(Integer.class, RETRY_COUNT_KEY) > 3) {
+    final int attempt = message.hasResource(RETRY_COUNT_KEY) ? message.getResource(Integer.class, RETRY_COUNT_KEY) + 1 : 1;
+
+    message.setFlag(RoutingFlags.RetryDelivery);
+    message.setResource(RETRY_COUNT_KEY, attempt);
+
+    if (!pendingDeliveries.delay(message, attempt, deliveryTaskRunnable)) {
       throw new NoSubscribersToDeliverTo(message.getSubject());
     }
-    else {
-      message.setFlag(RoutingFlags.RetryDelivery);
-      if (!message.hasResource(RETRY_COUNT_KEY)) {
-        message.setResource("retryAttempts", 0);
-      }
-      message.setResource("retryAttempts", message.getResource(Integer.class, RETRY_COUNT_KEY) + 1);
-      getScheduler().addTaskConcurrently(new TimedTask() {
-        {
-          period = 250;
-        }
 
-        @Override
-        public void run() {
-          deliveryTaskRunnable.run();
-          cancel();
-        }
-      });
-    }
+    metrics.getDeliveryRetryCounter().increment();
   }
 
   /**
@@ -462,6 +673,7 @@ public class ServerMessageBusImpl implements ServerMessageBus {
         busMonitor.notifyOutgoingMessageToRemote(queue.getSession().getSessionId(), message);
       }
 
+      metrics.forSubject(message.getSubject()).getMessagesOut().increment();
       asyncEnqueue(queue, message);
     }
     catch (NoSubscribersToDeliverTo nstdt) {
@@ -564,8 +776,8 @@ public class ServerMessageBusImpl implements ServerMessageBus {
    * @param queue - the message queue to close
    */
   public void closeQueue(MessageQueue queue) {
-    for (RemoteMessageCallback cb : remoteSubscriptions.values()) {
-      cb.removeQueue(queue);
+    for (RoutingTable.Route route : routingTable.get().getRoutes()) {
+      if (route.hasRemote()) route.getRemote().removeQueue(queue);
     }
 
     messageQueues.values().remove(queue);
@@ -582,12 +794,17 @@ public class ServerMessageBusImpl implements ServerMessageBus {
    * @param rule    - the <tt>BooleanRoutingRule</tt> instance specifying the routing rules
    */
   public void addRule(String subject, BooleanRoutingRule rule) {
-    DeliveryPlan plan = subscriptions.get(subject);
-    if (plan == null) {
-      throw new RuntimeException("no such subject: " + subject);
+    RoutingTable table;
+    RoutingTable.Route route;
+    do {
+      table = routingTable.get();
+      route = table.get(subject);
+      if (route == null) {
+        throw new RuntimeException("no such subject: " + subject);
+      }
     }
-
-    subscriptions.put(subject, new RuleDelegateMessageCallback(plan, rule));
+    while (!routingTable.compareAndSet(table,
+            table.with(subject, route.withPlan(new RuleDelegateMessageCallback(route.getPlan(), rule)))));
   }
 
   /**
@@ -603,6 +820,7 @@ public class ServerMessageBusImpl implements ServerMessageBus {
     DeliveryPlan plan = createOrAddDeliveryPlan(subject, receiver);
 
     fireSubscribeListeners(new SubscriptionEvent(false, null, plan.getTotalReceivers(), true, subject));
+    pendingDeliveries.flush(subject);
   }
 
   public void subscribeLocal(String subject, MessageCallback receiver) {
@@ -612,21 +830,22 @@ public class ServerMessageBusImpl implements ServerMessageBus {
     DeliveryPlan plan = createOrAddDeliveryPlan(subject, receiver);
 
     fireSubscribeListeners(new SubscriptionEvent(false, false, true, true, plan.getTotalReceivers(), "InBus", subject));
+    pendingDeliveries.flush(subject);
   }
 
   private DeliveryPlan createOrAddDeliveryPlan(final String subject, final MessageCallback receiver) {
-    synchronized (subscriptions) {
-      DeliveryPlan plan = subscriptions.get(subject);
-
-      if (plan == null) {
-        subscriptions.put(subject, plan = new DeliveryPlan(new MessageCallback[]{receiver}));
-      }
-      else {
-        subscriptions.put(subject, plan.newDeliveryPlanWith(receiver));
-      }
-
-      return plan;
+    RoutingTable table;
+    RoutingTable.Route route;
+    do {
+      table = routingTable.get();
+      route = table.get(subject);
+      route = route == null
+              ? new RoutingTable.Route(subject, new DeliveryPlan(new MessageCallback[]{receiver}), null)
+              : route.withPlan(route.getPlan().newDeliveryPlanWith(receiver));
     }
+    while (!routingTable.compareAndSet(table, table.with(subject, route)));
+
+    return route.getPlan();
   }
 
   /**
@@ -642,53 +861,102 @@ public class ServerMessageBusImpl implements ServerMessageBus {
     boolean isNew = false;
 
     RemoteMessageCallback rmc;
-    synchronized (remoteSubscriptions) {
-      rmc = remoteSubscriptions.get(subject);
-      if (rmc == null) {
-        rmc = new RemoteMessageCallback();
+    while (true) {
+      final RoutingTable table = routingTable.get();
+      final RoutingTable.Route route = table.get(subject);
+
+      if (route != null && route.hasRemote()) {
+        rmc = route.getRemote();
         rmc.addQueue(queue);
+        break;
+      }
 
-        isNew = true;
+      rmc = new RemoteMessageCallback();
+      rmc.addQueue(queue);
 
-        remoteSubscriptions.put(subject, rmc);
-        createOrAddDeliveryPlan(subject, rmc);
+      final RoutingTable.Route newRoute = route == null
+              ? new RoutingTable.Route(subject, new DeliveryPlan(new MessageCallback[]{rmc}), rmc)
+              : new RoutingTable.Route(subject, route.getPlan().newDeliveryPlanWith(rmc), rmc);
 
-      }
-      else if (!rmc.contains(queue)) {
-        rmc.addQueue(queue);
+      if (routingTable.compareAndSet(table, table.with(subject, newRoute))) {
+        isNew = true;
+        break;
       }
     }
 
     fireSubscribeListeners(new SubscriptionEvent(true, sessionContext.getSessionId(), rmc.getQueueCount(), isNew, subject));
+    pendingDeliveries.flush(subject);
   }
 
   public class RemoteMessageCallback implements MessageCallback {
-    private final Queue<MessageQueue> queues = new ConcurrentLinkedQueue<MessageQueue>();
+    private final AtomicReference<RoutingTable.QueueSet> queues
+            = new AtomicReference<RoutingTable.QueueSet>(RoutingTable.QueueSet.EMPTY);
 
+    @SuppressWarnings({"unchecked"})
     public void callback(Message message) {
-      for (MessageQueue q : queues) {
-        send(q, message, true);
+      final RoutingTable.QueueSet targets = queues.get();
+      final int size = targets.size();
+      if (size == 0) return;
+
+      if (message.hasResource(RoutingTable.SENT_TO_QUEUES)) {
+        /**
+         * This message matched more than one remote subscription, so only send it to the queues which have not
+         * already been sent it.
+         */
+        final Set<MessageQueue> sentTo = message.getResource(Set.class, RoutingTable.SENT_TO_QUEUES);
+        if (size > 1 && !(message instanceof HasEncoded) && !(message instanceof SharedEncodedMessage)) {
+          message = new SharedEncodedMessage(message, metrics);
+        }
+
+        for (int i = 0; i < size; i++) {
+          if (sentTo.add(targets.get(i))) send(targets.get(i), message, true);
+        }
+        return;
+      }
+
+      if (size == 1) {
+        send(targets.get(0), message, true);
+        return;
+      }
+
+      /**
+       * This message is going to more than one queue, so make sure it is only encoded once.
+       */
+      if (!(message instanceof HasEncoded) && !(message instanceof SharedEncodedMessage)) {
+        message = new SharedEncodedMessage(message, metrics);
+      }
+
+      for (int i = 0; i < size; i++) {
+        send(targets.get(i), message, true);
       }
     }
 
     public void addQueue(MessageQueue queue) {
-      queues.add(queue);
+      RoutingTable.QueueSet set;
+      do {
+        set = queues.get();
+      }
+      while (!queues.compareAndSet(set, set.with(queue)));
     }
 
     public void removeQueue(MessageQueue queue) {
-      queues.remove(queue);
+      RoutingTable.QueueSet set;
+      do {
+        set = queues.get();
+      }
+      while (!queues.compareAndSet(set, set.without(queue)));
     }
 
     public Collection<MessageQueue> getQueues() {
-      return queues;
+      return queues.get().asList();
     }
 
     public int getQueueCount() {
-      return queues.size();
+      return queues.get().size();
     }
 
     public boolean contains(MessageQueue queue) {
-      return queues.contains(queue);
+      return queues.get().contains(queue);
     }
   }
 
@@ -700,11 +968,12 @@ public class ServerMessageBusImpl implements ServerMessageBus {
    * @param subject        - the subject to unsubscribe from
    */
   public void remoteUnsubscribe(QueueSession sessionContext, MessageQueue queue, String subject) {
-    if (!remoteSubscriptions.containsKey(subject)) {
+    final RoutingTable.Route route = routingTable.get().get(subject);
+    if (route == null || !route.hasRemote()) {
       return;
     }
 
-    RemoteMessageCallback rmc = remoteSubscriptions.get(subject);
+    RemoteMessageCallback rmc = route.getRemote();
     rmc.removeQueue(queue);
 
     try {
@@ -739,7 +1008,11 @@ public class ServerMessageBusImpl implements ServerMessageBus {
     if (reservedNames.contains(subject))
       throw new IllegalArgumentException("Attempt to modify lockdown service: " + subject);
 
-    subscriptions.remove(subject);
+    RoutingTable table;
+    do {
+      table = routingTable.get();
+    }
+    while (!routingTable.compareAndSet(table, table.without(subject)));
 
     fireUnsubscribeListeners(new SubscriptionEvent(false, null, 0, false, subject));
   }
@@ -761,22 +1034,21 @@ public class ServerMessageBusImpl implements ServerMessageBus {
    * @return true if a subscription exists
    */
   public boolean isSubscribed(String subject) {
-    return subscriptions.containsKey(subject);
+    return routingTable.get().contains(subject);
   }
 
   private boolean isAnyoneListening(MessageQueue queue, String subject) {
-    return subscriptions.containsKey(subject) ||
-            (remoteSubscriptions.containsKey(subject) && remoteSubscriptions.get(subject).contains(queue));
+    return routingTable.get().resolve(subject) != null;
   }
 
   public boolean hasRemoteSubscriptions(String subject) {
-    return remoteSubscriptions.containsKey(subject);
+    final RoutingTable.Route route = routingTable.get().get(subject);
+    return route != null && route.hasRemote();
   }
 
   public boolean hasRemoteSubscription(String sessionId, String subject) {
-    MessageQueue q = getQueueBySession(sessionId);
-    return remoteSubscriptions.containsKey(subject) && remoteSubscriptions.get(subject)
-            .contains(q);
+    final RoutingTable.Route route = routingTable.get().get(subject);
+    return route != null && route.hasRemote() && route.getRemote().contains(getQueueBySession(sessionId));
   }
 
 
@@ -913,6 +1185,52 @@ public class ServerMessageBusImpl implements ServerMessageBus {
     return houseKeeper;
   }
 
+  /**
+   * Replaces the scheduler used for housekeeping and other timed tasks. The bus housekeeping, subscription sync and
+   * pending delivery tasks are moved to the new scheduler, which is started, and the current scheduler is stopped.
+   * This must be done before any other tasks are scheduled, as they are not moved.
+   *
+   * @param scheduler - the new scheduler
+   */
+  public void setScheduler(SchedulerService scheduler) {
+    SchedulerService oldScheduler = houseKeeper;
+
+    scheduler.addTask(houseKeepingTask);
+    scheduler.addTask(subscriptionSyncTask);
+    scheduler.addTask(pendingDeliveryTask);
+    scheduler.start();
+
+    houseKeeper = scheduler;
+    oldScheduler.requestStop();
+  }
+
+  /**
+   * Gets the registry of metrics recorded by the bus, its queues and its worker pools
+   *
+   * @return the metrics registry
+   */
+  public ServerBusMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Gets the buffer which holds messages sent to subjects with no subscribers, until they are retried
+   *
+   * @return the pending delivery buffer
+   */
+  public PendingDeliveryBuffer getPendingDeliveries() {
+    return pendingDeliveries;
+  }
+
+  /**
+   * Gets the router which delivers the replies to conversations started by the server
+   *
+   * @return the reply router
+   */
+  public ReplyRouter getReplyRouter() {
+    return replyRouter;
+  }
+
   public void addQueueClosedListener(QueueClosedListener listener) {
     synchronized (queueClosedListeners) {
       queueClosedListeners.add(listener);
@@ -920,7 +1238,38 @@ public class ServerMessageBusImpl implements ServerMessageBus {
   }
 
   public List<MessageCallback> getReceivers(String subject) {
-    return Collections.unmodifiableList(Arrays.asList(subscriptions.get(subject).getDeliverTo()));
+    return Collections.unmodifiableList(Arrays.asList(routingTable.get().get(subject).getPlan().getDeliverTo()));
+  }
+
+  /**
+   * Enables "latest value wins" delivery for messages to the specified subject.
+   *
+   * @param subject - the subject to conflate
+   * @param keyPart - the message part which further distinguishes messages, or <tt>null</tt>
+   */
+  public void conflate(String subject, String keyPart) {
+    conflatedSubjects.put(subject, keyPart == null ? "" : keyPart);
+  }
+
+  public String getConflationKey(Message message) {
+    if (conflatedSubjects.isEmpty()) return null;
+
+    final String subject = message.getSubject();
+    if (subject == null) return null;
+
+    final String keyPart = conflatedSubjects.get(subject);
+    if (keyPart == null) {
+      return null;
+    }
+    else if (keyPart.length() == 0) {
+      return subject;
+    }
+    else if (message.hasPart(keyPart)) {
+      return subject + ":" + message.getParts().get(keyPart);
+    }
+    else {
+      return null;
+    }
   }
 
   private boolean isMonitor() {
@@ -937,12 +1286,14 @@ public class ServerMessageBusImpl implements ServerMessageBus {
       busMonitor.notifyQueueAttached(entry.getKey().getSessionId(), entry.getValue());
     }
 
-    for (String subject : subscriptions.keySet()) {
+    final RoutingTable table = routingTable.get();
+    for (String subject : table.getSubjects()) {
       busMonitor.notifyNewSubscriptionEvent(new SubscriptionEvent(false, "None", 1, false, subject));
     }
-    for (Map.Entry<String, RemoteMessageCallback> entry : remoteSubscriptions.entrySet()) {
-      for (MessageQueue queue : entry.getValue().getQueues()) {
-        busMonitor.notifyNewSubscriptionEvent(new SubscriptionEvent(true, queue.getSession().getSessionId(), 1, false, entry.getKey()));
+    for (RoutingTable.Route route : table.getRoutes()) {
+      if (!route.hasRemote()) continue;
+      for (MessageQueue queue : route.getRemote().getQueues()) {
+        busMonitor.notifyNewSubscriptionEvent(new SubscriptionEvent(true, queue.getSession().getSessionId(), 1, false, route.getSubject()));
       }
     }
 
@@ -955,9 +1306,10 @@ public class ServerMessageBusImpl implements ServerMessageBus {
     }
 
     houseKeeper.requestStop();
+    metrics.unregisterMBean();
   }
 
   public void finishInit() {
-    reservedNames.addAll(subscriptions.keySet());
+    reservedNames.addAll(routingTable.get().getSubjects());
   }
 }
\ No newline at end of file
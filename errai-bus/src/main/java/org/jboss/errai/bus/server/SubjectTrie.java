@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server;
+
+import org.jboss.errai.bus.client.framework.SubjectPattern;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable trie of subscription patterns, which finds every pattern matching a concrete subject in a single
+ * walk of its tokens, however many patterns there are. See {@link SubjectPattern} for the syntax of the patterns.
+ */
+public final class SubjectTrie {
+  private final Node root = new Node();
+  private final int size;
+
+  /**
+   * @param patterns - the patterns to match. Subjects which are not patterns are ignored.
+   */
+  public SubjectTrie(Collection<String> patterns) {
+    int count = 0;
+    for (String pattern : patterns) {
+      if (!SubjectPattern.isPattern(pattern)) continue;
+
+      Node node = root;
+      for (String token : tokenize(pattern)) {
+        node = node.child(token);
+      }
+      node.patterns.add(pattern);
+      count++;
+    }
+    this.size = count;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the patterns which match the specified subject.
+   *
+   * @param subject - a concrete subject
+   * @return the matching patterns, which may be empty
+   */
+  public List<String> match(String subject) {
+    final List<String> tokens = tokenize(subject);
+    final List<String> matched = new ArrayList<String>(2);
+    match(root, tokens, 0, matched);
+    return matched.isEmpty() ? Collections.<String>emptyList() : matched;
+  }
+
+  private static void match(Node node, List<String> tokens, int index, List<String> matched) {
+    if (index == tokens.size()) {
+      matched.addAll(node.patterns);
+      return;
+    }
+
+    if (node.anyTokens != null) {
+      matched.addAll(node.anyTokens.patterns);
+    }
+
+    final Node exact = node.children.get(tokens.get(index));
+    if (exact != null) {
+      match(exact, tokens, index + 1, matched);
+    }
+
+    if (node.anyToken != null) {
+      match(node.anyToken, tokens, index + 1, matched);
+    }
+  }
+
+  private static List<String> tokenize(String subject) {
+    final List<String> tokens = new ArrayList<String>(4);
+    int start = 0;
+    while (start <= subject.length()) {
+      int end = subject.indexOf('.', start);
+      if (end == -1) end = subject.length();
+      tokens.add(subject.substring(start, end));
+      start = end + 1;
+    }
+    return tokens;
+  }
+
+  private static final class Node {
+    private final Map<String, Node> children = new HashMap<String, Node>(4);
+    private final List<String> patterns = new ArrayList<String>(1);
+    private Node anyToken;
+    private Node anyTokens;
+
+    private Node child(String token) {
+      if (SubjectPattern.ANY_TOKEN.equals(token)) {
+        if (anyToken == null) anyToken = new Node();
+        return anyToken;
+      }
+      else if (SubjectPattern.ANY_TOKENS.equals(token)) {
+        if (anyTokens == null) anyTokens = new Node();
+        return anyTokens;
+      }
+
+      Node child = children.get(token);
+      if (child == null) children.put(token, child = new Node());
+      return child;
+    }
+  }
+}
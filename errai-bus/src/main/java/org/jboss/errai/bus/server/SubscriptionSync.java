@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the changes to the subjects the server advertises to its clients, so that they can be sent in batches
+ * rather than one message per change. Every batch is given a version, and the most recent batches are retained, so
+ * that a client which reconnects with the version it last saw only needs to be sent what has changed since.
+ * <p/>
+ * Versions have the form <tt>epoch:number</tt>, where the epoch is unique to this instance, so that versions issued
+ * before a server restart are not mistaken for current ones.
+ */
+public class SubscriptionSync {
+  public static final int DEFAULT_RETAINED_CHANGES = 1000;
+
+  private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+  private final int retainedChanges;
+
+  /* Changes not yet assigned to a batch, in the order they were made. Later changes to a subject replace earlier. */
+  private Map<String, Boolean> pending = new LinkedHashMap<String, Boolean>();
+
+  private final LinkedList<Batch> batches = new LinkedList<Batch>();
+  private int retained = 0;
+
+  private long version = 0;
+
+  /* The oldest version a client can be brought up to date from */
+  private long floor = 0;
+
+  public SubscriptionSync() {
+    this(DEFAULT_RETAINED_CHANGES);
+  }
+
+  /**
+   * @param retainedChanges - the number of changes to retain for clients which reconnect
+   */
+  public SubscriptionSync(int retainedChanges) {
+    this.retainedChanges = retainedChanges;
+  }
+
+  public synchronized void subscribed(String subject) {
+    pending.put(subject, Boolean.TRUE);
+  }
+
+  public synchronized void unsubscribed(String subject) {
+    pending.put(subject, Boolean.FALSE);
+  }
+
+  /**
+   * Gets the version of the last batch of changes.
+   *
+   * @return the current version
+   */
+  public synchronized String getVersion() {
+    return epoch + ":" + version;
+  }
+
+  /**
+   * Assigns the pending changes to a new batch.
+   *
+   * @return the new batch, or <tt>null</tt> if there were no pending changes
+   */
+  public synchronized Delta flush() {
+    if (pending.isEmpty()) return null;
+
+    final Batch batch = new Batch(++version, pending);
+    pending = new LinkedHashMap<String, Boolean>();
+
+    batches.add(batch);
+    retained += batch.changes.size();
+
+    while (retained > retainedChanges && batches.size() > 1) {
+      final Batch oldest = batches.removeFirst();
+      retained -= oldest.changes.size();
+      floor = oldest.version;
+    }
+
+    return toDelta(batch.changes);
+  }
+
+  /**
+   * Gets the changes made since the specified version. Changes which are still pending are not included.
+   *
+   * @param since - a version previously returned by this instance
+   * @return the changes since that version, or <tt>null</tt> if the version was not issued by this instance, or is
+   *         too old for all the changes since to have been retained
+   */
+  public synchronized Delta since(String since) {
+    if (since == null) return null;
+
+    final int idx = since.indexOf(':');
+    if (idx == -1 || !epoch.equals(since.substring(0, idx))) return null;
+
+    final long from;
+    try {
+      from = Long.parseLong(since.substring(idx + 1));
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+
+    if (from < floor || from > version) return null;
+
+    final Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+    for (Batch batch : batches) {
+      if (batch.version <= from) continue;
+
+      for (Map.Entry<String, Boolean> entry : batch.changes.entrySet()) {
+        // re-insert, so that the subject is ordered by its latest change.
+        changes.remove(entry.getKey());
+        changes.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    return toDelta(changes);
+  }
+
+  private Delta toDelta(Map<String, Boolean> changes) {
+    final List<String> subscribed = new ArrayList<String>();
+    final List<String> unsubscribed = new ArrayList<String>();
+
+    for (Map.Entry<String, Boolean> entry : changes.entrySet()) {
+      if (entry.getValue()) {
+        subscribed.add(entry.getKey());
+      }
+      else {
+        unsubscribed.add(entry.getKey());
+      }
+    }
+
+    return new Delta(getVersion(), subscribed, unsubscribed);
+  }
+
+  private static class Batch {
+    private final long version;
+    private final Map<String, Boolean> changes;
+
+    private Batch(long version, Map<String, Boolean> changes) {
+      this.version = version;
+      this.changes = changes;
+    }
+  }
+
+  /**
+   * The subjects subscribed and unsubscribed between two versions.
+   */
+  public static class Delta {
+    private final String version;
+    private final List<String> subscribed;
+    private final List<String> unsubscribed;
+
+    public Delta(String version, List<String> subscribed, List<String> unsubscribed) {
+      this.version = version;
+      this.subscribed = subscribed;
+      this.unsubscribed = unsubscribed;
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    public List<String> getSubscribed() {
+      return subscribed;
+    }
+
+    public List<String> getUnsubscribed() {
+      return unsubscribed;
+    }
+
+    public boolean isEmpty() {
+      return subscribed.isEmpty() && unsubscribed.isEmpty();
+    }
+  }
+}
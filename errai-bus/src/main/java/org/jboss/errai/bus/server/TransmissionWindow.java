@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how long a {@link MessageQueueImpl} waits after a transmission before it is activated again, and how many
+ * bytes it sends in one transmission, from the rate at which messages are offered to it and the time its client takes
+ * to come back for more.
+ * <p/>
+ * When fewer than one message is expected per round trip, batching would only add latency, so the window closes and
+ * each message is sent as soon as it arrives. As more messages are expected per round trip, the window opens up to
+ * the round trip (and never beyond the maximum window), and the payload limit grows to what is offered over a window
+ * and a round trip, so that a busy client is sent fewer, larger payloads. Both move half-way to their target on each
+ * transmission, so a burst does not swing them, and a queue which goes quiet is back to sending straight away after
+ * a few transmissions.
+ * <p/>
+ * All times are in nanoseconds. {@link #recordOffer()} may be called from any thread; the other record methods are
+ * only called by the thread polling the queue.
+ */
+public class TransmissionWindow {
+  public static final long DEFAULT_MAX_WINDOW = 100 * 1000000L;
+  public static final int DEFAULT_MIN_PAYLOAD = 16 * 1024;
+  public static final int DEFAULT_MAX_PAYLOAD = 256 * 1024;
+
+  /**
+   * The number of messages per round trip at which the window is as wide as the round trip.
+   */
+  private static final double FULL_BATCH = 4;
+
+  /**
+   * The longest round trip which is taken into account, so that a client which paused does not open the window.
+   */
+  private static final long MAX_ROUND_TRIP = 1000 * 1000000L;
+
+  private static final double SMOOTHING = 0.25;
+
+  private final long maxWindow;
+  private final int minPayload;
+  private final int maxPayload;
+
+  private final AtomicInteger offered = new AtomicInteger();
+
+  private long lastTransmission;
+  private double offeredRate;
+  private double bytesPerMessage;
+  private long roundTrip;
+
+  private volatile long window;
+  private volatile int payloadLimit;
+
+  public TransmissionWindow() {
+    this(DEFAULT_MAX_WINDOW, DEFAULT_MIN_PAYLOAD, DEFAULT_MAX_PAYLOAD);
+  }
+
+  /**
+   * @param maxWindow  - the widest the window may open, in nanoseconds
+   * @param minPayload - the smallest payload limit, in bytes
+   * @param maxPayload - the largest payload limit, in bytes
+   */
+  public TransmissionWindow(long maxWindow, int minPayload, int maxPayload) {
+    if (minPayload > maxPayload) {
+      throw new IllegalArgumentException("minimum payload is greater than the maximum: " + minPayload);
+    }
+
+    this.maxWindow = maxWindow;
+    this.minPayload = minPayload;
+    this.maxPayload = maxPayload;
+    this.payloadLimit = minPayload;
+  }
+
+  /**
+   * Counts a message offered to the queue.
+   */
+  public void recordOffer() {
+    offered.incrementAndGet();
+  }
+
+  /**
+   * Records the arrival of a poll from the client. The time since the last transmission is taken as the round trip.
+   *
+   * @param now - the time the poll arrived
+   */
+  public void recordPoll(long now) {
+    if (lastTransmission == 0) return;
+
+    final long sample = Math.min(now - lastTransmission, MAX_ROUND_TRIP);
+    roundTrip = roundTrip == 0 ? sample : (long) (roundTrip + (sample - roundTrip) * SMOOTHING);
+  }
+
+  /**
+   * Records a transmission to the client, and works out the window and payload limit which follow it.
+   *
+   * @param now      - the time the transmission finished
+   * @param messages - the number of messages transmitted
+   * @param bytes    - the size of the transmission, in bytes
+   */
+  public void recordTransmission(long now, int messages, long bytes) {
+    final int offeredSince = offered.getAndSet(0);
+
+    if (lastTransmission != 0) {
+      final double sample = offeredSince * 1e9 / Math.max(now - lastTransmission, 1);
+      offeredRate += (sample - offeredRate) * SMOOTHING;
+    }
+    if (messages != 0) {
+      final double sample = (double) bytes / messages;
+      bytesPerMessage = bytesPerMessage == 0 ? sample : bytesPerMessage + (sample - bytesPerMessage) * SMOOTHING;
+    }
+    lastTransmission = now;
+
+    final double perRoundTrip = offeredRate * roundTrip / 1e9;
+
+    final long target;
+    if (perRoundTrip < 1) {
+      target = 0;
+    }
+    else {
+      target = Math.min(maxWindow, (long) (roundTrip * Math.min(perRoundTrip, FULL_BATCH) / FULL_BATCH));
+    }
+    window += (target - window) / 2;
+
+    final double bytesPerInterval = offeredRate * bytesPerMessage * (roundTrip + window) / 1e9;
+    payloadLimit = (int) Math.max(minPayload, Math.min(maxPayload, bytesPerInterval));
+  }
+
+  /**
+   * Returns how long the queue waits after a transmission before it is activated again, in nanoseconds
+   */
+  public long getWindow() {
+    return window;
+  }
+
+  /**
+   * Returns the widest the window may open, in nanoseconds, which is also the longest a transmission may spend taking
+   * further messages from the queue.
+   */
+  public long getMaxWindow() {
+    return maxWindow;
+  }
+
+  /**
+   * Returns the number of bytes after which no more messages are added to a transmission. A transmission always
+   * includes at least one message, however large.
+   */
+  public int getPayloadLimit() {
+    return payloadLimit;
+  }
+
+  /**
+   * Returns the smoothed rate at which messages are offered to the queue, in messages per second
+   */
+  public double getOfferedRate() {
+    return offeredRate;
+  }
+
+  /**
+   * Returns the smoothed time between a transmission and the next poll from the client, in nanoseconds
+   */
+  public long getRoundTrip() {
+    return roundTrip;
+  }
+}
@@ -87,7 +87,7 @@ public class WorkerFactory {
     }
 
     if (svc.getBus() instanceof ServerMessageBusImpl) {
-      ServerMessageBusImpl busImpl = (ServerMessageBusImpl) svc.getBus();
+      final ServerMessageBusImpl busImpl = (ServerMessageBusImpl) svc.getBus();
       /**
        * Add a housekeeper task to the bus housekeeper to timeout long-running tasks.
        */
@@ -100,6 +100,7 @@ public class WorkerFactory {
           for (Worker w : workerPool) {
             if (!w.isValid()) {
               log.warn("Terminating worker.  Process exceeds maximum time to live.");
+              busImpl.getMetrics().getWorkerTimeoutCounter().increment();
               w.timeoutInterrupt();
             }
           }
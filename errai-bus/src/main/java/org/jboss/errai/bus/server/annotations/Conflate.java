@@ -0,0 +1,38 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Placed on a {@link Service} to enable "latest value wins" delivery to remote clients for the specified subjects
+ * (or the subject of the service itself, if none are specified). A message to a conflated subject that is still
+ * waiting in a client's queue is replaced by a newer message with the same subject, and the same value in
+ * {@link #keyPart()} if one is specified.
+ *
+ * @see org.jboss.errai.bus.server.api.ServerMessageBus#conflate(String, String)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Conflate {
+  String[] value() default {};
+
+  String keyPart() default "";
+}
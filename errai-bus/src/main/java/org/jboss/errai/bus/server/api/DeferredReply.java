@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an RPC endpoint which is not known by the time the endpoint returns. The bus sends the reply to the
+ * caller when the result is completed, from the thread which completes it, so the thread which invoked the endpoint
+ * is free to deliver other messages in the meantime.
+ * <p/>
+ * An <tt>@Endpoint</tt> method may simply return a <tt>DeferredReply</tt>. The methods of an <tt>@Remote</tt>
+ * interface must keep the return type the client expects, and so instead call {@link #defer()} before returning,
+ * in which case the value they return is ignored:
+ * <p/>
+ * <pre>
+ * public String lookup(final String name) {
+ *   final DeferredReply&lt;String&gt; reply = DeferredReply.defer();
+ *   directory.lookupAsync(name, new Callback() {
+ *     public void done(String address) {
+ *       reply.complete(address);
+ *     }
+ *   });
+ *   return null;
+ * }
+ * </pre>
+ */
+public final class DeferredReply<T> implements Future<T> {
+  /**
+   * Held by a thread on which an endpoint is being invoked, until the endpoint defers its reply.
+   */
+  private static final DeferredReply<Object> NOT_DEFERRED = new DeferredReply<Object>();
+
+  /**
+   * The reply deferred by the endpoint being invoked on each thread, or {@link #NOT_DEFERRED}. Nothing is held by a
+   * thread which is not invoking an endpoint.
+   */
+  private static final ThreadLocal<DeferredReply<?>> deferred = new ThreadLocal<DeferredReply<?>>();
+
+  private List<Runnable> listeners = new ArrayList<Runnable>(1);
+
+  private boolean done;
+  private boolean cancelled;
+  private T value;
+  private Throwable failure;
+
+  /**
+   * Defers the reply of the endpoint which is currently being invoked on this thread. Must be called from within the
+   * endpoint method itself.
+   *
+   * @return the handle with which to complete the reply later
+   * @throws IllegalStateException if no endpoint is being invoked on this thread
+   */
+  public static <T> DeferredReply<T> defer() {
+    if (deferred.get() == null) {
+      throw new IllegalStateException("a reply can only be deferred by an endpoint, while it is being invoked");
+    }
+
+    final DeferredReply<T> reply = new DeferredReply<T>();
+    deferred.set(reply);
+    return reply;
+  }
+
+  /**
+   * Marks the start of the invocation of an endpoint on this thread, which may then defer its reply. This is called
+   * by the bus, and should not be called by services. Every call must be matched by a call to
+   * {@link #endInvocation(DeferredReply)} in a <tt>finally</tt> block.
+   *
+   * @return the state of the invocation this one is nested in, if any, to be passed to <tt>endInvocation</tt>
+   */
+  public static DeferredReply<?> beginInvocation() {
+    final DeferredReply<?> outer = deferred.get();
+    deferred.set(NOT_DEFERRED);
+    return outer;
+  }
+
+  /**
+   * Marks the end of the invocation of an endpoint on this thread, and returns the reply it deferred, if any. This is
+   * called by the bus, and should not be called by services.
+   *
+   * @param outer - the value returned by the matching call to {@link #beginInvocation()}
+   * @return the deferred reply, or null if the endpoint did not defer its reply
+   */
+  public static DeferredReply<?> endInvocation(DeferredReply<?> outer) {
+    final DeferredReply<?> reply = deferred.get();
+    if (outer == null) {
+      deferred.remove();
+    }
+    else {
+      deferred.set(outer);
+    }
+    return reply == NOT_DEFERRED ? null : reply;
+  }
+
+  /**
+   * Completes the reply with the specified value, which is sent to the caller.
+   *
+   * @param value - the result of the endpoint
+   * @return false if the reply had already been completed or cancelled
+   */
+  public boolean complete(T value) {
+    synchronized (this) {
+      if (done) return false;
+      this.value = value;
+      done = true;
+    }
+    notifyListeners();
+    return true;
+  }
+
+  /**
+   * Completes the reply with an error, which is sent to the caller as though the endpoint had thrown it.
+   *
+   * @param failure - the error
+   * @return false if the reply had already been completed or cancelled
+   */
+  public boolean fail(Throwable failure) {
+    synchronized (this) {
+      if (done) return false;
+      this.failure = failure;
+      done = true;
+    }
+    notifyListeners();
+    return true;
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (done) return false;
+      cancelled = done = true;
+    }
+    notifyListeners();
+    return true;
+  }
+
+  /**
+   * Runs the specified task when the reply is completed, failed or cancelled, on the thread which does so. If that
+   * has already happened, the task is run straight away.
+   *
+   * @param task - the task to run
+   */
+  public void whenDone(Runnable task) {
+    synchronized (this) {
+      if (!done) {
+        listeners.add(task);
+        return;
+      }
+    }
+    task.run();
+  }
+
+  private void notifyListeners() {
+    final List<Runnable> toRun;
+    synchronized (this) {
+      toRun = listeners;
+      listeners = null;
+      notifyAll();
+    }
+
+    for (Runnable task : toRun) {
+      task.run();
+    }
+  }
+
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  public synchronized T get() throws InterruptedException, ExecutionException {
+    while (!done) {
+      wait();
+    }
+    return result();
+  }
+
+  public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+          TimeoutException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long remaining;
+    while (!done) {
+      if ((remaining = deadline - System.nanoTime()) <= 0) {
+        throw new TimeoutException();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return result();
+  }
+
+  private T result() throws ExecutionException {
+    if (cancelled) throw new CancellationException();
+    if (failure != null) throw new ExecutionException(failure);
+    return value;
+  }
+}
@@ -20,7 +20,7 @@ import org.jboss.errai.bus.client.api.Message;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
 
 
 public interface MessageQueue {
@@ -40,7 +40,7 @@ public interface MessageQueue {
 
   QueueActivationCallback getActivationCallback();
 
-  BlockingQueue<Message> getQueue();
+  Queue<Message> getQueue();
 
   QueueSession getSession();
 
@@ -61,4 +61,8 @@ public interface MessageQueue {
   void stopQueue();
 
   Object getActivationLock();
+
+  QueueOverflowPolicy getOverflowPolicy();
+
+  long getDroppedMessageCount();
 }
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.api;
+
+/**
+ * A <tt>QueueActivationCallback</tt> for a transport which can push messages to the client at any time, such as a
+ * web socket. Unlike other callbacks, it is activated every time a message is offered to the queue, rather than at
+ * the end of the transmission window, and without holding the activation lock of the queue. It must therefore allow
+ * for being activated from several threads at once.
+ */
+public interface PushActivationCallback extends QueueActivationCallback {
+}
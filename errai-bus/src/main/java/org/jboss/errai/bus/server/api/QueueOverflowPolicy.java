@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.api;
+
+/**
+ * Determines what a {@link MessageQueue} does when a message is offered to it while it is full. Producers are never
+ * blocked, whatever the policy.
+ */
+public enum QueueOverflowPolicy {
+  /**
+   * Discard the oldest undelivered message to make room for the new one.
+   */
+  DropOldest,
+
+  /**
+   * Discard the message being offered.
+   */
+  DropNewest,
+
+  /**
+   * Replace the most recent undelivered message with the same subject as the message being offered. If there is no
+   * such message, the oldest undelivered message is discarded instead.
+   */
+  CoalesceBySubject,
+
+  /**
+   * Discard every undelivered message and disconnect the client. The client will be told that its session has expired
+   * on its next poll.
+   */
+  DisconnectClient;
+
+  /**
+   * Resolves a policy by name, ignoring case.
+   *
+   * @param name - the name of the policy
+   * @return the matching policy
+   * @throws IllegalArgumentException - if there is no such policy
+   */
+  public static QueueOverflowPolicy forName(String name) {
+    for (QueueOverflowPolicy policy : values()) {
+      if (policy.name().equalsIgnoreCase(name.trim())) return policy;
+    }
+    throw new IllegalArgumentException("unknown queue overflow policy: " + name);
+  }
+}
@@ -16,6 +16,7 @@
 
 package org.jboss.errai.bus.server.api;
 
+import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.client.api.MessageCallback;
 import org.jboss.errai.bus.client.framework.BooleanRoutingRule;
 import org.jboss.errai.bus.client.framework.MessageBus;
@@ -102,6 +103,24 @@ public interface ServerMessageBus extends MessageBus {
 
   public Map<QueueSession, MessageQueue> getMessageQueues();
 
+  /**
+   * Enables "latest value wins" delivery for messages to the specified subject. A message to the subject which is
+   * still waiting in a remote queue will be replaced by a newer one, rather than both being sent.
+   *
+   * @param subject - the subject to conflate
+   * @param keyPart - the message part which further distinguishes messages which may replace each other, or
+   *                <tt>null</tt> if every message to the subject replaces the last.
+   */
+  public void conflate(String subject, String keyPart);
+
+  /**
+   * Returns the key identifying which waiting messages the specified message may replace.
+   *
+   * @param message - the message about to be queued
+   * @return the conflation key, or <tt>null</tt> if the message must not be conflated
+   */
+  public String getConflationKey(Message message);
+
 
   /**
    * Stop the MessateBus.
@@ -18,12 +18,19 @@ package org.jboss.errai.bus.server.async;
 
 import org.jboss.errai.bus.client.api.AsyncTask;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import static java.lang.System.currentTimeMillis;
 
 /**
  * A <tt>TimedTask</tt> is used for scheduling tasks, and making sure they are run at appropriate times and intervals
  */
 public abstract class TimedTask implements Runnable, Comparable<TimedTask>, AsyncTask {
+  private static final AtomicLong sequencer = new AtomicLong();
+
+  /* Orders tasks with the same runtime, so that they are not considered equal */
+  private final long sequence = sequencer.getAndIncrement();
+
   protected volatile long nextRuntime;
   protected volatile long period;
   protected volatile boolean cancel = false;
@@ -143,6 +150,6 @@ public abstract class TimedTask implements Runnable, Comparable<TimedTask>, Asyn
     else if (nextRuntime < o.nextRuntime)
       return -1;
     else
-      return 0;
+      return sequence < o.sequence ? -1 : 1;
   }
 }
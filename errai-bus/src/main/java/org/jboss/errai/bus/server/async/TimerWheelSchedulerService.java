@@ -0,0 +1,321 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.async;
+
+import org.jboss.errai.bus.client.api.AsyncTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * A hashed timer wheel implementation of the {@link SchedulerService}. Time is divided into ticks, and each task is
+ * kept in the bucket of the wheel for the tick it is due in. On each tick, the scheduler thread runs all of the
+ * tasks in the current bucket that are due, and leaves those that are due on a later turn of the wheel. Adding and
+ * cancelling a task are therefore O(1), regardless of how many tasks are scheduled.
+ * <p/>
+ * Tasks may be added from any thread without taking a lock: they are put on a concurrent queue which the scheduler
+ * thread drains into the wheel at the start of each tick. Tasks are run on the scheduler thread, up to one tick later
+ * than their scheduled time.
+ */
+public class TimerWheelSchedulerService implements Runnable, SchedulerService {
+  public static final long DEFAULT_TICK_DURATION = 10;
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static final Logger log = LoggerFactory.getLogger(TimerWheelSchedulerService.class);
+
+  private final long tickDuration;
+  private final Bucket[] wheel;
+  private final int mask;
+
+  private final Queue<Entry> pending = new ConcurrentLinkedQueue<Entry>();
+  private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<Entry>();
+
+  private final Thread thread;
+  private volatile boolean running = false;
+  private volatile boolean idle = false;
+  private volatile boolean finished = false;
+
+  /**
+   * The next tick to be processed, and the number of tasks in the wheel. Only accessed by the scheduler thread.
+   */
+  private long tick;
+  private int size;
+
+  public TimerWheelSchedulerService() {
+    this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * Creates a new scheduler.
+   *
+   * @param tickDuration - the length of a tick in milliseconds, which is also the precision of the scheduler
+   * @param wheelSize    - the number of buckets in the wheel, which is rounded up to a power of two
+   */
+  public TimerWheelSchedulerService(long tickDuration, int wheelSize) {
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("tick duration must be greater than zero: " + tickDuration);
+    }
+    if (wheelSize <= 0) {
+      throw new IllegalArgumentException("wheel size must be greater than zero: " + wheelSize);
+    }
+
+    int buckets = 1;
+    while (buckets < wheelSize) {
+      buckets <<= 1;
+    }
+
+    this.tickDuration = tickDuration;
+    this.wheel = new Bucket[buckets];
+    this.mask = buckets - 1;
+
+    for (int i = 0; i < buckets; i++) {
+      wheel[i] = new Bucket();
+    }
+
+    thread = new Thread(this, "Errai Bus Scheduler");
+    thread.setDaemon(true);
+  }
+
+  public AsyncTask addTask(TimedTask task) {
+    Entry entry = new Entry(task);
+    pending.add(entry);
+
+    if (idle) {
+      LockSupport.unpark(thread);
+    }
+
+    return entry;
+  }
+
+  public void addTaskConcurrently(TimedTask task) {
+    addTask(task);
+  }
+
+  public void start() {
+    running = true;
+    thread.start();
+  }
+
+  public void requestStop() {
+    running = false;
+    thread.interrupt();
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  public void run() {
+    tick = currentTimeMillis() / tickDuration;
+
+    while (running) {
+      long now = currentTimeMillis();
+
+      removeCancelled();
+      addPending(now);
+
+      if (size == 0) {
+        // nothing is scheduled, so wait for a task to be added rather than waking up for every tick.
+        idle = true;
+        if (pending.isEmpty() && running) {
+          LockSupport.park(this);
+        }
+        idle = false;
+        tick = currentTimeMillis() / tickDuration;
+        continue;
+      }
+
+      long current = now / tickDuration;
+
+      // if the scheduler has fallen behind by more than a turn of the wheel, every bucket only needs to be visited once.
+      long last = Math.min(current, tick + wheel.length - 1);
+      for (; tick <= last; tick++) {
+        expire(wheel[(int) (tick & mask)], current, now);
+      }
+      tick = current + 1;
+
+      long sleep = tick * tickDuration - currentTimeMillis();
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep);
+        }
+        catch (InterruptedException e) {
+          // check whether we have been stopped.
+        }
+      }
+    }
+
+    finished = true;
+  }
+
+  private void removeCancelled() {
+    Entry entry;
+    while ((entry = cancelled.poll()) != null) {
+      if (entry.bucket != null) {
+        entry.bucket.remove(entry);
+        size--;
+      }
+    }
+  }
+
+  private void addPending(long now) {
+    Entry entry;
+    while ((entry = pending.poll()) != null) {
+      schedule(entry, now, tick);
+    }
+  }
+
+  /**
+   * Puts the entry in the bucket for the tick its task is due in, or the bucket for the earliest specified tick if
+   * it is due before then.
+   */
+  private void schedule(Entry entry, long now, long earliestTick) {
+    final TimedTask task = entry.task;
+    final long nextRuntime = task.nextRuntime();
+
+    if (task.isCancelled() || nextRuntime == -1) {
+      return;
+    }
+
+    entry.deadline = Math.max(nextRuntime, now);
+    wheel[(int) (Math.max(entry.deadline / tickDuration, earliestTick) & mask)].add(entry);
+    size++;
+  }
+
+  /**
+   * Runs all of the tasks in the bucket which are due, and reschedules those which are to be run again. The entries
+   * are detached from the bucket before they are visited, as an entry may be put back in the same bucket: on a wheel
+   * with one bucket, or when the scheduler is catching up a whole turn of the wheel.
+   */
+  private void expire(Bucket bucket, long currentTick, long now) {
+    Entry entry = bucket.detach();
+    while (entry != null) {
+      final Entry next = entry.next;
+      final TimedTask task = entry.task;
+      entry.prev = entry.next = null;
+
+      if (task.isCancelled() || task.nextRuntime() == -1) {
+        size--;
+      }
+      else if (entry.deadline <= now) {
+        size--;
+
+        try {
+          task.runIfDue(now);
+        }
+        catch (Throwable t) {
+          log.error("scheduled task threw an exception: " + task, t);
+        }
+
+        // the task has either calculated its next runtime, or been descheduled.
+        schedule(entry, now, currentTick + 1);
+      }
+      else if (entry.deadline / tickDuration <= currentTick) {
+        // due later in the current tick, so move it to the next one.
+        wheel[(int) ((currentTick + 1) & mask)].add(entry);
+      }
+      else {
+        // due on a later turn of the wheel.
+        bucket.add(entry);
+      }
+
+      entry = next;
+    }
+  }
+
+  private static final class Bucket {
+    private Entry head;
+    private Entry tail;
+
+    private void add(Entry entry) {
+      entry.bucket = this;
+      entry.prev = tail;
+      entry.next = null;
+
+      if (tail == null) {
+        head = tail = entry;
+      }
+      else {
+        tail.next = entry;
+        tail = entry;
+      }
+    }
+
+    /**
+     * Empties the bucket, and returns the first of its entries, which are still linked to each other.
+     */
+    private Entry detach() {
+      Entry first = head;
+      for (Entry entry = first; entry != null; entry = entry.next) {
+        entry.bucket = null;
+      }
+      head = tail = null;
+      return first;
+    }
+
+    private void remove(Entry entry) {
+      if (entry.prev == null) {
+        head = entry.next;
+      }
+      else {
+        entry.prev.next = entry.next;
+      }
+
+      if (entry.next == null) {
+        tail = entry.prev;
+      }
+      else {
+        entry.next.prev = entry.prev;
+      }
+
+      entry.bucket = null;
+      entry.prev = entry.next = null;
+    }
+  }
+
+  private final class Entry implements AsyncTask {
+    private final TimedTask task;
+    private long deadline;
+
+    private Bucket bucket;
+    private Entry prev;
+    private Entry next;
+
+    private Entry(TimedTask task) {
+      this.task = task;
+    }
+
+    public boolean cancel(boolean interrupt) {
+      task.cancel(interrupt);
+      cancelled.add(this);
+      return true;
+    }
+
+    public void setExitHandler(Runnable runnable) {
+      task.setExitHandler(runnable);
+    }
+
+    public boolean isCancelled() {
+      return task.isCancelled();
+    }
+  }
+}
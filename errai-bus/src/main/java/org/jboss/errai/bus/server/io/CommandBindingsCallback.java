@@ -72,11 +72,11 @@ public class CommandBindingsCallback implements MessageCallback {
 
   private abstract class MethodDispatcher {
     protected Object delegate;
-    protected Method method;
+    protected MethodInvoker invoker;
 
     protected MethodDispatcher(Object delegate, Method method) {
       this.delegate = delegate;
-      this.method = method;
+      this.invoker = MethodInvokers.get(method);
     }
 
     abstract void dispatch(Message m) throws Exception;
@@ -89,7 +89,7 @@ public class CommandBindingsCallback implements MessageCallback {
 
     @Override
     void dispatch(Message m) throws Exception {
-      method.invoke(delegate);
+      invoker.invoke(delegate, null);
     }
   }
 
@@ -100,7 +100,7 @@ public class CommandBindingsCallback implements MessageCallback {
 
     @Override
     void dispatch(Message m) throws Exception {
-      method.invoke(delegate, m);
+      invoker.invoke(delegate, new Object[]{m});
     }
   }
 
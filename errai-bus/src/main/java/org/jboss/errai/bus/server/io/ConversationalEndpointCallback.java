@@ -20,24 +20,23 @@ import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.client.api.MessageCallback;
 import org.jboss.errai.bus.client.api.base.MessageDeliveryFailure;
 import org.jboss.errai.bus.client.framework.MessageBus;
+import org.jboss.errai.bus.server.api.DeferredReply;
 
 import javax.inject.Provider;
-import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collection;
+import java.util.concurrent.ExecutionException;
 
 import static org.jboss.errai.bus.client.api.base.MessageBuilder.createConversation;
-import static org.mvel2.DataConversion.canConvert;
-import static org.mvel2.DataConversion.convert;
+import static org.jboss.errai.bus.client.util.ErrorHelper.handleMessageDeliveryFailure;
 
 /**
- * <tt>ConversationalEndpointCallback</tt> creates a conversation that invokes an endpoint function
+ * <tt>ConversationalEndpointCallback</tt> creates a conversation that invokes an endpoint function. If the endpoint
+ * defers its reply (see {@link DeferredReply}), the reply is sent by whichever thread completes it.
  */
 public class ConversationalEndpointCallback implements MessageCallback {
   private Provider<?> serviceProvider;
-  private Class[] targetTypes;
-  private Method method;
+  private MethodInvoker invoker;
   private MessageBus bus;
 
   /**
@@ -49,7 +48,7 @@ public class ConversationalEndpointCallback implements MessageCallback {
    */
   public ConversationalEndpointCallback(Provider<?> genericSvc, Method method, MessageBus bus) {
     this.serviceProvider = genericSvc;
-    this.targetTypes = (this.method = method).getParameterTypes();
+    this.invoker = MethodInvokers.get(method);
     this.bus = bus;
   }
 
@@ -58,52 +57,14 @@ public class ConversationalEndpointCallback implements MessageCallback {
    *
    * @param message - the message to initiate the conversation
    */
-  @SuppressWarnings({"unchecked"})
-  public void callback(Message message) {
+  public void callback(final Message message) {
     Object[] parms = message.get(Object[].class, "MethodParms");
 
-    if ((parms == null && targetTypes.length != 0) || (parms.length != targetTypes.length)) {
-      throw new MessageDeliveryFailure("wrong number of arguments sent to endpoint. (received: "
-              + (parms == null ? 0 : parms.length) + "; required: " + targetTypes.length + ")");
-    }
-    for (int i = 0; i < parms.length; i++) {
-      if (parms[i] != null && !targetTypes[i].isAssignableFrom(parms[i].getClass())) {
-        if (canConvert(targetTypes[i], parms[i].getClass())) {
-          parms[i] = convert(parms[i], targetTypes[i]);
-        }
-        else if (targetTypes[i].isArray()) {
-          if (parms[i] instanceof Collection) {
-            Collection c = (Collection) parms[i];
-            parms[i] = c.toArray((Object[]) Array.newInstance(targetTypes[i].getComponentType(), c.size()));
-
-          }
-          else if (parms[i].getClass().isArray()) {
-
-            int length = Array.getLength(parms[i]);
-            Class toComponentType = parms[i].getClass().getComponentType();
-            Object parmValue = parms[i];
-            Object newArray = Array.newInstance(targetTypes[i].getComponentType(), length);
-
-            for (int x = 0; x < length; x++) {
-              Array.set(newArray, x, convert(Array.get(parmValue, x), toComponentType));
-            }
-
-            parms[i] = newArray;
-          }
-
-        }
-        else {
-          throw new MessageDeliveryFailure("type mismatch in method parameters");
-        }
-      }
-    }
-
+    final Object result;
+    DeferredReply<?> deferred;
+    final DeferredReply<?> outer = DeferredReply.beginInvocation();
     try {
-      createConversation(message)
-              .subjectProvided()
-              .with("MethodReply", method.invoke(serviceProvider.get(), parms))
-              .noErrorHandling().sendNowWith(bus);
-
+      result = invoker.invoke(serviceProvider.get(), parms);
     }
     catch (MessageDeliveryFailure e) {
       throw e;
@@ -114,5 +75,50 @@ public class ConversationalEndpointCallback implements MessageCallback {
     catch (Exception e) {
       throw new MessageDeliveryFailure("error invoking endpoint", e);
     }
+    finally {
+      deferred = DeferredReply.endInvocation(outer);
+    }
+
+    if (deferred == null && result instanceof DeferredReply) {
+      deferred = (DeferredReply<?>) result;
+    }
+
+    if (deferred == null) {
+      reply(message, result);
+    }
+    else {
+      final DeferredReply<?> reply = deferred;
+      reply.whenDone(new Runnable() {
+        public void run() {
+          completeDeferred(message, reply);
+        }
+      });
+    }
+  }
+
+  private void reply(Message message, Object result) {
+    createConversation(message)
+            .subjectProvided()
+            .with("MethodReply", result)
+            .noErrorHandling().sendNowWith(bus);
+  }
+
+  private void completeDeferred(Message message, DeferredReply<?> reply) {
+    Throwable failure;
+    try {
+      reply(message, reply.get());
+      return;
+    }
+    catch (ExecutionException e) {
+      failure = e.getCause();
+    }
+    catch (Throwable t) {
+      failure = t;
+    }
+
+    // the dispatcher which invoked the endpoint has long since returned, so the failure is reported from here.
+    message.setResource("Exception", failure);
+    handleMessageDeliveryFailure(bus, message, "Error calling remote service: " + message.getSubject(),
+            new MessageDeliveryFailure("error invoking endpoint", failure), false);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A reusable, per-thread write buffer used by the {@link JSONStreamEncoder}. Strings are escaped and encoded as UTF-8,
+ * and integral numbers are formatted, directly into the buffer, which is only written to the underlying stream when
+ * it fills up or is released. This avoids both the intermediate <tt>String</tt> and <tt>byte[]</tt> garbage of
+ * encoding each value separately, and the cost of many small writes to the servlet output stream.
+ * <p/>
+ * A buffer is bound to an output stream with {@link #acquire(OutputStream)}, and must be given back with
+ * {@link #release()} by the same thread once encoding is complete.
+ */
+public class EncodingBuffer extends OutputStream {
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final ThreadLocal<EncodingBuffer> buffers = new ThreadLocal<EncodingBuffer>() {
+    @Override
+    protected EncodingBuffer initialValue() {
+      return new EncodingBuffer();
+    }
+  };
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  private final byte[] buf = new byte[BUFFER_SIZE];
+  private final byte[] digits = new byte[20];
+  private int pos;
+  private long drained;
+
+  private OutputStream target;
+
+  private EncodingBuffer() {
+  }
+
+  /**
+   * Binds the calling thread's buffer to the specified stream. If the thread's buffer is already in use further up the
+   * stack, a new buffer is created instead.
+   *
+   * @param target - the stream the buffer will be written to
+   * @return a buffer bound to the stream
+   */
+  public static EncodingBuffer acquire(OutputStream target) {
+    EncodingBuffer buffer = buffers.get();
+    if (buffer.target != null) {
+      buffer = new EncodingBuffer();
+    }
+    buffer.target = target;
+    buffer.pos = 0;
+    buffer.drained = 0;
+    return buffer;
+  }
+
+  /**
+   * Writes anything still in the buffer to the underlying stream, and unbinds the buffer from it. The underlying stream
+   * is neither flushed nor closed.
+   *
+   * @throws IOException - if the underlying stream cannot be written to
+   */
+  public void release() throws IOException {
+    try {
+      drain();
+    }
+    finally {
+      target = null;
+      pos = 0;
+    }
+  }
+
+  /**
+   * Returns the number of bytes written to the buffer since it was acquired, whether or not they have reached the
+   * underlying stream yet.
+   */
+  public long getBytesWritten() {
+    return drained + pos;
+  }
+
+  private void drain() throws IOException {
+    if (pos != 0) {
+      target.write(buf, 0, pos);
+      drained += pos;
+      pos = 0;
+    }
+  }
+
+  private void ensure(int len) throws IOException {
+    if (buf.length - pos < len) drain();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (pos == buf.length) drain();
+    buf[pos++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b) throws IOException {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len >= buf.length) {
+      drain();
+      target.write(b, off, len);
+      drained += len;
+    }
+    else {
+      ensure(len);
+      System.arraycopy(b, off, buf, pos, len);
+      pos += len;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+    target.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    drain();
+    target.close();
+  }
+
+  /**
+   * Writes a string which is known to contain only 7-bit ASCII characters, such as a constant or a formatted number.
+   *
+   * @param s - the string to write
+   * @throws IOException - if the underlying stream cannot be written to
+   */
+  public void writeAscii(String s) throws IOException {
+    final int len = s.length();
+    for (int i = 0; i < len; i++) {
+      if (pos == buf.length) drain();
+      buf[pos++] = (byte) s.charAt(i);
+    }
+  }
+
+  /**
+   * Writes a string encoded as UTF-8, without any escaping. This is used to write JSON which has already been encoded.
+   *
+   * @param s - the string to write
+   * @throws IOException - if the underlying stream cannot be written to
+   */
+  public void writeUTF8(String s) throws IOException {
+    final int len = s.length();
+    for (int i = 0; i < len; i++) {
+      i = writeChar(s, i, len);
+    }
+  }
+
+  /**
+   * Writes the contents of a JSON string literal, encoded as UTF-8. Quotes, backslashes and control characters are
+   * escaped; the surrounding quotes are not written.
+   *
+   * @param s - the string to write
+   * @throws IOException - if the underlying stream cannot be written to
+   */
+  public void writeEscaped(String s) throws IOException {
+    final int len = s.length();
+    char c;
+    for (int i = 0; i < len; i++) {
+      switch (c = s.charAt(i)) {
+        case '"':
+          writeEscape('"');
+          break;
+        case '\\':
+          writeEscape('\\');
+          break;
+        case '\b':
+          writeEscape('b');
+          break;
+        case '\f':
+          writeEscape('f');
+          break;
+        case '\n':
+          writeEscape('n');
+          break;
+        case '\r':
+          writeEscape('r');
+          break;
+        case '\t':
+          writeEscape('t');
+          break;
+        case '\u2028':
+        case '\u2029':
+          writeUnicodeEscape(c);
+          break;
+        default:
+          if (c < 0x20) {
+            writeUnicodeEscape(c);
+          }
+          else {
+            i = writeChar(s, i, len);
+          }
+      }
+    }
+  }
+
+  private void writeEscape(char c) throws IOException {
+    ensure(2);
+    buf[pos++] = '\\';
+    buf[pos++] = (byte) c;
+  }
+
+  private void writeUnicodeEscape(char c) throws IOException {
+    ensure(6);
+    buf[pos++] = '\\';
+    buf[pos++] = 'u';
+    buf[pos++] = HEX[(c >> 12) & 0xF];
+    buf[pos++] = HEX[(c >> 8) & 0xF];
+    buf[pos++] = HEX[(c >> 4) & 0xF];
+    buf[pos++] = HEX[c & 0xF];
+  }
+
+  /**
+   * Writes the character at the specified index as UTF-8, consuming the following character as well if the two form
+   * a surrogate pair.
+   *
+   * @return the index of the last character consumed
+   */
+  private int writeChar(String s, int i, int len) throws IOException {
+    final char c = s.charAt(i);
+    ensure(4);
+
+    if (c < 0x80) {
+      buf[pos++] = (byte) c;
+    }
+    else if (c < 0x800) {
+      buf[pos++] = (byte) (0xC0 | (c >> 6));
+      buf[pos++] = (byte) (0x80 | (c & 0x3F));
+    }
+    else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+      final int cp = Character.toCodePoint(c, s.charAt(++i));
+      buf[pos++] = (byte) (0xF0 | (cp >> 18));
+      buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+      buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+    }
+    else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+      // an unpaired surrogate cannot be represented in UTF-8.
+      buf[pos++] = '?';
+    }
+    else {
+      buf[pos++] = (byte) (0xE0 | (c >> 12));
+      buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buf[pos++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return i;
+  }
+
+  /**
+   * Writes the decimal representation of a long without allocating.
+   *
+   * @param v - the value to write
+   * @throws IOException - if the underlying stream cannot be written to
+   */
+  public void writeLong(long v) throws IOException {
+    if (v == Long.MIN_VALUE) {
+      writeAscii(String.valueOf(v));
+      return;
+    }
+
+    ensure(20);
+    if (v < 0) {
+      buf[pos++] = '-';
+      v = -v;
+    }
+
+    int i = digits.length;
+    do {
+      digits[--i] = (byte) ('0' + (v % 10));
+      v /= 10;
+    }
+    while (v != 0);
+
+    final int len = digits.length - i;
+    System.arraycopy(digits, i, buf, pos, len);
+    pos += len;
+  }
+}
@@ -19,7 +19,6 @@ package org.jboss.errai.bus.server.io;
 import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.client.api.MessageCallback;
 import org.jboss.errai.bus.client.api.base.MessageDeliveryFailure;
-import org.mvel2.DataConversion;
 
 import java.lang.reflect.Method;
 
@@ -29,8 +28,7 @@ import java.lang.reflect.Method;
  */
 public class EndpointCallback implements MessageCallback {
   private Object genericSvc;
-  private Class[] targetTypes;
-  private Method method;
+  private MethodInvoker invoker;
 
   /**
    * Initializes the service and endpoint method
@@ -40,7 +38,7 @@ public class EndpointCallback implements MessageCallback {
    */
   public EndpointCallback(Object genericSvc, Method method) {
     this.genericSvc = genericSvc;
-    this.targetTypes = (this.method = method).getParameterTypes();
+    this.invoker = MethodInvokers.get(method);
   }
 
   /**
@@ -51,23 +49,11 @@ public class EndpointCallback implements MessageCallback {
   public void callback(Message message) {
     Object[] parms = message.get(Object[].class, "MethodParms");
 
-    if ((parms == null && targetTypes.length != 0) || (parms.length != targetTypes.length)) {
-      throw new MessageDeliveryFailure("wrong number of arguments sent to endpoint. (received: "
-          + (parms == null ? 0 : parms.length) + "; required: " + targetTypes.length + ")");
-    }
-    for (int i = 0; i < parms.length; i++) {
-      if (parms[i] != null && !targetTypes[i].isAssignableFrom(parms[i].getClass())) {
-        if (DataConversion.canConvert(targetTypes[i], parms[i].getClass())) {
-          parms[i] = DataConversion.convert(parms[i], targetTypes[i]);
-        }
-        else {
-          throw new MessageDeliveryFailure("type mismatch in method parameters");
-        }
-      }
-    }
-
     try {
-      method.invoke(genericSvc, parms);
+      invoker.invoke(genericSvc, parms);
+    }
+    catch (MessageDeliveryFailure e) {
+      throw e;
     }
     catch (Exception e) {
       throw new MessageDeliveryFailure("error invoking endpoint", e);
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import org.mvel2.DataConversion;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads, writes and instantiates the serializable fields of one type on behalf of the server-side encoders and
+ * decoders. Fields are addressed by their index in {@link EncodingUtil#getAllEncodingFields(Class)}.
+ * <p/>
+ * This base implementation uses reflection. Subclasses generated by {@link FieldCodecGenerator} override these
+ * methods with direct field and accessor calls, and defer to this implementation for any field they cannot reach.
+ * Codecs are obtained from {@link FieldCodecs}.
+ */
+public class FieldCodec {
+  protected final Class<?> type;
+  protected final Field[] fields;
+
+  private final Class<?>[] conversionTypes;
+  private final byte[][] keys;
+  private final Map<String, Integer> indexes;
+
+  public FieldCodec(Class<?> type) {
+    this.type = type;
+    this.fields = EncodingUtil.getAllEncodingFields(type);
+    this.conversionTypes = new Class<?>[fields.length];
+    this.keys = new byte[fields.length][];
+    this.indexes = new HashMap<String, Integer>(fields.length * 2);
+
+    for (int i = 0; i < fields.length; i++) {
+      conversionTypes[i] = boxedType(fields[i].getType());
+      indexes.put(fields[i].getName(), i);
+      try {
+        keys[i] = ("\"" + fields[i].getName() + "\":").getBytes("UTF-8");
+      }
+      catch (UnsupportedEncodingException e) {
+        throw new Error("UTF-8 is not supported by this JVM?", e);
+      }
+    }
+  }
+
+  public Class<?> getType() {
+    return type;
+  }
+
+  public int getFieldCount() {
+    return fields.length;
+  }
+
+  public String getFieldName(int index) {
+    return fields[index].getName();
+  }
+
+  /**
+   * Returns the index of the field with the specified name, or -1 if the type has no such encoded field.
+   */
+  public int getFieldIndex(String name) {
+    final Integer index = indexes.get(name);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * Returns the quoted field name followed by a colon, encoded as UTF-8, ready to be written as an object key.
+   */
+  byte[] getKeyBytes(int index) {
+    return keys[index];
+  }
+
+  /**
+   * Returns true if this codec was generated for its type, and reads and writes every field without reflection.
+   *
+   * @return true if this is a generated codec which never falls back to reflection
+   */
+  public boolean isGenerated() {
+    return getClass() != FieldCodec.class;
+  }
+
+  /**
+   * Creates a new, empty instance of the type.
+   *
+   * @return the new instance
+   * @throws Exception - if the type cannot be instantiated
+   */
+  public Object newInstance() throws Exception {
+    return type.newInstance();
+  }
+
+  /**
+   * Reads a field. Primitive values are returned boxed.
+   *
+   * @param instance - the object to read the field from
+   * @param index    - the index of the field
+   * @return the value of the field
+   * @throws Exception - if the field cannot be read
+   */
+  public Object get(Object instance, int index) throws Exception {
+    return fields[index].get(instance);
+  }
+
+  /**
+   * Writes a field, converting the decoded value to the type of the field if necessary.
+   *
+   * @param instance - the object to write the field to
+   * @param index    - the index of the field
+   * @param value    - the decoded value
+   * @throws Exception - if the field cannot be written
+   */
+  public void set(Object instance, int index, Object value) throws Exception {
+    fields[index].set(instance, DataConversion.convert(value, fields[index].getType()));
+  }
+
+  /**
+   * Converts a decoded value to the (boxed) type of the specified field, if it is not of that type already.
+   */
+  protected Object convert(Object value, int index) {
+    final Class<?> type = conversionTypes[index];
+    return value == null || type.isInstance(value) ? value : DataConversion.convert(value, type);
+  }
+
+  static Class<?> boxedType(Class<?> type) {
+    if (!type.isPrimitive()) return type;
+    else if (type == int.class) return Integer.class;
+    else if (type == long.class) return Long.class;
+    else if (type == boolean.class) return Boolean.class;
+    else if (type == double.class) return Double.class;
+    else if (type == float.class) return Float.class;
+    else if (type == short.class) return Short.class;
+    else if (type == byte.class) return Byte.class;
+    else if (type == char.class) return Character.class;
+    else return Void.class;
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates a {@link FieldCodec} subclass for a serializable type, which reads and writes its fields directly. Private
+ * fields are read and written through their getters and setters instead, but only where the accessor does nothing
+ * else: its bytecode is checked to be a plain read or write of the field, so that an accessor which computes its value
+ * or has side effects never changes what goes on the wire. Any field which can be reached neither way is left to the
+ * reflective implementation in the superclass, and the codec then does not count as generated.
+ * <p/>
+ * The codec is compiled with Javassist and defined in the class loader, and therefore the package, of the type it
+ * serves, so that package-private fields and constructors are accessible to it.
+ */
+final class FieldCodecGenerator {
+  static final String CODEC_SUFFIX = "$$ErraiFieldCodec";
+
+  private FieldCodecGenerator() {
+  }
+
+  static boolean canGenerate(Class<?> type) {
+    if (type.isInterface() || type.isArray() || type.isPrimitive() || type.isEnum() || type.isAnnotation()) {
+      return false;
+    }
+
+    final String name = type.getName();
+    if (type.getClassLoader() == null || name.startsWith("java.") || name.startsWith("javax.")) {
+      return false;
+    }
+
+    // the instance and the field values are cast to their types, which must therefore be visible to the codec.
+    if (!isVisible(type, type)) return false;
+    for (Field field : EncodingUtil.getAllEncodingFields(type)) {
+      if (!isVisible(field.getType(), type)) return false;
+    }
+    return true;
+  }
+
+  static FieldCodec generate(Class<?> type) throws Exception {
+    final String codecName = type.getName() + CODEC_SUFFIX;
+
+    Class<?> codecClass;
+    try {
+      // the codec will already be defined if the codec cache has been reset since it was generated.
+      codecClass = type.getClassLoader().loadClass(codecName);
+    }
+    catch (ClassNotFoundException e) {
+      codecClass = define(type, codecName);
+    }
+
+    return (FieldCodec) codecClass.getConstructor(Class.class).newInstance(type);
+  }
+
+  private static Class<?> define(Class<?> type, String codecName) throws Exception {
+    final String typeName = sourceName(type);
+    final Field[] fields = EncodingUtil.getAllEncodingFields(type);
+    final Set<String> shadowed = getShadowedNames(fields);
+
+    final ClassPool pool = new ClassPool(true);
+    pool.appendClassPath(new LoaderClassPath(type.getClassLoader()));
+    pool.appendClassPath(new LoaderClassPath(FieldCodec.class.getClassLoader()));
+
+    final StringBuilder getCases = new StringBuilder();
+    final StringBuilder setCases = new StringBuilder();
+    boolean complete = true;
+
+    for (int i = 0; i < fields.length; i++) {
+      final Field field = fields[i];
+      if (shadowed.contains(field.getName())) {
+        complete = false;
+        continue;
+      }
+
+      final Class<?> fieldType = field.getType();
+      final boolean direct = isAccessible(field, type);
+
+      String read = null;
+      if (direct) {
+        read = "o." + field.getName();
+      }
+      else {
+        final Method getter = findGetter(type, field, pool);
+        if (getter != null) read = "o." + getter.getName() + "()";
+      }
+
+      if (read != null) {
+        getCases.append("case ").append(i).append(": return ").append(box(fieldType, read)).append(";\n");
+      }
+
+      final String value = fieldType.isPrimitive()
+              ? "((" + FieldCodec.boxedType(fieldType).getName() + ") convert(value, " + i + "))."
+              + fieldType.getName() + "Value()"
+              : "(" + sourceName(fieldType) + ") convert(value, " + i + ")";
+
+      String write = null;
+      if (direct && !Modifier.isFinal(field.getModifiers())) {
+        write = "o." + field.getName() + " = " + value;
+      }
+      else if (!direct) {
+        final Method setter = findSetter(type, field, pool);
+        if (setter != null) write = "o." + setter.getName() + "(" + value + ")";
+      }
+
+      if (write != null) {
+        setCases.append("case ").append(i).append(": ");
+        if (fieldType.isPrimitive()) setCases.append("if (value != null) ");
+        setCases.append(write).append("; return;\n");
+      }
+
+      if (read == null || write == null) complete = false;
+    }
+
+    final CtClass codec = pool.makeClass(codecName, pool.get(FieldCodec.class.getName()));
+    try {
+      codec.addConstructor(CtNewConstructor.make(new CtClass[]{pool.get(Class.class.getName())}, new CtClass[0],
+              "{ super($1); }", codec));
+
+      if (hasAccessibleConstructor(type)) {
+        codec.addMethod(CtNewMethod.make("public Object newInstance() throws Exception {\n"
+                + "return new " + typeName + "();\n}", codec));
+      }
+
+      if (getCases.length() != 0) {
+        codec.addMethod(CtNewMethod.make("public Object get(Object instance, int index) throws Exception {\n"
+                + typeName + " o = (" + typeName + ") instance;\n"
+                + "switch (index) {\n" + getCases + "}\n"
+                + "return super.get(instance, index);\n}", codec));
+      }
+
+      if (setCases.length() != 0) {
+        codec.addMethod(CtNewMethod.make("public void set(Object instance, int index, Object value) throws Exception {\n"
+                + typeName + " o = (" + typeName + ") instance;\n"
+                + "switch (index) {\n" + setCases + "}\n"
+                + "super.set(instance, index, value);\n}", codec));
+      }
+
+      if (!complete) {
+        // some fields still go through reflection.
+        codec.addMethod(CtNewMethod.make("public boolean isGenerated() {\nreturn false;\n}", codec));
+      }
+
+      return codec.toClass(type.getClassLoader(), type.getProtectionDomain());
+    }
+    finally {
+      codec.detach();
+    }
+  }
+
+  private static String box(Class<?> type, String expr) {
+    if (!type.isPrimitive()) return expr;
+    return FieldCodec.boxedType(type).getName() + ".valueOf(" + expr + ")";
+  }
+
+  static String sourceName(Class<?> type) {
+    return type.isArray() ? sourceName(type.getComponentType()) + "[]" : type.getName();
+  }
+
+  /**
+   * Returns the names of fields which are hidden by a field of the same name further down the hierarchy. These can
+   * only be told apart by reflection.
+   */
+  private static Set<String> getShadowedNames(Field[] fields) {
+    final Set<String> names = new HashSet<String>();
+    final Set<String> shadowed = new HashSet<String>();
+    for (Field field : fields) {
+      if (!names.add(field.getName())) shadowed.add(field.getName());
+    }
+    return shadowed;
+  }
+
+  /**
+   * Returns the getter of a private field, if it can be called from the codec and does nothing but return the field.
+   */
+  private static Method findGetter(Class<?> type, Field field, ClassPool pool) throws Exception {
+    Method getter = findAccessor(type, "get", field.getName());
+    if (getter == null && field.getType() == boolean.class) {
+      getter = findAccessor(type, "is", field.getName());
+    }
+
+    if (getter == null || getter.getReturnType() != field.getType() || !isAccessible(getter, type)) return null;
+    return isPlainAccessor(getter, field, pool, Opcode.GETFIELD) ? getter : null;
+  }
+
+  /**
+   * Returns the setter of a private field, if it can be called from the codec and does nothing but set the field.
+   */
+  private static Method findSetter(Class<?> type, Field field, ClassPool pool) throws Exception {
+    if (Modifier.isFinal(field.getModifiers())) return null;
+
+    final Method setter = findAccessor(type, "set", field.getName(), field.getType());
+    if (setter == null || setter.getReturnType() != void.class || !isAccessible(setter, type)) return null;
+    return isPlainAccessor(setter, field, pool, Opcode.PUTFIELD) ? setter : null;
+  }
+
+  /**
+   * Finds an accessor by its bean name. A property whose second letter is upper case, such as <tt>sType</tt>, keeps
+   * its first letter as it is (<tt>getsType</tt>), although some code capitalizes it anyway, so both are tried.
+   */
+  private static Method findAccessor(Class<?> type, String prefix, String property, Class<?>... parameterTypes) {
+    final Method method = findMethod(type, prefix + capitalize(property), parameterTypes);
+    if (method != null || Character.isUpperCase(property.charAt(0))) return method;
+    return findMethod(type, prefix + property, parameterTypes);
+  }
+
+  /**
+   * Returns the method which an instance of the type would run for the specified signature, wherever it is declared.
+   */
+  private static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      try {
+        final Method method = c.getDeclaredMethod(name, parameterTypes);
+        return Modifier.isStatic(method.getModifiers()) || Modifier.isAbstract(method.getModifiers()) ? null : method;
+      }
+      catch (NoSuchMethodException e) {
+        // look further up.
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if the bytecode of the accessor is exactly <tt>return this.field;</tt> or <tt>this.field = value;
+   * return;</tt>, as a compiler emits for a plain getter or setter.
+   */
+  private static boolean isPlainAccessor(Method method, Field field, ClassPool pool, int fieldOp) throws Exception {
+    if (method.getDeclaringClass() != field.getDeclaringClass()) return false;
+
+    final CtClass declaring = pool.get(method.getDeclaringClass().getName());
+    final CtClass[] params = new CtClass[method.getParameterTypes().length];
+    for (int i = 0; i < params.length; i++) {
+      params[i] = pool.get(sourceName(method.getParameterTypes()[i]));
+    }
+
+    final MethodInfo info = declaring.getDeclaredMethod(method.getName(), params).getMethodInfo();
+    final CodeAttribute code = info.getCodeAttribute();
+    if (code == null) return false;
+
+    final CodeIterator iter = code.iterator();
+    final List<Integer> ops = new ArrayList<Integer>(4);
+    int fieldRef = -1;
+    while (iter.hasNext()) {
+      final int index = iter.next();
+      final int op = iter.byteAt(index);
+      if (op == fieldOp) fieldRef = iter.u16bitAt(index + 1);
+      ops.add(op);
+    }
+
+    if (fieldRef == -1) return false;
+    final ConstPool constPool = info.getConstPool();
+    if (!field.getName().equals(constPool.getFieldrefName(fieldRef))
+            || !field.getDeclaringClass().getName().equals(constPool.getFieldrefClassName(fieldRef))) {
+      return false;
+    }
+
+    if (fieldOp == Opcode.GETFIELD) {
+      return ops.size() == 3 && ops.get(0) == Opcode.ALOAD_0 && ops.get(1) == Opcode.GETFIELD
+              && ops.get(2) >= Opcode.IRETURN && ops.get(2) <= Opcode.ARETURN;
+    }
+    else {
+      return ops.size() == 4 && ops.get(0) == Opcode.ALOAD_0 && isLoadOfFirstParameter(ops.get(1))
+              && ops.get(2) == Opcode.PUTFIELD && ops.get(3) == Opcode.RETURN;
+    }
+  }
+
+  private static boolean isLoadOfFirstParameter(int op) {
+    return op == Opcode.ILOAD_1 || op == Opcode.LLOAD_1 || op == Opcode.FLOAD_1 || op == Opcode.DLOAD_1
+            || op == Opcode.ALOAD_1;
+  }
+
+  private static String capitalize(String name) {
+    return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  private static boolean hasAccessibleConstructor(Class<?> type) {
+    if (Modifier.isAbstract(type.getModifiers())) return false;
+
+    try {
+      return !Modifier.isPrivate(type.getDeclaredConstructor().getModifiers());
+    }
+    catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns true if the member can be accessed from a codec in the same runtime package as the specified type.
+   */
+  static boolean isAccessible(Member member, Class<?> type) {
+    final int modifiers = member.getModifiers();
+    if (Modifier.isPrivate(modifiers)) return false;
+
+    final Class<?> declaring = member.getDeclaringClass();
+    if (Modifier.isPublic(modifiers) && Modifier.isPublic(declaring.getModifiers())) return true;
+
+    return !Modifier.isPrivate(declaring.getModifiers())
+            && declaring.getClassLoader() == type.getClassLoader()
+            && packageOf(declaring).equals(packageOf(type));
+  }
+
+  /**
+   * Returns true if the type can be named in code in the same runtime package as the specified class.
+   */
+  static boolean isVisible(Class<?> type, Class<?> from) {
+    while (type.isArray()) {
+      type = type.getComponentType();
+    }
+
+    if (type.isPrimitive()) return true;
+
+    for (Class<?> c = type; c != null; c = c.getDeclaringClass()) {
+      final int modifiers = c.getModifiers();
+      if (Modifier.isPrivate(modifiers)) return false;
+
+      if (!Modifier.isPublic(modifiers)
+              && (c.getClassLoader() != from.getClassLoader() || !packageOf(c).equals(packageOf(from)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static String packageOf(Class<?> type) {
+    final String name = type.getName();
+    final int idx = name.lastIndexOf('.');
+    return idx == -1 ? "" : name.substring(0, idx);
+  }
+}
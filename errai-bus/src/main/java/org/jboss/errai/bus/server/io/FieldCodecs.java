@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the {@link FieldCodec} for every type the server has encoded or decoded. Codecs are generated for the
+ * serializable types at bootstrap; any other type gets its codec the first time it is seen. If a codec cannot be
+ * generated for a type, a reflective codec is used instead.
+ * <p/>
+ * The codecs, and whether they are generated, are kept for each class loader separately, by the class loader of
+ * their type. An application configures and releases the codecs of its own class loader when its bus is started and
+ * stopped, so that the bus being in a shared class loader neither mixes up the settings of two applications, nor
+ * keeps the classes of an undeployed one from being unloaded.
+ */
+public class FieldCodecs {
+  private static final Logger log = LoggerFactory.getLogger(FieldCodecs.class);
+
+  private static final ConcurrentMap<ClassLoader, FieldCodecs> registries =
+          new ConcurrentHashMap<ClassLoader, FieldCodecs>();
+
+  /**
+   * The codecs of the types of the bootstrap class loader, which can never be unloaded.
+   */
+  private static final FieldCodecs bootstrapRegistry = new FieldCodecs();
+
+  private final Map<Class<?>, FieldCodec> codecs = new ConcurrentHashMap<Class<?>, FieldCodec>();
+  private volatile boolean generationEnabled = true;
+
+  private FieldCodecs() {
+  }
+
+  /**
+   * Returns the codec for the specified type, creating it if necessary.
+   *
+   * @param type - the type to encode or decode
+   * @return the codec for the type
+   */
+  public static FieldCodec get(Class<?> type) {
+    final FieldCodecs registry = registryOf(type.getClassLoader());
+
+    FieldCodec codec = registry.codecs.get(type);
+    if (codec == null) {
+      codec = registry.create(type);
+    }
+    return codec;
+  }
+
+  private synchronized FieldCodec create(Class<?> type) {
+    FieldCodec codec = codecs.get(type);
+    if (codec != null) return codec;
+
+    if (generationEnabled && FieldCodecGenerator.canGenerate(type)) {
+      try {
+        codec = FieldCodecGenerator.generate(type);
+      }
+      catch (Throwable t) {
+        log.warn("could not generate a codec for " + type.getName() + "; falling back to reflection.", t);
+      }
+    }
+
+    if (codec == null) {
+      codec = new FieldCodec(type);
+    }
+
+    codecs.put(type, codec);
+    return codec;
+  }
+
+  /**
+   * Creates the codecs for the specified types ahead of time.
+   *
+   * @param types - the types to create codecs for
+   * @return the number of codecs which were generated, rather than falling back to reflection
+   */
+  public static int generate(Collection<Class<?>> types) {
+    int generated = 0;
+    for (Class<?> type : types) {
+      if (get(type).isGenerated()) generated++;
+    }
+    return generated;
+  }
+
+  /**
+   * Turns the generation of codecs for the types of the specified class loader on or off. Codecs which have already
+   * been created for its types are discarded.
+   *
+   * @param loader  - the class loader of the application
+   * @param enabled - false if only reflective codecs should be used
+   */
+  public static void setGenerationEnabled(ClassLoader loader, boolean enabled) {
+    final FieldCodecs registry = registryOf(loader);
+    synchronized (registry) {
+      registry.generationEnabled = enabled;
+      registry.codecs.clear();
+    }
+  }
+
+  public static boolean isGenerationEnabled(ClassLoader loader) {
+    return registryOf(loader).generationEnabled;
+  }
+
+  /**
+   * Discards the codecs for the types of the specified class loader, and its setting, so that its classes can be
+   * unloaded.
+   *
+   * @param loader - the class loader of an application which is being stopped
+   */
+  public static void release(ClassLoader loader) {
+    if (loader != null) registries.remove(loader);
+  }
+
+  private static FieldCodecs registryOf(ClassLoader loader) {
+    if (loader == null) return bootstrapRegistry;
+
+    FieldCodecs registry = registries.get(loader);
+    if (registry == null) {
+      final FieldCodecs existing = registries.putIfAbsent(loader, registry = new FieldCodecs());
+      if (existing != null) registry = existing;
+    }
+    return registry;
+  }
+}
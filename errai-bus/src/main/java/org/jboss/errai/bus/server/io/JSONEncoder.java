@@ -25,8 +25,6 @@ import org.mvel2.MVEL;
 
 import java.io.Serializable;
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.sql.Timestamp;
 import java.util.*;
 
@@ -126,34 +124,23 @@ public class JSONEncoder {
             keyValue(encodeString(OBJECT_ID, ctx), encodeString(String.valueOf(ctx.markRef(o)),
                     ctx))));
 
-     final Field[] fields = EncodingUtil.getAllEncodingFields(cls);
+    final FieldCodec codec = FieldCodecs.get(cls);
+    final int fieldCount = codec.getFieldCount();
 
-
-    int i = 0;
-    boolean first = true;
-
-    for (Field field : fields) {
-      if ((field.getModifiers() & (Modifier.TRANSIENT | Modifier.STATIC)) != 0
-              || field.isSynthetic()) {
-        continue;
-      }
-      else if (first) {
-        build.append(',');
-        first = true;
-      }
+    for (int i = 0; i < fieldCount; i++) {
+      build.append(',');
 
       try {
-        i++;
-        Object v = field.get(o);
-        build.append(encodeString(field.getName(), ctx)).append(':').append(_encode(v, ctx));
+        Object v = codec.get(o, i);
+        build.append(encodeString(codec.getFieldName(i), ctx)).append(':').append(_encode(v, ctx));
       }
       catch (Throwable t) {
-        System.out.println("failed at encoding: " + field.getName());
+        System.out.println("failed at encoding: " + codec.getFieldName(i));
         t.printStackTrace();
       }
     }
 
-    if (i == 0) {
+    if (fieldCount == 0) {
       build.append(",").append(keyValue(encodeString(SerializationParts.INSTANTIATE_ONLY,ctx), "true"));
     }
     
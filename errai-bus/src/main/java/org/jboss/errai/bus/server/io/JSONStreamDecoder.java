@@ -1,5 +1,5 @@
 /*
- * Copyright 2010 JBoss, a divison Red Hat, Inc.                              
+ * Copyright 2010 JBoss, a divison Red Hat, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,45 +20,51 @@ package org.jboss.errai.bus.server.io;
 import org.jboss.errai.common.client.protocols.SerializationParts;
 import org.jboss.errai.common.client.types.DecodingContext;
 import org.jboss.errai.common.client.types.UHashMap;
-import org.jboss.errai.common.client.types.UnsatisfiedForwardLookup;
-import org.mvel2.CompileException;
-import org.mvel2.util.StringAppender;
 
 import java.io.*;
-import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import static org.jboss.errai.bus.server.io.TypeDemarshallHelper.demarshallAll;
-import static org.jboss.errai.bus.server.io.TypeDemarshallHelper.instantiate;
 import static org.jboss.errai.common.client.protocols.SerializationParts.ENCODED_TYPE;
+import static org.jboss.errai.common.client.protocols.SerializationParts.OBJECT_ID;
 
 /**
  * High-performance stream JSON parser. Provides the decoding algorithm to interpret the Errai Wire Protcol,
- * including serializable types.  This parser always assumes the outer payload is a Map. So it probably shouldn't
- * be used as a general parser.
+ * including serializable types.
+ * <p/>
+ * The stream is decoded in a single pass, through a per-thread character buffer which is refilled in bulk. Both
+ * the client and the server encode an object with its type first, followed by its object ID, so an object of a known
+ * type is instantiated as soon as these have been read, and its fields are set directly as each of them is decoded,
+ * without building a map of it first. An object which is referred to before it is defined is created at its first
+ * reference, and filled in when its definition is read, so forward references are resolved as they are decoded.
+ * Objects which are encoded in any other order, enums and dates are decoded to a map, and demarshalled from it.
  *
  * @author Mike Brock
  * @since 1.1
  */
 public class JSONStreamDecoder {
-  private CharBuffer buffer;
-  private BufferedReader reader;
+  private static final int BUFFER_SIZE = 8 * 1024;
 
-  private char carry;
+  /**
+   * The spare buffer of each thread. A decoder takes the buffer while it is parsing, so a decoder used further down
+   * the stack allocates its own.
+   */
+  private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>();
 
-  private int read;
-  private boolean initial = true;
+  private final Reader reader;
 
-  private DecodingContext decodingContext = new DecodingContext();
+  private char[] buffer;
+  private int pos;
+  private int limit;
+
+  private final StringBuilder appender = new StringBuilder();
+  private final DecodingContext decodingContext = new DecodingContext();
 
   public JSONStreamDecoder(InputStream inStream) {
-    this.buffer = CharBuffer.allocate(25);
     try {
-      this.reader = new BufferedReader(
-              new InputStreamReader(inStream, "UTF-8")
-      );
+      this.reader = new InputStreamReader(inStream, "UTF-8");
     }
     catch (UnsupportedEncodingException e) {
       throw new Error("UTF-8 is not supported by this JVM?", e);
@@ -69,143 +75,271 @@ public class JSONStreamDecoder {
     return new JSONStreamDecoder(instream).parse();
   }
 
-  public char read() throws IOException {
-    if (carry != 0) {
-      char c = carry;
-      carry = 0;
-      return c;
+  public Object parse() {
+    buffer = buffers.get();
+    if (buffer == null) {
+      buffer = new char[BUFFER_SIZE];
+    }
+    else {
+      buffers.set(null);
+    }
+
+    try {
+      final int c = next();
+      return c == -1 ? null : parseValue(c);
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      buffers.set(buffer);
+      buffer = null;
+    }
+  }
+
+  private int read() throws IOException {
+    if (pos == limit && !fill()) return -1;
+    return buffer[pos++];
+  }
+
+  private int peek() throws IOException {
+    if (pos == limit && !fill()) return -1;
+    return buffer[pos];
+  }
+
+  /**
+   * Returns the next character which is not white space, or -1 at the end of the stream.
+   */
+  private int next() throws IOException {
+    int c;
+    do {
+      c = read();
     }
+    while (c != -1 && c <= ' ');
+    return c;
+  }
+
+  private boolean fill() throws IOException {
+    final int read = reader.read(buffer, 0, buffer.length);
     if (read <= 0) {
-      if (!initial) buffer.rewind();
-      initial = false;
-      if ((read = reader.read(buffer)) <= 0) {
-        return 0;
-      }
-      buffer.rewind();
+      pos = limit = 0;
+      return false;
     }
-    read--;
-    return buffer.get();
+    pos = 0;
+    limit = read;
+    return true;
   }
 
-  public Object parse() {
-    try {
-      Context ctx = new Context();
-      Object v = _parse(ctx, null, false);
+  private Object parseValue(int c) throws IOException {
+    switch (c) {
+      case '{':
+        return parseObject();
 
-      if (decodingContext.isUnsatisfiedDependencies()) {
-        TypeDemarshallHelper.resolveDependencies(decodingContext);
-      }
+      case '[':
+        return parseArray();
+
+      case '"':
+      case '\'':
+        return parseString((char) c);
+
+      case -1:
+        throw new RuntimeException("unexpected end of stream");
 
-      return v;
+      default:
+        if (isValidNumberPart(c)) {
+          return parseNumber(c);
+        }
+        else if (Character.isJavaIdentifierPart(c)) {
+          return parseLiteral(c);
+        }
+        throw new RuntimeException("unexpected character: " + (char) c);
     }
-    catch (Exception e) {
-      throw new RuntimeException(e);
+  }
+
+  private Object parseKey(int c) throws IOException {
+    final Object key = parseValue(c);
+    if (next() != ':') {
+      throw new RuntimeException("expected ':' after key: " + key);
     }
+    return key;
   }
 
-  private Object _parse(Context ctx, Object collection, boolean map) throws IOException {
-    char c;
-    StringBuilder appender;
-    while ((c = read()) != 0) {
-      switch (c) {
-        case '[':
-          ctx.addValue(_parse(new Context(), new ArrayList(), false));
-          break;
+  private List<Object> parseArray() throws IOException {
+    final List<Object> list = new ArrayList<Object>();
 
-        case '{':
-          ctx.addValue(_parse(new Context(), new UHashMap(), true));
-          break;
+    int c = next();
+    if (c == ']') return list;
 
-        case ']':
-        case '}':
-          if (map && ctx.encodedType) {
-            ctx.encodedType = false;
-            try {
-              return demarshallAll(ctx.record(collection, decodingContext), decodingContext);
-            }
-            catch (Exception e) {
-              e.printStackTrace();
-              throw new RuntimeException("Could not demarshall object", e);
-            }
-          }
-          else {
-            return ctx.record(collection, decodingContext);
-          }
+    while (true) {
+      list.add(parseValue(c));
 
+      switch (c = next()) {
+        case ']':
+          return list;
         case ',':
-          ctx.record(collection, decodingContext);
+          c = next();
           break;
+        default:
+          throw new RuntimeException("expected ',' or ']' in array");
+      }
+    }
+  }
+
+  private Object parseObject() throws IOException {
+    final int c = next();
+    if (c == '}') return new UHashMap();
 
-        case '"':
-        case '\'':
-          char term = c;
-          appender = new StringBuilder();
-          StrCapture:
-          while ((c = read()) != 0) {
-            switch (c) {
-              case '\\':
-                appender.append(handleEscapeSequence());
-                break;
-              case '"':
-              case '\'':
-                if (c == term) {
-                  ctx.addValue(appender.toString());
-                  term = 0;
-                  break StrCapture;
-                }
-              default:
-                appender.append(c);
-            }
-          }
-
-          if (term != 0) {
-            throw new RuntimeException("unterminated string literal");
-          }
+    final Object key = parseKey(c);
+    if (ENCODED_TYPE.equals(key)) {
+      return parseEncodedObject();
+    }
+    return parseMap(new UHashMap(), key);
+  }
 
+  /**
+   * Decodes the rest of an object into the specified map, starting with the value of the specified key, and
+   * demarshalls the map if it turns out to be an encoded object.
+   */
+  private Object parseMap(Map<Object, Object> map, Object key) throws IOException {
+    boolean encodedType = map.containsKey(ENCODED_TYPE);
+
+    while (true) {
+      final Object value = parseValue(next());
+
+      if (!encodedType) encodedType = ENCODED_TYPE.equals(key);
+      if (key instanceof String && ((String) key).startsWith(SerializationParts.EMBEDDED_JSON)) {
+        key = new JSONDecoder(((String) key).substring(SerializationParts.EMBEDDED_JSON.length())).parse();
+      }
+      map.put(key, value);
+
+      switch (next()) {
+        case '}':
+          return encodedType ? demarshall(map) : map;
+        case ',':
+          key = parseKey(next());
           break;
+        default:
+          throw new RuntimeException("expected ',' or '}' in object");
+      }
+    }
+  }
+
+  /**
+   * Decodes an encoded object, whose type has just been read, straight into an instance of its type.
+   */
+  private Object parseEncodedObject() throws IOException {
+    final String type = String.valueOf(parseValue(next()));
+    String objId = null;
+
+    Object key = null;
+    int c = next();
+    if (c == ',') {
+      key = parseKey(next());
+      if (OBJECT_ID.equals(key)) {
+        objId = String.valueOf(parseValue(next()));
+        key = null;
+        c = next();
+      }
+    }
+
+    final Object instance;
+    try {
+      instance = TypeDemarshallHelper.instantiate(type, objId, decodingContext);
+    }
+    catch (Exception e) {
+      throw new RuntimeException("could not instantiate: " + type, e);
+    }
+
+    if (instance == null) {
+      final Map<Object, Object> map = new UHashMap();
+      map.put(ENCODED_TYPE, type);
+      if (objId != null) map.put(OBJECT_ID, objId);
 
-        case ':':
-          continue;
+      if (key == null) {
+        if (c == '}') return demarshall(map);
+        if (c != ',') throw new RuntimeException("expected ',' or '}' in object");
+        key = parseKey(next());
+      }
+      return parseMap(map, key);
+    }
+
+    if (key == null) {
+      if (c == '}') return instance;
+      if (c != ',') throw new RuntimeException("expected ',' or '}' in object");
+      key = parseKey(next());
+    }
+
+    final FieldCodec codec = FieldCodecs.get(instance.getClass());
+    while (true) {
+      final Object value = parseValue(next());
+
+      final int index = codec.getFieldIndex(String.valueOf(key));
+      if (index != -1) {
+        try {
+          codec.set(instance, index, value);
+        }
+        catch (Exception e) {
+          throw new RuntimeException("could not set field '" + key + "' of: " + type, e);
+        }
+      }
 
+      switch (next()) {
+        case '}':
+          return instance;
+        case ',':
+          key = parseKey(next());
+          break;
         default:
-          if (isValidNumberPart(c)) {
-            ctx.addValue(parseNumber(c));
-            break;
-          }
-          else if (Character.isJavaIdentifierPart(c)) {
-            appender = new StringBuilder().append(c);
-
-            while (((c = read()) != 0) && Character.isJavaIdentifierPart(c)) {
-              appender.append(c);
-            }
-
-            String s = appender.toString();
-
-            if (s.length() > 4) ctx.addValue(s);
-            else if ("null".equals(s)) {
-              ctx.addValue(null);
-            }
-            else if ("true".equals(s)) {
-              ctx.addValue(Boolean.TRUE);
-            }
-            else if ("false".equals(s)) {
-              ctx.addValue(Boolean.FALSE);
-            }
-            else {
-              ctx.addValue(s);
-            }
-
-            if (c != 0) carry = c;
-          }
+          throw new RuntimeException("expected ',' or '}' in object");
+      }
+    }
+  }
+
+  private Object demarshall(Map<Object, Object> map) {
+    try {
+      return demarshallAll(map, decodingContext);
+    }
+    catch (Exception e) {
+      throw new RuntimeException("Could not demarshall object", e);
+    }
+  }
+
+  private String parseString(char term) throws IOException {
+    // most strings have no escapes, and are already in the buffer.
+    for (int i = pos; i < limit; i++) {
+      final char c = buffer[i];
+      if (c == term) {
+        final String s = new String(buffer, pos, i - pos);
+        pos = i + 1;
+        return s;
+      }
+      else if (c == '\\') {
+        break;
       }
     }
 
+    appender.setLength(0);
+    while (true) {
+      final int start = pos;
+      while (pos < limit && buffer[pos] != term && buffer[pos] != '\\') {
+        pos++;
+      }
+      appender.append(buffer, start, pos - start);
 
-    return ctx.record(collection, decodingContext);
+      if (pos == limit) {
+        if (!fill()) throw new RuntimeException("unterminated string literal");
+      }
+      else if (buffer[pos++] == term) {
+        return appender.toString();
+      }
+      else {
+        appender.append(handleEscapeSequence());
+      }
+    }
   }
 
-  public char handleEscapeSequence() throws IOException {
-    char c;
+  private char handleEscapeSequence() throws IOException {
+    final int c;
     switch (c = read()) {
       case '\\':
         return '\\';
@@ -223,85 +357,75 @@ public class JSONStreamDecoder {
         return '\'';
       case '"':
         return '\"';
+      case '/':
+        return '/';
+      case 'u':
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit == -1) throw new RuntimeException("illegal unicode escape sequence");
+          code = (code << 4) | digit;
+        }
+        return (char) code;
       default:
-        throw new RuntimeException("illegal escape sequence: " + c);
+        throw new RuntimeException("illegal escape sequence: " + (char) c);
     }
   }
 
-  public Number parseNumber(char c) throws IOException {
-    long val = 0;
-    double dVal = 0;
-
-    double factor = 1;
+  private Number parseNumber(int c) throws IOException {
+    appender.setLength(0);
     boolean dbl = false;
 
-    char[] buf = new char[21];
-    int len = 0;
-    do {
-      buf[len++] = c;
-    }
-    while ((c = read()) != 0 && isValidNumberPart(c));
+    while (true) {
+      appender.append((char) c);
+      if (c == '.' || c == 'e' || c == 'E') dbl = true;
 
-    if (c != 0) {
-      carry = c;
+      if (!isValidNumberPart(c = peek()) && c != 'e' && c != 'E' && c != '+') break;
+      pos++;
     }
 
-    if (len == 1 && buf[0] == '-') return null;
+    final int len = appender.length();
+    if (len == 1 && appender.charAt(0) == '-') return null;
 
-    for (int i = len - 1; i != -1; i--) {
-      switch (buf[i]) {
-        case '.':
-          dVal = ((double) val) / factor;
-          val = 0;
-          factor = 1;
-          dbl = true;
-          continue;
-        case '-':
-          if (i != 0) {
-            throw new NumberFormatException(new String(buf));
-          }
-          val = -val;
-          break;
-        case '1':
-          val += factor;
-          break;
-        case '2':
-          val += 2 * factor;
-          break;
-        case '3':
-          val += 3 * factor;
-          break;
-        case '4':
-          val += 4 * factor;
-          break;
-        case '5':
-          val += 5 * factor;
-          break;
-        case '6':
-          val += 6 * factor;
-          break;
-        case '7':
-          val += 7 * factor;
-          break;
-        case '8':
-          val += 8 * factor;
-          break;
-        case '9':
-          val += 9 * factor;
-          break;
+    if (dbl) {
+      return Double.parseDouble(appender.toString());
+    }
+
+    final boolean negative = appender.charAt(0) == '-';
+    long val = 0;
+    for (int i = negative ? 1 : 0; i < len; i++) {
+      final char d = appender.charAt(i);
+      if (d < '0' || d > '9') {
+        throw new NumberFormatException(appender.toString());
       }
+      val = val * 10 + (d - '0');
+    }
+    return negative ? -val : val;
+  }
+
+  private Object parseLiteral(int c) throws IOException {
+    appender.setLength(0);
+    while (true) {
+      appender.append((char) c);
 
-      factor *= 10;
+      if ((c = peek()) == -1 || !Character.isJavaIdentifierPart(c)) break;
+      pos++;
     }
-    if (dbl) {
-      return dVal + val;
+
+    final String s = appender.toString();
+    if ("null".equals(s)) {
+      return null;
     }
-    else {
-      return val;
+    else if ("true".equals(s)) {
+      return Boolean.TRUE;
+    }
+    else if ("false".equals(s)) {
+      return Boolean.FALSE;
     }
+    return s;
   }
 
-  private static boolean isValidNumberPart(char c) {
+  private static boolean isValidNumberPart(int c) {
     switch (c) {
       case '.':
       case '-':
@@ -320,71 +444,4 @@ public class JSONStreamDecoder {
         return false;
     }
   }
-
-  private static class Context {
-    Object lhs;
-    Object rhs;
-    boolean encodedType = false;
-
-    private Context() {
-    }
-
-    private Object addValue(Object val) {
-      if (lhs == null) {
-        return lhs = val;
-      }
-      else {
-        return rhs = val;
-      }
-    }
-
-    private Object getValue() {
-      if (rhs != null) {
-        return rhs;
-      }
-      else {
-        return lhs;
-      }
-    }
-
-    private void removeValue() {
-      if (rhs != null) {
-        rhs = null;
-      }
-      else {
-        lhs = null;
-      }
-    }
-
-    private Object record(Object collection, DecodingContext ctx) {
-      try {
-        if (lhs != null) {
-          if (collection instanceof Map) {
-            if (!encodedType) encodedType = ENCODED_TYPE.equals(lhs);
-
-            if (lhs instanceof String && lhs.toString().startsWith(SerializationParts.EMBEDDED_JSON)) {
-              lhs = new JSONDecoder(lhs.toString().substring(SerializationParts.EMBEDDED_JSON.length())).parse();
-            }
-
-            ((Map) collection).put(lhs, rhs);
-
-          }
-          else {
-            if (collection == null) return lhs;
-
-            ((Collection) collection).add(lhs);
-          }
-        }
-        return collection;
-      }
-      catch (ClassCastException e) {
-        throw new RuntimeException("error building collection", e);
-      }
-      finally {
-        lhs = rhs = null;
-      }
-    }
-  }
-
-
 }
@@ -20,48 +20,74 @@ import org.jboss.errai.common.client.protocols.SerializationParts;
 import org.jboss.errai.common.client.types.DecodingContext;
 import org.jboss.errai.common.client.types.EncodingContext;
 import org.jboss.errai.common.client.types.TypeHandler;
-import org.mvel2.MVEL;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.Serializable;
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.sql.Timestamp;
 import java.util.*;
 
 /**
+ * Streams the JSON encoding of an object graph to an output stream. All output goes through a pooled, per-thread
+ * {@link EncodingBuffer}, so that encoding a message does not produce an intermediate <tt>String</tt> or
+ * <tt>byte[]</tt> for each value written. The output is UTF-8.
+ *
  * User: christopherbrock
  * Date: 21-Jul-2010
  * Time: 10:30:12 PM
  */
 public class JSONStreamEncoder {
-  private static Set<Class> serializableTypes;
   private static final byte[] NULL_BYTES = "null".getBytes();
+  private static final byte[] TRUE_BYTES = "true".getBytes();
+  private static final byte[] FALSE_BYTES = "false".getBytes();
+
+  private static final byte[] ENCODED_TYPE_BYTES = ("{\"" + SerializationParts.ENCODED_TYPE + "\":\"").getBytes();
+  private static final byte[] OBJECT_ID_BYTES = ("\",\"" + SerializationParts.OBJECT_ID + "\":\"").getBytes();
+  private static final byte[] INSTANTIATE_ONLY_BYTES = ("\"" + SerializationParts.INSTANTIATE_ONLY + "\":true").getBytes();
+  private static final byte[] ENUM_VALUE_BYTES = ("\",\"" + SerializationParts.ENUM_STRING_VALUE + "\":\"").getBytes();
+  private static final byte[] EMBEDDED_JSON_BYTES = ("\"" + SerializationParts.EMBEDDED_JSON).getBytes();
 
+  private static final byte[] DATE_TYPE_BYTES = "{\"__EncodedType\":\"java.util.Date\", \"__ObjectID\":\"".getBytes();
+  private static final byte[] DATE_VALUE_BYTES = "\", \"Value\":".getBytes();
 
   public static void setSerializableTypes(Set<Class> serializableTypes) {
     JSONEncoder.SERIALIZABLE_TYPES = serializableTypes;
   }
 
   public static void encode(Object v, OutputStream outstream) throws IOException {
-    _encode(v, outstream, new EncodingContext());
+    if (outstream instanceof EncodingBuffer) {
+      _encode(v, (EncodingBuffer) outstream, new EncodingContext());
+      return;
+    }
+
+    EncodingBuffer buffer = EncodingBuffer.acquire(outstream);
+    try {
+      _encode(v, buffer, new EncodingContext());
+    }
+    finally {
+      buffer.release();
+    }
   }
 
-  private static void _encode(Object v, OutputStream outstream, EncodingContext ctx) throws IOException {
+  private static void _encode(Object v, EncodingBuffer outstream, EncodingContext ctx) throws IOException {
     if (v == null) {
       outstream.write(NULL_BYTES);
-      return;
     }
     else if (v instanceof String) {
-      outstream.write('\"');
-      outstream.write(((String) v).replaceAll("\"", "\\\\\"").getBytes());
-      outstream.write('\"');
-      return;
+      encodeString((String) v, outstream);
+    }
+    else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+      outstream.writeLong(((Number) v).longValue());
+    }
+    else if (v instanceof Number) {
+      outstream.writeAscii(String.valueOf(v));
+    }
+    else if (v instanceof Boolean) {
+      outstream.write((Boolean) v ? TRUE_BYTES : FALSE_BYTES);
     }
-    if (v instanceof Number || v instanceof Boolean) {
-      outstream.write(String.valueOf(v).getBytes());
+    else if (v instanceof Character) {
+      encodeString(String.valueOf(((Character) v).charValue()), outstream);
     }
     else if (v instanceof Collection) {
       encodeCollection((Collection) v, outstream, ctx);
@@ -77,33 +103,30 @@ public class JSONStreamEncoder {
       // This may cause the client to throw an exception if the entity is not known
       // TODO: Improve exception handling for these cases
 
-    }/* else if (serializableTypes.contains(v.getClass()) || tHandlers.containsKey(v.getClass())) {
-            return encodeObject(v);
-        } else {
-            throw new RuntimeException("cannot serialize type: " + v.getClass().getName());
-        }  */
+    }
     else if (v instanceof Enum) {
-      encodeEnum((Enum) v, outstream, ctx);
+      encodeEnum((Enum) v, outstream);
     }
     else {
       encodeObject(v, outstream, ctx);
     }
   }
 
-  private static void encodeObject(Object o, OutputStream outstream, EncodingContext ctx) throws IOException {
-    if (o == null) {
-      outstream.write(NULL_BYTES);
-      return;
-    }
+  private static void encodeString(String s, EncodingBuffer outstream) throws IOException {
+    outstream.write('\"');
+    outstream.writeEscaped(s);
+    outstream.write('\"');
+  }
 
+  private static void encodeObject(Object o, EncodingBuffer outstream, EncodingContext ctx) throws IOException {
     Class cls = o.getClass();
 
-    if (java.util.Date.class.isAssignableFrom(cls)) {
-      outstream.write(("{\"__EncodedType\":\"java.util.Date\", \"__ObjectID\":\"" + o.hashCode() + "\", \"Value\":" + ((java.util.Date) o).getTime() + "}").getBytes());
-      return;
-    }
-    if (java.sql.Date.class.isAssignableFrom(cls)) {
-      outstream.write(("{\"__EncodedType\":\"java.sql.Date\", \"__ObjectID\":\"" + o.hashCode() + "\", \"Value\":" + ((java.sql.Date) o).getTime() + "}").getBytes());
+    if (o instanceof java.util.Date) {
+      outstream.write(DATE_TYPE_BYTES);
+      outstream.writeLong(o.hashCode());
+      outstream.write(DATE_VALUE_BYTES);
+      outstream.writeLong(((java.util.Date) o).getTime());
+      outstream.write('}');
       return;
     }
 
@@ -112,72 +135,54 @@ public class JSONStreamEncoder {
       return;
     }
 
-
     if (ctx.isEncoded(o)) {
       /**
        * If this object is referencing a duplicate object in the graph, we only provide an ID reference.
        */
-      write(outstream, ctx, "{\"" + SerializationParts.ENCODED_TYPE + "\":\"" + cls.getCanonicalName() + "\",\"" + SerializationParts.OBJECT_ID + "\":\"" + ctx.markRef(o) + "\"}");
-
+      outstream.write(ENCODED_TYPE_BYTES);
+      outstream.writeUTF8(cls.getCanonicalName());
+      outstream.write(OBJECT_ID_BYTES);
+      outstream.writeAscii(ctx.markRef(o));
+      outstream.write('\"');
+      outstream.write('}');
       return;
     }
 
-    outstream.write('{');
-    outstream.write('\"');
-    outstream.write(SerializationParts.ENCODED_TYPE.getBytes());
-    outstream.write('\"');
-    outstream.write(':');
-    outstream.write('\"');
-    outstream.write(cls.getCanonicalName().getBytes());
+    outstream.write(ENCODED_TYPE_BYTES);
+    outstream.writeUTF8(cls.getCanonicalName());
+    outstream.write(OBJECT_ID_BYTES);
+    outstream.writeAscii(ctx.markRef(o));
     outstream.write('\"');
     outstream.write(',');
-    outstream.write('\"');
-    outstream.write(SerializationParts.OBJECT_ID.getBytes());
-    outstream.write('\"');
-    outstream.write(':');
-    outstream.write('\"');
-    outstream.write(String.valueOf(ctx.markRef(o)).getBytes());
-    outstream.write('\"');
-    outstream.write(',');
-
-    final Field[] fields = EncodingUtil.getAllEncodingFields(cls);
 
+    final FieldCodec codec = FieldCodecs.get(cls);
+    final int fieldCount = codec.getFieldCount();
 
-    int i = 0;
-    boolean first = true;
-    for (Field field : fields) {
-      if ((field.getModifiers() & (Modifier.TRANSIENT | Modifier.STATIC)) != 0
-              || field.isSynthetic()) {
-        continue;
-      }
-      else if (!first) {
+    for (int i = 0; i < fieldCount; i++) {
+      if (i != 0) {
         outstream.write(',');
       }
 
+      outstream.write(codec.getKeyBytes(i));
       try {
-        i++;
-        Object v = field.get(o);
-        outstream.write('\"');
-        outstream.write(field.getName().getBytes());
-        outstream.write('\"');
-        outstream.write(':');
-        _encode(v, outstream, ctx);
-        first = false;
+        _encode(codec.get(o, i), outstream, ctx);
+      }
+      catch (IOException e) {
+        throw e;
       }
       catch (Exception e) {
-        throw new RuntimeException("error serializing field: " + field, e);
+        throw new RuntimeException("error serializing field: " + cls.getName() + "." + codec.getFieldName(i), e);
       }
     }
 
-    if (i == 0) {
-       write(outstream, ctx, "\"" + SerializationParts.INSTANTIATE_ONLY + "\":true");
-     }
+    if (fieldCount == 0) {
+      outstream.write(INSTANTIATE_ONLY_BYTES);
+    }
 
     outstream.write('}');
   }
 
-  private static void encodeMap(Map<Object, Object> map, OutputStream outstream, EncodingContext ctx) throws IOException {
-    //  StringAppender mapBuild = new StringAppender("{");
+  private static void encodeMap(Map<Object, Object> map, EncodingBuffer outstream, EncodingContext ctx) throws IOException {
     outstream.write('{');
     boolean first = true;
 
@@ -186,16 +191,14 @@ public class JSONStreamEncoder {
         outstream.write(',');
       }
 
-      if (!(entry.getKey() instanceof String)) {
-        write(outstream, ctx, '\"');
-        if (!ctx.isEscapeMode()) outstream.write(SerializationParts.EMBEDDED_JSON.getBytes());
-        ctx.setEscapeMode();
-        _encode(entry.getKey(), outstream, ctx);
-        ctx.unsetEscapeMode();
-        write(outstream, ctx, '\"');
+      if (entry.getKey() instanceof String) {
+        encodeString((String) entry.getKey(), outstream);
       }
       else {
-        _encode(entry.getKey(), outstream, ctx);
+        // a non-string key is sent as its own JSON encoding, embedded in an escaped string.
+        outstream.write(EMBEDDED_JSON_BYTES);
+        outstream.writeEscaped(encodeEmbedded(entry.getKey(), ctx));
+        outstream.write('\"');
       }
 
       outstream.write(':');
@@ -206,10 +209,21 @@ public class JSONStreamEncoder {
     outstream.write('}');
   }
 
-  private static void encodeCollection(Collection col, OutputStream outstream, EncodingContext ctx) throws IOException {
+  private static String encodeEmbedded(Object v, EncodingContext ctx) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+    EncodingBuffer buffer = EncodingBuffer.acquire(out);
+    try {
+      _encode(v, buffer, ctx);
+    }
+    finally {
+      buffer.release();
+    }
+    return out.toString("UTF-8");
+  }
+
+  private static void encodeCollection(Collection col, EncodingBuffer outstream, EncodingContext ctx) throws IOException {
     outstream.write('[');
 
-    //  StringAppender buildCol = new StringAppender("[");
     Iterator iter = col.iterator();
     while (iter.hasNext()) {
       _encode(iter.next(), outstream, ctx);
@@ -219,46 +233,30 @@ public class JSONStreamEncoder {
     outstream.write(']');
   }
 
-  private static void encodeArray(Object array, OutputStream outstream, EncodingContext ctx) throws IOException {
-    // StringAppender buildCol = new StringAppender("[");
+  private static void encodeArray(Object array, EncodingBuffer outstream, EncodingContext ctx) throws IOException {
+    outstream.write('[');
 
     int len = Array.getLength(array);
     for (int i = 0; i < len; i++) {
-      _encode(Array.get(array, 1), outstream, ctx);
+      _encode(Array.get(array, i), outstream, ctx);
       if ((i + 1) < len) outstream.write(',');
     }
 
     outstream.write(']');
   }
 
-  private static void encodeEnum(Enum enumer, OutputStream outstream, EncodingContext ctx) throws IOException {
-    outstream.write('{');
-    outstream.write('\"');
-    outstream.write(SerializationParts.ENCODED_TYPE.getBytes());
+  private static void encodeEnum(Enum enumer, EncodingBuffer outstream) throws IOException {
+    outstream.write(ENCODED_TYPE_BYTES);
+    outstream.writeUTF8(enumer.getClass().getName());
+    outstream.write(ENUM_VALUE_BYTES);
+    outstream.writeEscaped(enumer.name());
     outstream.write('\"');
-    outstream.write(':');
-    outstream.write('\"');
-    outstream.write(enumer.getClass().getName().getBytes());
-    outstream.write('\"');
-    outstream.write(",\"EnumStringValue\":\"".getBytes());
-    outstream.write(enumer.name().getBytes());
-    outstream.write("\"}".getBytes());
+    outstream.write('}');
   }
 
   private static final Map<Class, TypeHandler> tHandlers = new HashMap<Class, TypeHandler>();
 
   static {
-    tHandlers.put(java.sql.Date.class, new TypeHandler<java.sql.Date, Long>() {
-      public Long getConverted(java.sql.Date in, DecodingContext ctx) {
-        return in.getTime();
-      }
-    });
-    tHandlers.put(java.util.Date.class, new TypeHandler<java.util.Date, Long>() {
-      public Long getConverted(java.util.Date in, DecodingContext ctx) {
-        return in.getTime();
-      }
-    });
-
     tHandlers.put(Timestamp.class, new TypeHandler<Timestamp, Long>() {
       public Long getConverted(Timestamp in, DecodingContext ctx) {
         return in.getTime();
@@ -270,25 +268,6 @@ public class JSONStreamEncoder {
     tHandlers.put(from, handler);
   }
 
-  private static void write(OutputStream stream, EncodingContext ctx, String s) throws IOException {
-    if (ctx.isEscapeMode()) {
-      stream.write(s.replaceAll("\"", "\\\\\"").getBytes());
-    }
-    else {
-      stream.write(s.getBytes());
-    }
-  }
-
-  private static void write(OutputStream stream, EncodingContext ctx, char s) throws IOException {
-    if (ctx.isEscapeMode() && s == '\"') {
-      stream.write("\\\\\"".getBytes());
-
-    }
-    else {
-      stream.write(s);
-    }
-  }
-
   private static final DecodingContext STATIC_DEC_CONTEXT = new DecodingContext();
 
   private static Object convert(Object in) {
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+
+/**
+ * A callback which creates the callback it delegates to when the first message is delivered to it. If creating the
+ * delegate fails, it is attempted again with the next message.
+ */
+public abstract class LazyMessageCallback implements MessageCallback {
+  private volatile MessageCallback delegate;
+
+  public void callback(Message message) {
+    getDelegate().callback(message);
+  }
+
+  /**
+   * Returns the callback that messages are delegated to, creating it if necessary.
+   *
+   * @return the delegate callback
+   */
+  public MessageCallback getDelegate() {
+    MessageCallback callback = delegate;
+    if (callback == null) {
+      synchronized (this) {
+        callback = delegate;
+        if (callback == null) {
+          delegate = callback = create();
+        }
+      }
+    }
+    return callback;
+  }
+
+  public boolean isCreated() {
+    return delegate != null;
+  }
+
+  /**
+   * Creates the callback that messages are delegated to. This is called at most once, unless it fails.
+   *
+   * @return the delegate callback
+   */
+  protected abstract MessageCallback create();
+}
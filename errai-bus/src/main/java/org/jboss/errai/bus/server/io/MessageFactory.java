@@ -23,6 +23,9 @@ import org.jboss.errai.bus.server.api.QueueSession;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.jboss.errai.bus.client.api.base.CommandMessage.createWithParts;
@@ -54,24 +57,57 @@ public class MessageFactory {
   public static Message createCommandMessage(QueueSession session, String json) {
     if (json.length() == 0) return null;
 
-    Map<String, Object> parts = decodeToMap(json);
-    parts.remove(MessageParts.SessionID.name());
+    return createCommandMessage(session, decodeToMap(json));
+  }
 
-    Message msg = createWithParts(parts)
-        .setResource("Session", session);
+  public static Message createCommandMessage(QueueSession session, InputStream stream) throws IOException {
+    return createCommandMessage(session, (Map<String, Object>) JSONStreamDecoder.decode(stream));
+  }
 
-    // experimental feature. does this need to be cleaned?
-    // any chance this leaks the CL?
-    //   msg.setResource("errai.experimental.classLoader", classLoader);
+  /**
+   * Creates the command messages from the given JSON string and session. The string may contain either a single
+   * message, or a JSON array of messages sent by the client in one batch.
+   *
+   * @param session - the queue session in which the messages exist
+   * @param json    - the string representing the parts of the message, or an array of them
+   * @return the messages, in the order they were sent
+   */
+  public static List<Message> createCommandMessages(QueueSession session, String json) {
+    if (json.length() == 0) return Collections.emptyList();
 
-    msg.setFlag(RoutingFlags.FromRemote);
+    return createCommandMessages(session, new JSONDecoder(json).parse());
+  }
 
-    return msg;
+  /**
+   * Creates the command messages read from the given stream. The stream may contain either a single message, or a
+   * JSON array of messages sent by the client in one batch.
+   *
+   * @param session - the queue session in which the messages exist
+   * @param stream  - the stream to read the messages from
+   * @return the messages, in the order they were sent
+   * @throws IOException - if the stream cannot be read
+   */
+  public static List<Message> createCommandMessages(QueueSession session, InputStream stream) throws IOException {
+    return createCommandMessages(session, JSONStreamDecoder.decode(stream));
+  }
 
+  private static List<Message> createCommandMessages(QueueSession session, Object decoded) {
+    if (decoded instanceof Map) {
+      return Collections.singletonList(createCommandMessage(session, (Map<String, Object>) decoded));
+    }
+    else if (decoded instanceof List) {
+      List<Message> messages = new ArrayList<Message>(((List) decoded).size());
+      for (Object parts : (List) decoded) {
+        messages.add(createCommandMessage(session, (Map<String, Object>) parts));
+      }
+      return messages;
+    }
+    else {
+      return Collections.emptyList();
+    }
   }
 
-  public static Message createCommandMessage(QueueSession session, InputStream stream) throws IOException {
-    Map<String, Object> parts = (Map<String, Object>) JSONStreamDecoder.decode(stream);
+  private static Message createCommandMessage(QueueSession session, Map<String, Object> parts) {
     parts.remove(MessageParts.SessionID.name());
 
     // Expose session and session id
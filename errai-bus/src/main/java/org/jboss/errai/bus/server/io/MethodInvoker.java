@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import org.jboss.errai.bus.client.api.base.MessageDeliveryFailure;
+import org.mvel2.DataConversion;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Invokes a service method with the decoded arguments of a message, converting each argument to the type of its
+ * parameter where it is not of that type already. How each parameter is converted is worked out once, up front.
+ * <p/>
+ * This base implementation calls the method by reflection. Subclasses generated by {@link MethodInvokerGenerator}
+ * override {@link #doInvoke(Object, Object[])} with a direct call. Invokers are obtained from {@link MethodInvokers}.
+ */
+public class MethodInvoker {
+  protected final Method method;
+
+  /* The boxed type of each parameter, which a decoded argument must be an instance of to be passed as it is */
+  private final Class<?>[] parameterTypes;
+
+  /* The component type of each array parameter, or null if the parameter is not an array */
+  private final Class<?>[] componentTypes;
+
+  private final boolean[] primitive;
+
+  public MethodInvoker(Method method) {
+    this.method = method;
+
+    final Class<?>[] types = method.getParameterTypes();
+    this.parameterTypes = new Class<?>[types.length];
+    this.componentTypes = new Class<?>[types.length];
+    this.primitive = new boolean[types.length];
+
+    for (int i = 0; i < types.length; i++) {
+      parameterTypes[i] = FieldCodec.boxedType(types[i]);
+      componentTypes[i] = types[i].getComponentType();
+      primitive[i] = types[i].isPrimitive();
+    }
+  }
+
+  public Method getMethod() {
+    return method;
+  }
+
+  public int getParameterCount() {
+    return parameterTypes.length;
+  }
+
+  /**
+   * Returns true if this invoker was generated for its method, rather than falling back to reflection.
+   *
+   * @return true if this is a generated invoker
+   */
+  public boolean isGenerated() {
+    return getClass() != MethodInvoker.class;
+  }
+
+  /**
+   * Converts the arguments, in place, to the types of the parameters of the method, and invokes it.
+   *
+   * @param target - the object to invoke the method on
+   * @param args   - the decoded arguments, which may be <tt>null</tt> if the method has no parameters
+   * @return the value returned by the method, boxed if it is primitive, or <tt>null</tt> if it is void
+   * @throws MessageDeliveryFailure    - if the arguments do not match the parameters
+   * @throws InvocationTargetException - if the method could not be invoked, or threw an exception
+   */
+  public Object invoke(Object target, Object[] args) throws InvocationTargetException {
+    final int length = args == null ? 0 : args.length;
+    if (length != parameterTypes.length) {
+      throw new MessageDeliveryFailure("wrong number of arguments sent to endpoint. (received: "
+              + length + "; required: " + parameterTypes.length + ")");
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (args[i] == null) {
+        if (primitive[i]) throw new MessageDeliveryFailure("type mismatch in method parameters");
+      }
+      else if (!parameterTypes[i].isInstance(args[i])) {
+        args[i] = convert(args[i], i);
+      }
+    }
+
+    try {
+      return doInvoke(target, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e;
+    }
+    catch (Throwable t) {
+      throw new InvocationTargetException(t);
+    }
+  }
+
+  /**
+   * Invokes the method with arguments which have already been converted.
+   */
+  protected Object doInvoke(Object target, Object[] args) throws Throwable {
+    return method.invoke(target, args);
+  }
+
+  private Object convert(Object value, int index) {
+    final Class<?> componentType = componentTypes[index];
+
+    if (componentType != null) {
+      if (value instanceof Collection) {
+        final Collection<?> c = (Collection<?>) value;
+        final Object array = Array.newInstance(componentType, c.size());
+
+        final Iterator<?> iter = c.iterator();
+        for (int i = 0; iter.hasNext(); i++) {
+          Array.set(array, i, convertElement(iter.next(), componentType));
+        }
+        return array;
+      }
+      else if (value.getClass().isArray()) {
+        final int length = Array.getLength(value);
+        final Object array = Array.newInstance(componentType, length);
+
+        for (int i = 0; i < length; i++) {
+          Array.set(array, i, convertElement(Array.get(value, i), componentType));
+        }
+        return array;
+      }
+    }
+
+    if (DataConversion.canConvert(parameterTypes[index], value.getClass())) {
+      return DataConversion.convert(value, parameterTypes[index]);
+    }
+
+    throw new MessageDeliveryFailure("type mismatch in method parameters");
+  }
+
+  private static Object convertElement(Object value, Class<?> componentType) {
+    final Class<?> type = FieldCodec.boxedType(componentType);
+    return value == null || type.isInstance(value) ? value : DataConversion.convert(value, type);
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jboss.errai.bus.server.io.FieldCodecGenerator.isAccessible;
+import static org.jboss.errai.bus.server.io.FieldCodecGenerator.isVisible;
+import static org.jboss.errai.bus.server.io.FieldCodecGenerator.sourceName;
+
+/**
+ * Generates a {@link MethodInvoker} subclass for a service method, which calls the method directly rather than by
+ * reflection.
+ * <p/>
+ * Like the field codecs, the invoker is compiled with Javassist and defined in the class loader and package of the
+ * class which declares the method, so that package-private services can be called.
+ *
+ * @see FieldCodecGenerator
+ */
+final class MethodInvokerGenerator {
+  static final String INVOKER_SUFFIX = "$$ErraiInvoker$";
+
+  private static final AtomicInteger counter = new AtomicInteger();
+
+  private MethodInvokerGenerator() {
+  }
+
+  static boolean canGenerate(Method method) {
+    final Class<?> declaring = method.getDeclaringClass();
+    final String name = declaring.getName();
+    if (declaring.getClassLoader() == null || name.startsWith("java.") || name.startsWith("javax.")) {
+      return false;
+    }
+
+    if (Modifier.isStatic(method.getModifiers()) || !isAccessible(method, declaring)) {
+      return false;
+    }
+
+    // the parameters are cast to their types, which must therefore be visible to the invoker as well.
+    for (Class<?> type : method.getParameterTypes()) {
+      if (!isVisible(type, declaring)) return false;
+    }
+    return true;
+  }
+
+  static MethodInvoker generate(Method method) throws Exception {
+    final Class<?> declaring = method.getDeclaringClass();
+    final String invokerName = declaring.getName() + INVOKER_SUFFIX + method.getName() + "$" + counter.incrementAndGet();
+
+    final Class<?>[] parameterTypes = method.getParameterTypes();
+    final StringBuilder call = new StringBuilder("((").append(sourceName(declaring)).append(") $1).")
+            .append(method.getName()).append("(");
+
+    for (int i = 0; i < parameterTypes.length; i++) {
+      if (i != 0) call.append(", ");
+
+      final Class<?> type = parameterTypes[i];
+      if (type.isPrimitive()) {
+        call.append("((").append(FieldCodec.boxedType(type).getName()).append(") $2[").append(i).append("]).")
+                .append(type.getName()).append("Value()");
+      }
+      else {
+        call.append("(").append(sourceName(type)).append(") $2[").append(i).append("]");
+      }
+    }
+    call.append(")");
+
+    final Class<?> returnType = method.getReturnType();
+    final String body;
+    if (returnType == void.class) {
+      body = call + ";\nreturn null;";
+    }
+    else if (returnType.isPrimitive()) {
+      body = "return " + FieldCodec.boxedType(returnType).getName() + ".valueOf(" + call + ");";
+    }
+    else {
+      body = "return " + call + ";";
+    }
+
+    final ClassPool pool = new ClassPool(true);
+    pool.appendClassPath(new LoaderClassPath(declaring.getClassLoader()));
+    pool.appendClassPath(new LoaderClassPath(MethodInvoker.class.getClassLoader()));
+
+    final CtClass invoker = pool.makeClass(invokerName, pool.get(MethodInvoker.class.getName()));
+    try {
+      invoker.addConstructor(CtNewConstructor.make(new CtClass[]{pool.get(Method.class.getName())}, new CtClass[0],
+              "{ super($1); }", invoker));
+
+      invoker.addMethod(CtNewMethod.make("protected Object doInvoke(Object target, Object[] args) throws Throwable {\n"
+              + body + "\n}", invoker));
+
+      final Class<?> invokerClass = invoker.toClass(declaring.getClassLoader(), declaring.getProtectionDomain());
+      return (MethodInvoker) invokerClass.getConstructor(Method.class).newInstance(method);
+    }
+    finally {
+      invoker.detach();
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the {@link MethodInvoker} for every service method which has been bound to the bus. Invokers are generated
+ * when the services are bound at bootstrap. If an invoker cannot be generated for a method, a reflective invoker is
+ * used instead.
+ * <p/>
+ * Like the {@link FieldCodecs}, the invokers, and whether they are generated, are kept for each class loader
+ * separately, by the class loader which declares their method.
+ */
+public class MethodInvokers {
+  private static final Logger log = LoggerFactory.getLogger(MethodInvokers.class);
+
+  private static final ConcurrentMap<ClassLoader, MethodInvokers> registries =
+          new ConcurrentHashMap<ClassLoader, MethodInvokers>();
+
+  /**
+   * The invokers of the methods of the bootstrap class loader, which can never be unloaded.
+   */
+  private static final MethodInvokers bootstrapRegistry = new MethodInvokers();
+
+  private final Map<Method, MethodInvoker> invokers = new ConcurrentHashMap<Method, MethodInvoker>();
+  private volatile boolean generationEnabled = true;
+
+  private MethodInvokers() {
+  }
+
+  /**
+   * Returns the invoker for the specified method, creating it if necessary.
+   *
+   * @param method - the method to invoke
+   * @return the invoker for the method
+   */
+  public static MethodInvoker get(Method method) {
+    final MethodInvokers registry = registryOf(method.getDeclaringClass().getClassLoader());
+
+    MethodInvoker invoker = registry.invokers.get(method);
+    if (invoker == null) {
+      invoker = registry.create(method);
+    }
+    return invoker;
+  }
+
+  private synchronized MethodInvoker create(Method method) {
+    MethodInvoker invoker = invokers.get(method);
+    if (invoker != null) return invoker;
+
+    if (generationEnabled && MethodInvokerGenerator.canGenerate(method)) {
+      try {
+        invoker = MethodInvokerGenerator.generate(method);
+      }
+      catch (Throwable t) {
+        log.warn("could not generate an invoker for " + method + "; falling back to reflection.", t);
+      }
+    }
+
+    if (invoker == null) {
+      invoker = new MethodInvoker(method);
+    }
+
+    invokers.put(method, invoker);
+    return invoker;
+  }
+
+  /**
+   * Turns the generation of invokers for the methods of the specified class loader on or off. Invokers which have
+   * already been created for its methods are discarded.
+   *
+   * @param loader  - the class loader of the application
+   * @param enabled - false if only reflective invokers should be used
+   */
+  public static void setGenerationEnabled(ClassLoader loader, boolean enabled) {
+    final MethodInvokers registry = registryOf(loader);
+    synchronized (registry) {
+      registry.generationEnabled = enabled;
+      registry.invokers.clear();
+    }
+  }
+
+  public static boolean isGenerationEnabled(ClassLoader loader) {
+    return registryOf(loader).generationEnabled;
+  }
+
+  /**
+   * Discards the invokers for the methods of the specified class loader, and its setting, so that its classes can be
+   * unloaded.
+   *
+   * @param loader - the class loader of an application which is being stopped
+   */
+  public static void release(ClassLoader loader) {
+    if (loader != null) registries.remove(loader);
+  }
+
+  private static MethodInvokers registryOf(ClassLoader loader) {
+    if (loader == null) return bootstrapRegistry;
+
+    MethodInvokers registry = registries.get(loader);
+    if (registry == null) {
+      final MethodInvokers existing = registries.putIfAbsent(loader, registry = new MethodInvokers());
+      if (existing != null) registry = existing;
+    }
+    return registry;
+  }
+}
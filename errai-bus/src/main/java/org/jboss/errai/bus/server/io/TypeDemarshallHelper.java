@@ -79,7 +79,7 @@ public class TypeDemarshallHelper {
         return new java.sql.Date(getNumeric(oMap.get("Value")));
       }
       
-      Object newInstance = clazz.newInstance();
+      Object newInstance = FieldCodecs.get(clazz).newInstance();
       if (objId != null) ctx.putObject(objId, newInstance);
       
       return newInstance;
@@ -88,16 +88,47 @@ public class TypeDemarshallHelper {
     catch (ClassNotFoundException e) {
       e.printStackTrace();
     }
-    catch (InstantiationException e) {
-      e.printStackTrace();
-    }
-    catch (IllegalAccessException e) {
+    catch (Exception e) {
       e.printStackTrace();
     }
 
     return null;
   }
 
+  /**
+   * Returns the object with the specified ID if it has already been decoded, or else creates an instance of the
+   * specified type, whose fields are then set as they are read. An object which is referred to before it is defined
+   * is created at its first reference, and its fields are set when its definition is read.
+   *
+   * @param type  - the name of the type
+   * @param objId - the object ID, which may be null
+   * @param ctx   - the decoding context
+   * @return the instance, or null if the type is an enum or a date, which cannot be created until all of its parts
+   *         have been read, or if the type cannot be loaded
+   * @throws Exception - if the type cannot be instantiated
+   */
+  public static Object instantiate(String type, String objId, DecodingContext ctx) throws Exception {
+    if (objId != null && ctx.hasObject(objId)) {
+      return ctx.getObject(objId);
+    }
+
+    final Class<?> clazz;
+    try {
+      clazz = Thread.currentThread().getContextClassLoader().loadClass(type);
+    }
+    catch (ClassNotFoundException e) {
+      return null;
+    }
+
+    if (clazz.isEnum() || java.util.Date.class.isAssignableFrom(clazz)) {
+      return null;
+    }
+
+    final Object newInstance = FieldCodecs.get(clazz).newInstance();
+    if (objId != null) ctx.putObject(objId, newInstance);
+
+    return newInstance;
+  }
 
   public static Object demarshallAll(Object o, DecodingContext ctx) throws Exception {
     try {
@@ -136,8 +167,9 @@ public class TypeDemarshallHelper {
             return newInstance;
           }
 
-          for (Field f : EncodingUtil.getAllEncodingFields(newInstance.getClass())) {
-            setProperty(newInstance, f, oMap.get(f.getName()));
+          final FieldCodec codec = FieldCodecs.get(newInstance.getClass());
+          for (int i = 0; i < codec.getFieldCount(); i++) {
+            codec.set(newInstance, i, oMap.get(codec.getFieldName(i)));
           }
 
           return newInstance;
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which can be incremented by many threads at once without contending on a single value. Each thread adds
+ * to one of several cells, spaced a cache line apart, and the cells are only summed when the counter is read.
+ */
+public final class Counter {
+  private static final int STRIPES;
+  private static final int PADDING = 8;
+
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+      stripes <<= 1;
+    }
+    STRIPES = Math.max(stripes, 4);
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void increment() {
+    cells.getAndIncrement(cell());
+  }
+
+  public void add(long value) {
+    cells.getAndAdd(cell(), value);
+  }
+
+  /**
+   * Returns the current total. This is not an atomic snapshot if the counter is being updated at the same time.
+   *
+   * @return the total of all increments
+   */
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  public void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  private static int cell() {
+    long id = Thread.currentThread().getId();
+    return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) * PADDING;
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(get());
+  }
+}
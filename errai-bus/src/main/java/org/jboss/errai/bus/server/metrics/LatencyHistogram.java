@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.server.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records a distribution of durations without locking. Durations are counted in buckets of powers of two
+ * microseconds, so that percentiles are reported to within a factor of two, which is plenty to tell a healthy service
+ * from a struggling one, at a fixed and small cost per recording.
+ */
+public final class LatencyHistogram {
+  private static final int BUCKETS = 40;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final Counter count = new Counter();
+  private final Counter totalNanos = new Counter();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos - the duration in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+
+    buckets.getAndIncrement(bucketOf(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    count.increment();
+    totalNanos.add(nanos);
+
+    long max;
+    while (nanos > (max = maxNanos.get())) {
+      if (maxNanos.compareAndSet(max, nanos)) break;
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public double getMeanMicros() {
+    long n = count.get();
+    return n == 0 ? 0 : totalNanos.get() / 1000d / n;
+  }
+
+  public long getMaxMicros() {
+    return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+  }
+
+  /**
+   * Returns an upper bound of the specified percentile of the recorded durations.
+   *
+   * @param percentile - the percentile, between 0 and 100
+   * @return the upper bound of the bucket containing the percentile, in microseconds
+   */
+  public long getPercentileMicros(double percentile) {
+    long total = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts[i] = buckets.get(i);
+    }
+    if (total == 0) return 0;
+
+    long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen != 0) {
+        return Math.min(upperBoundOf(i), getMaxMicros());
+      }
+    }
+    return getMaxMicros();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+    count.reset();
+    totalNanos.reset();
+    maxNanos.set(0);
+  }
+
+  /**
+   * Returns the count, mean, maximum and common percentiles in microseconds, as a map which can be encoded into a
+   * message.
+   *
+   * @return a summary of the histogram
+   */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("Count", getCount());
+    map.put("MeanMicros", getMeanMicros());
+    map.put("MaxMicros", getMaxMicros());
+    map.put("P50Micros", getPercentileMicros(50));
+    map.put("P99Micros", getPercentileMicros(99));
+    return map;
+  }
+
+  private static int bucketOf(long micros) {
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+  }
+
+  private static long upperBoundOf(int bucket) {
+    return bucket == 0 ? 0 : (1L << bucket) - 1;
+  }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.server.metrics;
+
+import org.jboss.errai.bus.server.MessageQueueImpl;
+import org.jboss.errai.bus.server.PartitionedWorkerPool;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.api.ServerMessageBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of the always-on metrics of a {@link ServerMessageBusImpl}. The bus, its message queues and the worker
+ * pools record into it as they go, using only lock-free counters, so it is cheap enough to leave on in production.
+ * <p/>
+ * The metrics can be read through JMX, under the name <tt>org.jboss.errai.bus:type=ServerBusMetrics</tt>, and by
+ * sending a message to the <tt>ServerBusMetrics</tt> subject from the server, which replies with a {@link #snapshot()}.
+ * Messages sent to that subject by clients are ignored.
+ */
+public class ServerBusMetrics implements ServerBusMetricsMBean {
+  public static final String SUBJECT = "ServerBusMetrics";
+  public static final String OBJECT_NAME = "org.jboss.errai.bus:type=ServerBusMetrics";
+
+  /**
+   * Subjects beyond this number are all counted together, so that a client which sends to many distinct subjects
+   * cannot grow the registry without bound.
+   */
+  private static final int MAX_SUBJECTS = 1000;
+  private static final String OTHER_SUBJECTS = "(other)";
+
+  private static final ServerBusMetrics DETACHED = new ServerBusMetrics(Collections.<QueueSession, MessageQueue>emptyMap());
+
+  private final Map<QueueSession, MessageQueue> queues;
+  private final ConcurrentMap<String, SubjectMetrics> subjects = new ConcurrentHashMap<String, SubjectMetrics>();
+
+  private final Counter deliveryRetries = new Counter();
+  private final Counter deliveriesDelayed = new Counter();
+  private final Counter deliveriesFlushed = new Counter();
+  private final Counter deliveriesExpired = new Counter();
+  private final Counter queueOverloads = new Counter();
+  private final Counter workerTimeouts = new Counter();
+  private final LatencyHistogram encodeTime = new LatencyHistogram();
+  private final Counter sharedEncodeHits = new Counter();
+  private final Counter sharedEncodeMisses = new Counter();
+  private final Counter compressedBytesIn = new Counter();
+  private final Counter compressedBytesOut = new Counter();
+  private final LatencyHistogram compressTime = new LatencyHistogram();
+
+  private volatile PartitionedWorkerPool workerPool;
+
+  private ObjectName registeredName;
+
+  private Logger log = LoggerFactory.getLogger(getClass());
+
+  /**
+   * @param queues - the live message queues of the bus, by session
+   */
+  public ServerBusMetrics(Map<QueueSession, MessageQueue> queues) {
+    this.queues = queues;
+  }
+
+  /**
+   * Returns the metrics registry of the specified bus. Buses other than the {@link ServerMessageBusImpl} get a
+   * registry which is never read.
+   *
+   * @param bus - the bus
+   * @return the metrics registry to record into
+   */
+  public static ServerBusMetrics forBus(ServerMessageBus bus) {
+    return bus instanceof ServerMessageBusImpl ? ((ServerMessageBusImpl) bus).getMetrics() : DETACHED;
+  }
+
+  /**
+   * Returns the metrics for the specified subject, creating them if necessary.
+   *
+   * @param subject - the subject
+   * @return the metrics of the subject
+   */
+  public SubjectMetrics forSubject(String subject) {
+    if (subject == null) subject = OTHER_SUBJECTS;
+
+    SubjectMetrics metrics = subjects.get(subject);
+    if (metrics == null) {
+      if (subjects.size() >= MAX_SUBJECTS) subject = OTHER_SUBJECTS;
+
+      SubjectMetrics existing = subjects.putIfAbsent(subject, metrics = new SubjectMetrics());
+      if (existing != null) metrics = existing;
+    }
+    return metrics;
+  }
+
+  /**
+   * Sets the partitioned worker pool whose partitions are reported, if the bus dispatches through one.
+   *
+   * @param workerPool - the worker pool, or null
+   */
+  public void setWorkerPool(PartitionedWorkerPool workerPool) {
+    this.workerPool = workerPool;
+  }
+
+  public Counter getDeliveryRetryCounter() {
+    return deliveryRetries;
+  }
+
+  public Counter getDeliveriesDelayedCounter() {
+    return deliveriesDelayed;
+  }
+
+  public Counter getDeliveriesFlushedCounter() {
+    return deliveriesFlushed;
+  }
+
+  public Counter getDeliveriesExpiredCounter() {
+    return deliveriesExpired;
+  }
+
+  public Counter getQueueOverloadCounter() {
+    return queueOverloads;
+  }
+
+  public Counter getWorkerTimeoutCounter() {
+    return workerTimeouts;
+  }
+
+  /**
+   * Counts the times a queue transmitted a message shared with other queues without encoding it again.
+   */
+  public Counter getSharedEncodeHitCounter() {
+    return sharedEncodeHits;
+  }
+
+  /**
+   * Counts the times a message shared between queues had to be encoded.
+   */
+  public Counter getSharedEncodeMissCounter() {
+    return sharedEncodeMisses;
+  }
+
+  /**
+   * Records a payload which has been compressed.
+   *
+   * @param bytesIn  - the size of the payload before compression
+   * @param bytesOut - the size of the payload after compression
+   * @param nanos    - the time spent compressing it
+   */
+  public void recordCompression(long bytesIn, long bytesOut, long nanos) {
+    compressedBytesIn.add(bytesIn);
+    compressedBytesOut.add(bytesOut);
+    compressTime.record(nanos);
+  }
+
+  public LatencyHistogram getEncodeTime() {
+    return encodeTime;
+  }
+
+  public long getMessagesIn() {
+    long total = 0;
+    for (SubjectMetrics metrics : subjects.values()) {
+      total += metrics.getMessagesIn().get();
+    }
+    return total;
+  }
+
+  public long getMessagesOut() {
+    long total = 0;
+    for (SubjectMetrics metrics : subjects.values()) {
+      total += metrics.getMessagesOut().get();
+    }
+    return total;
+  }
+
+  public long getDeliveryRetries() {
+    return deliveryRetries.get();
+  }
+
+  public long getDeliveriesDelayed() {
+    return deliveriesDelayed.get();
+  }
+
+  public long getDeliveriesFlushed() {
+    return deliveriesFlushed.get();
+  }
+
+  public long getDeliveriesExpired() {
+    return deliveriesExpired.get();
+  }
+
+  public long getQueueOverloads() {
+    return queueOverloads.get();
+  }
+
+  public long getWorkerTimeouts() {
+    return workerTimeouts.get();
+  }
+
+  public long getEncodeCount() {
+    return encodeTime.getCount();
+  }
+
+  public double getEncodeTimeMeanMicros() {
+    return encodeTime.getMeanMicros();
+  }
+
+  public long getEncodeTime99thPercentileMicros() {
+    return encodeTime.getPercentileMicros(99);
+  }
+
+  public long getSharedEncodeHits() {
+    return sharedEncodeHits.get();
+  }
+
+  public long getSharedEncodeMisses() {
+    return sharedEncodeMisses.get();
+  }
+
+  public long getCompressedPayloads() {
+    return compressTime.getCount();
+  }
+
+  public long getCompressionBytesSaved() {
+    return compressedBytesIn.get() - compressedBytesOut.get();
+  }
+
+  public double getCompressionTimeMeanMicros() {
+    return compressTime.getMeanMicros();
+  }
+
+  public int getQueueCount() {
+    return queues.size();
+  }
+
+  public int getMaxQueueDepth() {
+    int max = 0;
+    for (MessageQueue queue : queues.values()) {
+      max = Math.max(max, queue.getQueue().size());
+    }
+    return max;
+  }
+
+  public int getMaxQueueHighWaterMark() {
+    int max = 0;
+    for (MessageQueue queue : queues.values()) {
+      max = Math.max(max, highWaterMarkOf(queue));
+    }
+    return max;
+  }
+
+  public int getPartitionCount() {
+    PartitionedWorkerPool pool = workerPool;
+    return pool == null ? 0 : pool.getPartitionCount();
+  }
+
+  public int[] getPartitionQueueDepths() {
+    PartitionedWorkerPool pool = workerPool;
+    return pool == null ? new int[0] : pool.getQueueDepths();
+  }
+
+  public int[] getPartitionPeakQueueDepths() {
+    PartitionedWorkerPool pool = workerPool;
+    int[] depths = new int[pool == null ? 0 : pool.getPartitionCount()];
+    for (int i = 0; i < depths.length; i++) {
+      depths[i] = pool.getPeakQueueDepth(i);
+    }
+    return depths;
+  }
+
+  public long[] getPartitionDeliveredCounts() {
+    PartitionedWorkerPool pool = workerPool;
+    long[] counts = new long[pool == null ? 0 : pool.getPartitionCount()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = pool.getDeliveredCount(i);
+    }
+    return counts;
+  }
+
+  public long[] getPartitionStolenCounts() {
+    PartitionedWorkerPool pool = workerPool;
+    long[] counts = new long[pool == null ? 0 : pool.getPartitionCount()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = pool.getStolenCount(i);
+    }
+    return counts;
+  }
+
+  public long[] getPartitionOverflowCounts() {
+    PartitionedWorkerPool pool = workerPool;
+    long[] counts = new long[pool == null ? 0 : pool.getPartitionCount()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = pool.getOverflowCount(i);
+    }
+    return counts;
+  }
+
+  public String[] getSubjects() {
+    List<String> names = new ArrayList<String>(subjects.keySet());
+    Collections.sort(names);
+    return names.toArray(new String[names.size()]);
+  }
+
+  public String[] getSessions() {
+    List<String> names = new ArrayList<String>();
+    for (QueueSession session : queues.keySet()) {
+      names.add(session.getSessionId());
+    }
+    Collections.sort(names);
+    return names.toArray(new String[names.size()]);
+  }
+
+  public long messagesIn(String subject) {
+    SubjectMetrics metrics = subjects.get(subject);
+    return metrics == null ? 0 : metrics.getMessagesIn().get();
+  }
+
+  public long messagesOut(String subject) {
+    SubjectMetrics metrics = subjects.get(subject);
+    return metrics == null ? 0 : metrics.getMessagesOut().get();
+  }
+
+  public double dispatchLatencyMeanMicros(String subject) {
+    SubjectMetrics metrics = subjects.get(subject);
+    return metrics == null ? 0 : metrics.getDispatchLatency().getMeanMicros();
+  }
+
+  public long dispatchLatencyPercentileMicros(String subject, double percentile) {
+    SubjectMetrics metrics = subjects.get(subject);
+    return metrics == null ? 0 : metrics.getDispatchLatency().getPercentileMicros(percentile);
+  }
+
+  public int queueDepth(String sessionId) {
+    MessageQueue queue = queueOf(sessionId);
+    return queue == null ? 0 : queue.getQueue().size();
+  }
+
+  public int queueHighWaterMark(String sessionId) {
+    MessageQueue queue = queueOf(sessionId);
+    return queue == null ? 0 : highWaterMarkOf(queue);
+  }
+
+  /**
+   * Returns all the metrics as a map of simple values, which can be encoded into a message. Only totals are given for
+   * the message queues, so that no session IDs are given away.
+   *
+   * @return the current metrics
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("MessagesIn", getMessagesIn());
+    map.put("MessagesOut", getMessagesOut());
+    map.put("DeliveryRetries", getDeliveryRetries());
+    map.put("DeliveriesDelayed", getDeliveriesDelayed());
+    map.put("DeliveriesFlushed", getDeliveriesFlushed());
+    map.put("DeliveriesExpired", getDeliveriesExpired());
+    map.put("QueueOverloads", getQueueOverloads());
+    map.put("WorkerTimeouts", getWorkerTimeouts());
+    map.put("EncodeTime", encodeTime.toMap());
+
+    Map<String, Object> sharedEncodes = new HashMap<String, Object>();
+    sharedEncodes.put("Hits", getSharedEncodeHits());
+    sharedEncodes.put("Misses", getSharedEncodeMisses());
+    map.put("SharedEncodes", sharedEncodes);
+
+    Map<String, Object> compression = new HashMap<String, Object>();
+    compression.put("BytesIn", compressedBytesIn.get());
+    compression.put("BytesOut", compressedBytesOut.get());
+    compression.put("BytesSaved", getCompressionBytesSaved());
+    compression.put("Time", compressTime.toMap());
+    map.put("Compression", compression);
+
+    Map<String, Object> queueTotals = new HashMap<String, Object>();
+    queueTotals.put("Count", getQueueCount());
+    queueTotals.put("MaxDepth", getMaxQueueDepth());
+    queueTotals.put("MaxHighWaterMark", getMaxQueueHighWaterMark());
+    map.put("Queues", queueTotals);
+
+    if (workerPool != null) {
+      Map<String, Object> partitions = new HashMap<String, Object>();
+      partitions.put("Count", getPartitionCount());
+      partitions.put("Depths", toList(getPartitionQueueDepths()));
+      partitions.put("PeakDepths", toList(getPartitionPeakQueueDepths()));
+      partitions.put("Delivered", toList(getPartitionDeliveredCounts()));
+      partitions.put("Stolen", toList(getPartitionStolenCounts()));
+      partitions.put("Overflowed", toList(getPartitionOverflowCounts()));
+      map.put("Partitions", partitions);
+    }
+
+    Map<String, Object> subjectMap = new HashMap<String, Object>();
+    for (Map.Entry<String, SubjectMetrics> entry : subjects.entrySet()) {
+      subjectMap.put(entry.getKey(), entry.getValue().toMap());
+    }
+    map.put("Subjects", subjectMap);
+
+    return map;
+  }
+
+  public void reset() {
+    for (SubjectMetrics metrics : subjects.values()) {
+      metrics.reset();
+    }
+    deliveryRetries.reset();
+    deliveriesDelayed.reset();
+    deliveriesFlushed.reset();
+    deliveriesExpired.reset();
+    queueOverloads.reset();
+    workerTimeouts.reset();
+    encodeTime.reset();
+    sharedEncodeHits.reset();
+    sharedEncodeMisses.reset();
+    compressedBytesIn.reset();
+    compressedBytesOut.reset();
+    compressTime.reset();
+  }
+
+  /**
+   * Registers this registry with the platform MBean server. Failures are logged, not thrown, as JMX is not available
+   * in every environment the bus runs in.
+   */
+  public synchronized void registerMBean() {
+    if (registeredName != null) return;
+
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      try {
+        server.registerMBean(this, name);
+      }
+      catch (InstanceAlreadyExistsException e) {
+        // another bus in the same VM (such as another web application) got there first.
+        name = new ObjectName(OBJECT_NAME + ",instance=" + Integer.toHexString(System.identityHashCode(this)));
+        server.registerMBean(this, name);
+      }
+      registeredName = name;
+      log.info("bus metrics registered with JMX as " + name);
+    }
+    catch (Throwable t) {
+      log.warn("could not register bus metrics with JMX: " + t.getMessage());
+    }
+  }
+
+  public synchronized void unregisterMBean() {
+    if (registeredName == null) return;
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+    }
+    catch (Throwable t) {
+      log.debug("could not unregister bus metrics from JMX", t);
+    }
+    registeredName = null;
+  }
+
+  private MessageQueue queueOf(String sessionId) {
+    for (Map.Entry<QueueSession, MessageQueue> entry : queues.entrySet()) {
+      if (entry.getKey().getSessionId().equals(sessionId)) return entry.getValue();
+    }
+    return null;
+  }
+
+  private static List<Integer> toList(int[] values) {
+    List<Integer> list = new ArrayList<Integer>(values.length);
+    for (int value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  private static List<Long> toList(long[] values) {
+    List<Long> list = new ArrayList<Long>(values.length);
+    for (long value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  private static int highWaterMarkOf(MessageQueue queue) {
+    return queue instanceof MessageQueueImpl ? ((MessageQueueImpl) queue).getHighWaterMark() : queue.getQueue().size();
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.server.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ServerBusMetrics}. Durations are in microseconds.
+ */
+public interface ServerBusMetricsMBean {
+  public long getMessagesIn();
+
+  public long getMessagesOut();
+
+  public long getDeliveryRetries();
+
+  public long getDeliveriesDelayed();
+
+  public long getDeliveriesFlushed();
+
+  public long getDeliveriesExpired();
+
+  public long getQueueOverloads();
+
+  public long getWorkerTimeouts();
+
+  public long getEncodeCount();
+
+  public double getEncodeTimeMeanMicros();
+
+  public long getEncodeTime99thPercentileMicros();
+
+  public long getSharedEncodeHits();
+
+  public long getSharedEncodeMisses();
+
+  public long getCompressedPayloads();
+
+  public long getCompressionBytesSaved();
+
+  public double getCompressionTimeMeanMicros();
+
+  public int getQueueCount();
+
+  public int getMaxQueueDepth();
+
+  public int getMaxQueueHighWaterMark();
+
+  public int getPartitionCount();
+
+  public int[] getPartitionQueueDepths();
+
+  public int[] getPartitionPeakQueueDepths();
+
+  public long[] getPartitionDeliveredCounts();
+
+  public long[] getPartitionStolenCounts();
+
+  public long[] getPartitionOverflowCounts();
+
+  public String[] getSubjects();
+
+  public String[] getSessions();
+
+  public long messagesIn(String subject);
+
+  public long messagesOut(String subject);
+
+  public double dispatchLatencyMeanMicros(String subject);
+
+  public long dispatchLatencyPercentileMicros(String subject, double percentile);
+
+  public int queueDepth(String sessionId);
+
+  public int queueHighWaterMark(String sessionId);
+
+  public Map<String, Object> snapshot();
+
+  public void reset();
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.server.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The metrics kept for each subject on the bus.
+ */
+public final class SubjectMetrics {
+  private final Counter messagesIn = new Counter();
+  private final Counter messagesOut = new Counter();
+  private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+  /**
+   * Returns the number of messages which have been dispatched to the subscribers of this subject, including clients
+   * which have subscribed to it remotely.
+   */
+  public Counter getMessagesIn() {
+    return messagesIn;
+  }
+
+  /**
+   * Returns the number of messages to this subject which have been queued for delivery to a client.
+   */
+  public Counter getMessagesOut() {
+    return messagesOut;
+  }
+
+  /**
+   * Returns the time taken to dispatch a message to all the subscribers of this subject. For a service, this is the
+   * time taken by its callback.
+   */
+  public LatencyHistogram getDispatchLatency() {
+    return dispatchLatency;
+  }
+
+  public void reset() {
+    messagesIn.reset();
+    messagesOut.reset();
+    dispatchLatency.reset();
+  }
+
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("MessagesIn", messagesIn.get());
+    map.put("MessagesOut", messagesOut.get());
+    map.put("DispatchLatency", dispatchLatency.toMap());
+    return map;
+  }
+}
@@ -19,6 +19,8 @@ package org.jboss.errai.bus.server.service;
 import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.server.api.ServerMessageBus;
 
+import java.util.Collection;
+
 /**
  * The <tt>ErraiService</tt> is a minimal template for what is needed. It facilitates the ability to store a message,
  * obtain the server bus and configuration
@@ -38,6 +40,13 @@ public interface ErraiService<S> extends ServiceComposite<S> {
    */
   public void store(Message message);
 
+  /**
+   * Stores the specified messages, in order
+   *
+   * @param messages - the messages to store
+   */
+  public void store(Collection<Message> messages);
+
   /**
    * Retrieves the server message bus employed by this service
    *
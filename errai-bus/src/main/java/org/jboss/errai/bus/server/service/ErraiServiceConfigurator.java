@@ -27,8 +27,13 @@ import java.util.Map;
 public interface ErraiServiceConfigurator {
   public static final String ERRAI_DISPATCHER_IMPLEMENTATION = "errai.dispatcher_implementation";
   public static final String ERRAI_SESSION_PROVIDER_IMPLEMENTATION = "errai.session_provider_implementation";
+  public static final String ERRAI_SCHEDULER_IMPLEMENTATION = "errai.scheduler_implementation";
   public static final String CONFIG_ERRAI_SERIALIZABLE_TYPE = "errai.bus.serializableTypes";
   public static final String DO_LONG_POLL = "org.jboss.errai.bus.do_long_poll";
+  public static final String ERRAI_GENERATE_CODECS = "errai.bus.generate_codecs";
+  public static final String ERRAI_BOOTSTRAP_THREAD_POOL_SIZE = "errai.bootstrap.thread_pool_size";
+  public static final String ERRAI_WEB_SOCKET_PATH = "errai.bus.web_socket_path";
+  public static final String ERRAI_COMPRESSION_THRESHOLD = "errai.bus.compression_threshold";
 
 
   public static boolean HOSTED_MODE_TESTING = Boolean.getBoolean("errai.hosted_mode_testing");
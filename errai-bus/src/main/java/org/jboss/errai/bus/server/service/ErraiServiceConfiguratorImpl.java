@@ -24,6 +24,7 @@ import org.jboss.errai.common.metadata.MetaDataScanner;
 import org.jboss.errai.common.metadata.ScannerSingleton;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.ResourceBundle.getBundle;
 
@@ -49,9 +50,10 @@ public class ErraiServiceConfiguratorImpl implements ErraiServiceConfigurator {
   @Inject
   public ErraiServiceConfiguratorImpl(ServerMessageBus bus) {
     this.bus = bus;
-    this.extensionBindings = new HashMap<Class<?>, ResourceProvider>();
-    this.resourceProviders = new HashMap<String, ResourceProvider>();
-    this.serializableTypes = new HashSet<Class>();
+    // the bootstrap phases may add to these concurrently.
+    this.extensionBindings = new ConcurrentHashMap<Class<?>, ResourceProvider>();
+    this.resourceProviders = new ConcurrentHashMap<String, ResourceProvider>();
+    this.serializableTypes = Collections.newSetFromMap(new ConcurrentHashMap<Class, Boolean>());
     this.scanner = ScannerSingleton.getOrCreateInstance();
     loadServiceProperties();
   }
@@ -17,25 +17,35 @@
 package org.jboss.errai.bus.server.service;
 
 import com.google.inject.Inject;
-import com.google.inject.Singleton;
 import org.jboss.errai.bus.client.api.Message;
 import org.jboss.errai.bus.client.framework.RequestDispatcher;
 import org.jboss.errai.bus.client.util.ErrorHelper;
 import org.jboss.errai.bus.server.DefaultTaskManager;
 import org.jboss.errai.bus.server.api.ServerMessageBus;
 import org.jboss.errai.bus.server.api.SessionProvider;
+import org.jboss.errai.bus.server.io.FieldCodecs;
+import org.jboss.errai.bus.server.io.MethodInvokers;
 import org.jboss.errai.bus.server.service.bootstrap.BootstrapContext;
 import org.jboss.errai.bus.server.service.bootstrap.OrderedBootstrap;
 
+import java.util.Collection;
+
 /**
  * Default implementation of the ErraiBus server-side service.
+ * <p/>
+ * This is deliberately not a Guice singleton: Guice holds a global lock while it creates any singleton, and the
+ * bootstrap, which runs in the constructor, creates injectors on other threads.
  */
-@Singleton
 public class ErraiServiceImpl<S> implements ErraiService<S> {
 
   private ServerMessageBus bus;
   private ErraiServiceConfigurator config;
 
+  /**
+   * The class loader of the application, which the codecs and invokers generated at bootstrap are kept by.
+   */
+  private final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
   private SessionProvider<S> sessionProvider;
   private RequestDispatcher dispatcher;
 
@@ -87,9 +97,23 @@ public class ErraiServiceImpl<S> implements ErraiService<S> {
   }
 
 
+  /**
+   * Passes off each of the messages to the bus for handling
+   *
+   * @param messages - the messages to store/deliver
+   */
+  public void store(Collection<Message> messages) {
+    for (Message message : messages) {
+      store(message);
+    }
+  }
+
   public void stopService() {
     bus.stop();
     DefaultTaskManager.get().requestStop();
+
+    FieldCodecs.release(classLoader);
+    MethodInvokers.release(classLoader);
   }
 
   /**
@@ -29,7 +29,9 @@ import org.jboss.errai.bus.client.framework.ProxyProvider;
 import org.jboss.errai.bus.client.framework.RequestDispatcher;
 import org.jboss.errai.bus.rebind.RebindUtils;
 import org.jboss.errai.bus.server.annotations.Command;
+import org.jboss.errai.bus.server.annotations.Conflate;
 import org.jboss.errai.bus.server.annotations.Endpoint;
+import org.jboss.errai.bus.server.annotations.Lazy;
 import org.jboss.errai.bus.server.annotations.Remote;
 import org.jboss.errai.bus.server.annotations.Service;
 import org.jboss.errai.bus.server.annotations.security.RequireAuthentication;
@@ -37,6 +39,8 @@ import org.jboss.errai.bus.server.annotations.security.RequireRoles;
 import org.jboss.errai.bus.server.io.CommandBindingsCallback;
 import org.jboss.errai.bus.server.io.ConversationalEndpointCallback;
 import org.jboss.errai.bus.server.io.EndpointCallback;
+import org.jboss.errai.bus.server.io.LazyMessageCallback;
+import org.jboss.errai.bus.server.io.MethodInvokers;
 import org.jboss.errai.bus.server.io.RemoteServiceCallback;
 import org.jboss.errai.bus.server.security.auth.rules.RolesRequiredRule;
 import org.jboss.errai.bus.server.service.bootstrap.BootstrapContext;
@@ -48,8 +52,10 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Provider;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -64,139 +70,186 @@ public class ServiceProcessor implements MetaDataProcessor<BootstrapContext> {
     final ErraiServiceConfiguratorImpl config = (ErraiServiceConfiguratorImpl) context.getConfig();
     final Set<Class<?>> services = reflections.getTypesAnnotatedWithExcluding(Service.class, MetaDataScanner.CLIENT_PKG_REGEX);
 
-    for (Class<?> loadClass : services) {
-      Object svc = null;
-
-      Service svcAnnotation = loadClass.getAnnotation(Service.class);
-      if (null == svcAnnotation) {
-        // Diagnose Errai-111
-        StringBuffer sb = new StringBuffer();
-        sb.append("Service annotation cannot be loaded. (See https://jira.jboss.org/browse/ERRAI-111)\n");
-        sb.append(loadClass.getSimpleName()).append(" loader: ").append(loadClass.getClassLoader()).append("\n");
-        sb.append("@Service loader:").append(Service.class.getClassLoader()).append("\n");
-        log.warn(sb.toString());
-        continue;
-      }
+    // the invokers for the endpoints are generated as they are bound below, unless code generation is turned off.
+    if (config.hasProperty(ErraiServiceConfigurator.ERRAI_GENERATE_CODECS)) {
+      MethodInvokers.setGenerationEnabled(Thread.currentThread().getContextClassLoader(),
+              Boolean.parseBoolean(config.getProperty(ErraiServiceConfigurator.ERRAI_GENERATE_CODECS)));
+    }
 
-      boolean local = loadClass.isAnnotationPresent(Local.class);
+    final Injector injector = createInjector(context);
+    final long start = System.currentTimeMillis();
 
-      String svcName = svcAnnotation.value();
+    // each service gets its own instance from the shared injector, so they can be created concurrently.
+    final List<Runnable> tasks = new ArrayList<Runnable>(services.size());
+    for (final Class<?> loadClass : services) {
+      tasks.add(new Runnable() {
+        public void run() {
+          final long serviceStart = System.currentTimeMillis();
+          processService(context, injector, loadClass);
+          log.debug("created service " + loadClass.getName() + " in "
+                  + (System.currentTimeMillis() - serviceStart) + "ms.");
+        }
+      });
+    }
+    context.runConcurrently(tasks);
 
-      // If no name is specified, just use the class name as the service by default.
-      if ("".equals(svcName)) {
-        svcName = loadClass.getSimpleName();
-      }
+    log.info("created " + services.size() + " services in " + (System.currentTimeMillis() - start) + "ms.");
+  }
 
-      Map<String, Method> commandPoints = new HashMap<String, Method>();
-      for (final Method method : loadClass.getDeclaredMethods()) {
-        if (method.isAnnotationPresent(Command.class)) {
-          Command command = method.getAnnotation(Command.class);
-          for (String cmdName : command.value()) {
-            if (cmdName.equals("")) cmdName = method.getName();
-            commandPoints.put(cmdName, method);
-          }
+  /**
+   * Creates the injector which all of the services are created from. It is only created once, since binding the
+   * bus, the dispatcher and every extension binding is costly.
+   */
+  private static Injector createInjector(final BootstrapContext context) {
+    final ErraiServiceConfiguratorImpl config = (ErraiServiceConfiguratorImpl) context.getConfig();
+    return Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(MessageBus.class).toInstance(context.getBus());
+        bind(RequestDispatcher.class).toInstance(context.getService().getDispatcher());
+        bind(TaskManager.class).toInstance(TaskManagerFactory.get());
+
+        // Add any extension bindings.
+        for (Map.Entry<Class<?>, ResourceProvider> entry : config.getExtensionBindings().entrySet()) {
+          bind(entry.getKey()).toProvider(new GuiceProviderProxy(entry.getValue()));
         }
       }
+    });
+  }
 
-      Class remoteImpl = getRemoteImplementation(loadClass);
-      if (remoteImpl != null) {
-        svc = createRPCScaffolding(remoteImpl, loadClass, context);
-      }
-      else if (MessageCallback.class.isAssignableFrom(loadClass)) {
-        final Class<? extends MessageCallback> clazz = loadClass.asSubclass(MessageCallback.class);
-        log.info("discovered service: " + clazz.getName());
-        try {
-          svc = Guice.createInjector(new AbstractModule() {
-            @Override
-            protected void configure() {
-              bind(MessageCallback.class).to(clazz);
-              bind(MessageBus.class).toInstance(context.getBus());
-              bind(RequestDispatcher.class).toInstance(context.getService().getDispatcher());
-              bind(TaskManager.class).toInstance(TaskManagerFactory.get());
-
-              // Add any extension bindings.
-              for (Map.Entry<Class<?>, ResourceProvider> entry : config.getExtensionBindings().entrySet()) {
-                bind(entry.getKey()).toProvider(new GuiceProviderProxy(entry.getValue()));
-              }
-            }
-          }).getInstance(MessageCallback.class);
-        }
-        catch (Throwable t) {
-          t.printStackTrace();
-        }
+  private void processService(final BootstrapContext context, final Injector injector, final Class<?> loadClass) {
+    Service svcAnnotation = loadClass.getAnnotation(Service.class);
+    if (null == svcAnnotation) {
+      // Diagnose Errai-111
+      StringBuffer sb = new StringBuffer();
+      sb.append("Service annotation cannot be loaded. (See https://jira.jboss.org/browse/ERRAI-111)\n");
+      sb.append(loadClass.getSimpleName()).append(" loader: ").append(loadClass.getClassLoader()).append("\n");
+      sb.append("@Service loader:").append(Service.class.getClassLoader()).append("\n");
+      log.warn(sb.toString());
+      return;
+    }
 
-        if (commandPoints.isEmpty()) {
-          // Subscribe the service to the bus.
-          context.getBus().subscribe(svcName, (MessageCallback) svc);
-        }
+    boolean local = loadClass.isAnnotationPresent(Local.class);
+    final boolean lazy = loadClass.isAnnotationPresent(Lazy.class);
 
-        RolesRequiredRule rule = null;
-        if (clazz.isAnnotationPresent(RequireRoles.class)) {
-          rule = new RolesRequiredRule(clazz.getAnnotation(RequireRoles.class).value(), context.getBus());
-        }
-        else if (clazz.isAnnotationPresent(RequireAuthentication.class)) {
-          rule = new RolesRequiredRule(new HashSet<Object>(), context.getBus());
-        }
-        if (rule != null) {
-          context.getBus().addRule(svcName, rule);
+    String svcName = svcAnnotation.value();
+
+    // If no name is specified, just use the class name as the service by default.
+    if ("".equals(svcName)) {
+      svcName = loadClass.getSimpleName();
+    }
+
+    if (loadClass.isAnnotationPresent(Conflate.class)) {
+      Conflate conflate = loadClass.getAnnotation(Conflate.class);
+      String keyPart = "".equals(conflate.keyPart()) ? null : conflate.keyPart();
+      String[] subjects = conflate.value().length == 0 ? new String[]{svcName} : conflate.value();
+      for (String subject : subjects) {
+        context.getBus().conflate(subject, keyPart);
+      }
+    }
+
+    final Map<String, Method> commandPoints = new HashMap<String, Method>();
+    for (final Method method : loadClass.getDeclaredMethods()) {
+      if (method.isAnnotationPresent(Command.class)) {
+        Command command = method.getAnnotation(Command.class);
+        for (String cmdName : command.value()) {
+          if (cmdName.equals("")) cmdName = method.getName();
+          commandPoints.put(cmdName, method);
         }
       }
+    }
 
-      if (svc == null) {
-        svc = Guice.createInjector(new AbstractModule() {
+    // a lazy service is only created by the first message to one of its subjects.
+    final Provider<Object> svc = new ServiceInstance(injector, loadClass);
+    if (!lazy) {
+      svc.get();
+    }
+
+    final Class remoteImpl = getRemoteImplementation(loadClass);
+    if (remoteImpl != null) {
+      createRPCScaffolding(remoteImpl, svc, lazy, context);
+    }
+    else if (MessageCallback.class.isAssignableFrom(loadClass)) {
+      final Class<? extends MessageCallback> clazz = loadClass.asSubclass(MessageCallback.class);
+      log.info("discovered " + (lazy ? "lazy " : "") + "service: " + clazz.getName());
+
+      if (commandPoints.isEmpty()) {
+        // Subscribe the service to the bus.
+        context.getBus().subscribe(svcName, resolve(new LazyMessageCallback() {
           @Override
-          protected void configure() {
-            bind(MessageBus.class).toInstance(context.getBus());
-            bind(RequestDispatcher.class).toInstance(context.getService().getDispatcher());
-            bind(TaskManager.class).toInstance(TaskManagerFactory.get());
-
-            // Add any extension bindings.
-            for (Map.Entry<Class<?>, ResourceProvider> entry : config.getExtensionBindings().entrySet()) {
-              bind(entry.getKey()).toProvider(new GuiceProviderProxy(entry.getValue()));
-            }
+          protected MessageCallback create() {
+            return (MessageCallback) svc.get();
           }
-        }).getInstance(loadClass);
+        }, lazy));
       }
 
-      Map<String, MessageCallback> epts = new HashMap<String, MessageCallback>();
-
-      final Object targetService = svc;
-      
-      // we scan for endpoints
-      for (final Method method : loadClass.getDeclaredMethods()) {
-        if (method.isAnnotationPresent(Endpoint.class)) {
-          epts.put(method.getName(), method.getReturnType() == Void.class ?
-              new EndpointCallback(svc, method) :
-              new ConversationalEndpointCallback(new Provider<Object>() {
-                @Override
-                public Object get() {
-                  return targetService;
-                }
-              }, method, context.getBus()));
-        }
+      RolesRequiredRule rule = null;
+      if (clazz.isAnnotationPresent(RequireRoles.class)) {
+        rule = new RolesRequiredRule(clazz.getAnnotation(RequireRoles.class).value(), context.getBus());
+      }
+      else if (clazz.isAnnotationPresent(RequireAuthentication.class)) {
+        rule = new RolesRequiredRule(new HashSet<Object>(), context.getBus());
+      }
+      if (rule != null) {
+        context.getBus().addRule(svcName, rule);
       }
+    }
 
-      if (!epts.isEmpty()) {
-        if (local) {
-          context.getBus().subscribeLocal(loadClass.getSimpleName() + ":RPC", new RemoteServiceCallback(epts));
-        }
-        else {
-          context.getBus().subscribe(loadClass.getSimpleName() + ":RPC", new RemoteServiceCallback(epts));
-        }
+    final List<Method> endpoints = new ArrayList<Method>();
+    for (final Method method : loadClass.getDeclaredMethods()) {
+      if (method.isAnnotationPresent(Endpoint.class)) {
+        endpoints.add(method);
       }
+    }
 
-      if (!commandPoints.isEmpty()) {
-        if (local) {
-          context.getBus().subscribeLocal(svcName, new CommandBindingsCallback(commandPoints, svc));
+    if (!endpoints.isEmpty()) {
+      final MessageCallback callback = resolve(new LazyMessageCallback() {
+        @Override
+        protected MessageCallback create() {
+          final Map<String, MessageCallback> epts = new HashMap<String, MessageCallback>();
 
+          // we scan for endpoints
+          for (final Method method : endpoints) {
+            epts.put(method.getName(), method.getReturnType() == Void.class ?
+                new EndpointCallback(svc.get(), method) :
+                new ConversationalEndpointCallback(svc, method, context.getBus()));
+          }
+          return new RemoteServiceCallback(epts);
         }
-        else {
-          context.getBus().subscribe(svcName, new CommandBindingsCallback(commandPoints, svc));
+      }, lazy);
+
+      if (local) {
+        context.getBus().subscribeLocal(loadClass.getSimpleName() + ":RPC", callback);
+      }
+      else {
+        context.getBus().subscribe(loadClass.getSimpleName() + ":RPC", callback);
+      }
+    }
+
+    if (!commandPoints.isEmpty()) {
+      final MessageCallback callback = resolve(new LazyMessageCallback() {
+        @Override
+        protected MessageCallback create() {
+          return new CommandBindingsCallback(commandPoints, svc.get());
         }
+      }, lazy);
+
+      if (local) {
+        context.getBus().subscribeLocal(svcName, callback);
+      }
+      else {
+        context.getBus().subscribe(svcName, callback);
       }
     }
   }
 
+  /**
+   * Returns the callback itself if the service is lazy, or otherwise the callback it would have created.
+   */
+  private static MessageCallback resolve(LazyMessageCallback callback, boolean lazy) {
+    return lazy ? callback : callback.getDelegate();
+  }
+
   private static Class getRemoteImplementation(Class type) {
     for (Class iface : type.getInterfaces()) {
       if (iface.isAnnotationPresent(Remote.class)) {
@@ -209,42 +262,25 @@ public class ServiceProcessor implements MetaDataProcessor<BootstrapContext> {
     return null;
   }
 
-  private static Object createRPCScaffolding(final Class remoteIface, final Class<?> type, final BootstrapContext context) {
-
-    final ErraiServiceConfiguratorImpl config = (ErraiServiceConfiguratorImpl) context.getConfig();
-    final Injector injector = Guice.createInjector(new AbstractModule() {
+  private static void createRPCScaffolding(final Class remoteIface, final Provider<Object> svc, boolean lazy,
+                                           final BootstrapContext context) {
+    context.getBus().subscribe(remoteIface.getName() + ":RPC", resolve(new LazyMessageCallback() {
       @Override
-      protected void configure() {
-        bind(MessageBus.class).toInstance(context.getBus());
-        bind(RequestDispatcher.class).toInstance(context.getService().getDispatcher());
-        bind(TaskManager.class).toInstance(TaskManagerFactory.get());
-
-        // Add any extension bindings.
-        for (Map.Entry<Class<?>, ResourceProvider> entry : config.getExtensionBindings().entrySet()) {
-          bind(entry.getKey()).toProvider(new GuiceProviderProxy(entry.getValue()));
-        }
-      }
-    });
+      protected MessageCallback create() {
+        final Map<String, MessageCallback> epts = new HashMap<String, MessageCallback>();
 
-    final Object svc = injector.getInstance(type);
-
-    final Map<String, MessageCallback> epts = new HashMap<String, MessageCallback>();
-
-    // beware of classloading issues. better reflect on the actual instance
-    for (Class<?> intf : svc.getClass().getInterfaces()) {
-      for (final Method method : intf.getDeclaredMethods()) {
-        if (RebindUtils.isMethodInInterface(remoteIface, method)) {
-          epts.put(RebindUtils.createCallSignature(method), new ConversationalEndpointCallback(new Provider<Object>() {
-            @Override
-            public Object get() {
-              return svc;
+        // beware of classloading issues. better reflect on the actual instance
+        for (Class<?> intf : svc.get().getClass().getInterfaces()) {
+          for (final Method method : intf.getDeclaredMethods()) {
+            if (RebindUtils.isMethodInInterface(remoteIface, method)) {
+              epts.put(RebindUtils.createCallSignature(method), new ConversationalEndpointCallback(svc, method,
+                  context.getBus()));
             }
-          }, method, context.getBus()));
+          }
         }
+        return new RemoteServiceCallback(epts);
       }
-    }
-
-    context.getBus().subscribe(remoteIface.getName() + ":RPC", new RemoteServiceCallback(epts));
+    }, lazy));
 
     new ProxyProvider() {
       {
@@ -255,7 +291,32 @@ public class ServiceProcessor implements MetaDataProcessor<BootstrapContext> {
         throw new RuntimeException("This API is not supported in the server-side environment.");
       }
     };
-    
-    return svc;
+  }
+
+  /**
+   * Creates the instance of a service from the shared injector the first time it is needed.
+   */
+  private static class ServiceInstance implements Provider<Object> {
+    private final Injector injector;
+    private final Class<?> type;
+    private volatile Object instance;
+
+    private ServiceInstance(Injector injector, Class<?> type) {
+      this.injector = injector;
+      this.type = type;
+    }
+
+    public Object get() {
+      Object svc = instance;
+      if (svc == null) {
+        synchronized (this) {
+          svc = instance;
+          if (svc == null) {
+            instance = svc = injector.getInstance(type);
+          }
+        }
+      }
+      return svc;
+    }
   }
 }
@@ -15,6 +15,7 @@
  */
 package org.jboss.errai.bus.server.service.bootstrap;
 
+import org.jboss.errai.bus.server.ErraiBootstrapFailure;
 import org.jboss.errai.bus.server.api.ServerMessageBus;
 import org.jboss.errai.bus.server.service.ErraiService;
 import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
@@ -22,7 +23,13 @@ import org.jboss.errai.common.metadata.MetaDataScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Queue;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Provides a shared context to the bootstrap execution.
@@ -36,6 +43,7 @@ public class BootstrapContext {
   private final ErraiService service;
 
   private Stack<Runnable> deferredTasks = new Stack<Runnable>();
+  private volatile ExecutorService executor;
 
   private Logger log = LoggerFactory.getLogger(BootstrapContext.class);
 
@@ -65,6 +73,67 @@ public class BootstrapContext {
     return service;
   }
 
+  void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Runs the specified tasks concurrently on the bootstrap thread pool, and returns when all of them have finished.
+   * The calling thread runs tasks as well, so this may safely be called from a bootstrap phase which is itself
+   * running on the pool. Outside of the {@link OrderedBootstrap}, the tasks are simply run one after another.
+   *
+   * @param tasks - the tasks to run
+   * @throws ErraiBootstrapFailure - if any of the tasks failed. The remaining tasks are still run.
+   */
+  public void runConcurrently(List<? extends Runnable> tasks) {
+    final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>(tasks);
+    final CountDownLatch remaining = new CountDownLatch(tasks.size());
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    final Runnable drain = new Runnable() {
+      public void run() {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+          try {
+            task.run();
+          }
+          catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+          finally {
+            remaining.countDown();
+          }
+        }
+      }
+    };
+
+    final ExecutorService executor = this.executor;
+    if (executor != null) {
+      for (int i = 1; i < tasks.size(); i++) {
+        executor.execute(drain);
+      }
+    }
+
+    drain.run();
+
+    try {
+      // the tasks which are still running were taken by pool threads, which will finish them.
+      remaining.await();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ErraiBootstrapFailure("interrupted while waiting for bootstrap tasks", e);
+    }
+
+    final Throwable t = failure.get();
+    if (t instanceof ErraiBootstrapFailure) {
+      throw (ErraiBootstrapFailure) t;
+    }
+    else if (t != null) {
+      throw new ErraiBootstrapFailure("bootstrap task failed", t);
+    }
+  }
+
   void executeDeferred() {
     log.info("Running deferred bootstrap tasks ...");
 
@@ -23,9 +23,11 @@ import org.jboss.errai.bus.client.framework.MessageBus;
 import org.jboss.errai.bus.client.framework.RequestDispatcher;
 import org.jboss.errai.bus.server.ErraiBootstrapFailure;
 import org.jboss.errai.bus.server.HttpSessionProvider;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
 import org.jboss.errai.bus.server.SimpleDispatcher;
 import org.jboss.errai.bus.server.api.ServerMessageBus;
 import org.jboss.errai.bus.server.api.SessionProvider;
+import org.jboss.errai.bus.server.async.SchedulerService;
 import org.jboss.errai.bus.server.io.JSONMessageServer;
 import org.jboss.errai.bus.server.security.auth.AuthenticationAdapter;
 import org.jboss.errai.bus.server.service.ErraiService;
@@ -98,6 +100,33 @@ class DefaultComponents implements BootstrapExecution {
     }
 
 
+    /*** Scheduler ***/
+
+    if (config.hasProperty(ErraiServiceConfigurator.ERRAI_SCHEDULER_IMPLEMENTATION)
+        && context.getBus() instanceof ServerMessageBusImpl) {
+      final ServerMessageBusImpl bus = (ServerMessageBusImpl) context.getBus();
+      final Class<? extends SchedulerService> schedulerImplementation;
+
+      try {
+        schedulerImplementation = Class.forName(config.getProperty(ErraiServiceConfigurator.ERRAI_SCHEDULER_IMPLEMENTATION))
+            .asSubclass(SchedulerService.class);
+      }
+      catch (Exception e) {
+        throw new ErraiBootstrapFailure("could not load scheduler implementation class", e);
+      }
+
+      if (!schedulerImplementation.isInstance(bus.getScheduler())) {
+        try {
+          bus.setScheduler(schedulerImplementation.newInstance());
+        }
+        catch (Exception e) {
+          throw new ErraiBootstrapFailure("could not create scheduler", e);
+        }
+      }
+
+      log.info("using scheduler implementation: " + schedulerImplementation.getName());
+    }
+
     /*** Dispatcher ***/
 
     RequestDispatcher dispatcher = createInjector(new AbstractModule() {
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.errai.bus.server.service.bootstrap;
+
+import org.jboss.errai.bus.server.io.FieldCodecs;
+import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
+import org.jboss.errai.bus.server.service.ErraiServiceConfiguratorImpl;
+import org.jboss.errai.common.client.api.annotations.Portable;
+import org.jboss.errai.common.metadata.MetaDataScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Generates the server-side field codecs for all serializable and portable types, so that they are not encoded and
+ * decoded by reflection. Must run after the entities have been discovered.
+ *
+ * @see org.jboss.errai.bus.server.io.FieldCodecs
+ */
+class GenerateCodecs implements BootstrapExecution {
+  private Logger log = LoggerFactory.getLogger(GenerateCodecs.class);
+
+  public void execute(BootstrapContext context) {
+    final ErraiServiceConfiguratorImpl config = (ErraiServiceConfiguratorImpl) context.getConfig();
+
+    boolean enabled = true;
+    if (config.hasProperty(ErraiServiceConfigurator.ERRAI_GENERATE_CODECS)) {
+      enabled = Boolean.parseBoolean(config.getProperty(ErraiServiceConfigurator.ERRAI_GENERATE_CODECS));
+    }
+
+    FieldCodecs.setGenerationEnabled(Thread.currentThread().getContextClassLoader(), enabled);
+    if (!enabled) {
+      log.info("codec generation disabled. serializable types will be encoded by reflection.");
+      return;
+    }
+
+    final Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+    for (Class type : config.getSerializableTypes()) {
+      types.add(type);
+    }
+
+    final MetaDataScanner scanner = context.getScanner();
+    if (scanner != null) {
+      types.addAll(scanner.getTypesAnnotatedWith(Portable.class));
+    }
+
+    final long start = System.currentTimeMillis();
+    final int generated = FieldCodecs.generate(types);
+
+    log.info("generated codecs for " + generated + " of " + types.size() + " serializable types in "
+            + (System.currentTimeMillis() - start) + "ms.");
+  }
+}
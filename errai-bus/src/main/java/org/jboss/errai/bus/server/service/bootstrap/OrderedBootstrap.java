@@ -15,16 +15,34 @@
  */
 package org.jboss.errai.bus.server.service.bootstrap;
 
+import org.jboss.errai.bus.server.ErraiBootstrapFailure;
+import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
 import org.jboss.errai.bus.server.service.ErraiServiceConfiguratorImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Bootstrap Errai in an ordered fashion.
+ * <p/>
+ * Each step declares the steps it depends on, and is run on the bootstrap thread pool as soon as all of them have
+ * finished, so that steps which do not depend on each other run at the same time. The size of the pool is given by
+ * the <tt>errai.bootstrap.thread_pool_size</tt> property, and defaults to the number of processors.
  *
  * @author: Heiko Braun <hbraun@redhat.com>
  * @date: May 3, 2010
@@ -33,42 +51,174 @@ import java.util.List;
 public class OrderedBootstrap implements BootstrapExecution {
   private Logger log = LoggerFactory.getLogger(OrderedBootstrap.class);
 
-  private List<BootstrapExecution> bootstrap = new LinkedList<BootstrapExecution>();
+  private Map<BootstrapExecution, List<BootstrapExecution>> bootstrap
+      = new LinkedHashMap<BootstrapExecution, List<BootstrapExecution>>();
 
   public OrderedBootstrap() {
-    bootstrap.add(new DefaultComponents());
-    bootstrap.add(new DefaultServices());
-    bootstrap.add(new LockDownServices());
-    bootstrap.add(new LoadExtensions());
-    bootstrap.add(new AuthenticationRules());
-    bootstrap.add(new DefaultResources());
-    bootstrap.add(new RegisterTypes());
-    bootstrap.add(new DiscoverServices());
-    bootstrap.add(new BusConfiguration());
+    this(true);
+  }
+
+  /**
+   * @param defaults - false to start with no steps, to which steps are then added with {@link #add}
+   */
+  protected OrderedBootstrap(boolean defaults) {
+    if (!defaults) return;
+
+    final BootstrapExecution components = add(new DefaultComponents());
+    final BootstrapExecution services = add(new DefaultServices(), components);
+    final BootstrapExecution lockDown = add(new LockDownServices(), services);
+
+    // rules can only be added to subjects which are already subscribed to.
+    final BootstrapExecution rules = add(new AuthenticationRules(), services);
+
+    // extensions must not be able to subscribe to the reserved subjects.
+    final BootstrapExecution extensions = add(new LoadExtensions(), lockDown);
+
+    // the default resource providers are bound after the extensions have loaded, and replace any of theirs.
+    final BootstrapExecution resources = add(new DefaultResources(), extensions);
+    final BootstrapExecution types = add(new RegisterTypes(), extensions);
+
+    final BootstrapExecution discover = add(new DiscoverServices(), extensions, rules, resources, types);
+    add(new GenerateCodecs(), discover);
+    add(new BusConfiguration(), discover);
+  }
+
+  /**
+   * Adds a step, to be run once all of the specified steps have finished.
+   *
+   * @param step      - the step to add
+   * @param dependsOn - the steps which must have finished first, which must have been added already
+   * @return the step
+   */
+  protected BootstrapExecution add(BootstrapExecution step, BootstrapExecution... dependsOn) {
+    for (BootstrapExecution dependency : dependsOn) {
+      if (!bootstrap.containsKey(dependency)) {
+        throw new IllegalArgumentException("unknown dependency: " + dependency.getClass().getSimpleName());
+      }
+    }
+    bootstrap.put(step, Arrays.asList(dependsOn));
+    return step;
   }
 
   public void execute(final BootstrapContext context) {
     log.info("Bootstrap Errai");
     log.info("Working directory: " + new File("").getAbsolutePath());
 
+    final long start = System.currentTimeMillis();
+    final ExecutorService executor = createExecutor(context.getConfig());
+    context.setExecutor(executor);
 
     try {
-      for (BootstrapExecution execution : bootstrap) {
-        execution.execute(context);
-      }
+      executeAll(context, executor);
 
       // any deferred tasks?
       context.executeDeferred();
 
       // freeze config
-      ((ErraiServiceConfiguratorImpl) context.getConfig()).lockdown();
+      if (context.getConfig() instanceof ErraiServiceConfiguratorImpl) {
+        ((ErraiServiceConfiguratorImpl) context.getConfig()).lockdown();
+      }
 
-      log.info("Bootstrap complete. Ready to rumble!");
+      log.info("Bootstrap complete in " + (System.currentTimeMillis() - start) + "ms. Ready to rumble!");
 
     }
     catch (Exception e) {
       e.printStackTrace();
       throw new RuntimeException("Server bootstrap failed", e);
     }
+    finally {
+      context.setExecutor(null);
+      executor.shutdown();
+    }
+  }
+
+  private void executeAll(final BootstrapContext context, ExecutorService executor) throws InterruptedException {
+    final Map<BootstrapExecution, Integer> waitingOn = new IdentityHashMap<BootstrapExecution, Integer>();
+    final Map<BootstrapExecution, List<BootstrapExecution>> dependents
+        = new IdentityHashMap<BootstrapExecution, List<BootstrapExecution>>();
+
+    for (Map.Entry<BootstrapExecution, List<BootstrapExecution>> entry : bootstrap.entrySet()) {
+      waitingOn.put(entry.getKey(), entry.getValue().size());
+      for (BootstrapExecution dependency : entry.getValue()) {
+        List<BootstrapExecution> list = dependents.get(dependency);
+        if (list == null) dependents.put(dependency, list = new ArrayList<BootstrapExecution>());
+        list.add(entry.getKey());
+      }
+    }
+
+    final CompletionService<BootstrapExecution> completion = new ExecutorCompletionService<BootstrapExecution>(executor);
+
+    int running = 0;
+    for (BootstrapExecution step : bootstrap.keySet()) {
+      if (waitingOn.get(step) == 0) {
+        submit(completion, context, step);
+        running++;
+      }
+    }
+
+    int finished = 0;
+    while (running > 0) {
+      final BootstrapExecution done;
+      try {
+        done = completion.take().get();
+      }
+      catch (ExecutionException e) {
+        // let the steps which are still running finish before giving up.
+        for (; running > 1; running--) {
+          completion.take();
+        }
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        throw new ErraiBootstrapFailure("bootstrap failed", e.getCause());
+      }
+
+      running--;
+      finished++;
+
+      final List<BootstrapExecution> next = dependents.get(done);
+      for (BootstrapExecution step : next == null ? Collections.<BootstrapExecution>emptyList() : next) {
+        final int remaining = waitingOn.get(step) - 1;
+        waitingOn.put(step, remaining);
+        if (remaining == 0) {
+          submit(completion, context, step);
+          running++;
+        }
+      }
+    }
+
+    if (finished != bootstrap.size()) {
+      throw new ErraiBootstrapFailure("bootstrap steps could not be ordered: there is a cycle in their dependencies");
+    }
+  }
+
+  private void submit(CompletionService<BootstrapExecution> completion, final BootstrapContext context,
+                      final BootstrapExecution step) {
+    completion.submit(new Runnable() {
+      public void run() {
+        final long start = System.currentTimeMillis();
+        step.execute(context);
+        log.info(step.getClass().getSimpleName() + " finished in " + (System.currentTimeMillis() - start) + "ms.");
+      }
+    }, step);
+  }
+
+  private ExecutorService createExecutor(ErraiServiceConfigurator config) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    if (config.hasProperty(ErraiServiceConfigurator.ERRAI_BOOTSTRAP_THREAD_POOL_SIZE)) {
+      threads = Integer.parseInt(config.getProperty(ErraiServiceConfigurator.ERRAI_BOOTSTRAP_THREAD_POOL_SIZE).trim());
+    }
+
+    final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    final AtomicInteger count = new AtomicInteger();
+
+    return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "Errai Bootstrap " + count.incrementAndGet());
+        thread.setDaemon(true);
+
+        // the steps load application classes, as they would have on the deploying thread.
+        thread.setContextClassLoader(loader);
+        return thread;
+      }
+    });
   }
 }
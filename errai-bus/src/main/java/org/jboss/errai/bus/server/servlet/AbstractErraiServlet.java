@@ -23,12 +23,16 @@ import org.jboss.errai.bus.client.framework.MarshalledMessage;
 import org.jboss.errai.bus.client.framework.MessageBus;
 import org.jboss.errai.bus.client.protocols.BusCommands;
 import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.api.MessageQueue;
 import org.jboss.errai.bus.server.api.ServerMessageBus;
 import org.jboss.errai.bus.server.api.SessionProvider;
+import org.jboss.errai.bus.server.io.EncodingBuffer;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
 import org.jboss.errai.bus.server.service.ErraiService;
 import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
 import org.jboss.errai.bus.server.service.ErraiServiceConfiguratorImpl;
 import org.jboss.errai.bus.server.service.ErraiServiceImpl;
+import org.jboss.errai.bus.server.websocket.ErraiWebSocketEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,6 +59,9 @@ public abstract class AbstractErraiServlet extends HttpServlet {
 
   protected volatile ClassLoader contextClassLoader;
 
+  /* The smallest payload which is compressed, or -1 if payloads are never compressed */
+  protected int compressionThreshold = -1;
+
   protected Logger log = LoggerFactory.getLogger(getClass());
 
   public enum ConnectionPhase {
@@ -121,10 +128,38 @@ public abstract class AbstractErraiServlet extends HttpServlet {
 
         // store it in servlet context
         config.getServletContext().setAttribute("errai", service);
+
+        if (service.getConfiguration().hasProperty(ErraiServiceConfigurator.ERRAI_WEB_SOCKET_PATH)) {
+          registerWebSocketEndpoint(context,
+              service.getConfiguration().getProperty(ErraiServiceConfigurator.ERRAI_WEB_SOCKET_PATH));
+        }
       }
     }
 
     sessionProvider = service.getSessionProvider();
+
+    if (service.getConfiguration().hasProperty(ErraiServiceConfigurator.ERRAI_COMPRESSION_THRESHOLD)) {
+      compressionThreshold = Integer.parseInt(
+          service.getConfiguration().getProperty(ErraiServiceConfigurator.ERRAI_COMPRESSION_THRESHOLD));
+    }
+  }
+
+  /**
+   * Registers the web socket endpoint, which clients use instead of polling where they can. The servlet must be
+   * loaded on startup for this to work, since endpoints can only be added while the web application is deployed.
+   *
+   * @param context - the servlet context of the web application
+   * @param path    - the path of the endpoint, relative to the context
+   */
+  protected void registerWebSocketEndpoint(ServletContext context, String path) {
+    try {
+      ErraiWebSocketEndpoint.register(context, path);
+      log.info("web socket endpoint registered at " + path);
+    }
+    catch (Throwable t) {
+      // the container may not have the web socket API at all.
+      log.warn("could not register web socket endpoint at " + path + "; clients will poll instead", t);
+    }
   }
 
   @SuppressWarnings({"unchecked"})
@@ -143,6 +178,42 @@ public abstract class AbstractErraiServlet extends HttpServlet {
   }
 
 
+  /**
+   * Returns a stream to write a payload of messages to the response through. If compression is enabled and the
+   * client accepts it, the payload is compressed when it reaches the compression threshold.
+   * {@link CompressedResponseStream#finish()} must be called once the payload has been written.
+   *
+   * @param request  - the request the payload is a response to
+   * @param response - the response
+   * @param out      - the stream to write the payload to, which is usually the output stream of the response
+   * @return the stream to write the payload to
+   * @throws IOException - if an input or output error occurs
+   */
+  protected CompressedResponseStream openPayloadStream(HttpServletRequest request, HttpServletResponse response,
+                                                       OutputStream out) throws IOException {
+    final CompressedResponseStream.ContentEncoding encoding = compressionThreshold < 0 ? null
+        : CompressedResponseStream.ContentEncoding.negotiate(request.getHeader("Accept-Encoding"));
+
+    return new CompressedResponseStream(response, out, encoding, compressionThreshold, false,
+        ServerBusMetrics.forBus(service.getBus()));
+  }
+
+  /**
+   * Writes the messages waiting in the queue to the response, compressing them if possible.
+   *
+   * @param queue    - the queue to poll
+   * @param request  - the request the payload is a response to
+   * @param response - the response
+   * @param wait     - true if the poll should wait for a message to arrive
+   * @throws IOException - if an input or output error occurs
+   */
+  protected void writePayload(MessageQueue queue, HttpServletRequest request, HttpServletResponse response,
+                              boolean wait) throws IOException {
+    final CompressedResponseStream stream = openPayloadStream(request, response, response.getOutputStream());
+    queue.poll(wait, stream);
+    stream.finish();
+  }
+
   /**
    * Writes the message to the output stream
    *
@@ -151,21 +222,21 @@ public abstract class AbstractErraiServlet extends HttpServlet {
    * @throws java.io.IOException - is thrown if any input/output errors occur while writing to the stream
    */
   public static void writeToOutputStream(OutputStream stream, MarshalledMessage m) throws IOException {
-    stream.write('[');
+    final EncodingBuffer buffer = EncodingBuffer.acquire(stream);
+    try {
+      buffer.write('[');
 
-    if (m.getMessage() == null) {
-      stream.write('n');
-      stream.write('u');
-      stream.write('l');
-      stream.write('l');
-    }
-    else {
-      for (byte b : ((String) m.getMessage()).getBytes()) {
-        stream.write(b);
+      if (m.getMessage() == null) {
+        buffer.writeAscii("null");
+      }
+      else {
+        buffer.writeUTF8((String) m.getMessage());
       }
+      buffer.write(']');
+    }
+    finally {
+      buffer.release();
     }
-    stream.write(']');
-
   }
 
 
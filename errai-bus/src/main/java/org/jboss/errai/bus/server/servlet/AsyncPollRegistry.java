@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.servlet;
+
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueActivationCallback;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the long-polls which are parked, waiting for messages, keyed by the queue they are polling. The registry is
+ * itself the activation callback of every queue with a parked poll, so activating a queue just removes its poll from
+ * the registry and resumes it. Whichever of an activation, a timeout or a newer poll from the same client removes the
+ * poll first resumes it, so no lock is needed to keep it from being resumed twice.
+ */
+public class AsyncPollRegistry implements QueueActivationCallback {
+  /**
+   * A poll held in the registry.
+   */
+  public interface ParkedPoll {
+    /**
+     * Called once, when the poll is removed from the registry by an activation of its queue, or because a newer
+     * poll has been parked for the same queue.
+     */
+    void resume();
+  }
+
+  private final ConcurrentMap<MessageQueue, ParkedPoll> parked = new ConcurrentHashMap<MessageQueue, ParkedPoll>();
+
+  /**
+   * Parks the specified poll until its queue is activated. A poll already parked for the queue is resumed, and if
+   * messages are already waiting, the new poll is resumed straight away.
+   *
+   * @param queue - the queue being polled
+   * @param poll  - the poll to park
+   */
+  public void park(MessageQueue queue, ParkedPoll poll) {
+    final ParkedPoll superseded = parked.put(queue, poll);
+    if (superseded != null) {
+      superseded.resume();
+    }
+
+    queue.setActivationCallback(this);
+
+    /**
+     * Messages offered before the callback was set did not activate the queue.
+     */
+    if (queue.messagesWaiting()) {
+      activate(queue);
+    }
+  }
+
+  /**
+   * Removes the specified poll, if it is still parked.
+   *
+   * @param queue - the queue being polled
+   * @param poll  - the poll to remove
+   * @return true if the poll was parked, and so has not been resumed
+   */
+  public boolean unpark(MessageQueue queue, ParkedPoll poll) {
+    return parked.remove(queue, poll);
+  }
+
+  public void activate(MessageQueue queue) {
+    final ParkedPoll poll = parked.remove(queue);
+    if (poll != null) {
+      poll.resume();
+    }
+  }
+
+  /**
+   * Returns the number of polls which are parked.
+   */
+  public int size() {
+    return parked.size();
+  }
+}
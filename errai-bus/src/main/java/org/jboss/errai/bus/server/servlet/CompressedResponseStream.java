@@ -0,0 +1,323 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.servlet;
+
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a payload to a response, compressing it with the content encoding the client accepts.
+ * <p/>
+ * For a single payload, nothing is written until the payload is at least as large as the threshold, and a payload
+ * which is smaller is written as it is, since compressing it would save next to nothing. In streaming mode, where
+ * several payloads are written to the same response, the payloads are always compressed, by a single deflater which
+ * is sync-flushed by {@link #flush()} after each of them. The client can then decode each payload as soon as it
+ * arrives, and later payloads are compressed against the ones before, which is where the repeated keys of encoded
+ * entities are saved. Sync-flushing needs Java 7, so on older runtimes streamed payloads are written as they are.
+ * <p/>
+ * Whether to compress is always decided before anything reaches the response, since the <tt>Content-Encoding</tt>
+ * header must be sent ahead of it. A response which has already been committed is never compressed.
+ */
+public class CompressedResponseStream extends OutputStream {
+  public enum ContentEncoding {
+    GZip("gzip"), Deflate("deflate");
+
+    private final String token;
+
+    ContentEncoding(String token) {
+      this.token = token;
+    }
+
+    public String getToken() {
+      return token;
+    }
+
+    /**
+     * Returns the encoding to use for a client which sent the specified <tt>Accept-Encoding</tt> header, preferring
+     * gzip.
+     *
+     * @param acceptEncoding - the header, which may be null
+     * @return the encoding, or null if the client accepts neither
+     */
+    public static ContentEncoding negotiate(String acceptEncoding) {
+      if (acceptEncoding == null) return null;
+
+      ContentEncoding accepted = null;
+      for (String coding : acceptEncoding.split(",")) {
+        final String[] params = coding.split(";");
+        if (params.length > 1 && isZeroQuality(params[1].trim())) {
+          // the coding is not acceptable.
+          continue;
+        }
+
+        final String name = params[0].trim();
+        if (GZip.token.equalsIgnoreCase(name)) {
+          return GZip;
+        }
+        else if (Deflate.token.equalsIgnoreCase(name)) {
+          accepted = Deflate;
+        }
+      }
+      return accepted;
+    }
+
+    private static boolean isZeroQuality(String param) {
+      if (!param.startsWith("q=")) return false;
+      try {
+        return Float.parseFloat(param.substring(2)) == 0;
+      }
+      catch (NumberFormatException e) {
+        return false;
+      }
+    }
+  }
+
+  private static final Constructor<GZIPOutputStream> SYNC_FLUSH_GZIP
+          = getSyncFlushConstructor(GZIPOutputStream.class, OutputStream.class, int.class, boolean.class);
+  private static final Constructor<DeflaterOutputStream> SYNC_FLUSH_DEFLATE
+          = getSyncFlushConstructor(DeflaterOutputStream.class, OutputStream.class, Deflater.class, int.class,
+          boolean.class);
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private final HttpServletResponse response;
+  private final OutputStream out;
+  private final ContentEncoding encoding;
+  private final int threshold;
+  private final ServerBusMetrics metrics;
+
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+  private boolean decided;
+  private DeflaterOutputStream compressor;
+  private Deflater deflater;
+
+  private long bytesIn;
+  private long bytesOut;
+  private long compressNanos;
+  private boolean finished;
+
+  /**
+   * @param response  - the response, whose <tt>Content-Encoding</tt> is set if the payload is compressed
+   * @param out       - the stream to write the payload to
+   * @param encoding  - the encoding the client accepts, or null to write the payload as it is
+   * @param threshold - the size, in bytes, below which a payload is not compressed
+   * @param streaming - true if several payloads will be written, separated by calls to {@link #flush()}, in which case
+   *                  they are compressed as one stream, regardless of the threshold, if the runtime supports it
+   * @param metrics   - the metrics to record the compression into
+   * @throws IOException - if the compressed stream cannot be started
+   */
+  public CompressedResponseStream(HttpServletResponse response, OutputStream out, ContentEncoding encoding,
+                                  int threshold, boolean streaming, ServerBusMetrics metrics) throws IOException {
+    this.response = response;
+    this.out = out;
+    this.encoding = encoding;
+    this.threshold = threshold;
+    this.metrics = metrics;
+
+    if (encoding == null || response.isCommitted()) {
+      decided = true;
+    }
+    else if (streaming) {
+      if (isSyncFlushSupported()) {
+        startCompressing(true);
+      }
+      else {
+        decided = true;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the runtime can sync-flush a compressed stream, which is needed to compress in streaming mode.
+   *
+   * @return true on Java 7 and later
+   */
+  public static boolean isSyncFlushSupported() {
+    return SYNC_FLUSH_GZIP != null && SYNC_FLUSH_DEFLATE != null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (finished) throw new IOException("stream is finished");
+
+    if (compressor != null) {
+      compress(b, off, len);
+    }
+    else if (decided) {
+      out.write(b, off, len);
+    }
+    else {
+      pending.write(b, off, len);
+      if (pending.size() >= threshold) {
+        if (response.isCommitted()) {
+          // too late to send the header.
+          decided = true;
+          pending.writeTo(out);
+          pending.reset();
+          return;
+        }
+
+        startCompressing(false);
+        final byte[] bytes = pending.toByteArray();
+        pending.reset();
+        compress(bytes, 0, bytes.length);
+      }
+    }
+  }
+
+  /**
+   * Sends everything written so far to the client. A single payload which is not being compressed yet is sent as it
+   * is, which decides against compressing it. In streaming mode, the compressor is sync-flushed, so that the client
+   * can decode all of it without waiting for the rest of the response.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (compressor != null) {
+      final long start = System.nanoTime();
+      compressor.flush();
+      compressNanos += System.nanoTime() - start;
+    }
+    else if (!decided) {
+      decided = true;
+      pending.writeTo(out);
+      pending.reset();
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes the rest of the payload, and the end of the compressed stream, without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (finished) return;
+
+    if (compressor == null) {
+      if (!decided) {
+        decided = true;
+        pending.writeTo(out);
+      }
+    }
+    else {
+      final long start = System.nanoTime();
+      // closes the compressor, but not the underlying stream.
+      compressor.close();
+      if (deflater != null) deflater.end();
+      compressNanos += System.nanoTime() - start;
+
+      metrics.recordCompression(bytesIn, bytesOut, compressNanos);
+    }
+
+    finished = true;
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    out.close();
+  }
+
+  public boolean isCompressing() {
+    return compressor != null;
+  }
+
+  private void startCompressing(boolean syncFlush) throws IOException {
+    decided = true;
+
+    response.setHeader("Content-Encoding", encoding.getToken());
+    response.addHeader("Vary", "Accept-Encoding");
+
+    final OutputStream target = new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesOut++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytesOut += len;
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+
+    if (encoding == ContentEncoding.GZip) {
+      compressor = syncFlush ? newInstance(SYNC_FLUSH_GZIP, target, BUFFER_SIZE, true)
+              : new GZIPOutputStream(target, BUFFER_SIZE);
+    }
+    else {
+      // unlike a gzip stream, a deflater stream does not release a deflater it was given when it is closed.
+      deflater = new Deflater();
+      compressor = syncFlush ? newInstance(SYNC_FLUSH_DEFLATE, target, deflater, BUFFER_SIZE, true)
+              : new DeflaterOutputStream(target, deflater, BUFFER_SIZE);
+    }
+  }
+
+  private void compress(byte[] b, int off, int len) throws IOException {
+    final long start = System.nanoTime();
+    compressor.write(b, off, len);
+    compressNanos += System.nanoTime() - start;
+    bytesIn += len;
+  }
+
+  private static <T> T newInstance(Constructor<T> constructor, Object... args) throws IOException {
+    try {
+      return constructor.newInstance(args);
+    }
+    catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new RuntimeException("could not start compressing", e.getCause());
+    }
+    catch (Exception e) {
+      throw new RuntimeException("could not start compressing", e);
+    }
+  }
+
+  /**
+   * Returns the constructor of a compressing stream which takes a <tt>syncFlush</tt> flag, which only exists from
+   * Java 7.
+   */
+  private static <T> Constructor<T> getSyncFlushConstructor(Class<T> type, Class<?>... parameterTypes) {
+    try {
+      return type.getConstructor(parameterTypes);
+    }
+    catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -16,7 +16,7 @@
 
 package org.jboss.errai.bus.server.servlet;
 
-import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessage;
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
 
 import java.io.IOException;
 
@@ -71,7 +71,7 @@ public class DefaultBlockingServlet extends AbstractErraiServlet {
     final QueueSession session = sessionProvider.getSession(httpServletRequest.getSession(),
             httpServletRequest.getHeader(ClientMessageBus.REMOTE_QUEUE_ID_HEADER));
 
-    service.store(createCommandMessage(session, httpServletRequest.getInputStream()));
+    service.store(createCommandMessages(session, httpServletRequest.getInputStream()));
 
     pollForMessages(session, httpServletRequest, httpServletResponse, false);
   }
@@ -100,7 +100,7 @@ public class DefaultBlockingServlet extends AbstractErraiServlet {
 
       queue.heartBeat();
 
-      queue.poll(wait, outputStream);
+      writePayload(queue, httpServletRequest, httpServletResponse, wait);
 
       outputStream.close();
     }
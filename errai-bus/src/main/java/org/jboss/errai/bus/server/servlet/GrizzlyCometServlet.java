@@ -36,8 +36,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.CharBuffer;
+import java.util.List;
 
-import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessage;
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
 
 /**
  * The <tt>GrizzlyCometServlet</tt> provides the HTTP-protocol gateway between the server bus and the client buses,
@@ -87,10 +88,10 @@ public class GrizzlyCometServlet extends AbstractErraiServlet {
       buffer.rewind();
     }
 
-    Message msg = createCommandMessage(session, sb.toString());
-    if (msg != null) {
+    List<Message> messages = createCommandMessages(session, sb.toString());
+    if (!messages.isEmpty()) {
       try {
-        service.store(msg);
+        service.store(messages);
       }
       catch (Exception e) {
         if (!e.getMessage().contains("expired")) {
@@ -184,15 +185,15 @@ public class GrizzlyCometServlet extends AbstractErraiServlet {
     }
   }
 
-  private static void pollQueue(MessageQueue queue, HttpServletRequest httpServletRequest,
-                                HttpServletResponse httpServletResponse) throws IOException {
+  private void pollQueue(MessageQueue queue, HttpServletRequest httpServletRequest,
+                         HttpServletResponse httpServletResponse) throws IOException {
 
     queue.heartBeat();
 
     httpServletResponse.setHeader("Cache-Control", "no-cache");
     httpServletResponse.setContentType("application/json");
 
-    queue.poll(false, httpServletResponse.getOutputStream());
+    writePayload(queue, httpServletRequest, httpServletResponse, false);
 
   }
 }
@@ -37,7 +37,7 @@ import java.nio.CharBuffer;
 import java.util.*;
 
 import static org.jboss.errai.bus.client.framework.ClientMessageBus.REMOTE_QUEUE_ID_HEADER;
-import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessage;
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
 
 /**
  * The <tt>JBossCometServlet</tt> provides the HTTP-protocol gateway between the server bus and the client buses,
@@ -85,7 +85,7 @@ public class JBossCometServlet extends AbstractErraiServlet implements HttpEvent
             break;
           }
           else if (queue.messagesWaiting()) {
-            transmitMessages(event.getHttpServletResponse(), queue);
+            transmitMessages(event.getHttpServletRequest(), event.getHttpServletResponse(), queue);
             event.close();
             break;
           }
@@ -223,11 +223,11 @@ public class JBossCometServlet extends AbstractErraiServlet implements HttpEvent
       buffer.rewind();
     }
 
-    Message msg = createCommandMessage(sessionProvider.getSession(request.getSession(),
+    List<Message> messages = createCommandMessages(sessionProvider.getSession(request.getSession(),
         request.getHeader(REMOTE_QUEUE_ID_HEADER)), sb.toString());
-    if (msg != null) {
+    if (!messages.isEmpty()) {
       try {
-        service.store(msg);
+        service.store(messages);
       }
       catch (Exception e) {
         if (!e.getMessage().contains("expired")) {
@@ -236,7 +236,7 @@ public class JBossCometServlet extends AbstractErraiServlet implements HttpEvent
         }
       }
 
-      return 1;
+      return messages.size();
     }
     else {
       return 0;
@@ -278,7 +278,7 @@ public class JBossCometServlet extends AbstractErraiServlet implements HttpEvent
 
             Iterator<HttpEvent> iter = activeSessEvents.iterator();
             HttpEvent et;
-            transmitMessages((et = iter.next()).getHttpServletResponse(), queue);
+            transmitMessages((et = iter.next()).getHttpServletRequest(), et.getHttpServletResponse(), queue);
             iter.remove();
             et.close();
           }
@@ -296,16 +296,18 @@ public class JBossCometServlet extends AbstractErraiServlet implements HttpEvent
    * Transmits messages from the queue to the response, by writing them to the response's output stream in JSON
    * format
    *
+   * @param httpServletRequest  - the request the messages are a response to
    * @param httpServletResponse - the response that will contain all the messages to be transmitted
    * @param queue               - the queue holding the messages to be transmitted
    * @throws IOException - if an input or output error occurs while the servlet is handling the HTTP request
    */
-  public void transmitMessages(final HttpServletResponse httpServletResponse, MessageQueue queue) throws IOException {
+  public void transmitMessages(final HttpServletRequest httpServletRequest,
+                               final HttpServletResponse httpServletResponse, MessageQueue queue) throws IOException {
 
 //          log.info("Transmitting messages to client (Queue:" + queue.hashCode() + ")");
     httpServletResponse.setHeader("Cache-Control", "no-cache");
     httpServletResponse.setContentType("application/json");
-    queue.poll(false, httpServletResponse.getOutputStream());
+    writePayload(queue, httpServletRequest, httpServletResponse, false);
 
     //   queue.heartBeat();
   }
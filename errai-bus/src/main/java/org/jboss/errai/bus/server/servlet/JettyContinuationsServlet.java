@@ -31,7 +31,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessage;
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
 
 /**
  * The <tt>JettyContinuationsServlet</tt> provides the HTTP-protocol gateway between the server bus and the client buses,
@@ -73,7 +73,7 @@ public class JettyContinuationsServlet extends AbstractErraiServlet {
             httpServletRequest.getHeader(ClientMessageBus.REMOTE_QUEUE_ID_HEADER));
 
     try {
-      service.store(createCommandMessage(session, httpServletRequest.getInputStream()));
+      service.store(createCommandMessages(session, httpServletRequest.getInputStream()));
     }
     catch (Exception e) {
       if (!e.getMessage().contains("expired")) {
@@ -111,7 +111,7 @@ public class JettyContinuationsServlet extends AbstractErraiServlet {
           }
         }
 
-        pollQueue(queue, stream, httpServletResponse);
+        pollQueue(queue, httpServletRequest, httpServletResponse);
       }
     }
     catch (RetryRequest r) {
@@ -152,8 +152,8 @@ public class JettyContinuationsServlet extends AbstractErraiServlet {
     }
   }
 
-  private static void pollQueue(MessageQueue queue, OutputStream stream,
-                                HttpServletResponse httpServletResponse) throws IOException {
+  private void pollQueue(MessageQueue queue, HttpServletRequest httpServletRequest,
+                         HttpServletResponse httpServletResponse) throws IOException {
     if (queue == null) return;
 
     queue.heartBeat();
@@ -162,7 +162,7 @@ public class JettyContinuationsServlet extends AbstractErraiServlet {
     httpServletResponse.setHeader("Pragma", "no-cache");
     httpServletResponse.setHeader("Expires", "-1");
     httpServletResponse.setContentType("application/json");
-    queue.poll(false, stream);
+    writePayload(queue, httpServletRequest, httpServletResponse, false);
   }
 
   private static class JettyQueueActivationCallback implements QueueActivationCallback {
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.servlet;
+
+import org.jboss.errai.bus.client.framework.ClientMessageBus;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueSession;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
+
+/**
+ * The <tt>StandardAsyncServlet</tt> provides the HTTP-protocol gateway between the server bus and the client buses,
+ * using the asynchronous request processing of Servlet 3.0 and the non-blocking output of Servlet 3.1, so it works in
+ * any such container. A long-poll with no messages waiting does not hold a thread: it is parked in an
+ * {@link AsyncPollRegistry} until its queue is activated or it times out, and the reply is then written without
+ * blocking.
+ * <p/>
+ * The servlet must be declared with <tt>&lt;async-supported&gt;true&lt;/async-supported&gt;</tt>, as must any filter
+ * in front of it.
+ */
+public class StandardAsyncServlet extends AbstractErraiServlet {
+  private static final long POLL_TIMEOUT = 45 * 1000;
+
+  private final AsyncPollRegistry registry = new AsyncPollRegistry();
+
+  /**
+   * Called by the server (via the <tt>service</tt> method) to allow a servlet to handle a GET request by supplying
+   * a response
+   *
+   * @param httpServletRequest  - object that contains the request the client has made of the servlet
+   * @param httpServletResponse - object that contains the response the servlet sends to the client
+   * @throws IOException      - if an input or output error is detected when the servlet handles the GET request
+   * @throws ServletException - if the request for the GET could not be handled
+   */
+  @Override
+  protected void doGet(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+          throws ServletException, IOException {
+    final QueueSession session = sessionProvider.getSession(httpServletRequest.getSession(),
+            httpServletRequest.getHeader(ClientMessageBus.REMOTE_QUEUE_ID_HEADER));
+
+    try {
+      final MessageQueue queue = service.getBus().getQueue(session);
+
+      if (queue == null) {
+        switch (getConnectionPhase(httpServletRequest)) {
+          case CONNECTING:
+          case DISCONNECTING:
+            return;
+        }
+
+        sendDisconnectDueToSessionExpiry(httpServletResponse.getOutputStream());
+        return;
+      }
+
+      if (queue.messagesWaiting()) {
+        pollQueue(queue, httpServletRequest, httpServletResponse);
+        return;
+      }
+
+      final AsyncContext asyncContext = httpServletRequest.startAsync();
+      asyncContext.setTimeout(POLL_TIMEOUT);
+
+      final AsyncPoll poll = new AsyncPoll(queue, asyncContext);
+      asyncContext.addListener(poll);
+      registry.park(queue, poll);
+    }
+    catch (final Throwable t) {
+      writeExceptionToOutputStream(httpServletResponse, t);
+    }
+  }
+
+  /**
+   * Called by the server (via the <code>service</code> method) to allow a servlet to handle a POST request, by
+   * sending the request
+   *
+   * @param httpServletRequest  - object that contains the request the client has made of the servlet
+   * @param httpServletResponse - object that contains the response the servlet sends to the client
+   * @throws IOException      - if an input or output error is detected when the servlet handles the request
+   * @throws ServletException - if the request for the POST could not be handled
+   */
+  @Override
+  protected void doPost(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+          throws ServletException, IOException {
+
+    final QueueSession session = sessionProvider.getSession(httpServletRequest.getSession(),
+            httpServletRequest.getHeader(ClientMessageBus.REMOTE_QUEUE_ID_HEADER));
+
+    try {
+      service.store(createCommandMessages(session, httpServletRequest.getInputStream()));
+    }
+    catch (Exception e) {
+      final String message = e.getMessage();
+      if (message == null || !message.contains("expired")) {
+        writeExceptionToOutputStream(httpServletResponse, e);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of long-polls currently parked by this servlet.
+   */
+  public int getParkedPollCount() {
+    return registry.size();
+  }
+
+  private static void setPollHeaders(HttpServletResponse httpServletResponse) {
+    httpServletResponse.setHeader("Cache-Control", "no-cache");
+    httpServletResponse.setHeader("Pragma", "no-cache");
+    httpServletResponse.setHeader("Expires", "-1");
+    httpServletResponse.setContentType("application/json");
+  }
+
+  private void pollQueue(MessageQueue queue, HttpServletRequest httpServletRequest,
+                         HttpServletResponse httpServletResponse) throws IOException {
+    queue.heartBeat();
+    setPollHeaders(httpServletResponse);
+    writePayload(queue, httpServletRequest, httpServletResponse, false);
+  }
+
+  /**
+   * A long-poll parked in the registry. When it is resumed, the queue is polled into a buffer on a container thread,
+   * which is then written to the client as the connection accepts it. If the poll times out first, or after it was
+   * resumed but before the queue was polled, the timeout polls the queue instead. Once the queue has been polled, only
+   * the write finishes the poll, so the messages taken from the queue are never dropped. Nothing ever waits for
+   * another thread, and the async context is completed exactly once.
+   */
+  private class AsyncPoll implements AsyncPollRegistry.ParkedPoll, AsyncListener, WriteListener {
+    private static final int PARKED = 0;
+    private static final int RESUMED = 1;
+    private static final int WRITING = 2;
+    private static final int TIMED_OUT = 3;
+
+    private final MessageQueue queue;
+    private final AsyncContext asyncContext;
+    private final AtomicInteger state = new AtomicInteger(PARKED);
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private byte[] payload;
+    private int written;
+
+    private AsyncPoll(MessageQueue queue, AsyncContext asyncContext) {
+      this.queue = queue;
+      this.asyncContext = asyncContext;
+    }
+
+    public void resume() {
+      if (!state.compareAndSet(PARKED, RESUMED)) return;
+
+      asyncContext.start(new Runnable() {
+        public void run() {
+          write();
+        }
+      });
+    }
+
+    private void write() {
+      // the poll timed out while this was waiting for a thread, and the timeout has answered it.
+      if (!state.compareAndSet(RESUMED, WRITING)) return;
+
+      final HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+      try {
+        setPollHeaders(response);
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final CompressedResponseStream stream
+                = openPayloadStream((HttpServletRequest) asyncContext.getRequest(), response, buffer);
+        queue.heartBeat();
+        queue.poll(false, stream);
+        stream.finish();
+        payload = buffer.toByteArray();
+
+        response.setContentLength(payload.length);
+        response.getOutputStream().setWriteListener(this);
+      }
+      catch (Throwable t) {
+        fail(response, t);
+      }
+    }
+
+    public void onWritePossible() throws IOException {
+      final ServletOutputStream stream = asyncContext.getResponse().getOutputStream();
+      while (stream.isReady()) {
+        if (written == payload.length) {
+          complete();
+          return;
+        }
+
+        final int length = Math.min(payload.length - written, 8192);
+        stream.write(payload, written, length);
+        written += length;
+      }
+    }
+
+    public void onError(Throwable t) {
+      log.debug("could not write to client", t);
+      complete();
+    }
+
+    public void onTimeout(AsyncEvent event) throws IOException {
+      registry.unpark(queue, this);
+      if (!state.compareAndSet(PARKED, TIMED_OUT) && !state.compareAndSet(RESUMED, TIMED_OUT)) {
+        /**
+         * The queue has already been polled, and the reply is being written, which completes the context when it is
+         * done. Completing it here would drop the messages which were taken from the queue.
+         */
+        return;
+      }
+
+      /**
+       * Either nothing arrived while the poll was parked, or the write which was to answer it has not started yet.
+       * The queue is polled here instead, and written as it would be by a blocking servlet.
+       */
+      final HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+      try {
+        pollQueue(queue, (HttpServletRequest) asyncContext.getRequest(), response);
+      }
+      catch (Throwable t) {
+        fail(response, t);
+        return;
+      }
+      complete();
+    }
+
+    public void onError(AsyncEvent event) {
+      registry.unpark(queue, this);
+    }
+
+    public void onComplete(AsyncEvent event) {
+      registry.unpark(queue, this);
+    }
+
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private void fail(HttpServletResponse response, Throwable t) {
+      try {
+        writeExceptionToOutputStream(response, t);
+      }
+      catch (IOException e) {
+        log.debug("could not write error to client", e);
+      }
+      finally {
+        complete();
+      }
+    }
+
+    private void complete() {
+      if (completed.compareAndSet(false, true)) {
+        asyncContext.complete();
+      }
+    }
+  }
+}
@@ -36,11 +36,12 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.CharBuffer;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessage;
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
 
 /**
  * The <tt>TomcatCometServlet</tt> provides the HTTP-protocol gateway between the server bus and the client buses,
@@ -83,7 +84,7 @@ public class TomcatCometServlet extends AbstractErraiServlet implements CometPro
               break;
             }
             else if (queue.messagesWaiting()) {
-              transmitMessages(event.getHttpServletResponse(), queue);
+              transmitMessages(event.getHttpServletRequest(), event.getHttpServletResponse(), queue);
               event.close();
               break;
             }
@@ -235,11 +236,11 @@ public class TomcatCometServlet extends AbstractErraiServlet implements CometPro
       }
 
 
-      Message msg = createCommandMessage(sessionProvider.getSession(request.getSession(),
+      List<Message> messages = createCommandMessages(sessionProvider.getSession(request.getSession(),
           request.getHeader(ClientMessageBus.REMOTE_QUEUE_ID_HEADER)), sb.toString());
-      if (msg != null) {
+      if (!messages.isEmpty()) {
         try {
-          service.store(msg);
+          service.store(messages);
         }
         catch (Exception e) {
           if (!e.getMessage().contains("expired")) {
@@ -248,7 +249,7 @@ public class TomcatCometServlet extends AbstractErraiServlet implements CometPro
           }
         }
 
-        return 1;
+        return messages.size();
       }
       else {
         return 0;
@@ -303,7 +304,7 @@ public class TomcatCometServlet extends AbstractErraiServlet implements CometPro
             }
 
             try {
-              transmitMessages(et.getHttpServletResponse(), queue);
+              transmitMessages(et.getHttpServletRequest(), et.getHttpServletResponse(), queue);
             }
             catch (NullPointerException e) {
               activeSessEvents.remove(et);
@@ -332,16 +333,18 @@ public class TomcatCometServlet extends AbstractErraiServlet implements CometPro
    * Transmits messages from the queue to the response, by writing them to the response's output stream in JSON
    * format
    *
+   * @param httpServletRequest  - the request the messages are a response to
    * @param httpServletResponse - the response that will contain all the messages to be transmitted
    * @param queue               - the queue holding the messages to be transmitted
    * @throws IOException - if an input or output error occurs while the servlet is handling the HTTP request
    */
-  public void transmitMessages(final HttpServletResponse httpServletResponse, MessageQueue queue) throws IOException {
+  public void transmitMessages(final HttpServletRequest httpServletRequest,
+                               final HttpServletResponse httpServletResponse, MessageQueue queue) throws IOException {
     //  log.info("Transmitting messages to client (Queue:" + queue.hashCode() + ")");
     httpServletResponse.setHeader("Cache-Control", "no-cache");
     //    httpServletResponse.addHeader("Payload-Size", String.valueOf(messages.size()));
     httpServletResponse.setContentType("application/json");
-    queue.poll(false, httpServletResponse.getOutputStream());
+    writePayload(queue, httpServletRequest, httpServletResponse, false);
     queue.heartBeat();
   }
 
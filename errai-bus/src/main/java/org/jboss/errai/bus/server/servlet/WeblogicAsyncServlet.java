@@ -30,8 +30,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.CharBuffer;
+import java.util.List;
 
-import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessage;
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
 
 /**
  * The <tt>WeblogicAsyncServlet</tt> provides the HTTP-protocol gateway between the server bus and the client buses,
@@ -85,10 +86,10 @@ public class WeblogicAsyncServlet extends AbstractErraiServlet {
       buffer.rewind();
     }
 
-    Message m = createCommandMessage(session, sb.toString());
-    if (m != null) {
+    List<Message> messages = createCommandMessages(session, sb.toString());
+    if (!messages.isEmpty()) {
       try {
-        service.store(m);
+        service.store(messages);
       }
       catch (Exception e) {
         if (!e.getMessage().contains("expired")) {
@@ -150,13 +151,13 @@ public class WeblogicAsyncServlet extends AbstractErraiServlet {
     }
   }
 
-  private static void pollQueue(MessageQueue queue, HttpServletRequest httpServletRequest,
-                                HttpServletResponse httpServletResponse) throws IOException {
+  private void pollQueue(MessageQueue queue, HttpServletRequest httpServletRequest,
+                         HttpServletResponse httpServletResponse) throws IOException {
     queue.heartBeat();
 
     httpServletResponse.setHeader("Cache-Control", "no-cache");
     httpServletResponse.setContentType("application/json");
-    queue.poll(false, httpServletResponse.getOutputStream());
+    writePayload(queue, httpServletRequest, httpServletResponse, false);
   }
 
   public static void main(String[] args) {
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.util;
+
+import org.jboss.errai.bus.client.api.Message;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer of messages. Any number of threads may offer messages into the buffer without
+ * ever blocking; <tt>offer</tt> simply returns <tt>false</tt> when the buffer is full, leaving it to the caller to
+ * decide what to drop. The buffer is drained by a single consumer (the polling side of a
+ * {@link org.jboss.errai.bus.server.MessageQueueImpl}), which may optionally park while waiting for messages.
+ * <p/>
+ * Each slot carries a sequence number which tells producers and the consumer whether the slot is free, published or
+ * consumed (after Dmitry Vyukov's bounded queue). Slots may also be vacated or replaced in place while they are still
+ * waiting to be consumed; a vacated slot is silently skipped by the consumer.
+ */
+public class MessageRingBuffer extends AbstractQueue<Message> {
+  private final int capacity;
+  private final int mask;
+
+  private final AtomicReferenceArray<Message> slots;
+  private final AtomicLongArray sequences;
+
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicInteger size = new AtomicInteger();
+
+  private volatile Thread waiter;
+
+  /**
+   * Creates a new ring buffer. The capacity is rounded up to the next power of two.
+   *
+   * @param capacity - the minimum number of messages the buffer can hold
+   */
+  public MessageRingBuffer(int capacity) {
+    if (capacity < 1) throw new IllegalArgumentException("capacity must be greater than zero: " + capacity);
+
+    int c = 1;
+    while (c < capacity) c <<= 1;
+
+    this.capacity = c;
+    this.mask = c - 1;
+    this.slots = new AtomicReferenceArray<Message>(c);
+    this.sequences = new AtomicLongArray(c);
+
+    for (int i = 0; i < c; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Inserts the message at the tail of the buffer if there is room for it. This method never blocks.
+   *
+   * @param message - the message to insert
+   * @return true if the message was inserted, false if the buffer is full
+   */
+  public boolean offer(Message message) {
+    return enqueue(message) != -1;
+  }
+
+  /**
+   * Inserts the message at the tail of the buffer if there is room for it, and returns the position it was inserted
+   * at. The position may later be passed to {@link #replace(long, Message)}. This method never blocks.
+   *
+   * @param message - the message to insert
+   * @return the position of the message in the buffer, or -1 if the buffer is full
+   */
+  public long enqueue(Message message) {
+    if (message == null) throw new NullPointerException();
+
+    long pos;
+    int idx;
+    for (; ; ) {
+      pos = tail.get();
+      idx = (int) (pos & mask);
+      long dif = sequences.get(idx) - pos;
+
+      if (dif == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) break;
+      }
+      else if (dif < 0) {
+        return -1;
+      }
+    }
+
+    slots.set(idx, message);
+    size.incrementAndGet();
+
+    // a full volatile write here, so that the publication cannot be reordered with the read of the waiter below.
+    sequences.set(idx, pos + 1);
+
+    Thread t = waiter;
+    if (t != null) LockSupport.unpark(t);
+
+    return pos;
+  }
+
+  /**
+   * Removes and returns the message at the head of the buffer. Vacated slots are skipped.
+   *
+   * @return the next message, or null if the buffer is empty
+   */
+  public Message poll() {
+    for (; ; ) {
+      long pos = head.get();
+      int idx = (int) (pos & mask);
+      long dif = sequences.get(idx) - (pos + 1);
+
+      if (dif == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          Message m = slots.getAndSet(idx, null);
+          sequences.lazySet(idx, pos + capacity);
+
+          if (m != null) {
+            size.decrementAndGet();
+            return m;
+          }
+        }
+      }
+      else if (dif < 0) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the message at the head of the buffer, waiting up to the specified time for one to become
+   * available. Only one thread may wait on the buffer at any one time.
+   *
+   * @param timeout - how long to wait
+   * @param unit    - the unit of the timeout
+   * @return the next message, or null if none became available in time
+   * @throws InterruptedException - if the waiting thread is interrupted
+   */
+  public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+    Message m = poll();
+    if (m != null) return m;
+
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    waiter = Thread.currentThread();
+    try {
+      long remaining;
+      while ((m = poll()) == null && (remaining = deadline - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.interrupted()) throw new InterruptedException();
+      }
+      return m;
+    }
+    finally {
+      waiter = null;
+    }
+  }
+
+  public Message peek() {
+    for (long pos = head.get(); pos < tail.get(); pos++) {
+      int idx = (int) (pos & mask);
+      if (sequences.get(idx) == pos + 1) {
+        Message m = slots.get(idx);
+        if (m != null) return m;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Replaces the message inserted at the specified position, provided it is still waiting to be consumed.
+   *
+   * @param pos     - the position returned by {@link #enqueue(Message)}
+   * @param message - the message to put in its place
+   * @return true if the message was replaced, false if it has already been consumed or removed
+   */
+  public boolean replace(long pos, Message message) {
+    int idx = (int) (pos & mask);
+    if (sequences.get(idx) != pos + 1) return false;
+
+    Message m = slots.get(idx);
+    return m != null && sequences.get(idx) == pos + 1 && slots.compareAndSet(idx, m, message);
+  }
+
+  /**
+   * Returns true if the message inserted at the specified position has been taken from the head of the buffer.
+   *
+   * @param pos - the position returned by {@link #enqueue(Message)}
+   * @return true if the message is no longer waiting to be consumed
+   */
+  public boolean isConsumed(long pos) {
+    return head.get() > pos;
+  }
+
+  /**
+   * Replaces the most recently offered message which has the specified subject and has not yet been consumed.
+   *
+   * @param subject - the subject to match
+   * @param message - the message to put in its place
+   * @return true if a message was replaced
+   */
+  public boolean replaceLast(String subject, Message message) {
+    for (long pos = tail.get() - 1, start = head.get(); pos >= start; pos--) {
+      int idx = (int) (pos & mask);
+      if (sequences.get(idx) != pos + 1) continue;
+
+      Message m = slots.get(idx);
+      if (m != null && subject.equals(m.getSubject()) && sequences.get(idx) == pos + 1
+              && slots.compareAndSet(idx, m, message)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Vacates the slot occupied by the specified message, if it has not already been consumed.
+   *
+   * @param o - the message to remove
+   * @return true if the message was removed
+   */
+  public boolean remove(Object o) {
+    for (long pos = head.get(), end = tail.get(); pos < end; pos++) {
+      int idx = (int) (pos & mask);
+      if (sequences.get(idx) == pos + 1 && slots.get(idx) == o && vacate(idx, (Message) o)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean vacate(int idx, Message m) {
+    if (slots.compareAndSet(idx, m, null)) {
+      size.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns a weakly consistent iterator over the messages waiting in the buffer. The iterator supports
+   * <tt>remove()</tt>.
+   *
+   * @return an iterator over the waiting messages.
+   */
+  public Iterator<Message> iterator() {
+    return new Iterator<Message>() {
+      private long pos = head.get();
+      private int nextIdx = -1;
+      private int lastIdx = -1;
+      private Message last;
+      private Message next = advance();
+
+      private Message advance() {
+        for (long end = tail.get(); pos < end; pos++) {
+          int idx = (int) (pos & mask);
+          if (sequences.get(idx) != pos + 1) continue;
+
+          Message m = slots.get(idx);
+          if (m != null) {
+            nextIdx = idx;
+            pos++;
+            return m;
+          }
+        }
+        return null;
+      }
+
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      public Message next() {
+        if (next == null) throw new NoSuchElementException();
+        last = next;
+        lastIdx = nextIdx;
+        next = advance();
+        return last;
+      }
+
+      public void remove() {
+        if (last == null) throw new IllegalStateException();
+        vacate(lastIdx, last);
+        last = null;
+      }
+    };
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  public boolean isEmpty() {
+    return size.get() == 0;
+  }
+
+  /**
+   * Returns the maximum number of messages the buffer can hold.
+   *
+   * @return the capacity of the buffer
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+}
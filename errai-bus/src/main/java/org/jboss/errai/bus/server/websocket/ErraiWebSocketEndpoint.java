@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.websocket;
+
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.service.ErraiService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.websocket.CloseReason;
+import javax.websocket.DeploymentException;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.server.HandshakeRequest;
+import javax.websocket.server.ServerContainer;
+import javax.websocket.server.ServerEndpointConfig;
+import java.io.IOException;
+
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessages;
+
+/**
+ * A web socket endpoint which carries the bus traffic of a client which has already connected by polling. The first
+ * frame the client sends is the ID of its queue, which is looked up in its HTTP session, just as a poll would. From
+ * then on, the messages offered to the queue are pushed to the client through a {@link WebSocketQueueBridge}, and
+ * each frame from the client is a payload of messages for the server bus, as it would be posted.
+ * <p/>
+ * The endpoint is registered by the servlet when <tt>errai.bus.web_socket_path</tt> is configured.
+ */
+public class ErraiWebSocketEndpoint extends Endpoint {
+  private static final Logger log = LoggerFactory.getLogger(ErraiWebSocketEndpoint.class);
+
+  private static final String HTTP_SESSION = HttpSession.class.getName();
+
+  private volatile WebSocketQueueBridge bridge;
+
+  /**
+   * Registers the endpoint at the specified path of the web application.
+   *
+   * @param context - the servlet context of the web application
+   * @param path    - the path of the endpoint, relative to the context
+   * @throws DeploymentException - if the container does not support web sockets, or the endpoint is invalid
+   */
+  public static void register(ServletContext context, String path) throws DeploymentException {
+    final ServerContainer container = (ServerContainer) context.getAttribute(ServerContainer.class.getName());
+    if (container == null) {
+      throw new DeploymentException("the servlet container does not support web sockets");
+    }
+
+    container.addEndpoint(ServerEndpointConfig.Builder.create(ErraiWebSocketEndpoint.class, path)
+            .configurator(new ServerEndpointConfig.Configurator() {
+              @Override
+              public void modifyHandshake(ServerEndpointConfig config, HandshakeRequest request,
+                                          HandshakeResponse response) {
+                config.getUserProperties().put(HTTP_SESSION, request.getHttpSession());
+              }
+            }).build());
+  }
+
+  @Override
+  public void onOpen(final Session session, EndpointConfig config) {
+    final HttpSession httpSession = (HttpSession) config.getUserProperties().get(HTTP_SESSION);
+    if (httpSession == null) {
+      close(session, "no HTTP session");
+      return;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    final ErraiService<HttpSession> service
+            = (ErraiService<HttpSession>) httpSession.getServletContext().getAttribute("errai");
+
+    session.addMessageHandler(new MessageHandler.Whole<String>() {
+      private QueueSession queueSession;
+
+      public void onMessage(String frame) {
+        if (queueSession == null) {
+          queueSession = service.getSessionProvider().getSession(httpSession, frame);
+          final MessageQueue queue = service.getBus().getQueue(queueSession);
+          if (queue == null) {
+            close(session, "there is no queue associated with this session");
+            return;
+          }
+
+          bridge = new WebSocketQueueBridge(queue, new WebSocketQueueBridge.FrameSink() {
+            public void send(String frame) throws IOException {
+              session.getBasicRemote().sendText(frame);
+            }
+          });
+          bridge.attach();
+          return;
+        }
+
+        try {
+          service.store(createCommandMessages(queueSession, frame));
+        }
+        catch (Exception e) {
+          log.debug("could not store messages from client", e);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void onClose(Session session, CloseReason closeReason) {
+    if (bridge != null) bridge.detach();
+  }
+
+  @Override
+  public void onError(Session session, Throwable t) {
+    log.debug("web socket error", t);
+    if (bridge != null) bridge.detach();
+  }
+
+  private static void close(Session session, String reason) {
+    try {
+      session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, reason));
+    }
+    catch (IOException e) {
+      log.debug("could not close web socket", e);
+    }
+  }
+}
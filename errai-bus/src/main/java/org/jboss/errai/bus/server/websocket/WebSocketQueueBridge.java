@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.server.websocket;
+
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.PushActivationCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the messages offered to a {@link MessageQueue} to a client as soon as they arrive, as frames of the same
+ * JSON the client would otherwise receive from a poll. The bridge is the activation callback of the queue while it
+ * is attached. Activations from several threads at once are collapsed, so only one thread drains the queue at a
+ * time, and an activation which arrives while it does so makes it drain the queue again.
+ */
+public class WebSocketQueueBridge implements PushActivationCallback {
+  private static final Logger log = LoggerFactory.getLogger(WebSocketQueueBridge.class);
+
+  /**
+   * Sends frames to the client.
+   */
+  public interface FrameSink {
+    void send(String frame) throws IOException;
+  }
+
+  private final MessageQueue queue;
+  private final FrameSink sink;
+
+  private final AtomicInteger activations = new AtomicInteger();
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+
+  public WebSocketQueueBridge(MessageQueue queue, FrameSink sink) {
+    this.queue = queue;
+    this.sink = sink;
+  }
+
+  /**
+   * Makes this bridge the activation callback of the queue, and pushes any messages already waiting.
+   */
+  public void attach() {
+    queue.setActivationCallback(this);
+    if (queue.messagesWaiting()) {
+      activate(queue);
+    }
+  }
+
+  /**
+   * Stops pushing messages, leaving them in the queue for the client to poll for instead.
+   */
+  public void detach() {
+    synchronized (queue.getActivationLock()) {
+      if (queue.getActivationCallback() == this) {
+        queue.setActivationCallback(null);
+      }
+    }
+  }
+
+  public MessageQueue getQueue() {
+    return queue;
+  }
+
+  public void activate(MessageQueue queue) {
+    if (activations.getAndIncrement() != 0) return;
+
+    int missed = 1;
+    do {
+      try {
+        drain();
+      }
+      catch (IOException e) {
+        log.debug("could not push to client; falling back to polling", e);
+        detach();
+      }
+      catch (RuntimeException e) {
+        log.debug("could not poll queue", e);
+        detach();
+      }
+      missed = activations.addAndGet(-missed);
+    }
+    while (missed != 0);
+  }
+
+  private void drain() throws IOException {
+    while (queue.messagesWaiting()) {
+      buffer.reset();
+      queue.poll(false, buffer);
+
+      /**
+       * Nothing is written if the queue is already being polled, and an empty array if another poll took the
+       * messages first. Either way, that poll delivers them.
+       */
+      if (buffer.size() <= 2) return;
+
+      sink.send(buffer.toString("UTF-8"));
+    }
+  }
+}
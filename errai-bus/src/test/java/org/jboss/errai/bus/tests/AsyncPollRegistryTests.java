@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueActivationCallback;
+import org.jboss.errai.bus.server.servlet.AsyncPollRegistry;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.jboss.errai.bus.tests.Stubs.stub;
+
+public class AsyncPollRegistryTests extends TestCase {
+  public void testResumedOnceOnActivation() {
+    AsyncPollRegistry registry = new AsyncPollRegistry();
+    AtomicReference<QueueActivationCallback> callback = new AtomicReference<QueueActivationCallback>();
+    MessageQueue queue = queue(new AtomicBoolean(false), callback);
+
+    CountingPoll poll = new CountingPoll();
+    registry.park(queue, poll);
+    assertSame(registry, callback.get());
+    assertEquals(1, registry.size());
+    assertEquals(0, poll.resumed.get());
+
+    callback.get().activate(queue);
+    callback.get().activate(queue);
+    assertEquals(1, poll.resumed.get());
+    assertEquals(0, registry.size());
+    assertFalse(registry.unpark(queue, poll));
+  }
+
+  public void testResumedWhenMessagesAlreadyWaiting() {
+    AsyncPollRegistry registry = new AsyncPollRegistry();
+    MessageQueue queue = queue(new AtomicBoolean(true), new AtomicReference<QueueActivationCallback>());
+
+    CountingPoll poll = new CountingPoll();
+    registry.park(queue, poll);
+    assertEquals(1, poll.resumed.get());
+    assertEquals(0, registry.size());
+  }
+
+  public void testSupersededPollResumed() {
+    AsyncPollRegistry registry = new AsyncPollRegistry();
+    MessageQueue queue = queue(new AtomicBoolean(false), new AtomicReference<QueueActivationCallback>());
+
+    CountingPoll first = new CountingPoll();
+    CountingPoll second = new CountingPoll();
+    registry.park(queue, first);
+    registry.park(queue, second);
+
+    assertEquals(1, first.resumed.get());
+    assertEquals(0, second.resumed.get());
+    assertFalse(registry.unpark(queue, first));
+    assertTrue(registry.unpark(queue, second));
+  }
+
+  private static class CountingPoll implements AsyncPollRegistry.ParkedPoll {
+    private final AtomicInteger resumed = new AtomicInteger();
+
+    public void resume() {
+      resumed.incrementAndGet();
+    }
+  }
+
+  private static MessageQueue queue(final AtomicBoolean messagesWaiting,
+                                    final AtomicReference<QueueActivationCallback> callback) {
+    return stub(MessageQueue.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if ("messagesWaiting".equals(name)) return messagesWaiting.get();
+        if ("setActivationCallback".equals(name)) callback.set((QueueActivationCallback) args[0]);
+        if ("getActivationCallback".equals(name)) return callback.get();
+        return null;
+      }
+    });
+  }
+}
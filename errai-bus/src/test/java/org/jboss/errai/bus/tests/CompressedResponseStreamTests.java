@@ -0,0 +1,197 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+import org.jboss.errai.bus.server.servlet.CompressedResponseStream;
+import org.jboss.errai.bus.server.servlet.CompressedResponseStream.ContentEncoding;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.jboss.errai.bus.tests.Stubs.stub;
+
+public class CompressedResponseStreamTests extends TestCase {
+  private static final String ENTITY = "{\"__EncodedType\":\"org.errai.samples.serialization.client.model.Item\"," +
+          "\"__ObjectID\":\"1\",\"name\":\"Item\"}";
+
+  private final Map<String, String> headers = new HashMap<String, String>();
+  private final ServerBusMetrics metrics
+          = new ServerBusMetrics(Collections.<QueueSession, MessageQueue>emptyMap());
+
+  public void testNegotiate() {
+    assertEquals(ContentEncoding.GZip, ContentEncoding.negotiate("deflate, gzip"));
+    assertEquals(ContentEncoding.Deflate, ContentEncoding.negotiate("deflate, gzip;q=0"));
+    assertEquals(ContentEncoding.GZip, ContentEncoding.negotiate("gzip;q=0.5"));
+    assertNull(ContentEncoding.negotiate("identity"));
+    assertNull(ContentEncoding.negotiate(null));
+  }
+
+  public void testSmallPayloadNotCompressed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedResponseStream stream = new CompressedResponseStream(response(), out, ContentEncoding.GZip, 1024,
+            false, metrics);
+    stream.write(ENTITY.getBytes("UTF-8"));
+    stream.finish();
+
+    assertFalse(stream.isCompressing());
+    assertNull(headers.get("Content-Encoding"));
+    assertEquals(ENTITY, out.toString("UTF-8"));
+    assertEquals(0, metrics.getCompressedPayloads());
+  }
+
+  public void testGZip() throws Exception {
+    String payload = payload(100);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedResponseStream stream = new CompressedResponseStream(response(), out, ContentEncoding.GZip, 1024,
+            false, metrics);
+    stream.write(payload.getBytes("UTF-8"));
+    stream.finish();
+
+    assertEquals("gzip", headers.get("Content-Encoding"));
+    assertEquals(payload, read(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+
+    assertEquals(1, metrics.getCompressedPayloads());
+    assertEquals(payload.length() - out.size(), metrics.getCompressionBytesSaved());
+    assertTrue(metrics.getCompressionBytesSaved() > 0);
+  }
+
+  public void testDeflate() throws Exception {
+    String payload = payload(100);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedResponseStream stream = new CompressedResponseStream(response(), out, ContentEncoding.Deflate, 1024,
+            false, metrics);
+    stream.write(payload.getBytes("UTF-8"));
+    stream.finish();
+
+    assertEquals("deflate", headers.get("Content-Encoding"));
+    assertEquals(payload, read(new InflaterInputStream(new ByteArrayInputStream(out.toByteArray()))));
+    assertEquals(1, metrics.getCompressedPayloads());
+  }
+
+  public void testStreamingSyncFlushed() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedResponseStream stream = new CompressedResponseStream(response(false), out, ContentEncoding.Deflate,
+            1024, true, metrics);
+
+    if (!CompressedResponseStream.isSyncFlushSupported()) {
+      // streamed payloads are written as they are.
+      assertFalse(stream.isCompressing());
+      assertNull(headers.get("Content-Encoding"));
+      return;
+    }
+
+    // the header is set before anything is written.
+    assertTrue(stream.isCompressing());
+    assertEquals("deflate", headers.get("Content-Encoding"));
+
+    Inflater inflater = new Inflater();
+    StringBuilder sent = new StringBuilder();
+    StringBuilder received = new StringBuilder();
+    int read = 0;
+    for (int i = 0; i < 3; i++) {
+      String payload = payload(10);
+      sent.append(payload);
+
+      stream.write(payload.getBytes("UTF-8"));
+      stream.flush();
+
+      // each payload can be decoded as soon as it has been flushed.
+      byte[] bytes = out.toByteArray();
+      inflater.setInput(bytes, read, bytes.length - read);
+      read = bytes.length;
+
+      byte[] buf = new byte[4096];
+      int length;
+      while ((length = inflater.inflate(buf)) != 0) {
+        received.append(new String(buf, 0, length, "UTF-8"));
+      }
+      assertEquals(sent.toString(), received.toString());
+    }
+    inflater.end();
+
+    stream.finish();
+    assertEquals(1, metrics.getCompressedPayloads());
+    assertTrue(metrics.getCompressionBytesSaved() > 0);
+  }
+
+  public void testCommittedResponseNotCompressed() throws Exception {
+    String payload = payload(100);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedResponseStream stream = new CompressedResponseStream(response(true), out, ContentEncoding.GZip, 1024,
+            false, metrics);
+    stream.write(payload.getBytes("UTF-8"));
+    stream.finish();
+
+    // the header could no longer be sent, so the payload must not be compressed.
+    assertFalse(stream.isCompressing());
+    assertEquals(payload, out.toString("UTF-8"));
+    assertEquals(0, metrics.getCompressedPayloads());
+  }
+
+  private static String payload(int entities) {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < entities; i++) {
+      if (i != 0) builder.append(',');
+      builder.append(ENTITY);
+    }
+    return builder.append(']').toString();
+  }
+
+  private static String read(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    int read;
+    while ((read = in.read(buf)) != -1) {
+      out.write(buf, 0, read);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private HttpServletResponse response() {
+    return response(false);
+  }
+
+  private HttpServletResponse response(final boolean committed) {
+    return stub(HttpServletResponse.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if ("setHeader".equals(name) || "addHeader".equals(name)) {
+          headers.put((String) args[0], (String) args[1]);
+        }
+        if ("isCommitted".equals(name)) return committed;
+        return null;
+      }
+    });
+  }
+}
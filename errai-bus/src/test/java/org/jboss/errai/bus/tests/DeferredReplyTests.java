@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.client.api.base.MessageBuilder;
+import org.jboss.errai.bus.client.protocols.MessageParts;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.api.DeferredReply;
+import org.jboss.errai.bus.server.io.ConversationalEndpointCallback;
+import org.jboss.errai.bus.server.io.JSONMessageServer;
+
+import javax.inject.Provider;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.errai.bus.tests.Stubs.session;
+
+public class DeferredReplyTests extends TestCase {
+  private final BlockingQueue<Message> sent = new LinkedBlockingQueue<Message>();
+  private final Service service = new Service();
+
+  private ServerMessageBusImpl bus;
+
+  @Override
+  protected void setUp() throws Exception {
+    MessageBuilder.setMessageProvider(JSONMessageServer.PROVIDER);
+
+    // replies are addressed to the client's session, so are captured rather than delivered.
+    bus = new ServerMessageBusImpl() {
+      @Override
+      public void send(Message message) {
+        message.commit();
+        sent.add(message);
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    bus.stop();
+  }
+
+  public void testDeferredReplyIsSentOnCompletion() throws Exception {
+    callback("lookup").callback(request("foo"));
+
+    // the endpoint has returned, but the reply has not been sent.
+    assertNotNull(service.pending);
+    assertTrue(sent.isEmpty());
+
+    final DeferredReply<String> pending = service.pending;
+    new Thread() {
+      @Override
+      public void run() {
+        pending.complete("FOO");
+      }
+    }.start();
+
+    Message reply = sent.poll(5, TimeUnit.SECONDS);
+    assertNotNull(reply);
+    assertEquals("Reply", reply.getSubject());
+    assertEquals("FOO", reply.get(String.class, "MethodReply"));
+  }
+
+  public void testReturnedDeferredReply() throws Exception {
+    callback("lookupLater").callback(request("bar"));
+    assertTrue(sent.isEmpty());
+
+    service.pending.complete("BAR");
+    assertEquals("BAR", sent.poll().get(String.class, "MethodReply"));
+
+    // a reply is only ever sent once.
+    assertFalse(service.pending.complete("BAZ"));
+    assertTrue(sent.isEmpty());
+  }
+
+  public void testFailedReplyIsReportedAsError() throws Exception {
+    callback("lookup").callback(request("foo"));
+
+    service.pending.fail(new IllegalStateException("not found"));
+
+    Message error = sent.poll();
+    assertNotNull(error);
+    assertEquals("ClientBusErrors", error.getSubject());
+    assertTrue(sent.isEmpty());
+  }
+
+  public void testDeferOutsideEndpointFails() throws Exception {
+    try {
+      DeferredReply.defer();
+      fail("deferred a reply with no endpoint being invoked");
+    }
+    catch (IllegalStateException e) {
+      // expected.
+    }
+
+    // nor does an invocation which has failed leave this thread able to defer.
+    try {
+      callback("broken").callback(request("foo"));
+      fail("endpoint did not fail");
+    }
+    catch (RuntimeException e) {
+      // expected.
+    }
+    try {
+      DeferredReply.defer();
+      fail("deferred a reply after the endpoint had returned");
+    }
+    catch (IllegalStateException e) {
+      // expected.
+    }
+
+    // a later invocation which does not defer replies straight away.
+    callback("echo").callback(request("baz"));
+    assertEquals("baz", sent.poll().get(String.class, "MethodReply"));
+  }
+
+  private ConversationalEndpointCallback callback(String method) throws Exception {
+    return new ConversationalEndpointCallback(new Provider<Service>() {
+      public Service get() {
+        return service;
+      }
+    }, Service.class.getMethod(method, String.class), bus);
+  }
+
+  private static Message request(String name) {
+    Message message = new CommandMessage()
+            .toSubject("Service:RPC")
+            .set(MessageParts.ReplyTo, "Reply")
+            .set("MethodParms", new Object[]{name});
+
+    message.setResource("Session", session("a"));
+    return message;
+  }
+
+  public static class Service {
+    volatile DeferredReply<String> pending;
+
+    public String lookup(String name) {
+      pending = DeferredReply.defer();
+      return null;
+    }
+
+    public DeferredReply<String> lookupLater(String name) {
+      return pending = new DeferredReply<String>();
+    }
+
+    public String broken(String name) {
+      DeferredReply.defer();
+      throw new IllegalStateException("broken");
+    }
+
+    public String echo(String name) {
+      return name;
+    }
+  }
+}
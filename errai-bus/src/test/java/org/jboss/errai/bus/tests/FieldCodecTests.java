@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.tests.support.SType;
+import org.jboss.errai.bus.server.io.FieldCodec;
+import org.jboss.errai.bus.server.io.FieldCodecs;
+import org.jboss.errai.bus.server.io.JSONStreamDecoder;
+import org.jboss.errai.bus.server.io.JSONStreamEncoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FieldCodecTests extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    FieldCodecs.setGenerationEnabled(getClass().getClassLoader(), true);
+  }
+
+  public void testGeneratedCodec() throws Exception {
+    FieldCodec codec = FieldCodecs.get(Bean.class);
+    assertTrue(codec.isGenerated());
+    assertCodec(codec);
+  }
+
+  public void testGenerationSetPerClassLoader() throws Exception {
+    ClassLoader other = new URLClassLoader(new URL[0], getClass().getClassLoader());
+    FieldCodecs.setGenerationEnabled(other, false);
+    assertFalse(FieldCodecs.isGenerationEnabled(other));
+
+    assertTrue(FieldCodecs.isGenerationEnabled(getClass().getClassLoader()));
+    assertTrue(FieldCodecs.get(Bean.class).isGenerated());
+
+    FieldCodecs.release(other);
+    assertTrue(FieldCodecs.isGenerationEnabled(other));
+  }
+
+  public void testReflectiveCodec() throws Exception {
+    FieldCodecs.setGenerationEnabled(getClass().getClassLoader(), false);
+
+    FieldCodec codec = FieldCodecs.get(Bean.class);
+    assertFalse(codec.isGenerated());
+    assertCodec(codec);
+  }
+
+  public void testRoundTrip() throws Exception {
+    SType type = SType.create(new JSONTests.JavaRandomProvider());
+    assertTrue(FieldCodecs.get(SType.class).isGenerated());
+
+    Map<String, Object> parts = new HashMap<String, Object>();
+    parts.put("SType", type);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JSONStreamEncoder.encode(parts, out);
+
+    Map decoded = (Map) JSONStreamDecoder.decode(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(type, decoded.get("SType"));
+  }
+
+  public void testAccessorsWithSideEffectsNotUsed() throws Exception {
+    FieldCodec codec = FieldCodecs.get(Counted.class);
+    // the field can only be reached by reflection, so the codec does not count as generated.
+    assertFalse(codec.isGenerated());
+
+    Counted counted = new Counted();
+    int index = codec.getFieldIndex("value");
+    codec.set(counted, index, "Foo");
+    assertEquals("Foo", codec.get(counted, index));
+
+    // accessors which do anything but read or write the field are never called.
+    assertEquals(0, counted.calls);
+  }
+
+  public void testInvisibleFieldTypeNotGenerated() throws Exception {
+    FieldCodec codec = FieldCodecs.get(Hidden.class);
+    assertFalse(codec.isGenerated());
+
+    Hidden hidden = (Hidden) codec.newInstance();
+    codec.set(hidden, codec.getFieldIndex("name"), "Foo");
+    assertEquals("Foo", codec.get(hidden, codec.getFieldIndex("name")));
+  }
+
+  private static void assertCodec(FieldCodec codec) throws Exception {
+    Bean bean = (Bean) codec.newInstance();
+
+    for (int i = 0; i < codec.getFieldCount(); i++) {
+      String name = codec.getFieldName(i);
+      if ("name".equals(name)) {
+        codec.set(bean, i, "Foo");
+      }
+      else if ("count".equals(name)) {
+        // numbers are always decoded as longs, and must be narrowed.
+        codec.set(bean, i, 42l);
+      }
+      else if ("active".equals(name)) {
+        codec.set(bean, i, true);
+      }
+      else if ("tag".equals(name)) {
+        codec.set(bean, i, "Bar");
+      }
+      else if ("secret".equals(name)) {
+        codec.set(bean, i, 7l);
+      }
+    }
+
+    assertEquals("Foo", bean.getName());
+    assertEquals(42, bean.getCount());
+    assertTrue(bean.isActive());
+    assertEquals("Bar", bean.tag);
+    assertEquals(7, bean.getSecret());
+
+    for (int i = 0; i < codec.getFieldCount(); i++) {
+      String name = codec.getFieldName(i);
+      if ("name".equals(name)) {
+        assertEquals("Foo", codec.get(bean, i));
+      }
+      else if ("count".equals(name)) {
+        assertEquals(42, codec.get(bean, i));
+      }
+      else if ("active".equals(name)) {
+        assertEquals(Boolean.TRUE, codec.get(bean, i));
+      }
+      else if ("tag".equals(name)) {
+        assertEquals("Bar", codec.get(bean, i));
+      }
+      else if ("secret".equals(name)) {
+        assertEquals(7, codec.get(bean, i));
+      }
+    }
+  }
+
+  public static class Bean {
+    private String name;
+    private int count;
+    private boolean active;
+    public String tag;
+
+    // package-private accessors, which the codec can call since it is defined in the same package.
+    private int secret;
+
+    private transient String ignored;
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public void setCount(int count) {
+      this.count = count;
+    }
+
+    public boolean isActive() {
+      return active;
+    }
+
+    public void setActive(boolean active) {
+      this.active = active;
+    }
+
+    int getSecret() {
+      return secret;
+    }
+
+    void setSecret(int secret) {
+      this.secret = secret;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Bean)) return false;
+      Bean bean = (Bean) o;
+      return count == bean.count && active == bean.active && secret == bean.secret
+              && (name == null ? bean.name == null : name.equals(bean.name))
+              && (tag == null ? bean.tag == null : tag.equals(bean.tag));
+    }
+
+    @Override
+    public int hashCode() {
+      return name == null ? 0 : name.hashCode();
+    }
+  }
+
+  public static class Counted {
+    private String value;
+
+    transient int calls;
+
+    public String getValue() {
+      calls++;
+      return value;
+    }
+
+    public void setValue(String value) {
+      calls++;
+      this.value = value;
+    }
+  }
+
+  public static class Hidden {
+    String name;
+    private Secret secret;
+
+    private static class Secret {
+    }
+  }
+}
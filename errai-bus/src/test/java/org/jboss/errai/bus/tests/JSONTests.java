@@ -10,14 +10,20 @@ import org.jboss.errai.bus.client.tests.support.User;
 import org.jboss.errai.bus.server.io.JSONDecoder;
 import org.jboss.errai.bus.server.io.JSONEncoder;
 import org.jboss.errai.bus.server.io.JSONStreamDecoder;
+import org.jboss.errai.bus.server.io.JSONStreamEncoder;
 import org.jboss.errai.common.client.protocols.SerializationParts;
+import org.jboss.errai.common.client.types.DecodingContext;
+import org.jboss.errai.common.client.types.TypeHandlerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.MathContext;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -85,6 +91,24 @@ public class JSONTests extends TestCase {
     }
   }
 
+  public void testStreamEncoding() throws IOException {
+    Map<String, Object> inputParts = new HashMap<String, Object>();
+    inputParts.put("ToSubject", "Foo");
+    inputParts.put("Message", "\"Hello, World\"");
+    inputParts.put("Path", "C:\\errai\\bus");
+    inputParts.put("Lines", "one\ntwo\r\n\tthree\u0001");
+    inputParts.put("Unicode", "caf\u00e9 \u65e5\u672c \ud83d\ude00 \u2028");
+    inputParts.put("Num", 123l);
+
+    ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+    JSONStreamEncoder.encode(inputParts, outstream);
+
+    Map<String, Object> decoded = (Map<String, Object>)
+            JSONStreamDecoder.decode(new ByteArrayInputStream(outstream.toByteArray()));
+
+    assertEquals("JSONStreamEncoder did not encode properly", inputParts, decoded);
+  }
+
   public void testMarshalling() {
     String jsonData = "{\"SType\":{" + SerializationParts.ENCODED_TYPE + " :\"" + TType.class.getName()
             + "\",startDate:1280250281006,fieldOne:\"One!\",active:true,endDate:1280251281006,fieldTwo:\"Two!!\"}," +
@@ -201,6 +225,129 @@ public class JSONTests extends TestCase {
     assertEquals(user, userDes);
   }
 
+  public void testStreamDecodingForwardReferences() throws IOException {
+    String type = Node.class.getName();
+    String json = "{\"First\":{\"" + SerializationParts.ENCODED_TYPE + "\":\"" + type + "\",\""
+            + SerializationParts.OBJECT_ID + "\":\"1\",\"name\":\"one\",\"next\":{\""
+            + SerializationParts.ENCODED_TYPE + "\":\"" + type + "\",\"" + SerializationParts.OBJECT_ID + "\":\"2\"}},"
+            + "\"Second\":{\"" + SerializationParts.ENCODED_TYPE + "\":\"" + type + "\",\""
+            + SerializationParts.OBJECT_ID + "\":\"2\",\"name\":\"two\",\"next\":{\""
+            + SerializationParts.ENCODED_TYPE + "\":\"" + type + "\",\"" + SerializationParts.OBJECT_ID + "\":\"1\"}}}";
+
+    Map<String, Object> decoded = (Map<String, Object>)
+            JSONStreamDecoder.decode(new ByteArrayInputStream(json.getBytes()));
+
+    Node first = (Node) decoded.get("First");
+    Node second = (Node) decoded.get("Second");
+
+    assertEquals("one", first.getName());
+    assertEquals("two", second.getName());
+    assertSame(second, first.getNext());
+    assertSame(first, second.getNext());
+  }
+
+  public void testStreamDecodingAcrossBuffers() throws IOException {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      builder.append("\"quoted\" \\ caf\u00e9 ");
+    }
+
+    List<Object> list = new ArrayList<Object>();
+    for (long i = 0; i < 2000; i++) {
+      list.add(i);
+    }
+
+    Map<String, Object> inputParts = new HashMap<String, Object>();
+    inputParts.put("Text", builder.toString());
+    inputParts.put("List", list);
+    inputParts.put("Double", -1.5d);
+    inputParts.put("Flag", Boolean.FALSE);
+
+    ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+    JSONStreamEncoder.encode(inputParts, outstream);
+
+    Map<String, Object> decoded = (Map<String, Object>)
+            JSONStreamDecoder.decode(new ByteArrayInputStream(outstream.toByteArray()));
+
+    assertEquals(inputParts, decoded);
+  }
+
+  public void testCharactersEncodedAsStrings() throws IOException {
+    CharHolder holder = new CharHolder();
+    holder.setInitial('q');
+    holder.setGrade('\u00e9');
+
+    Map<String, Object> inputParts = new HashMap<String, Object>();
+    inputParts.put("Char", 'x');
+    inputParts.put("Quote", '"');
+    inputParts.put("Holder", holder);
+
+    ByteArrayOutputStream outstream = new ByteArrayOutputStream();
+    JSONStreamEncoder.encode(inputParts, outstream);
+
+    // a character is written as a one character string, as JSONEncoder and the client's encoder write it.
+    String json = new String(outstream.toByteArray(), "UTF-8");
+    assertTrue(json.contains("\"Char\":\"x\""));
+    assertTrue(json.contains("\"Quote\":\"\\\"\""));
+    assertEquals("\"x\"", JSONEncoder.encode('x'));
+
+    Map<String, Object> decoded = (Map<String, Object>)
+            JSONStreamDecoder.decode(new ByteArrayInputStream(outstream.toByteArray()));
+
+    assertEquals("x", decoded.get("Char"));
+    assertEquals("\"", decoded.get("Quote"));
+
+    CharHolder holderDes = (CharHolder) decoded.get("Holder");
+    assertEquals('q', holderDes.getInitial());
+    assertEquals(Character.valueOf('\u00e9'), holderDes.getGrade());
+
+    // the client converts the string back to a character wherever a character is expected.
+    assertEquals(Character.valueOf('x'),
+            TypeHandlerFactory.convert(String.class, Character.class, decoded.get("Char"), new DecodingContext()));
+  }
+
+  public static class CharHolder {
+    private char initial;
+    private Character grade;
+
+    public char getInitial() {
+      return initial;
+    }
+
+    public void setInitial(char initial) {
+      this.initial = initial;
+    }
+
+    public Character getGrade() {
+      return grade;
+    }
+
+    public void setGrade(Character grade) {
+      this.grade = grade;
+    }
+  }
+
+  public static class Node {
+    private String name;
+    private Node next;
+
+    public String getName() {
+      return name;
+    }
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public Node getNext() {
+      return next;
+    }
+
+    public void setNext(Node next) {
+      this.next = next;
+    }
+  }
+
 
   public static class TType {
     private String fieldOne;
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.server.io.LazyMessageCallback;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LazyMessageCallbackTests extends TestCase {
+  public void testCreatedOnFirstMessage() throws Exception {
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger received = new AtomicInteger();
+
+    final LazyMessageCallback callback = new LazyMessageCallback() {
+      @Override
+      protected MessageCallback create() {
+        created.incrementAndGet();
+        return new MessageCallback() {
+          public void callback(Message message) {
+            received.incrementAndGet();
+          }
+        };
+      }
+    };
+
+    assertFalse(callback.isCreated());
+    assertEquals(0, created.get());
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          callback.callback(new CommandMessage());
+        }
+      };
+      threads[i].start();
+    }
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(callback.isCreated());
+    assertEquals(1, created.get());
+    assertEquals(threads.length, received.get());
+  }
+
+  public void testRetriedAfterFailure() {
+    final AtomicInteger attempts = new AtomicInteger();
+
+    final LazyMessageCallback callback = new LazyMessageCallback() {
+      @Override
+      protected MessageCallback create() {
+        if (attempts.incrementAndGet() == 1) {
+          throw new RuntimeException("not yet");
+        }
+        return new MessageCallback() {
+          public void callback(Message message) {
+          }
+        };
+      }
+    };
+
+    try {
+      callback.callback(new CommandMessage());
+      fail("should have failed");
+    }
+    catch (RuntimeException e) {
+      assertEquals("not yet", e.getMessage());
+    }
+    assertFalse(callback.isCreated());
+
+    callback.callback(new CommandMessage());
+    assertTrue(callback.isCreated());
+    assertEquals(2, attempts.get());
+  }
+}
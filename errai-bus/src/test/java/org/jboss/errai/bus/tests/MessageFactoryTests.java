@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.framework.RoutingFlags;
+import org.jboss.errai.bus.server.HttpSessionProvider;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.io.MessageFactory;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+public class MessageFactoryTests extends TestCase {
+  private static final String SINGLE = "{\"ToSubject\":\"Foo\",\"Value\":\"One\"}";
+  private static final String BATCH = "[{\"ToSubject\":\"Foo\",\"Value\":\"One\"},"
+          + "{\"ToSubject\":\"Bar\",\"Value\":\"Two\"},{\"ToSubject\":\"Foo\",\"Value\":\"Three\"}]";
+
+  private final QueueSession session = new HttpSessionProvider.SessionsContainer().createSession("test", "queue");
+
+  public void testSingleMessage() throws Exception {
+    List<Message> messages = MessageFactory.createCommandMessages(session,
+            new ByteArrayInputStream(SINGLE.getBytes("UTF-8")));
+
+    assertEquals(1, messages.size());
+    assertMessage(messages.get(0), "Foo", "One");
+  }
+
+  public void testBatchedMessages() throws Exception {
+    List<Message> messages = MessageFactory.createCommandMessages(session,
+            new ByteArrayInputStream(BATCH.getBytes("UTF-8")));
+
+    assertEquals(3, messages.size());
+    assertMessage(messages.get(0), "Foo", "One");
+    assertMessage(messages.get(1), "Bar", "Two");
+    assertMessage(messages.get(2), "Foo", "Three");
+  }
+
+  public void testBatchedMessagesFromString() {
+    List<Message> messages = MessageFactory.createCommandMessages(session, BATCH);
+
+    assertEquals(3, messages.size());
+    assertMessage(messages.get(2), "Foo", "Three");
+
+    assertTrue(MessageFactory.createCommandMessages(session, "").isEmpty());
+  }
+
+  private void assertMessage(Message message, String subject, String value) {
+    assertEquals(subject, message.getSubject());
+    assertEquals(value, message.get(String.class, "Value"));
+    assertSame(session, message.getResource(QueueSession.class, "Session"));
+    assertTrue(message.isFlagSet(RoutingFlags.FromRemote));
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.server.util.MessageRingBuffer;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageRingBufferTests extends TestCase {
+  private static Message message(String subject) {
+    return new CommandMessage().toSubject(subject);
+  }
+
+  public void testCapacityIsRoundedToPowerOfTwo() {
+    assertEquals(256, new MessageRingBuffer(250).getCapacity());
+    assertEquals(1, new MessageRingBuffer(1).getCapacity());
+  }
+
+  public void testOfferFailsWhenFull() {
+    MessageRingBuffer buffer = new MessageRingBuffer(4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(message("Foo")));
+    }
+    assertFalse(buffer.offer(message("Foo")));
+    assertEquals(4, buffer.size());
+
+    assertNotNull(buffer.poll());
+    assertTrue(buffer.offer(message("Foo")));
+  }
+
+  public void testFifoOrderAcrossWrapAround() {
+    MessageRingBuffer buffer = new MessageRingBuffer(4);
+    for (int i = 0; i < 20; i++) {
+      assertTrue(buffer.offer(message("S" + i)));
+      if (i % 2 == 1) {
+        assertEquals("S" + (i - 1), buffer.poll().getSubject());
+        assertEquals("S" + i, buffer.poll().getSubject());
+      }
+    }
+    assertTrue(buffer.isEmpty());
+    assertNull(buffer.poll());
+  }
+
+  public void testReplaceLast() {
+    MessageRingBuffer buffer = new MessageRingBuffer(8);
+    Message a1 = message("A");
+    Message b1 = message("B");
+    Message a2 = message("A");
+    buffer.offer(a1);
+    buffer.offer(b1);
+    buffer.offer(a2);
+
+    Message a3 = message("A");
+    assertTrue(buffer.replaceLast("A", a3));
+    assertFalse(buffer.replaceLast("C", message("C")));
+
+    assertSame(a1, buffer.poll());
+    assertSame(b1, buffer.poll());
+    assertSame(a3, buffer.poll());
+    assertEquals(0, buffer.size());
+  }
+
+  public void testReplaceByPosition() {
+    MessageRingBuffer buffer = new MessageRingBuffer(4);
+    long pos = buffer.enqueue(message("Tick"));
+    buffer.enqueue(message("Other"));
+
+    Message latest = message("Tick");
+    assertTrue(buffer.replace(pos, latest));
+    assertEquals(2, buffer.size());
+    assertSame(latest, buffer.poll());
+
+    // the message at this position has been consumed, so it can no longer be replaced.
+    assertFalse(buffer.replace(pos, message("Tick")));
+    assertEquals("Other", buffer.poll().getSubject());
+  }
+
+  public void testIteratorRemoveVacatesSlot() {
+    MessageRingBuffer buffer = new MessageRingBuffer(8);
+    buffer.offer(message("A"));
+    buffer.offer(message("B"));
+    buffer.offer(message("A"));
+
+    for (Iterator<Message> iter = buffer.iterator(); iter.hasNext(); ) {
+      if ("A".equals(iter.next().getSubject())) {
+        iter.remove();
+      }
+    }
+
+    assertEquals(1, buffer.size());
+    assertEquals("B", buffer.poll().getSubject());
+    assertNull(buffer.poll());
+  }
+
+  public void testTimedPollIsWokenByProducer() throws Exception {
+    final MessageRingBuffer buffer = new MessageRingBuffer(8);
+
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+        buffer.offer(message("Wakeup"));
+      }
+    };
+    producer.start();
+
+    Message m = buffer.poll(10, TimeUnit.SECONDS);
+    assertNotNull(m);
+    assertEquals("Wakeup", m.getSubject());
+  }
+
+  public void testConcurrentProducers() throws Exception {
+    final MessageRingBuffer buffer = new MessageRingBuffer(1024);
+    final int producers = 4;
+    final int perProducer = 5000;
+    final CountDownLatch done = new CountDownLatch(producers);
+    final AtomicInteger offered = new AtomicInteger();
+
+    for (int i = 0; i < producers; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < perProducer; j++) {
+            while (!buffer.offer(message("Foo"))) {
+              Thread.yield();
+            }
+            offered.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+
+    int received = 0;
+    while (received < producers * perProducer) {
+      if (buffer.poll(1, TimeUnit.SECONDS) != null) received++;
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(producers * perProducer, offered.get());
+    assertTrue(buffer.isEmpty());
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.base.MessageDeliveryFailure;
+import org.jboss.errai.bus.server.io.MethodInvoker;
+import org.jboss.errai.bus.server.io.MethodInvokers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+public class MethodInvokerTests extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    MethodInvokers.setGenerationEnabled(getClass().getClassLoader(), true);
+  }
+
+  public void testGeneratedInvoker() throws Exception {
+    assertTrue(invoker("add").isGenerated());
+    assertTrue(invoker("join").isGenerated());
+    assertTrue(invoker("reset").isGenerated());
+    assertInvoker();
+  }
+
+  public void testReflectiveInvoker() throws Exception {
+    MethodInvokers.setGenerationEnabled(getClass().getClassLoader(), false);
+
+    assertFalse(invoker("add").isGenerated());
+    assertInvoker();
+  }
+
+  public void testPackagePrivateService() throws Exception {
+    MethodInvoker invoker = MethodInvokers.get(Hidden.class.getDeclaredMethod("echo", String.class));
+    assertTrue(invoker.isGenerated());
+    assertEquals("Foo", invoker.invoke(new Hidden(), new Object[]{"Foo"}));
+  }
+
+  public void testWrongNumberOfArguments() throws Exception {
+    try {
+      invoker("add").invoke(new Service(), new Object[]{1});
+      fail("should have failed");
+    }
+    catch (MessageDeliveryFailure e) {
+      // expected
+    }
+
+    try {
+      invoker("add").invoke(new Service(), null);
+      fail("should have failed");
+    }
+    catch (MessageDeliveryFailure e) {
+      // expected
+    }
+  }
+
+  public void testTypeMismatch() throws Exception {
+    try {
+      invoker("join").invoke(new Service(), new Object[]{new Object()});
+      fail("should have failed");
+    }
+    catch (MessageDeliveryFailure e) {
+      // expected
+    }
+
+    try {
+      invoker("add").invoke(new Service(), new Object[]{null, 1});
+      fail("should have failed");
+    }
+    catch (MessageDeliveryFailure e) {
+      // expected
+    }
+  }
+
+  public void testExceptionIsWrapped() throws Exception {
+    try {
+      invoker("fail").invoke(new Service(), new Object[]{"Foo"});
+      fail("should have failed");
+    }
+    catch (InvocationTargetException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      assertEquals("Foo", e.getCause().getMessage());
+    }
+  }
+
+  private static void assertInvoker() throws Exception {
+    Service service = new Service();
+
+    // numbers are always decoded as longs, and must be narrowed.
+    assertEquals(3, invoker("add").invoke(service, new Object[]{1l, 2l}));
+    assertEquals("a,b", invoker("join").invoke(service, new Object[]{Arrays.asList("a", "b")}));
+    assertEquals("c,d", invoker("join").invoke(service, new Object[]{new Object[]{"c", "d"}}));
+    assertEquals(7l, invoker("sum").invoke(service, new Object[]{Arrays.asList(3l, 4l)}));
+
+    assertNull(invoker("reset").invoke(service, null));
+    assertTrue(service.reset);
+  }
+
+  private static MethodInvoker invoker(String name) {
+    for (Method method : Service.class.getMethods()) {
+      if (method.getName().equals(name)) return MethodInvokers.get(method);
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+  public static class Service {
+    private boolean reset;
+
+    public int add(int a, int b) {
+      return a + b;
+    }
+
+    public String join(String[] values) {
+      StringBuilder sb = new StringBuilder();
+      for (String value : values) {
+        if (sb.length() != 0) sb.append(',');
+        sb.append(value);
+      }
+      return sb.toString();
+    }
+
+    public long sum(int[] values) {
+      long sum = 0;
+      for (int value : values) sum += value;
+      return sum;
+    }
+
+    public void reset() {
+      reset = true;
+    }
+
+    public void fail(String message) {
+      throw new IllegalStateException(message);
+    }
+  }
+
+  static class Hidden {
+    String echo(String value) {
+      return value;
+    }
+  }
+}
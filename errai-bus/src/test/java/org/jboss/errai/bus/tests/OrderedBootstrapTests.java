@@ -0,0 +1,130 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.server.ErraiBootstrapFailure;
+import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
+import org.jboss.errai.bus.server.service.bootstrap.BootstrapContext;
+import org.jboss.errai.bus.server.service.bootstrap.BootstrapExecution;
+import org.jboss.errai.bus.server.service.bootstrap.OrderedBootstrap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.jboss.errai.bus.tests.Stubs.stub;
+
+public class OrderedBootstrapTests extends TestCase {
+  private final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+
+  public void testStepsRunAfterTheirDependencies() {
+    new OrderedBootstrap(false) {
+      {
+        final BootstrapExecution a = add(step("a", 0));
+        final BootstrapExecution b = add(step("b", 50), a);
+        final BootstrapExecution c = add(step("c", 0), a);
+        add(step("d", 0), b, c);
+      }
+    }.execute(context());
+
+    assertEquals(4, finished.size());
+    assertEquals("a", finished.get(0));
+    assertEquals("d", finished.get(3));
+    assertTrue(finished.containsAll(Arrays.asList("b", "c")));
+  }
+
+  public void testFailurePropagates() {
+    final RuntimeException failure = new RuntimeException("step failed");
+    try {
+      new OrderedBootstrap(false) {
+        {
+          final BootstrapExecution a = add(step("a", 0));
+          final BootstrapExecution b = add(new BootstrapExecution() {
+            public void execute(BootstrapContext context) {
+              throw failure;
+            }
+          }, a);
+          add(step("c", 0), b);
+          add(step("independent", 50));
+        }
+      }.execute(context());
+      fail("the bootstrap should have failed");
+    }
+    catch (RuntimeException e) {
+      assertSame(failure, e.getCause());
+    }
+
+    // the step which depends on the failed one never runs, but the ones already running finish.
+    assertFalse(finished.contains("c"));
+    assertTrue(finished.contains("a"));
+    assertTrue(finished.contains("independent"));
+  }
+
+  public void testCycleDetected() {
+    try {
+      new OrderedBootstrap(false) {
+        {
+          final BootstrapExecution a = add(step("a", 0));
+          final BootstrapExecution b = add(step("b", 0), a);
+
+          // adding a step again replaces its dependencies.
+          add(a, b);
+        }
+      }.execute(context());
+      fail("the cycle should have been detected");
+    }
+    catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof ErraiBootstrapFailure);
+    }
+
+    assertTrue(finished.isEmpty());
+  }
+
+  public void testUnknownDependencyRejected() {
+    try {
+      new OrderedBootstrap(false) {
+        {
+          add(step("a", 0), step("unknown", 0));
+        }
+      };
+      fail("a step must only depend on steps which have already been added");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private BootstrapExecution step(final String name, final long sleep) {
+    return new BootstrapExecution() {
+      public void execute(BootstrapContext context) {
+        try {
+          Thread.sleep(sleep);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        finished.add(name);
+      }
+    };
+  }
+
+  private static BootstrapContext context() {
+    return new BootstrapContext(null, null, stub(ErraiServiceConfigurator.class, null));
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.server.HttpSessionProvider;
+import org.jboss.errai.bus.server.PartitionedWorkerPool;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.api.ServerMessageBus;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+import org.jboss.errai.bus.server.service.ErraiService;
+import org.jboss.errai.bus.server.service.ErraiServiceConfigurator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.errai.bus.tests.Stubs.stub;
+
+public class PartitionedWorkerPoolTests extends TestCase {
+  private final Map<String, String> properties = new HashMap<String, String>();
+  private final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+
+  private volatile CountDownLatch delivered;
+  private volatile CountDownLatch slowStarted = new CountDownLatch(1);
+  private final CountDownLatch slowRelease = new CountDownLatch(1);
+
+  private PartitionedWorkerPool pool;
+
+  @Override
+  protected void tearDown() throws Exception {
+    slowRelease.countDown();
+    if (pool != null) pool.stopPool();
+  }
+
+  public void testMessagesFromOneSessionStayInOrder() throws Exception {
+    properties.put("errai.async.thread_pool_size", "4");
+    pool = new PartitionedWorkerPool(createService());
+
+    QueueSession[] sessions = new QueueSession[8];
+    HttpSessionProvider.SessionsContainer container = new HttpSessionProvider.SessionsContainer();
+    for (int i = 0; i < sessions.length; i++) {
+      sessions[i] = container.createSession("session" + i, "queue");
+    }
+
+    delivered = new CountDownLatch(sessions.length * 500);
+    for (int seq = 0; seq < 500; seq++) {
+      for (QueueSession session : sessions) {
+        pool.deliver(new CommandMessage().toSubject("Service").set("Seq", seq).setResource("Session", session));
+      }
+    }
+
+    assertTrue("messages were not delivered", delivered.await(10, TimeUnit.SECONDS));
+
+    for (QueueSession session : sessions) {
+      List<Integer> seqs = received.get(session.getSessionId());
+      assertEquals(500, seqs.size());
+      for (int i = 0; i < seqs.size(); i++) {
+        assertEquals("out of order for " + session.getSessionId(), Integer.valueOf(i), seqs.get(i));
+      }
+    }
+  }
+
+  public void testIdleWorkerStealsPartition() throws Exception {
+    properties.put("errai.async.thread_pool_size", "2");
+    properties.put("errai.partitioned.partitions", "4");
+    properties.put("errai.partitioned.affinity", "subject");
+
+    // both partitions belong to the first worker.
+    pool = new PartitionedWorkerPool(createService()) {
+      @Override
+      protected int partitionOf(Message m) {
+        return "Slow".equals(m.getSubject()) ? 0 : 2;
+      }
+    };
+
+    delivered = new CountDownLatch(2);
+    pool.deliver(new CommandMessage().toSubject("Slow").set("Seq", 0));
+    assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+
+    pool.deliver(new CommandMessage().toSubject("Fast").set("Seq", 0));
+    assertTrue("message was held up behind a slow partition", waitFor("Fast"));
+    assertEquals(1, delivered.getCount());
+
+    // whichever worker took the slow message, the other message was delivered by the other worker.
+    assertEquals(1, pool.getStolenCount(0) + pool.getStolenCount(2));
+
+    slowRelease.countDown();
+    assertTrue(delivered.await(5, TimeUnit.SECONDS));
+    assertEquals(1, pool.getDeliveredCount(0));
+    assertEquals(1, pool.getDeliveredCount(2));
+    assertEquals(0, pool.getQueueDepths()[0]);
+
+    ServerBusMetrics metrics = new ServerBusMetrics(Collections.<QueueSession, MessageQueue>emptyMap());
+    metrics.setWorkerPool(pool);
+    assertEquals(4, metrics.getPartitionCount());
+    assertEquals(1, metrics.getPartitionStolenCounts()[0] + metrics.getPartitionStolenCounts()[2]);
+
+    Map partitions = (Map) metrics.snapshot().get("Partitions");
+    assertEquals(4, partitions.get("Count"));
+    assertEquals(1l, ((List) partitions.get("Delivered")).get(2));
+  }
+
+  private boolean waitFor(String key) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (System.currentTimeMillis() < end) {
+      synchronized (received) {
+        if (received.containsKey(key)) return true;
+      }
+      Thread.sleep(5);
+    }
+    return false;
+  }
+
+  private void receive(Message message) throws InterruptedException {
+    if ("Slow".equals(message.getSubject())) {
+      slowStarted.countDown();
+      slowRelease.await();
+    }
+
+    QueueSession session = message.getResource(QueueSession.class, "Session");
+    String key = session == null ? message.getSubject() : session.getSessionId();
+
+    synchronized (received) {
+      List<Integer> seqs = received.get(key);
+      if (seqs == null) received.put(key, seqs = new ArrayList<Integer>());
+      seqs.add(message.get(Integer.class, "Seq"));
+    }
+    delivered.countDown();
+  }
+
+  private ErraiService createService() {
+    final ErraiServiceConfigurator config = stub(ErraiServiceConfigurator.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("hasProperty")) return properties.containsKey(args[0]);
+        if (method.getName().equals("getProperty")) return properties.get(args[0]);
+        return null;
+      }
+    });
+
+    final ServerMessageBus bus = stub(ServerMessageBus.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("send") || method.getName().equals("sendGlobal")) {
+          receive((Message) args[0]);
+        }
+        return null;
+      }
+    });
+
+    return stub(ErraiService.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("getBus")) return bus;
+        if (method.getName().equals("getConfiguration")) return config;
+        return null;
+      }
+    });
+  }
+}
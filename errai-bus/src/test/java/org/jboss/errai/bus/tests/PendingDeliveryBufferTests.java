@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.client.api.base.MessageBuilder;
+import org.jboss.errai.bus.server.PendingDeliveryBuffer;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.io.JSONMessageServer;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PendingDeliveryBufferTests extends TestCase {
+  private ServerMessageBusImpl bus;
+
+  @Override
+  protected void setUp() throws Exception {
+    MessageBuilder.setMessageProvider(JSONMessageServer.PROVIDER);
+    bus = new ServerMessageBusImpl();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    bus.stop();
+  }
+
+  public void testFlushedWhenSubscribed() {
+    for (int i = 0; i < 3; i++) {
+      bus.sendGlobal(new CommandMessage().toSubject("Later"));
+    }
+    assertEquals(3, bus.getPendingDeliveries().size());
+
+    final AtomicInteger received = new AtomicInteger();
+    bus.subscribe("Later", new MessageCallback() {
+      public void callback(Message message) {
+        received.incrementAndGet();
+      }
+    });
+
+    assertEquals(3, received.get());
+    assertEquals(0, bus.getPendingDeliveries().size());
+
+    ServerBusMetrics metrics = bus.getMetrics();
+    assertEquals(3, metrics.getDeliveriesDelayed());
+    assertEquals(3, metrics.getDeliveriesFlushed());
+    assertEquals(0, metrics.getDeliveriesExpired());
+  }
+
+  public void testBackoffAndExpiry() {
+    PendingDeliveryBuffer buffer = bus.getPendingDeliveries();
+    long start = System.currentTimeMillis();
+
+    bus.sendGlobal(new CommandMessage().toSubject("Nowhere"));
+    assertEquals(0, buffer.retryDue(start - 1));
+
+    // each retry waits twice as long as the one before, until the message expires.
+    long now = start;
+    for (int attempt = 1; attempt <= PendingDeliveryBuffer.MAX_ATTEMPTS; attempt++) {
+      long delay = PendingDeliveryBuffer.INITIAL_DELAY << (attempt - 1);
+      now = System.currentTimeMillis();
+      assertEquals(0, buffer.retryDue(now + delay / 2));
+      assertEquals(1, buffer.retryDue(now + delay + 1000));
+    }
+
+    assertEquals(0, buffer.size());
+    assertEquals(1, bus.getMetrics().getDeliveriesDelayed());
+    assertEquals(1, bus.getMetrics().getDeliveriesExpired());
+  }
+
+  public void testLimit() {
+    PendingDeliveryBuffer buffer = bus.getPendingDeliveries();
+
+    // the limit is in bytes, so it is set to fit exactly two messages like the first.
+    bus.sendGlobal(new CommandMessage().toSubject("Nowhere"));
+    long messageSize = buffer.getBytes();
+    assertTrue(messageSize > 0);
+    buffer.setLimit((int) (2 * messageSize));
+
+    bus.sendGlobal(new CommandMessage().toSubject("Nowhere"));
+    try {
+      bus.sendGlobal(new CommandMessage().toSubject("Nowhere"));
+      fail("the buffer should be full");
+    }
+    catch (Exception e) {
+      // expected
+    }
+
+    assertEquals(2, buffer.size());
+    assertEquals(1, bus.getMetrics().getDeliveriesExpired());
+  }
+
+  public void testRetriedInDueOrder() {
+    final PendingDeliveryBuffer buffer = bus.getPendingDeliveries();
+    final StringBuilder retried = new StringBuilder();
+
+    long start = System.currentTimeMillis();
+    assertTrue(buffer.delay(new CommandMessage().toSubject("Nowhere"), 3, append(retried, "third")));
+    assertTrue(buffer.delay(new CommandMessage().toSubject("Elsewhere"), 1, append(retried, "first")));
+    assertTrue(buffer.delay(new CommandMessage().toSubject("Nowhere"), 2, append(retried, "second")));
+
+    assertEquals(1, buffer.retryDue(start + PendingDeliveryBuffer.INITIAL_DELAY + 100));
+    assertEquals("first", retried.toString());
+
+    assertEquals(2, buffer.retryDue(Long.MAX_VALUE));
+    assertEquals("firstsecondthird", retried.toString());
+    assertEquals(0, buffer.size());
+    assertEquals(0, buffer.getBytes());
+  }
+
+  private static Runnable append(final StringBuilder builder, final String text) {
+    return new Runnable() {
+      public void run() {
+        builder.append(text);
+      }
+    };
+  }
+
+  public void testNoDeliveryLostWhileQueuesAreRemoved() throws Exception {
+    final PendingDeliveryBuffer buffer = bus.getPendingDeliveries();
+    final int count = 20000;
+
+    final AtomicInteger retried = new AtomicInteger();
+    final Runnable retry = new Runnable() {
+      public void run() {
+        retried.incrementAndGet();
+      }
+    };
+
+    // retrying nothing removes the queue whenever it is empty, racing the thread which is adding to it.
+    final Thread sweeper = new Thread() {
+      @Override
+      public void run() {
+        while (!isInterrupted()) {
+          buffer.retryDue(0);
+        }
+      }
+    };
+    sweeper.start();
+
+    try {
+      for (int i = 0; i < count; i++) {
+        final Message message = new CommandMessage().toSubject("Nowhere");
+        assertTrue(buffer.delay(message, 1, retry));
+        buffer.retryDue(Long.MAX_VALUE);
+      }
+    }
+    finally {
+      sweeper.interrupt();
+      sweeper.join();
+    }
+
+    buffer.retryDue(Long.MAX_VALUE);
+    assertEquals(0, buffer.size());
+    assertEquals(count, retried.get());
+  }
+}
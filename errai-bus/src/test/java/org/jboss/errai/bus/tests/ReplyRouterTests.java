@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.ErrorCallback;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.api.SubscribeListener;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.client.api.base.ConversationMessage;
+import org.jboss.errai.bus.client.api.base.MessageBuilder;
+import org.jboss.errai.bus.client.api.base.MessageDeliveryFailure;
+import org.jboss.errai.bus.client.api.base.ReplyRouter;
+import org.jboss.errai.bus.client.framework.SubscriptionEvent;
+import org.jboss.errai.bus.client.protocols.MessageParts;
+import org.jboss.errai.bus.server.HttpSessionProvider;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.io.JSONMessageServer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ReplyRouterTests extends TestCase {
+  private ServerMessageBusImpl bus;
+
+  @Override
+  protected void setUp() throws Exception {
+    MessageBuilder.setMessageProvider(JSONMessageServer.PROVIDER);
+    bus = new ServerMessageBusImpl();
+
+    bus.subscribe("Echo", new MessageCallback() {
+      public void callback(Message message) {
+        bus.sendGlobal(ConversationMessage.create(message).set("Value", message.get(String.class, "Value")));
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    bus.stop();
+  }
+
+  public void testRepliesAreRoutedByCorrelationId() {
+    final AtomicInteger subscribes = new AtomicInteger();
+    bus.addSubscribeListener(new SubscribeListener() {
+      public void onSubscribe(SubscriptionEvent event) {
+        subscribes.incrementAndGet();
+      }
+    });
+
+    final List<String> replies = Collections.synchronizedList(new ArrayList<String>());
+    for (int i = 0; i < 100; i++) {
+      final String value = String.valueOf(i);
+      MessageBuilder.createMessage()
+              .toSubject("Echo")
+              .with("Value", value)
+              .done()
+              .repliesTo(new MessageCallback() {
+                public void callback(Message message) {
+                  assertEquals(value, message.get(String.class, "Value"));
+                  replies.add(value);
+                }
+              })
+              .sendNowWith(bus);
+    }
+
+    assertEquals(100, replies.size());
+    assertEquals(0, subscribes.get());
+    assertEquals(0, bus.getReplyRouter().getPendingCount());
+  }
+
+  public void testUnknownCorrelationIdIsIgnored() {
+    final AtomicInteger received = new AtomicInteger();
+    Message request = new CommandMessage().toSubject("Echo");
+    String id = bus.getReplyRouter().expectReply(request, new MessageCallback() {
+      public void callback(Message message) {
+        received.incrementAndGet();
+      }
+    }, null);
+
+    bus.sendGlobal(new CommandMessage().toSubject(ReplyRouter.SERVER_SUBJECT).set(MessageParts.CorrelationId, "S-1"));
+    assertEquals(0, received.get());
+    assertEquals(1, bus.getReplyRouter().getPendingCount());
+
+    bus.sendGlobal(new CommandMessage().toSubject(ReplyRouter.SERVER_SUBJECT).set(MessageParts.CorrelationId, id));
+    bus.sendGlobal(new CommandMessage().toSubject(ReplyRouter.SERVER_SUBJECT).set(MessageParts.CorrelationId, id));
+    assertEquals(1, received.get());
+  }
+
+  public void testCorrelationIdsCannotBeGuessed() {
+    String first = bus.getReplyRouter().expectReply(new CommandMessage().toSubject("Nowhere"), null, null);
+    String second = bus.getReplyRouter().expectReply(new CommandMessage().toSubject("Nowhere"), null, null);
+
+    assertFalse(first.equals(second));
+    assertTrue("correlation ID has no random part: " + second, second.length() > 16);
+  }
+
+  public void testReplyFromAnotherSessionIsIgnored() {
+    HttpSessionProvider.SessionsContainer container = new HttpSessionProvider.SessionsContainer();
+    QueueSession session = container.createSession("session", "queue");
+    QueueSession other = container.createSession("other", "queue");
+
+    final AtomicInteger received = new AtomicInteger();
+    Message request = new CommandMessage().toSubject("Echo").setResource("Session", session);
+    String id = bus.getReplyRouter().expectReply(request, new MessageCallback() {
+      public void callback(Message message) {
+        received.incrementAndGet();
+      }
+    }, null);
+
+    bus.sendGlobal(new CommandMessage().toSubject(ReplyRouter.SERVER_SUBJECT).set(MessageParts.CorrelationId, id)
+            .setResource("Session", other));
+    bus.sendGlobal(new CommandMessage().toSubject(ReplyRouter.SERVER_SUBJECT).set(MessageParts.CorrelationId, id));
+    assertEquals(0, received.get());
+    assertEquals(1, bus.getReplyRouter().getPendingCount());
+
+    bus.sendGlobal(new CommandMessage().toSubject(ReplyRouter.SERVER_SUBJECT).set(MessageParts.CorrelationId, id)
+            .setResource("Session", session));
+    assertEquals(1, received.get());
+    assertEquals(0, bus.getReplyRouter().getPendingCount());
+  }
+
+  public void testUnansweredRepliesExpire() {
+    final ReplyRouter router = bus.getReplyRouter();
+    router.setReplyTimeout(1000);
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Message request = new CommandMessage().toSubject("Nowhere");
+    router.expectReply(request, new MessageCallback() {
+      public void callback(Message message) {
+        fail("should have expired");
+      }
+    }, new ErrorCallback() {
+      public boolean error(Message message, Throwable throwable) {
+        error.set(throwable);
+        return false;
+      }
+    });
+
+    assertEquals(ReplyRouter.SERVER_SUBJECT, request.get(String.class, MessageParts.ReplyTo));
+    assertEquals(ReplyRouter.SERVER_SUBJECT, request.get(String.class, MessageParts.ErrorTo));
+
+    assertEquals(0, router.expire(System.currentTimeMillis()));
+    assertEquals(1, router.expire(System.currentTimeMillis() + 1000));
+    assertTrue(error.get() instanceof MessageDeliveryFailure);
+    assertEquals(0, router.getPendingCount());
+  }
+
+  public void testErrorCallbackFiredWithoutReplyCallback() {
+    final ReplyRouter router = bus.getReplyRouter();
+    router.setReplyTimeout(1000);
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    router.expectReply(new CommandMessage().toSubject("Nowhere"), null, new ErrorCallback() {
+      public boolean error(Message message, Throwable throwable) {
+        error.set(throwable);
+        return false;
+      }
+    });
+
+    assertEquals(1, router.expire(System.currentTimeMillis() + 1000));
+    assertTrue(error.get() instanceof MessageDeliveryFailure);
+  }
+
+  public void testReplyRemovesRequestWithOnlyAnErrorCallback() {
+    final ReplyRouter router = bus.getReplyRouter();
+
+    final AtomicInteger errors = new AtomicInteger();
+    Message request = new CommandMessage().toSubject("Echo").set("Value", "x");
+    router.expectReply(request, null, new ErrorCallback() {
+      public boolean error(Message message, Throwable throwable) {
+        errors.incrementAndGet();
+        return false;
+      }
+    });
+    assertEquals(ReplyRouter.SERVER_SUBJECT, request.get(String.class, MessageParts.ReplyTo));
+
+    bus.sendGlobal(request);
+    assertEquals(0, router.getPendingCount());
+    assertEquals(0, router.expire(Long.MAX_VALUE));
+    assertEquals(0, errors.get());
+  }
+
+  public void testFailingErrorCallbackDoesNotStopExpiry() {
+    final ReplyRouter router = bus.getReplyRouter();
+    router.setReplyTimeout(1000);
+
+    final AtomicInteger errors = new AtomicInteger();
+    for (int i = 0; i < 2; i++) {
+      router.expectReply(new CommandMessage().toSubject("Nowhere"), null, new ErrorCallback() {
+        public boolean error(Message message, Throwable throwable) {
+          errors.incrementAndGet();
+          throw new RuntimeException("error callback failed");
+        }
+      });
+    }
+
+    assertEquals(2, router.expire(System.currentTimeMillis() + 1000));
+    assertEquals(2, errors.get());
+    assertEquals(0, router.getPendingCount());
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.framework.DeliveryPlan;
+import org.jboss.errai.bus.client.framework.SubjectPattern;
+import org.jboss.errai.bus.server.RoutingTable;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.SubjectTrie;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueSession;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.jboss.errai.bus.tests.Stubs.queue;
+import static org.jboss.errai.bus.tests.Stubs.session;
+
+public class RoutingTableTests extends TestCase {
+  public void testCopiedOnWrite() {
+    RoutingTable.Route route = new RoutingTable.Route("Foo", new DeliveryPlan(), null);
+
+    RoutingTable table = RoutingTable.EMPTY.with("Foo", route);
+    assertEquals(0, RoutingTable.EMPTY.size());
+    assertSame(route, table.get("Foo"));
+
+    RoutingTable removed = table.without("Foo");
+    assertFalse(removed.contains("Foo"));
+    assertTrue(table.contains("Foo"));
+    assertSame(removed, removed.without("Foo"));
+  }
+
+  public void testSubjectPatterns() {
+    assertTrue(SubjectPattern.isPattern("Stocks.*"));
+    assertTrue(SubjectPattern.isPattern("Orders.**"));
+    assertFalse(SubjectPattern.isPattern("Stocks.IB*"));
+    assertFalse(SubjectPattern.isPattern("Stocks"));
+
+    assertTrue(SubjectPattern.matches("Stocks.*", "Stocks.IBM"));
+    assertFalse(SubjectPattern.matches("Stocks.*", "Stocks.NYSE.IBM"));
+    assertFalse(SubjectPattern.matches("Stocks.*", "Stocks"));
+    assertTrue(SubjectPattern.matches("Stocks.*.IBM", "Stocks.NYSE.IBM"));
+    assertTrue(SubjectPattern.matches("Orders.**", "Orders.EU.42"));
+    assertFalse(SubjectPattern.matches("Orders.**", "Orders"));
+  }
+
+  public void testNonTrailingAnyTokensRejected() {
+    for (String pattern : Arrays.asList("a.**.b", "**.b", "a.*.**.*")) {
+      try {
+        SubjectPattern.isPattern(pattern);
+        fail("'**' is not the last token of: " + pattern);
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+
+      try {
+        RoutingTable.EMPTY.with(pattern, new RoutingTable.Route(pattern, new DeliveryPlan(), null));
+        fail("subscribed to: " + pattern);
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testSubjectTrie() {
+    SubjectTrie trie = new SubjectTrie(Arrays.asList("Stocks.*", "Stocks.NYSE.*", "Stocks.**", "*.NYSE.IBM", "Foo"));
+    assertEquals(4, trie.size());
+
+    assertEquals(new HashSet<String>(Arrays.asList("Stocks.NYSE.*", "Stocks.**", "*.NYSE.IBM")),
+            new HashSet<String>(trie.match("Stocks.NYSE.IBM")));
+    assertEquals(new HashSet<String>(Arrays.asList("Stocks.*", "Stocks.**")),
+            new HashSet<String>(trie.match("Stocks.IBM")));
+    assertTrue(trie.match("Foo").isEmpty());
+  }
+
+  public void testResolvePatterns() {
+    DeliveryPlan exact = new DeliveryPlan();
+    DeliveryPlan wildcard = new DeliveryPlan();
+
+    RoutingTable table = RoutingTable.EMPTY.with("Stocks.IBM", new RoutingTable.Route("Stocks.IBM", exact, null));
+    assertFalse(table.hasPatterns());
+    assertSame(exact, table.resolve("Stocks.IBM"));
+
+    table = table.with("Stocks.*", new RoutingTable.Route("Stocks.*", wildcard, null));
+    assertTrue(table.hasPatterns());
+    assertSame(wildcard, table.resolve("Stocks.HPQ"));
+    assertNull(table.resolve("Orders.42"));
+
+    // the exact match and the pattern are combined.
+    assertNotSame(exact, table.resolve("Stocks.IBM"));
+    assertSame(table.resolve("Stocks.IBM"), table.resolve("Stocks.IBM"));
+
+    table = table.without("Stocks.*");
+    assertFalse(table.hasPatterns());
+    assertNull(table.resolve("Stocks.HPQ"));
+  }
+
+  public void testQueueSet() {
+    MessageQueue a = queue(session("a"));
+    MessageQueue b = queue(session("b"));
+    MessageQueue c = queue(session("c"));
+
+    RoutingTable.QueueSet set = RoutingTable.QueueSet.EMPTY.with(a).with(b).with(c);
+    assertSame(set, set.with(b));
+    assertEquals(3, set.size());
+    assertTrue(set.contains(b));
+
+    RoutingTable.QueueSet removed = set.without(b);
+    assertFalse(removed.contains(b));
+    assertTrue(set.contains(b));
+
+    // the order the queues were added in is kept.
+    assertSame(a, removed.get(0));
+    assertSame(c, removed.get(1));
+    assertSame(RoutingTable.QueueSet.EMPTY, removed.without(a).without(c));
+  }
+
+  public void testQueueSetsSharingStorage() {
+    MessageQueue a = queue(session("a"));
+    MessageQueue b = queue(session("b"));
+    MessageQueue c = queue(session("c"));
+
+    RoutingTable.QueueSet base = RoutingTable.QueueSet.EMPTY.with(a);
+    RoutingTable.QueueSet withB = base.with(b);
+    RoutingTable.QueueSet withC = base.with(c);
+
+    // adding to a set never changes it, nor any other set derived from it.
+    assertEquals(1, base.size());
+    assertFalse(base.contains(b));
+    assertEquals(Arrays.asList(a, b), withB.asList());
+    assertEquals(Arrays.asList(a, c), withC.asList());
+    assertFalse(withB.contains(c));
+    assertFalse(withC.contains(b));
+
+    // adding the same queue again, as a retried update does, gives an equal set.
+    assertEquals(withB.asList(), base.with(b).asList());
+
+    try {
+      base.get(1);
+      fail("the set only has one queue");
+    }
+    catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+
+    RoutingTable.QueueSet many = RoutingTable.QueueSet.EMPTY;
+    MessageQueue[] queues = new MessageQueue[1000];
+    for (int i = 0; i < queues.length; i++) {
+      many = many.with(queues[i] = queue(session(String.valueOf(i))));
+    }
+    assertEquals(queues.length, many.size());
+    for (int i = 0; i < queues.length; i++) {
+      assertSame(queues[i], many.get(i));
+      assertTrue(many.contains(queues[i]));
+    }
+  }
+
+  public void testRemoteSubscriptions() {
+    ServerMessageBusImpl bus = new ServerMessageBusImpl();
+    try {
+      QueueSession session = session("a");
+      MessageQueue a = queue(session);
+      MessageQueue b = queue(session("b"));
+
+      bus.subscribe("Foo", new MessageCallback() {
+        public void callback(Message message) {
+        }
+      });
+      assertFalse(bus.hasRemoteSubscriptions("Foo"));
+
+      bus.remoteSubscribe(session, a, "Foo");
+      bus.remoteSubscribe(session, a, "Foo");
+      bus.remoteSubscribe(session, b, "Foo");
+      assertTrue(bus.hasRemoteSubscriptions("Foo"));
+
+      // the local subscriber and the remote callback.
+      assertEquals(2, bus.getReceivers("Foo").size());
+
+      ServerMessageBusImpl.RemoteMessageCallback remote
+              = (ServerMessageBusImpl.RemoteMessageCallback) bus.getReceivers("Foo").get(1);
+      assertEquals(2, remote.getQueueCount());
+
+      bus.remoteUnsubscribe(session, a, "Foo");
+      assertEquals(1, remote.getQueueCount());
+      assertFalse(remote.contains(a));
+      assertTrue(remote.contains(b));
+
+      bus.unsubscribeAll("Foo");
+      assertFalse(bus.isSubscribed("Foo"));
+    }
+    finally {
+      bus.stop();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.MessageCallback;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.client.api.base.MessageBuilder;
+import org.jboss.errai.bus.client.framework.RoutingFlags;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.io.JSONMessageServer;
+import org.jboss.errai.bus.server.metrics.Counter;
+import org.jboss.errai.bus.server.metrics.LatencyHistogram;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ServerBusMetricsTests extends TestCase {
+  @Override
+  protected void setUp() throws Exception {
+    MessageBuilder.setMessageProvider(JSONMessageServer.PROVIDER);
+  }
+
+  public void testCounterFromManyThreads() throws Exception {
+    final Counter counter = new Counter();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            counter.increment();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(40000, counter.get());
+    counter.reset();
+    assertEquals(0, counter.get());
+  }
+
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(10000); // 10us
+    }
+    histogram.record(5000000); // 5ms
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(5000, histogram.getMaxMicros());
+
+    // percentiles are reported as the upper bound of their power-of-two bucket.
+    assertEquals(15, histogram.getPercentileMicros(50));
+    assertEquals(15, histogram.getPercentileMicros(99));
+    assertEquals(5000, histogram.getPercentileMicros(100));
+  }
+
+  public void testBusRecordsAndReportsMetrics() throws Exception {
+    ServerMessageBusImpl bus = new ServerMessageBusImpl();
+    try {
+      bus.subscribe("Foo", new MessageCallback() {
+        public void callback(Message message) {
+        }
+      });
+
+      final AtomicReference<Map> reply = new AtomicReference<Map>();
+      final CountDownLatch replied = new CountDownLatch(1);
+      bus.subscribe("MetricsReply", new MessageCallback() {
+        public void callback(Message message) {
+          reply.set(message.get(Map.class, "Metrics"));
+          replied.countDown();
+        }
+      });
+
+      for (int i = 0; i < 3; i++) {
+        bus.sendGlobal(new CommandMessage().toSubject("Foo"));
+      }
+
+      ServerBusMetrics metrics = bus.getMetrics();
+      assertEquals(3, metrics.messagesIn("Foo"));
+      assertEquals(3, metrics.forSubject("Foo").getDispatchLatency().getCount());
+
+      bus.sendGlobal(new CommandMessage().toSubject(ServerBusMetrics.SUBJECT).set("ReplyTo", "MetricsReply"));
+      assertTrue(replied.await(5, TimeUnit.SECONDS));
+
+      Map subjects = (Map) reply.get().get("Subjects");
+      assertEquals(3l, ((Map) subjects.get("Foo")).get("MessagesIn"));
+    }
+    finally {
+      bus.stop();
+    }
+  }
+
+  public void testMetricsNotReadableByClients() throws Exception {
+    ServerMessageBusImpl bus = new ServerMessageBusImpl();
+    try {
+      final CountDownLatch replied = new CountDownLatch(1);
+      bus.subscribe("MetricsReply", new MessageCallback() {
+        public void callback(Message message) {
+          replied.countDown();
+        }
+      });
+
+      Message fromClient = new CommandMessage().toSubject(ServerBusMetrics.SUBJECT).set("ReplyTo", "MetricsReply");
+      fromClient.setFlag(RoutingFlags.FromRemote);
+      bus.sendGlobal(fromClient);
+      assertFalse("a client must not be able to read the metrics", replied.await(500, TimeUnit.MILLISECONDS));
+
+      bus.sendGlobal(new CommandMessage().toSubject(ServerBusMetrics.SUBJECT).set("ReplyTo", "MetricsReply"));
+      assertTrue(replied.await(5, TimeUnit.SECONDS));
+    }
+    finally {
+      bus.stop();
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.client.api.base.MessageBuilder;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.api.QueueSession;
+import org.jboss.errai.bus.server.io.JSONMessageServer;
+import org.jboss.errai.bus.server.io.SharedEncodedMessage;
+import org.jboss.errai.bus.server.metrics.ServerBusMetrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.errai.bus.tests.Stubs.queue;
+import static org.jboss.errai.bus.tests.Stubs.session;
+
+public class SharedEncodedMessageTests extends TestCase {
+  @Override
+  protected void setUp() throws Exception {
+    MessageBuilder.setMessageProvider(JSONMessageServer.PROVIDER);
+  }
+
+  public void testEncodedOnce() throws Exception {
+    final ServerBusMetrics metrics = new ServerBusMetrics(Collections.<QueueSession, MessageQueue>emptyMap());
+    final SharedEncodedMessage message
+            = new SharedEncodedMessage(new CommandMessage().toSubject("Foo").set("Value", "bar"), metrics);
+
+    final int threads = 8;
+    final byte[][] encoded = new byte[threads][];
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> queues = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      final int index = i;
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            encoded[index] = message.getEncodedBytes();
+          }
+          catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      queues.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : queues) {
+      thread.join();
+    }
+
+    for (int i = 1; i < threads; i++) {
+      assertSame(encoded[0], encoded[i]);
+    }
+    assertTrue(new String(encoded[0], "UTF-8").contains("bar"));
+    assertEquals(1, metrics.getSharedEncodeMisses());
+    assertEquals(threads - 1, metrics.getSharedEncodeHits());
+  }
+
+  public void testBroadcastSharedAcrossQueues() throws Exception {
+    final ServerMessageBusImpl bus = new ServerMessageBusImpl();
+    final ServerMessageBusImpl other = new ServerMessageBusImpl();
+    try {
+      final List<Message> offered = Collections.synchronizedList(new ArrayList<Message>());
+      final CountDownLatch received = new CountDownLatch(3);
+      for (String id : new String[]{"a", "b", "c"}) {
+        final QueueSession session = session(id);
+        bus.remoteSubscribe(session, queue(session, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("offer".equals(method.getName())) {
+              offered.add((Message) args[0]);
+              received.countDown();
+              return true;
+            }
+            return null;
+          }
+        }), "Foo");
+      }
+
+      bus.sendGlobal(new CommandMessage().toSubject("Foo").set("Value", "bar"));
+      assertTrue(received.await(5, TimeUnit.SECONDS));
+
+      // every queue was given the same message, which is encoded by whichever transmits it first.
+      assertEquals(3, offered.size());
+      assertTrue(offered.get(0) instanceof SharedEncodedMessage);
+      final byte[] encoded = ((SharedEncodedMessage) offered.get(0)).getEncodedBytes();
+      for (Message message : offered) {
+        assertSame(offered.get(0), message);
+        assertSame(encoded, ((SharedEncodedMessage) message).getEncodedBytes());
+      }
+
+      assertEquals(1, bus.getMetrics().getSharedEncodeMisses());
+      assertEquals(2, bus.getMetrics().getSharedEncodeHits());
+
+      // the counters belong to the bus which sent the message.
+      assertEquals(0, other.getMetrics().getSharedEncodeMisses());
+      assertEquals(0, other.getMetrics().getSharedEncodeHits());
+    }
+    finally {
+      bus.stop();
+      other.stop();
+    }
+  }
+}
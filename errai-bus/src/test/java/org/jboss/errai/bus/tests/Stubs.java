@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueSession;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedList;
+
+/**
+ * Stand-ins for the interfaces the bus is tested against, built from dynamic proxies. A stub is only equal to itself,
+ * and every method its handler gives no answer for returns <tt>false</tt>, zero or <tt>null</tt>.
+ */
+final class Stubs {
+  private Stubs() {
+  }
+
+  /**
+   * Creates a stub of the specified interface.
+   *
+   * @param type    - the interface
+   * @param handler - answers the calls to the stub, returning <tt>null</tt> for the default answer. May be
+   *                <tt>null</tt>.
+   * @return the stub
+   */
+  static <T> T stub(final Class<T> type, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final String name = method.getName();
+        final int params = method.getParameterTypes().length;
+        if ("equals".equals(name) && params == 1) return proxy == args[0];
+        if ("hashCode".equals(name) && params == 0) return System.identityHashCode(proxy);
+        if ("toString".equals(name) && params == 0) return type.getSimpleName() + " stub";
+
+        final Object answer = handler == null ? null : handler.invoke(proxy, method, args);
+        return answer == null ? defaultValue(method.getReturnType()) : answer;
+      }
+    }));
+  }
+
+  /**
+   * Returns a valid session with the specified ID.
+   */
+  static QueueSession session(final String sessionId) {
+    return stub(QueueSession.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("getSessionId".equals(method.getName())) return sessionId;
+        if ("isValid".equals(method.getName())) return true;
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Returns a message queue of the specified session, which never has any messages waiting.
+   */
+  static MessageQueue queue(QueueSession session) {
+    return queue(session, null);
+  }
+
+  /**
+   * Returns a message queue of the specified session, which never has any messages waiting.
+   *
+   * @param session - the session of the queue
+   * @param handler - answers any other calls to the queue. May be <tt>null</tt>.
+   * @return the queue
+   */
+  static MessageQueue queue(final QueueSession session, final InvocationHandler handler) {
+    return stub(MessageQueue.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("getSession".equals(method.getName())) return session;
+        if ("getQueue".equals(method.getName())) return new LinkedList<Message>();
+        return handler == null ? null : handler.invoke(proxy, method, args);
+      }
+    });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0l;
+    if (type == short.class) return (short) 0;
+    if (type == byte.class) return (byte) 0;
+    if (type == char.class) return (char) 0;
+    if (type == float.class) return 0f;
+    if (type == double.class) return 0d;
+    return null;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.server.SubscriptionSync;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class SubscriptionSyncTests extends TestCase {
+  public void testChangesAreBatched() {
+    SubscriptionSync sync = new SubscriptionSync();
+    assertNull(sync.flush());
+
+    sync.subscribed("A");
+    sync.subscribed("B");
+    sync.subscribed("C");
+    sync.unsubscribed("B");
+
+    SubscriptionSync.Delta delta = sync.flush();
+    assertEquals(Arrays.asList("A", "C"), delta.getSubscribed());
+    assertEquals(Collections.singletonList("B"), delta.getUnsubscribed());
+    assertEquals(sync.getVersion(), delta.getVersion());
+
+    assertNull(sync.flush());
+  }
+
+  public void testChangesSinceVersion() {
+    SubscriptionSync sync = new SubscriptionSync();
+    sync.subscribed("A");
+    sync.subscribed("B");
+    sync.flush();
+
+    String version = sync.getVersion();
+    assertTrue(sync.since(version).isEmpty());
+
+    sync.unsubscribed("A");
+    sync.flush();
+    sync.subscribed("C");
+    sync.flush();
+    sync.subscribed("A");
+    sync.flush();
+
+    // pending changes are sent in the next batch, not with the diff.
+    sync.subscribed("D");
+
+    SubscriptionSync.Delta delta = sync.since(version);
+    assertEquals(Arrays.asList("C", "A"), delta.getSubscribed());
+    assertTrue(delta.getUnsubscribed().isEmpty());
+    assertEquals(sync.getVersion(), delta.getVersion());
+  }
+
+  public void testUnknownVersions() {
+    SubscriptionSync sync = new SubscriptionSync(2);
+    String initial = sync.getVersion();
+
+    for (int i = 0; i < 3; i++) {
+      sync.subscribed("S" + i);
+      sync.flush();
+    }
+
+    // the first change is no longer retained.
+    assertNull(sync.since(initial));
+    assertEquals(Arrays.asList("S2"), sync.since(initial.replaceAll(":0$", ":2")).getSubscribed());
+
+    assertNull(sync.since(null));
+    assertNull(sync.since("foo"));
+    assertNull(sync.since("foo:1"));
+    assertNull(sync.since(initial.replaceAll(":0$", ":99")));
+    assertNull(new SubscriptionSync().since(sync.getVersion().replaceFirst("^[^:]+", "x")));
+  }
+}
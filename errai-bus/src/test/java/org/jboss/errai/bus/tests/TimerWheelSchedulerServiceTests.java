@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.AsyncTask;
+import org.jboss.errai.bus.server.async.TimedTask;
+import org.jboss.errai.bus.server.async.TimerWheelSchedulerService;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimerWheelSchedulerServiceTests extends TestCase {
+  private TimerWheelSchedulerService scheduler;
+
+  @Override
+  protected void setUp() throws Exception {
+    // a small wheel, so that tasks are scheduled more than one turn ahead.
+    scheduler = new TimerWheelSchedulerService(5, 8);
+    scheduler.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    scheduler.requestStop();
+  }
+
+  public void testTasksRunWhenDue() throws Exception {
+    final int count = 200;
+    final CountDownLatch latch = new CountDownLatch(count);
+    final AtomicInteger early = new AtomicInteger();
+
+    for (int i = 0; i < count; i++) {
+      final long due = System.currentTimeMillis() + (i % 20) * 7;
+      scheduler.addTask(new TimedTask() {
+        {
+          period = -1;
+          nextRuntime = due;
+        }
+
+        public void run() {
+          if (System.currentTimeMillis() < due) early.incrementAndGet();
+          latch.countDown();
+        }
+      });
+    }
+
+    assertTrue("not all tasks were run", latch.await(5, TimeUnit.SECONDS));
+    assertEquals("tasks were run before they were due", 0, early.get());
+  }
+
+  public void testRepeatingTask() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(5);
+
+    TimedTask task = new TimedTask() {
+      {
+        period = 10;
+      }
+
+      public void run() {
+        latch.countDown();
+      }
+    };
+    scheduler.addTaskConcurrently(task);
+
+    assertTrue("repeating task did not repeat", latch.await(5, TimeUnit.SECONDS));
+    task.cancel();
+  }
+
+  public void testRepeatingTaskOnSingleBucketWheel() throws Exception {
+    scheduler.requestStop();
+    scheduler = new TimerWheelSchedulerService(5, 1);
+    scheduler.start();
+
+    final CountDownLatch latch = new CountDownLatch(5);
+    final CountDownLatch other = new CountDownLatch(1);
+
+    TimedTask task = new TimedTask() {
+      {
+        period = 1;
+      }
+
+      public void run() {
+        latch.countDown();
+      }
+    };
+    scheduler.addTask(task);
+
+    scheduler.addTask(new TimedTask() {
+      {
+        period = -1;
+        nextRuntime = System.currentTimeMillis() + 50;
+      }
+
+      public void run() {
+        other.countDown();
+      }
+    });
+
+    assertTrue("repeating task did not repeat", latch.await(5, TimeUnit.SECONDS));
+    assertTrue("scheduler did not move on from the bucket", other.await(5, TimeUnit.SECONDS));
+    task.cancel();
+  }
+
+  public void testCancelledTaskDoesNotRun() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    AsyncTask cancelled = scheduler.addTask(new TimedTask() {
+      {
+        period = -1;
+        nextRuntime = System.currentTimeMillis() + 50;
+      }
+
+      public void run() {
+        runs.incrementAndGet();
+      }
+    });
+
+    final TimedTask direct = new TimedTask() {
+      {
+        period = -1;
+        nextRuntime = System.currentTimeMillis() + 50;
+      }
+
+      public void run() {
+        runs.incrementAndGet();
+      }
+    };
+    scheduler.addTask(direct);
+
+    scheduler.addTask(new TimedTask() {
+      {
+        period = -1;
+        nextRuntime = System.currentTimeMillis() + 150;
+      }
+
+      public void run() {
+        latch.countDown();
+      }
+    });
+
+    cancelled.cancel(false);
+    direct.cancel(false);
+
+    assertTrue(cancelled.isCancelled());
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(0, runs.get());
+  }
+
+  public void testTaskExceptionDoesNotStopScheduler() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    scheduler.addTask(new TimedTask() {
+      {
+        period = -1;
+      }
+
+      public void run() {
+        throw new RuntimeException("expected");
+      }
+    });
+
+    scheduler.addTask(new TimedTask() {
+      {
+        period = -1;
+        nextRuntime = System.currentTimeMillis() + 20;
+      }
+
+      public void run() {
+        latch.countDown();
+      }
+    });
+
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.server.MessageQueueImpl;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.TransmissionWindow;
+import org.jboss.errai.bus.server.api.QueueOverflowPolicy;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.jboss.errai.bus.tests.Stubs.session;
+
+public class TransmissionWindowTests extends TestCase {
+  private static final long MILLIS = 1000000L;
+  private static final long ROUND_TRIP = 50 * MILLIS;
+
+  private long now = 1000 * MILLIS;
+
+  public void testSparseTrafficSentStraightAway() {
+    TransmissionWindow window = new TransmissionWindow();
+
+    // one message a second, with a 50ms round trip.
+    exchange(window, 1, 1000 * MILLIS, 200);
+
+    assertEquals(0, window.getWindow());
+    assertEquals(TransmissionWindow.DEFAULT_MIN_PAYLOAD, window.getPayloadLimit());
+    assertEquals(ROUND_TRIP, window.getRoundTrip());
+  }
+
+  public void testBusyTrafficWidensWindow() {
+    TransmissionWindow window = new TransmissionWindow();
+
+    // 100 messages every 100ms, with a 50ms round trip.
+    exchange(window, 100, 100 * MILLIS, 200);
+
+    assertTrue(window.getOfferedRate() > 900);
+    assertTrue(window.getWindow() > 40 * MILLIS);
+    assertTrue(window.getWindow() <= ROUND_TRIP);
+    assertTrue(window.getPayloadLimit() > TransmissionWindow.DEFAULT_MIN_PAYLOAD);
+    assertTrue(window.getPayloadLimit() <= TransmissionWindow.DEFAULT_MAX_PAYLOAD);
+  }
+
+  public void testWindowLimitedToMaximum() {
+    TransmissionWindow window = new TransmissionWindow(10 * MILLIS, 1024, 4096);
+
+    exchange(window, 100, 100 * MILLIS, 200);
+
+    assertEquals(10 * MILLIS, window.getWindow(), MILLIS);
+    assertEquals(4096, window.getPayloadLimit());
+  }
+
+  public void testWindowClosesWhenTrafficStops() {
+    TransmissionWindow window = new TransmissionWindow();
+    exchange(window, 100, 100 * MILLIS, 200);
+    assertTrue(window.getWindow() > 0);
+
+    exchange(window, 0, 1000 * MILLIS, 0);
+    assertTrue(window.getWindow() < MILLIS);
+    assertEquals(TransmissionWindow.DEFAULT_MIN_PAYLOAD, window.getPayloadLimit());
+  }
+
+  public void testQueuePayloadLimitedByBytes() throws Exception {
+    ServerMessageBusImpl bus = new ServerMessageBusImpl();
+    try {
+      MessageQueueImpl queue = new MessageQueueImpl(100, QueueOverflowPolicy.DisconnectClient,
+              new TransmissionWindow(TransmissionWindow.DEFAULT_MAX_WINDOW * 100, 200, 200), bus, session("a"));
+      queue.setWindowPolling(true);
+      queue.poll(false, new ByteArrayOutputStream());
+
+      for (int i = 0; i < 20; i++) {
+        queue.offer(new CommandMessage().toSubject("Foo").set("Value", i));
+      }
+
+      queue.poll(false, new ByteArrayOutputStream());
+      int sent = 20 - queue.getQueue().size();
+
+      assertTrue(sent > 1);
+      assertTrue(sent < 20);
+    }
+    finally {
+      bus.stop();
+    }
+  }
+
+  public void testQueuePayloadLimitedByTime() throws Exception {
+    ServerMessageBusImpl bus = new ServerMessageBusImpl();
+    try {
+      // a window of one nanosecond has passed before a second message can be taken.
+      MessageQueueImpl queue = new MessageQueueImpl(100, QueueOverflowPolicy.DisconnectClient,
+              new TransmissionWindow(1, 1024 * 1024, 1024 * 1024), bus, session("a"));
+      queue.setWindowPolling(true);
+      queue.poll(false, new ByteArrayOutputStream());
+
+      for (int i = 0; i < 20; i++) {
+        queue.offer(new CommandMessage().toSubject("Foo").set("Value", i));
+      }
+
+      queue.poll(false, new ByteArrayOutputStream());
+      int sent = 20 - queue.getQueue().size();
+
+      assertTrue(sent >= 1);
+      assertTrue(sent < 20);
+    }
+    finally {
+      bus.stop();
+    }
+  }
+
+  /**
+   * Simulates twenty transmissions of the specified number of messages, each offered over the specified interval,
+   * with the client polling again a round trip after each transmission.
+   */
+  private void exchange(TransmissionWindow window, int messages, long interval, int bytesPerMessage) {
+    for (int i = 0; i < 20; i++) {
+      window.recordPoll(now += ROUND_TRIP);
+      for (int j = 0; j < messages; j++) {
+        window.recordOffer();
+      }
+      window.recordTransmission(now += interval - ROUND_TRIP, messages, messages * bytesPerMessage);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.bus.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.bus.client.api.base.CommandMessage;
+import org.jboss.errai.bus.server.MessageQueueImpl;
+import org.jboss.errai.bus.server.ServerMessageBusImpl;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.PushActivationCallback;
+import org.jboss.errai.bus.server.websocket.WebSocketQueueBridge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.jboss.errai.bus.tests.Stubs.session;
+
+public class WebSocketQueueBridgeTests extends TestCase {
+  private ServerMessageBusImpl bus;
+  private MessageQueueImpl queue;
+  private List<String> frames;
+  private WebSocketQueueBridge bridge;
+
+  @Override
+  protected void setUp() throws Exception {
+    bus = new ServerMessageBusImpl();
+    queue = new MessageQueueImpl(10, bus, session("a"));
+    frames = new ArrayList<String>();
+    bridge = new WebSocketQueueBridge(queue, new WebSocketQueueBridge.FrameSink() {
+      public void send(String frame) {
+        frames.add(frame);
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    bus.stop();
+  }
+
+  public void testPushedAsSoonAsOffered() {
+    bridge.attach();
+    assertSame(bridge, queue.getActivationCallback());
+
+    queue.offer(new CommandMessage().toSubject("Foo"));
+    queue.offer(new CommandMessage().toSubject("Bar"));
+
+    assertEquals(2, frames.size());
+    assertTrue(frames.get(0).contains("Foo"));
+    assertTrue(frames.get(1).contains("Bar"));
+    assertFalse(queue.messagesWaiting());
+  }
+
+  public void testWaitingMessagesPushedOnAttach() {
+    queue.offer(new CommandMessage().toSubject("Foo"));
+    assertTrue(frames.isEmpty());
+
+    bridge.attach();
+    assertEquals(1, frames.size());
+    assertTrue(frames.get(0).contains("Foo"));
+  }
+
+  public void testDetachedOnFailure() {
+    WebSocketQueueBridge failing = new WebSocketQueueBridge(queue, new WebSocketQueueBridge.FrameSink() {
+      public void send(String frame) throws IOException {
+        throw new IOException("closed");
+      }
+    });
+    failing.attach();
+
+    queue.offer(new CommandMessage().toSubject("Foo"));
+    assertNull(queue.getActivationCallback());
+  }
+
+  public void testDetach() {
+    bridge.attach();
+    bridge.detach();
+    assertNull(queue.getActivationCallback());
+
+    queue.offer(new CommandMessage().toSubject("Foo"));
+    assertTrue(frames.isEmpty());
+    assertTrue(queue.messagesWaiting());
+  }
+
+  public void testConflatedMessagesPushed() {
+    final List<Integer> activations = new ArrayList<Integer>();
+    queue.setActivationCallback(new PushActivationCallback() {
+      public void activate(MessageQueue q) {
+        // leaves the messages waiting, as a socket which is still busy with the last frame would.
+        activations.add(q.getQueue().size());
+      }
+    });
+    bus.conflate("Price", null);
+
+    queue.offer(new CommandMessage().toSubject("Price"));
+    queue.offer(new CommandMessage().toSubject("Price"));
+
+    assertEquals(1, queue.getConflatedMessageCount());
+    assertEquals(Arrays.asList(1, 1), activations);
+    assertEquals(1, queue.getHighWaterMark());
+  }
+
+  public void testConflationKeysForgottenWhenDrained() {
+    bus.conflate("Price", "Symbol");
+
+    for (int i = 0; i < 100; i++) {
+      queue.offer(new CommandMessage().toSubject("Price").set("Symbol", "S" + (i % 5)));
+    }
+    assertEquals(95, queue.getConflatedMessageCount());
+    assertEquals(5, queue.getConflationKeyCount());
+
+    bridge.attach();
+    assertEquals(5, frames.size());
+    assertEquals(0, queue.getConflationKeyCount());
+
+    // a message for a key which has been drained is queued afresh, rather than replacing one already sent.
+    bridge.detach();
+    queue.offer(new CommandMessage().toSubject("Price").set("Symbol", "S0"));
+    assertEquals(95, queue.getConflatedMessageCount());
+    assertEquals(1, queue.getConflationKeyCount());
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.common.metadata;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps the {@link MetaDataIndex} of every jar the {@link MetaDataScanner} has scanned in a directory, keyed by a
+ * hash of the contents of the jar and the {@link #FORMAT_VERSION}, so that a jar which has not changed is never
+ * scanned again. Directories of classes are not cached, as they are expected to change.
+ * <p/>
+ * The cache is kept in <tt>.errai/metadata</tt> within the user's home directory, so that it is not shared with
+ * other users, unless another directory is given by the <tt>errai.metadata.cache_dir</tt> system property. It is
+ * turned off by setting the <tt>errai.metadata.cache</tt> system property to <tt>false</tt>.
+ */
+class MetaDataCache {
+  static final String CACHE_PROPERTY = "errai.metadata.cache";
+  static final String CACHE_DIR_PROPERTY = "errai.metadata.cache_dir";
+
+  /**
+   * The version of the cached indexes. It must be incremented whenever the format of an index, or what the scanner
+   * puts in it, changes, so that indexes cached by other versions are never read.
+   */
+  static final int FORMAT_VERSION = 1;
+
+  private static final Logger log = LoggerFactory.getLogger(MetaDataCache.class);
+
+  private final File dir;
+
+  MetaDataCache(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Returns the cache configured by the system properties, or null if caching is turned off.
+   */
+  static MetaDataCache getDefault() {
+    if ("false".equalsIgnoreCase(System.getProperty(CACHE_PROPERTY))) return null;
+
+    final String path = System.getProperty(CACHE_DIR_PROPERTY);
+    return new MetaDataCache(path != null ? new File(path)
+            : new File(new File(System.getProperty("user.home"), ".errai"), "metadata"));
+  }
+
+  /**
+   * Returns the jar file the specified URL refers to, or null if it does not refer to a jar on the local file
+   * system.
+   */
+  static File getArchive(URL url) {
+    String path;
+    if ("jar".equals(url.getProtocol())) {
+      path = url.getPath();
+      final int idx = path.indexOf("!/");
+      if (idx != -1) path = path.substring(0, idx);
+      if (!path.startsWith("file:")) return null;
+      path = path.substring("file:".length());
+    }
+    else if ("file".equals(url.getProtocol())) {
+      path = url.getPath();
+    }
+    else {
+      return null;
+    }
+
+    try {
+      final File file = new File(URLDecoder.decode(path, "UTF-8"));
+      return file.isFile() ? file : null;
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new Error("UTF-8 is not supported by this JVM?", e);
+    }
+  }
+
+  /**
+   * Returns the hash of the contents of the specified file, as a hex string.
+   */
+  static String hash(File file) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new Error("SHA-1 is not supported by this JVM?", e);
+    }
+
+    final InputStream in = new FileInputStream(file);
+    try {
+      final byte[] buf = new byte[8192];
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        digest.update(buf, 0, read);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    final StringBuilder sb = new StringBuilder(40);
+    for (byte b : digest.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the cached index for the jar with the specified hash, or null if there is none.
+   */
+  MetaDataIndex get(String hash) {
+    final File file = fileOf(hash);
+    if (!file.isFile()) return null;
+
+    try {
+      final InputStream in = new FileInputStream(file);
+      try {
+        return MetaDataIndex.read(in);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      log.warn("could not read cached meta data: " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Caches the index for the jar with the specified hash. Failures are logged, as the cache is only an
+   * optimization.
+   */
+  void put(String hash, MetaDataIndex index) {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      log.warn("could not create meta data cache directory: " + dir);
+      return;
+    }
+
+    // written to a temporary file first, so that concurrent scans never read a partially written index.
+    final File file = fileOf(hash);
+    try {
+      final File tmp = File.createTempFile(hash, ".tmp", dir);
+      final OutputStream out = new FileOutputStream(tmp);
+      try {
+        index.write(out);
+      }
+      finally {
+        out.close();
+      }
+
+      if (!tmp.renameTo(file)) {
+        tmp.delete();
+      }
+    }
+    catch (IOException e) {
+      log.warn("could not cache meta data: " + file, e);
+    }
+  }
+
+  private File fileOf(String hash) {
+    return new File(dir, hash + ".v" + FORMAT_VERSION + ".index");
+  }
+}
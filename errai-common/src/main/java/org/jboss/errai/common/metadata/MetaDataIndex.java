@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.common.metadata;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import org.reflections.Configuration;
+import org.reflections.ReflectionsException;
+import org.reflections.Store;
+import org.reflections.scanners.FieldAnnotationsScanner;
+import org.reflections.scanners.MethodAnnotationsScanner;
+import org.reflections.scanners.Scanner;
+import org.reflections.scanners.TypeAnnotationsScanner;
+import org.reflections.util.ConfigurationBuilder;
+import org.reflections.vfs.Vfs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The annotation meta data of a single jar or directory of classes, as found by the scanners of the
+ * {@link MetaDataScanner}: for each scanner, the annotations it found and the types, methods or fields they were
+ * found on.
+ * <p/>
+ * An index can be generated into a jar at build time, by running this class over the classes directory before it is
+ * packaged (for instance with the exec-maven-plugin in the <tt>process-classes</tt> phase):
+ * <p/>
+ * <pre>
+ * java org.jboss.errai.common.metadata.MetaDataIndex target/classes
+ * </pre>
+ * The scanner reads the index it finds at {@link #INDEX_PATH} in a jar instead of scanning the classes in the jar.
+ */
+public class MetaDataIndex {
+  public static final String INDEX_PATH = "META-INF/errai/metadata.index";
+
+  private static final String HEADER = "# Errai meta data index";
+  private static final Logger log = LoggerFactory.getLogger(MetaDataIndex.class);
+
+  private final Map<String, Multimap<String, String>> entries = new HashMap<String, Multimap<String, String>>();
+
+  /**
+   * Returns the entries recorded by the specified scanner.
+   *
+   * @param index - the name of the scanner
+   * @return the (live) entries of the scanner
+   */
+  public Multimap<String, String> get(String index) {
+    Multimap<String, String> multimap = entries.get(index);
+    if (multimap == null) {
+      entries.put(index, multimap = HashMultimap.create());
+    }
+    return multimap;
+  }
+
+  public boolean isEmpty() {
+    for (Multimap<String, String> multimap : entries.values()) {
+      if (!multimap.isEmpty()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Adds all of the entries of this index to the specified store.
+   */
+  void mergeInto(Store store) {
+    for (Map.Entry<String, Multimap<String, String>> entry : entries.entrySet()) {
+      store.get(entry.getKey()).putAll(entry.getValue());
+    }
+  }
+
+  /**
+   * Creates the index of the specified files, by scanning the bytecode of each class.
+   *
+   * @param files - the files of a jar or directory. Any which are not classes are ignored.
+   * @return the new index
+   */
+  public static MetaDataIndex create(Iterable<Vfs.File> files) {
+    final MetaDataIndex index = new MetaDataIndex();
+    final Configuration configuration = new ConfigurationBuilder();
+    final Scanner[] scanners = {
+            new FieldAnnotationsScanner(), new MethodAnnotationsScanner(), new TypeAnnotationsScanner()
+    };
+
+    for (Scanner scanner : scanners) {
+      scanner.setConfiguration(configuration);
+      scanner.setStore(index.get(scanner.getName()));
+    }
+
+    for (Vfs.File file : files) {
+      final String input = file.getRelativePath().replace('/', '.');
+      for (Scanner scanner : scanners) {
+        if (!scanner.acceptsInput(input)) continue;
+
+        try {
+          scanner.scan(file);
+        }
+        catch (ReflectionsException e) {
+          log.warn("could not scan file " + file.getFullPath() + " with scanner " + scanner.getName(), e);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Reads an index written by {@link #write(OutputStream)}. The stream is not closed.
+   */
+  public static MetaDataIndex read(InputStream in) throws IOException {
+    final MetaDataIndex index = new MetaDataIndex();
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.length() == 0 || line.startsWith("#")) continue;
+
+      final String[] fields = line.split("\t");
+      if (fields.length != 3) {
+        throw new IOException("badly formed meta data index entry: " + line);
+      }
+      index.get(fields[0]).put(fields[1], fields[2]);
+    }
+    return index;
+  }
+
+  /**
+   * Writes this index as lines of tab separated scanner names, keys and values. The stream is not closed.
+   */
+  public void write(OutputStream out) throws IOException {
+    final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    writer.write(HEADER);
+    writer.write('\n');
+
+    for (Map.Entry<String, Multimap<String, String>> entry : entries.entrySet()) {
+      for (Map.Entry<String, String> value : entry.getValue().entries()) {
+        writer.write(entry.getKey());
+        writer.write('\t');
+        writer.write(value.getKey());
+        writer.write('\t');
+        writer.write(value.getValue());
+        writer.write('\n');
+      }
+    }
+    writer.flush();
+  }
+
+  /**
+   * Generates the index of each of the specified classes directories, at {@link #INDEX_PATH} within it.
+   *
+   * @param args - the classes directories
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("usage: MetaDataIndex <classes directory> ...");
+      System.exit(1);
+    }
+
+    for (String path : args) {
+      final File root = new File(path);
+      final Vfs.Dir dir = Vfs.fromURL(root.toURI().toURL());
+      final MetaDataIndex index;
+      try {
+        index = create(dir.getFiles());
+      }
+      finally {
+        dir.close();
+      }
+
+      final File indexFile = new File(root, INDEX_PATH);
+      if (!indexFile.getParentFile().isDirectory() && !indexFile.getParentFile().mkdirs()) {
+        throw new IOException("could not create directory: " + indexFile.getParentFile());
+      }
+
+      final OutputStream out = new FileOutputStream(indexFile);
+      try {
+        index.write(out);
+      }
+      finally {
+        out.close();
+      }
+    }
+  }
+}
@@ -24,14 +24,24 @@ import org.reflections.scanners.MethodAnnotationsScanner;
 import org.reflections.scanners.TypeAnnotationsScanner;
 import org.reflections.util.ConfigurationBuilder;
 import org.reflections.vfs.Vfs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
 import static org.reflections.vfs.Vfs.UrlType;
@@ -44,6 +54,10 @@ import static org.reflections.vfs.Vfs.UrlType;
  * <p/>
  * <p/>
  * The initial set of config Url's (entry points) is discovered through ErraiApp.properties.
+ * <p/>
+ * Each Url is scanned on its own thread. A jar which contains a {@link MetaDataIndex} generated at build time is not
+ * scanned at all, and the meta data of any other jar is cached by the {@link MetaDataCache}, so that it is only
+ * scanned again when it changes.
  *
  * @author: Heiko Braun <hbraun@redhat.com>
  * @date: Aug 3, 2010
@@ -52,13 +66,20 @@ public class MetaDataScanner extends Reflections {
   public static final String CLIENT_PKG_REGEX = ".*(\\.client\\.).*";
   public static final String ERRAI_CONFIG_STUB_NAME = "ErraiApp.properties";
 
-  private static final PropertyScanner propScanner = new PropertyScanner(
-          new Predicate<String>() {
-            public boolean apply(String file) {
-              return file.endsWith(".properties");
-            }
-          }
-  );
+  private static final Logger log = LoggerFactory.getLogger(MetaDataScanner.class);
+
+  private static final Predicate<String> PROPERTIES = new Predicate<String>() {
+    public boolean apply(String file) {
+      return file.endsWith(".properties");
+    }
+  };
+
+  /*
+   * These are assigned by scan(), which the Reflections constructor may call before the fields of this class are
+   * initialized, and so must not have initializers of their own.
+   */
+  private boolean scanned;
+  private Map<String, Properties> properties;
 
   MetaDataScanner(List<URL> urls) {
     super(getConfiguration(urls));
@@ -72,12 +93,132 @@ public class MetaDataScanner extends Reflections {
             .setScanners(
                     new FieldAnnotationsScanner(),
                     new MethodAnnotationsScanner(),
-                    new TypeAnnotationsScanner(),
+                    new TypeAnnotationsScanner()
                     //new SubTypesScanner(),
-                    propScanner
             );
   }
 
+  @Override
+  protected void scan() {
+    if (scanned) return;
+    scanned = true;
+    properties = new HashMap<String, Properties>();
+
+    final List<URL> urls = new ArrayList<URL>(configuration.getUrls());
+    if (urls.isEmpty()) return;
+
+    final long start = System.currentTimeMillis();
+    final MetaDataCache cache = MetaDataCache.getDefault();
+    final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(urls.size(), Runtime.getRuntime().availableProcessors()), new ScannerThreadFactory());
+
+    try {
+      final List<Future<UrlMetaData>> results = new ArrayList<Future<UrlMetaData>>(urls.size());
+      for (final URL url : urls) {
+        results.add(executor.submit(new Callable<UrlMetaData>() {
+          public UrlMetaData call() throws Exception {
+            return scanUrl(url, cache);
+          }
+        }));
+      }
+
+      // the results are merged in order, so that properties are overridden just as they were when scanning serially.
+      for (Future<UrlMetaData> result : results) {
+        final UrlMetaData metaData = result.get();
+        metaData.index.mergeInto(getStore());
+
+        for (Map.Entry<String, Properties> entry : metaData.properties.getProperties().entrySet()) {
+          final Properties props = properties.get(entry.getKey());
+          if (props == null) {
+            properties.put(entry.getKey(), entry.getValue());
+          }
+          else {
+            props.putAll(entry.getValue());
+          }
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("interrupted while scanning meta data", e);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException("failed to scan meta data", e.getCause());
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    log.info("scanned meta data of " + urls.size() + " urls in " + (System.currentTimeMillis() - start) + "ms.");
+  }
+
+  private static UrlMetaData scanUrl(URL url, MetaDataCache cache) throws IOException {
+    final File archive = MetaDataCache.getArchive(url);
+    final String hash = archive != null && cache != null ? MetaDataCache.hash(archive) : null;
+
+    MetaDataIndex index = hash != null ? cache.get(hash) : null;
+    final boolean cached = index != null;
+
+    final PropertyScanner propScanner = new PropertyScanner(PROPERTIES);
+    final List<Vfs.File> classes = new ArrayList<Vfs.File>();
+
+    final Vfs.Dir dir = Vfs.fromURL(url);
+    try {
+      for (Vfs.File file : dir.getFiles()) {
+        final String path = file.getRelativePath();
+        if (propScanner.acceptsInput(path)) {
+          propScanner.scan(file);
+        }
+        else if (index == null && archive != null && MetaDataIndex.INDEX_PATH.equals(path)) {
+          final InputStream in = file.openInputStream();
+          try {
+            index = MetaDataIndex.read(in);
+          }
+          finally {
+            in.close();
+          }
+        }
+        else if (path.endsWith(".class")) {
+          classes.add(file);
+        }
+      }
+
+      if (index == null) {
+        index = MetaDataIndex.create(classes);
+      }
+    }
+    finally {
+      dir.close();
+    }
+
+    if (hash != null && !cached) {
+      cache.put(hash, index);
+    }
+    return new UrlMetaData(index, propScanner);
+  }
+
+  private static class UrlMetaData {
+    private final MetaDataIndex index;
+    private final PropertyScanner properties;
+
+    private UrlMetaData(MetaDataIndex index, PropertyScanner properties) {
+      this.index = index;
+      this.properties = properties;
+    }
+  }
+
+  private static class ScannerThreadFactory implements ThreadFactory {
+    private final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    private int counter;
+
+    public synchronized Thread newThread(Runnable r) {
+      final Thread thread = new Thread(r, "Errai MetaData Scanner " + (++counter));
+      thread.setDaemon(true);
+      thread.setContextClassLoader(contextClassLoader);
+      return thread;
+    }
+  }
+
   public static MetaDataScanner createInstance() {
     return createInstance(getConfigUrls());
   }
@@ -171,6 +312,6 @@ public class MetaDataScanner extends Reflections {
   }
 
   public Properties getProperties(String name) {
-    return propScanner.getProperties().get(name);
+    return properties.get(name);
   }
 }
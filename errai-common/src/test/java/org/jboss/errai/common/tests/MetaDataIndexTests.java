@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011 JBoss, a divison Red Hat, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jboss.errai.common.tests;
+
+import junit.framework.TestCase;
+import org.jboss.errai.common.metadata.MetaDataIndex;
+import org.jboss.errai.common.metadata.MetaDataScanner;
+import org.reflections.scanners.TypeAnnotationsScanner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MetaDataIndexTests extends TestCase {
+  private static final String SERVICE_CLASS = IndexedService.class.getName().replace('.', '/') + ".class";
+
+  private File dir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("errai-metadata-test", "");
+    dir.delete();
+    dir.mkdirs();
+
+    cacheDir = new File(dir, "cache");
+    System.setProperty("errai.metadata.cache_dir", cacheDir.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty("errai.metadata.cache_dir");
+    delete(dir);
+  }
+
+  public void testScannedJarIsCached() throws Exception {
+    File jar = createJar("services.jar", null);
+
+    assertTrue(getServices(jar).contains(IndexedService.class.getName()));
+
+    File[] cached = cacheDir.listFiles();
+    assertEquals(1, cached.length);
+
+    // replace the cached index, to show that an unchanged jar is not scanned again.
+    MetaDataIndex index = new MetaDataIndex();
+    index.get(new TypeAnnotationsScanner().getName()).put(Indexed.class.getName(), "org.example.CachedService");
+    write(index, cached[0]);
+
+    Set<String> services = getServices(jar);
+    assertTrue(services.contains("org.example.CachedService"));
+    assertFalse(services.contains(IndexedService.class.getName()));
+  }
+
+  public void testIndexCachedByAnotherVersionIgnored() throws Exception {
+    File jar = createJar("services.jar", null);
+
+    // an index cached under the hash alone, as by an older version, is never read.
+    MetaDataIndex stale = new MetaDataIndex();
+    stale.get(new TypeAnnotationsScanner().getName()).put(Indexed.class.getName(), "org.example.StaleService");
+    cacheDir.mkdirs();
+    write(stale, new File(cacheDir, sha1(jar) + ".index"));
+
+    Set<String> services = getServices(jar);
+    assertTrue(services.contains(IndexedService.class.getName()));
+    assertFalse(services.contains("org.example.StaleService"));
+  }
+
+  public void testBuildTimeIndexIsUsed() throws Exception {
+    MetaDataIndex index = new MetaDataIndex();
+    index.get(new TypeAnnotationsScanner().getName()).put(Indexed.class.getName(), "org.example.IndexedService");
+
+    Set<String> services = getServices(createJar("indexed.jar", index));
+    assertTrue(services.contains("org.example.IndexedService"));
+    assertFalse(services.contains(IndexedService.class.getName()));
+  }
+
+  public void testPropertiesAreLoaded() throws Exception {
+    File jar = createJar("services.jar", null);
+    MetaDataScanner scanner = MetaDataScanner.createInstance(Collections.singletonList(jar.toURI().toURL()));
+    assertEquals("bar", scanner.getProperties("ErraiApp.properties").getProperty("foo"));
+  }
+
+  private static Set<String> getServices(File jar) throws IOException {
+    MetaDataScanner scanner = MetaDataScanner.createInstance(Collections.singletonList(jar.toURI().toURL()));
+    return scanner.getStore().getTypesAnnotatedWith(Indexed.class.getName());
+  }
+
+  private File createJar(String name, MetaDataIndex index) throws IOException {
+    File jar = new File(dir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      out.putNextEntry(new ZipEntry("ErraiApp.properties"));
+      out.write("foo=bar\n".getBytes("UTF-8"));
+
+      out.putNextEntry(new ZipEntry(SERVICE_CLASS));
+      InputStream in = getClass().getClassLoader().getResourceAsStream(SERVICE_CLASS);
+      try {
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+          out.write(buf, 0, read);
+        }
+      }
+      finally {
+        in.close();
+      }
+
+      if (index != null) {
+        out.putNextEntry(new ZipEntry(MetaDataIndex.INDEX_PATH));
+        index.write(out);
+      }
+    }
+    finally {
+      out.close();
+    }
+    return jar;
+  }
+
+  private static String sha1(File file) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[4096];
+      int read;
+      while ((read = in.read(buf)) != -1) {
+        digest.update(buf, 0, read);
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static void write(MetaDataIndex index, File file) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      index.write(out);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) delete(f);
+    }
+    file.delete();
+  }
+
+  @Retention(RetentionPolicy.RUNTIME)
+  public @interface Indexed {
+  }
+
+  @Indexed
+  public static class IndexedService {
+  }
+}